@@ -7,8 +7,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
@@ -354,6 +356,86 @@ public class BucketTools {
 		}
 	}
 
+	/**
+	 * Copy part of a bucket to a channel, reading only that part. If the data is in a
+	 * plain file it is sent with {@link FileChannel#transferTo(long, long,
+	 * WritableByteChannel)}, which the OS can do without copying it through the JVM;
+	 * otherwise it is read at the offset where possible, or skipped to, and copied through
+	 * a single buffer.
+	 * @param data The bucket. Not freed.
+	 * @param offset Where to start.
+	 * @param length How many bytes to copy. offset + length must not be past the end of
+	 * the data.
+	 * @throws IOException If there was an error reading from the bucket or writing to the
+	 * channel, or the bucket is shorter than expected.
+	 */
+	public static void copyTo(Bucket data, WritableByteChannel out, long offset, long length) throws IOException {
+		if (offset < 0 || length < 0)
+			throw new IllegalArgumentException("offset=" + offset + ", length=" + length);
+		if (length == 0)
+			return;
+		Bucket underlying = unwrap(data);
+		if (underlying instanceof BaseFileBucket) {
+			try (FileChannel fc = FileChannel.open(((BaseFileBucket) underlying).getFile().toPath(),
+					StandardOpenOption.READ)) {
+				long moved = 0;
+				while (moved < length) {
+					long bytes = fc.transferTo(offset + moved, length - moved, out);
+					if (bytes <= 0)
+						throw new EOFException("Could not move required quantity of data in copyTo: moved " + moved
+								+ " of " + length + " from " + underlying);
+					moved += bytes;
+				}
+			}
+			return;
+		}
+		InputStream is;
+		if (underlying instanceof RAFBucket) {
+			LockableRandomAccessBuffer raf = ((RAFBucket) underlying).toRandomAccessBuffer();
+			// Takes the end, not the length.
+			is = new RAFInputStream(raf, offset, Math.min(offset + length, raf.size()));
+		}
+		else {
+			is = underlying.getInputStreamUnbuffered();
+		}
+		try {
+			if (!(underlying instanceof RAFBucket))
+				FileUtil.skipFully(is, offset);
+			byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, length)];
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			long moved = 0;
+			while (moved < length) {
+				int bytes = is.read(buf, 0, (int) Math.min(buf.length, length - moved));
+				if (bytes <= 0)
+					throw new EOFException("Could not move required quantity of data in copyTo: moved " + moved
+							+ " of " + length + " from " + underlying);
+				bb.clear().limit(bytes);
+				while (bb.hasRemaining())
+					out.write(bb);
+				moved += bytes;
+			}
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * The bucket actually holding the data, looking through buckets which just wrap one.
+	 * A temp bucket still in RAM may be moved to disk while we read it, so is left alone.
+	 */
+	private static Bucket unwrap(Bucket data) {
+		while (true) {
+			if (data instanceof NoFreeBucket)
+				data = ((NoFreeBucket) data).proxy;
+			else if (data instanceof TempBucketFactory.TempBucket
+					&& !((TempBucketFactory.TempBucket) data).isRAMBucket())
+				data = ((TempBucketFactory.TempBucket) data).getUnderlying();
+			else
+				return data;
+		}
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
@@ -0,0 +1,225 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.bucket;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.ClientContext;
+import freenet.lockablebuffer.LockableRandomAccessBuffer;
+import freenet.lockablebuffer.OffHeapRandomAccessBuffer;
+
+/**
+ * A bucket that stores data in memory outside the Java heap, in chunks from a
+ * {@link SlabAllocator}. Like an ArrayBucket, opening a new OutputStream starts again
+ * from empty. Unlike an ArrayBucket, the memory must be freed: the allocator keeps every
+ * slab, so a chunk which is never freed is lost for the life of the allocator.
+ */
+public class OffHeapBucket implements RandomAccessBucket {
+
+	private final OffHeapStorage storage;
+
+	private long size;
+
+	private boolean readOnly;
+
+	/** Incremented when a new OutputStream is opened, so the old one stops working. */
+	private int generation;
+
+	public OffHeapBucket(SlabAllocator allocator) {
+		storage = new OffHeapStorage(allocator);
+	}
+
+	/**
+	 * Make sure the bucket can grow to the given size without running out of memory.
+	 * @return False if the allocator has run out of memory.
+	 */
+	public synchronized boolean ensureCapacity(long newSize) {
+		if (storage.isFreed())
+			return false;
+		return storage.ensureCapacity(newSize, false);
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return getOutputStreamUnbuffered();
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+		if (readOnly)
+			throw new IOException("Read only");
+		if (storage.isFreed())
+			throw new IOException("Already freed");
+		size = 0;
+		return new OffHeapOutputStream(++generation);
+	}
+
+	private class OffHeapOutputStream extends OutputStream {
+
+		private final int streamGeneration;
+
+		private boolean closed;
+
+		OffHeapOutputStream(int generation) {
+			this.streamGeneration = generation;
+		}
+
+		private void checkWrite(int length) throws IOException {
+			if (closed)
+				throw new IOException("Closed");
+			if (storage.isFreed())
+				throw new IOException("Already freed");
+			if (generation != streamGeneration)
+				throw new IOException("Another OutputStream has been opened");
+			if (!storage.ensureCapacity(size + length, false))
+				throw new IOException("Out of off-heap memory for temporary data");
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized (OffHeapBucket.this) {
+				checkWrite(1);
+				storage.put(size++, (byte) b);
+			}
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			synchronized (OffHeapBucket.this) {
+				checkWrite(length);
+				storage.write(size, buf, offset, length);
+				size += length;
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getInputStreamUnbuffered();
+	}
+
+	@Override
+	public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+		if (storage.isFreed())
+			throw new IOException("Already freed");
+		return new OffHeapInputStream();
+	}
+
+	private class OffHeapInputStream extends InputStream {
+
+		private long offset;
+
+		@Override
+		public int read() throws IOException {
+			synchronized (OffHeapBucket.this) {
+				if (storage.isFreed())
+					throw new IOException("Already freed");
+				if (offset >= size)
+					return -1;
+				return storage.get(offset++) & 0xff;
+			}
+		}
+
+		@Override
+		public int read(byte[] buf, int bufOffset, int length) throws IOException {
+			synchronized (OffHeapBucket.this) {
+				if (storage.isFreed())
+					throw new IOException("Already freed");
+				if (length == 0)
+					return 0;
+				if (offset >= size)
+					return -1;
+				int count = (int) Math.min(length, size - offset);
+				storage.read(offset, buf, bufOffset, count);
+				offset += count;
+				return count;
+			}
+		}
+
+		@Override
+		public long skip(long n) {
+			synchronized (OffHeapBucket.this) {
+				long skipped = Math.max(0, Math.min(n, size - offset));
+				offset += skipped;
+				return skipped;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (OffHeapBucket.this) {
+				return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - offset));
+			}
+		}
+
+	}
+
+	@Override
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public String getName() {
+		return "OffHeapBucket";
+	}
+
+	@Override
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	@Override
+	public synchronized void free() {
+		storage.free(false);
+	}
+
+	/** Free the memory because the data has been copied to disk. Only affects statistics. */
+	public synchronized void freeMigrated() {
+		storage.free(true);
+	}
+
+	@Override
+	public RandomAccessBucket createShadow() {
+		return null;
+	}
+
+	@Override
+	public void onResume(ClientContext context) {
+		// Do nothing.
+	}
+
+	@Override
+	public void storeTo(DataOutputStream dos) {
+		// Should not be used for persistent requests.
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * The RAF shares the memory with the bucket, and freeing either frees it, so the bucket
+	 * should not be used afterwards.
+	 */
+	@Override
+	public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+		if (storage.isFreed())
+			throw new IOException("Already freed");
+		readOnly = true;
+		return new OffHeapRandomAccessBuffer(storage, size, true);
+	}
+
+}
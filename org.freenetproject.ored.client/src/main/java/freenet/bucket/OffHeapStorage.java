@@ -0,0 +1,137 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.bucket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import freenet.bucket.SlabAllocator.Chunk;
+
+/**
+ * A growable array of bytes stored in chunks from a {@link SlabAllocator}. The chunks may
+ * be of different sizes. When growing, each new chunk is as big as everything before it,
+ * up to the largest chunk size, so small buckets waste little and big ones don't need
+ * many chunks. When the final size is known, the chunks are chosen to fit it.
+ *
+ * Not thread-safe, the caller must lock.
+ */
+public final class OffHeapStorage {
+
+	private final SlabAllocator allocator;
+
+	private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+	/** Offset of the start of each chunk. */
+	private long[] starts = new long[4];
+
+	private long capacity;
+
+	private boolean freed;
+
+	public OffHeapStorage(SlabAllocator allocator) {
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Make sure there is room for the given number of bytes.
+	 * @param exact If true, this is the final size, so don't leave room to grow.
+	 * @return False if the allocator has run out of memory. Any chunks already added are
+	 * kept.
+	 */
+	public boolean ensureCapacity(long size, boolean exact) {
+		if (freed)
+			throw new IllegalStateException("Already freed");
+		while (capacity < size) {
+			long wanted = size - capacity;
+			if (!exact)
+				wanted = Math.max(wanted, capacity);
+			else if (wanted > SlabAllocator.MIN_CHUNK_SIZE)
+				// The biggest chunk which fits, so only the last, smallest chunk has room left.
+				wanted = Long.highestOneBit(wanted);
+			Chunk chunk = allocator.allocate((int) Math.min(wanted, SlabAllocator.MAX_CHUNK_SIZE));
+			if (chunk == null)
+				return false;
+			if (chunks.size() == starts.length)
+				starts = Arrays.copyOf(starts, starts.length * 2);
+			starts[chunks.size()] = capacity;
+			chunks.add(chunk);
+			capacity += chunk.capacity();
+		}
+		return true;
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	private int chunkIndex(long offset) {
+		int index = Arrays.binarySearch(starts, 0, chunks.size(), offset);
+		return (index >= 0) ? index : -index - 2;
+	}
+
+	/** Copy bytes out. The caller must check the range is within what has been written. */
+	public void read(long offset, byte[] buf, int bufOffset, int length) {
+		if (offset < 0 || offset + length > capacity)
+			throw new IndexOutOfBoundsException("Reading " + length + " bytes at " + offset + " of " + capacity);
+		int index = chunkIndex(offset);
+		while (length > 0) {
+			Chunk chunk = chunks.get(index);
+			int inChunk = (int) (offset - starts[index]);
+			int count = Math.min(length, chunk.capacity() - inChunk);
+			chunk.buf.get(inChunk, buf, bufOffset, count);
+			offset += count;
+			bufOffset += count;
+			length -= count;
+			index++;
+		}
+	}
+
+	/** Copy bytes in. The caller must have called ensureCapacity() first. */
+	public void write(long offset, byte[] buf, int bufOffset, int length) {
+		if (offset < 0 || offset + length > capacity)
+			throw new IndexOutOfBoundsException("Writing " + length + " bytes at " + offset + " of " + capacity);
+		int index = chunkIndex(offset);
+		while (length > 0) {
+			Chunk chunk = chunks.get(index);
+			int inChunk = (int) (offset - starts[index]);
+			int count = Math.min(length, chunk.capacity() - inChunk);
+			chunk.buf.put(inChunk, buf, bufOffset, count);
+			offset += count;
+			bufOffset += count;
+			length -= count;
+			index++;
+		}
+	}
+
+	public byte get(long offset) {
+		int index = chunkIndex(offset);
+		return chunks.get(index).buf.get((int) (offset - starts[index]));
+	}
+
+	public void put(long offset, byte b) {
+		int index = chunkIndex(offset);
+		chunks.get(index).buf.put((int) (offset - starts[index]), b);
+	}
+
+	/**
+	 * Give the chunks back to the allocator.
+	 * @param migrated True if the data has been copied to disk.
+	 * @return False if already freed.
+	 */
+	public boolean free(boolean migrated) {
+		if (freed)
+			return false;
+		freed = true;
+		for (Chunk chunk : chunks)
+			allocator.free(chunk, migrated);
+		chunks.clear();
+		capacity = 0;
+		return true;
+	}
+
+	public boolean isFreed() {
+		return freed;
+	}
+
+}
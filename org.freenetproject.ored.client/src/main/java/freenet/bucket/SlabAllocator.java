@@ -0,0 +1,280 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.bucket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import freenet.clientlogger.Logger;
+
+/**
+ * Hands out chunks of off-heap memory for in-RAM temp buckets and RAFs, so that they
+ * don't fill the old generation of the heap and make for long GC pauses.
+ *
+ * Memory is taken from the JVM in slabs of direct memory, each of which is cut into
+ * chunks of a single size class: powers of two from {@link #MIN_CHUNK_SIZE} to
+ * {@link #MAX_CHUNK_SIZE}. Freed chunks go on a free list for their size class. The total
+ * size of all the slabs is strictly limited: when the limit is reached, slabs whose
+ * chunks are all free are given back, and if that isn't enough, allocate() returns null
+ * and the caller must use the disk instead. Given back slabs are released by the
+ * garbage collector, as with any direct buffer.
+ *
+ * Hits (a chunk was on the free list), misses (the limit was reached), new slabs and
+ * chunks which were freed because their data was migrated to disk are counted for each
+ * size class.
+ */
+public class SlabAllocator {
+
+	private static final int MIN_SHIFT = 10;
+
+	private static final int MAX_SHIFT = 16;
+
+	public static final int MIN_CHUNK_SIZE = 1 << MIN_SHIFT;
+
+	public static final int MAX_CHUNK_SIZE = 1 << MAX_SHIFT;
+
+	/** Size of a slab, unless the size class is bigger. */
+	static final int SLAB_SIZE = 1 << 20;
+
+	/** Maximum bytes in slabs. */
+	private long maxBytes;
+
+	/** Bytes in slabs. */
+	private long reservedBytes;
+
+	/** Bytes in chunks which have been handed out. */
+	private long usedBytes;
+
+	private final SizeClass[] classes;
+
+	/** A piece of off-heap memory handed out by allocate(). */
+	public static final class Chunk {
+
+		/** Don't change the position or limit, use absolute gets and puts. */
+		public final ByteBuffer buf;
+
+		final Slab slab;
+
+		/** True while on the free list. */
+		private boolean freed = true;
+
+		Chunk(ByteBuffer buf, Slab slab) {
+			this.buf = buf;
+			this.slab = slab;
+		}
+
+		public int capacity() {
+			return buf.capacity();
+		}
+
+	}
+
+	static final class Slab {
+
+		final SizeClass sizeClass;
+
+		final int chunks;
+
+		int freeChunks;
+
+		Slab(SizeClass sizeClass, int chunks) {
+			this.sizeClass = sizeClass;
+			this.chunks = chunks;
+		}
+
+	}
+
+	static final class SizeClass {
+
+		final int chunkSize;
+
+		final int slabSize;
+
+		final ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+
+		final ArrayList<Slab> slabs = new ArrayList<Slab>();
+
+		long hits;
+
+		long misses;
+
+		long migrations;
+
+		long slabsAllocated;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.slabSize = Math.max(chunkSize, SLAB_SIZE);
+		}
+
+	}
+
+	/** Per size class statistics. */
+	public static final class Stats {
+
+		public final int chunkSize;
+
+		public final int chunksInUse;
+
+		public final int slabs;
+
+		public final long hits;
+
+		public final long misses;
+
+		public final long migrations;
+
+		public final long slabsAllocated;
+
+		Stats(SizeClass c) {
+			chunkSize = c.chunkSize;
+			slabs = c.slabs.size();
+			chunksInUse = slabs * (c.slabSize / c.chunkSize) - c.free.size();
+			hits = c.hits;
+			misses = c.misses;
+			migrations = c.migrations;
+			slabsAllocated = c.slabsAllocated;
+		}
+
+	}
+
+	public SlabAllocator(long maxBytes) {
+		this.maxBytes = maxBytes;
+		classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+		for (int i = 0; i < classes.length; i++)
+			classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+	}
+
+	/** @return The chunk size which would be used for the given number of bytes. */
+	public static int chunkSize(long size) {
+		int index = classFor(size);
+		return (index < 0) ? -1 : 1 << (MIN_SHIFT + index);
+	}
+
+	private static int classFor(long size) {
+		if (size > MAX_CHUNK_SIZE)
+			return -1;
+		if (size <= MIN_CHUNK_SIZE)
+			return 0;
+		return 64 - Long.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * Get a chunk of at least the given size.
+	 * @param size The number of bytes needed. At most {@link #MAX_CHUNK_SIZE}.
+	 * @return A chunk, or null if there isn't enough memory left.
+	 */
+	public synchronized Chunk allocate(int size) {
+		int index = classFor(size);
+		if (index < 0)
+			throw new IllegalArgumentException("Too big for a chunk: " + size);
+		SizeClass c = classes[index];
+		Chunk chunk = c.free.pollFirst();
+		if (chunk != null) {
+			c.hits++;
+		}
+		else {
+			if (reservedBytes + c.slabSize > maxBytes)
+				reclaim(c.slabSize);
+			if (reservedBytes + c.slabSize > maxBytes || !addSlab(c)) {
+				c.misses++;
+				return null;
+			}
+			chunk = c.free.pollFirst();
+		}
+		chunk.freed = false;
+		chunk.slab.freeChunks--;
+		usedBytes += c.chunkSize;
+		return chunk;
+	}
+
+	private boolean addSlab(SizeClass c) {
+		ByteBuffer memory;
+		try {
+			memory = ByteBuffer.allocateDirect(c.slabSize);
+		}
+		catch (OutOfMemoryError e) {
+			// Over -XX:MaxDirectMemorySize. Treat it the same as being over our own limit.
+			Logger.error(this, "Unable to allocate " + c.slabSize + " bytes of direct memory: " + e);
+			return false;
+		}
+		int chunks = c.slabSize / c.chunkSize;
+		Slab slab = new Slab(c, chunks);
+		for (int i = 0; i < chunks; i++) {
+			memory.limit((i + 1) * c.chunkSize).position(i * c.chunkSize);
+			c.free.addLast(new Chunk(memory.slice(), slab));
+		}
+		slab.freeChunks = chunks;
+		c.slabs.add(slab);
+		c.slabsAllocated++;
+		reservedBytes += c.slabSize;
+		return true;
+	}
+
+	/** Give back slabs which are entirely free until there is room for the given bytes. */
+	private void reclaim(long needed) {
+		for (SizeClass c : classes) {
+			for (Iterator<Slab> it = c.slabs.iterator(); it.hasNext();) {
+				if (reservedBytes + needed <= maxBytes)
+					return;
+				Slab slab = it.next();
+				if (slab.freeChunks != slab.chunks)
+					continue;
+				it.remove();
+				c.free.removeIf((chunk) -> chunk.slab == slab);
+				reservedBytes -= c.slabSize;
+			}
+		}
+	}
+
+	/**
+	 * Return a chunk to its free list.
+	 * @param migrated True if the chunk is being freed because its data has been moved to
+	 * disk.
+	 */
+	public synchronized void free(Chunk chunk, boolean migrated) {
+		if (chunk.freed)
+			throw new IllegalStateException("Already freed");
+		chunk.freed = true;
+		SizeClass c = chunk.slab.sizeClass;
+		if (migrated)
+			c.migrations++;
+		chunk.slab.freeChunks++;
+		usedBytes -= c.chunkSize;
+		// Most recently used first, it is more likely to be in cache.
+		c.free.addFirst(chunk);
+		if (reservedBytes > maxBytes)
+			// The limit has been lowered.
+			reclaim(0);
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		reclaim(0);
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** @return Bytes of direct memory held, including free chunks. */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/** @return Bytes in chunks which have been allocated and not freed. */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized Stats[] getStats() {
+		Stats[] stats = new Stats[classes.length];
+		for (int i = 0; i < classes.length; i++)
+			stats[i] = new Stats(classes[i]);
+		return stats;
+	}
+
+}
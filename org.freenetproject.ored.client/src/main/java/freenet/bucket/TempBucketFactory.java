@@ -18,6 +18,7 @@ import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import freenet.client.async.ClientContext;
@@ -48,6 +49,10 @@ import freenet.support.io.InsufficientDiskSpaceException;
  * Currently they are two factors considered for a migration: - if they are long-lived or
  * not (@see RAMBUCKET_MAX_AGE) - if their size is over
  * RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ *
+ * If off-heap storage is enabled, in-RAM buckets and RAFs are kept outside the Java heap,
+ * in a SlabAllocator whose size is limited to maxRamUsed. When it runs out, buckets are
+ * migrated to disk as if the pool was full.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 
@@ -71,6 +76,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
 	private final MasterSecret secret;
 
+	/** Off-heap memory for in-RAM buckets and RAFs, if offHeap is enabled. */
+	private final SlabAllocator slabAllocator;
+
+	private volatile boolean offHeap;
+
 	/** How big can the defaultSize be for us to consider using RAMBuckets? */
 	private long maxRAMBucketSize;
 
@@ -95,6 +105,24 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		});
 	}
 
+	/**
+	 * Something which holds temp buckets it could do without, such as a cache. When we are
+	 * short of RAM it is asked to free some of them, before we start moving buckets which
+	 * are still in use to disk.
+	 */
+	public interface RAMPressureListener {
+
+		/**
+		 * Free up to the given number of bytes of in-RAM buckets, if possible. Buckets which
+		 * are still being read may not actually be freed until the readers are finished.
+		 * @return The number of bytes released, which may be 0.
+		 */
+		long shrinkRAMUsage(long bytes);
+
+	}
+
+	private final CopyOnWriteArrayList<RAMPressureListener> ramPressureListeners = new CopyOnWriteArrayList<RAMPressureListener>();
+
 	private interface Migratable {
 
 		long creationTime();
@@ -221,14 +249,17 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			}
 
 			// We can free it on-thread as it's a rambucket
-			toMigrate.free();
+			if (toMigrate instanceof OffHeapBucket)
+				((OffHeapBucket) toMigrate).freeMigrated();
+			else
+				toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
 			_hasFreed(size);
 			return true;
 		}
 
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof ArrayBucket) || (currentBucket instanceof OffHeapBucket);
 		}
 
 		@Override
@@ -279,6 +310,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					}
 					else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
 						shouldMigrate = true;
+					else if (currentBucket instanceof OffHeapBucket
+							&& !((OffHeapBucket) currentBucket).ensureCapacity(futureSize))
+						// Out of off-heap memory, even though the pool isn't full.
+						shouldMigrate = true;
 
 					if (shouldMigrate) {
 						if (logMINOR) {
@@ -621,6 +656,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory,
 				filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		this.slabAllocator = new SlabAllocator(maxRamUsed);
 	}
 
 	@Override
@@ -646,6 +682,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		slabAllocator.setMaxBytes(size);
 	}
 
 	public synchronized long getMaxRamUsed() {
@@ -675,6 +712,22 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return reallyEncrypt;
 	}
 
+	/**
+	 * Keep new in-RAM buckets and RAFs outside the Java heap. Existing ones are not
+	 * affected.
+	 */
+	public void setOffHeap(boolean value) {
+		offHeap = value;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	public SlabAllocator getSlabAllocator() {
+		return slabAllocator;
+	}
+
 	static final double MAX_USAGE_LOW = 0.8;
 	static final double MAX_USAGE_HIGH = 0.9;
 
@@ -705,7 +758,20 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		if (useRAMBucket && offHeap) {
+			OffHeapBucket offHeapBucket = new OffHeapBucket(slabAllocator);
+			if (offHeapBucket.ensureCapacity(Math.min(size, SlabAllocator.MAX_CHUNK_SIZE))) {
+				realBucket = offHeapBucket;
+			}
+			else {
+				// Out of off-heap memory: go to disk, as if the pool was full.
+				offHeapBucket.free();
+				useRAMBucket = false;
+				startCleaner();
+			}
+		}
+		if (realBucket == null)
+			realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
 
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if (useRAMBucket) { // No need to consider them for migration if they can't be
@@ -726,6 +792,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
 	boolean runningCleaner = false;
 
+	private void startCleaner() {
+		synchronized (this) {
+			if (runningCleaner)
+				return;
+			runningCleaner = true;
+		}
+		executor.execute(cleaner);
+	}
+
 	private final Runnable cleaner = new Runnable() {
 
 		@Override
@@ -755,11 +830,23 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					break;
 				}
 				saidSo = false;
+				boolean askedListeners = false;
 				while (true) {
 					// Now migrate buckets until usage is below the lower threshold.
+					long excess;
 					synchronized (TempBucketFactory.this) {
-						if (bytesInUse <= maxRamUsed * MAX_USAGE_LOW)
+						// Chunks are rounded up, so off-heap usage may be higher.
+						if (bytesInUse <= maxRamUsed * MAX_USAGE_LOW
+								&& slabAllocator.getUsedBytes() <= maxRamUsed * MAX_USAGE_LOW)
 							return;
+						excess = Math.max(bytesInUse, slabAllocator.getUsedBytes())
+								- (long) (maxRamUsed * MAX_USAGE_LOW);
+					}
+					// Let caches give up what they can first.
+					if (!askedListeners) {
+						askedListeners = true;
+						if (shrinkListeners(excess) > 0)
+							continue;
 					}
 					try {
 						if (!cleanBucketQueue(System.currentTimeMillis(), true))
@@ -789,6 +876,39 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
 	};
 
+	/**
+	 * Register something to be asked to free buckets when we are short of RAM.
+	 * @see RAMPressureListener
+	 */
+	public void addRAMPressureListener(RAMPressureListener listener) {
+		ramPressureListeners.addIfAbsent(listener);
+	}
+
+	public void removeRAMPressureListener(RAMPressureListener listener) {
+		ramPressureListeners.remove(listener);
+	}
+
+	/**
+	 * Ask the listeners to free up to the given number of bytes of in-RAM buckets.
+	 * @return The number of bytes they released.
+	 */
+	private long shrinkListeners(long bytes) {
+		long freed = 0;
+		for (RAMPressureListener listener : ramPressureListeners) {
+			if (freed >= bytes)
+				break;
+			try {
+				freed += listener.shrinkRAMUsage(bytes - freed);
+			}
+			catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " shrinking " + listener, t);
+			}
+		}
+		if (logMINOR)
+			Logger.minor(this, "Listeners released " + freed + " of " + bytes + " bytes");
+		return freed;
+	}
+
 	/**
 	 * Migrate all long-lived buckets from the queue.
 	 * @param now The current time (System.currentTimeMillis()).
@@ -894,6 +1014,17 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		/** For debugging leaks if TRACE_BUCKET_LEAKS is enabled */
 		private final Throwable tracer;
 
+		TempRandomAccessBuffer(OffHeapRandomAccessBuffer underlying, long time) throws IOException {
+			super(underlying, underlying.size());
+			creationTime = time;
+			hasMigrated = false;
+			original = null;
+			if (TRACE_BUCKET_LEAKS)
+				tracer = new Throwable();
+			else
+				tracer = null;
+		}
+
 		TempRandomAccessBuffer(int size, long time) throws IOException {
 			super(new ByteArrayRandomAccessBuffer(size), size);
 			creationTime = time;
@@ -931,11 +1062,34 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
 		@Override
 		protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
+			if (underlying instanceof OffHeapRandomAccessBuffer)
+				return migrateOffHeap((OffHeapRandomAccessBuffer) underlying);
 			ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer) underlying;
 			byte[] buf = b.getBuffer();
 			return diskRAFFactory.makeRAF(buf, 0, (int) size, b.isReadOnly());
 		}
 
+		private LockableRandomAccessBuffer migrateOffHeap(OffHeapRandomAccessBuffer underlying) throws IOException {
+			LockableRandomAccessBuffer ret = diskRAFFactory.makeRAF(size);
+			try {
+				byte[] buf = new byte[(int) Math.min(size, SlabAllocator.MAX_CHUNK_SIZE)];
+				for (long offset = 0; offset < size; offset += buf.length) {
+					int length = (int) Math.min(buf.length, size - offset);
+					underlying.pread(offset, buf, 0, length);
+					ret.pwrite(offset, buf, 0, length);
+				}
+			}
+			catch (IOException e) {
+				ret.close();
+				ret.free();
+				throw e;
+			}
+			if (underlying.isReadOnly())
+				ret = new ReadOnlyRandomAccessBuffer(ret);
+			underlying.setMigrated();
+			return ret;
+		}
+
 		@Override
 		public void free() {
 			if (!super.innerFree())
@@ -1032,8 +1186,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		synchronized (this) {
 			if ((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed)
 					&& (bytesInUse + size <= maxRamUsed)) {
-				raf = new TempRandomAccessBuffer((int) size, now);
-				bytesInUse += size;
+				raf = makeRAMRAF((int) size, now, null, 0, false);
+				if (raf != null)
+					bytesInUse += size;
 			}
 			if (bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
 				runningCleaner = true;
@@ -1085,8 +1240,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		synchronized (this) {
 			if ((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed)
 					&& (bytesInUse + size <= maxRamUsed)) {
-				raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
-				bytesInUse += size;
+				raf = makeRAMRAF(size, now, initialContents, offset, readOnly);
+				if (raf != null)
+					bytesInUse += size;
 			}
 			if (bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
 				runningCleaner = true;
@@ -1113,6 +1269,33 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 	}
 
+	/**
+	 * Caller must hold the lock on the factory.
+	 * @param initialContents If not null, copy the RAF's contents from here.
+	 * @return An in-RAM RAF, or null if off-heap is enabled and there is no off-heap
+	 * memory left.
+	 */
+	private TempRandomAccessBuffer makeRAMRAF(int size, long now, byte[] initialContents, int offset,
+			boolean readOnly) throws IOException {
+		if (!offHeap) {
+			if (initialContents == null)
+				return new TempRandomAccessBuffer(size, now);
+			return new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
+		}
+		OffHeapRandomAccessBuffer underlying = OffHeapRandomAccessBuffer.create(slabAllocator, size);
+		if (underlying == null) {
+			// Out of off-heap memory: go to disk, as if the pool was full.
+			startCleaner();
+			return null;
+		}
+		if (initialContents != null) {
+			underlying.pwrite(0, initialContents, offset, size);
+			if (readOnly)
+				underlying.setReadOnly();
+		}
+		return new TempRandomAccessBuffer(underlying, now);
+	}
+
 	public DiskSpaceCheckingRandomAccessBufferFactory getUnderlyingRAFFactory() {
 		return diskRAFFactory;
 	}
@@ -0,0 +1,208 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import freenet.support.MemoryLimitedJobRunner;
+
+/**
+ * Runs FEC encodes and decodes in parallel. The FEC code is linear and works byte by
+ * byte, so a segment can be split into stripes of columns, i.e. the same range of bytes
+ * in every block, and each stripe computed separately.
+ *
+ * Stripes run on a shared ForkJoinPool, so when several segments are being decoded at
+ * once (by the MemoryLimitedJobRunner's threads), their stripes share the same set of
+ * cores rather than each segment getting one.
+ *
+ * There is one default instance, set by the node from its config. Also keeps global
+ * throughput statistics.
+ */
+public final class FECExecutor {
+
+	/** Don't split blocks into stripes smaller than this. */
+	public static final int DEFAULT_MIN_STRIPE_LENGTH = 4096;
+
+	/** Serial until the node configures it. */
+	private static volatile FECExecutor defaultExecutor = new FECExecutor(1);
+
+	private static final LongAdder encodes = new LongAdder();
+
+	private static final LongAdder encodedBytes = new LongAdder();
+
+	private static final LongAdder encodeNanos = new LongAdder();
+
+	private static final LongAdder decodes = new LongAdder();
+
+	private static final LongAdder decodedBytes = new LongAdder();
+
+	private static final LongAdder decodeNanos = new LongAdder();
+
+	/** Null if we are serial. */
+	private final ForkJoinPool pool;
+
+	private final int parallelism;
+
+	private final int minStripeLength;
+
+	/** Something to do for each stripe. */
+	interface StripeTask {
+
+		/** Process bytes offset ... offset+length-1 of every block. */
+		void run(int offset, int length);
+
+	}
+
+	public FECExecutor(int threads) {
+		this(threads, DEFAULT_MIN_STRIPE_LENGTH);
+	}
+
+	public FECExecutor(int threads, int minStripeLength) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		this.parallelism = threads;
+		this.minStripeLength = minStripeLength;
+		if (threads > 1) {
+			pool = new ForkJoinPool(threads, (p) -> {
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+				t.setName("FEC stripe worker " + t.getPoolIndex());
+				// Same priority as the FEC jobs which hand us their stripes.
+				t.setPriority(MemoryLimitedJobRunner.THREAD_PRIORITY);
+				return t;
+			}, null, false);
+		}
+		else {
+			pool = null;
+		}
+	}
+
+	public static FECExecutor getDefault() {
+		return defaultExecutor;
+	}
+
+	/**
+	 * Replace the default executor. The old one is not shut down, because a codec may
+	 * have fetched it just before the swap and not yet submitted its stripes. Its worker
+	 * threads exit once they have been idle for a while, and then it can be garbage
+	 * collected.
+	 */
+	public static void setDefault(FECExecutor executor) {
+		defaultExecutor = executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Split 0 ... length-1 into stripes and run the task on each, in parallel if
+	 * possible. Returns when they have all finished. If any of them throws, so do we.
+	 */
+	void forEachStripe(int length, StripeTask task) {
+		int stripes = Math.min(parallelism, length / minStripeLength);
+		if (pool == null || stripes <= 1) {
+			task.run(0, length);
+			return;
+		}
+		pool.invoke(new Stripes(task, length, stripes, 0, stripes));
+	}
+
+	public void shutdown() {
+		if (pool != null)
+			pool.shutdown();
+	}
+
+	/** Splits itself in half until it is a single stripe. */
+	private static final class Stripes extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient StripeTask task;
+
+		private final int length;
+
+		private final int stripes;
+
+		private final int from;
+
+		private final int to;
+
+		Stripes(StripeTask task, int length, int stripes, int from, int to) {
+			this.task = task;
+			this.length = length;
+			this.stripes = stripes;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * Start of the given stripe. Aligned to 64 bytes so stripes don't share cache
+		 * lines.
+		 */
+		private int start(int stripe) {
+			if (stripe == stripes)
+				return length;
+			return (int) (((long) length * stripe / stripes) & ~63L);
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				int start = start(from);
+				int end = start(to);
+				if (end > start)
+					task.run(start, end - start);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Stripes(task, length, stripes, from, mid), new Stripes(task, length, stripes, mid, to));
+		}
+
+	}
+
+	static void encoded(long bytes, long nanos) {
+		encodes.increment();
+		encodedBytes.add(bytes);
+		encodeNanos.add(nanos);
+	}
+
+	static void decoded(long bytes, long nanos) {
+		decodes.increment();
+		decodedBytes.add(bytes);
+		decodeNanos.add(nanos);
+	}
+
+	/** Number of segments (or cross-segments) encoded since startup. */
+	public static long getEncodes() {
+		return encodes.sum();
+	}
+
+	/** Number of segments (or cross-segments) decoded since startup. */
+	public static long getDecodes() {
+		return decodes.sum();
+	}
+
+	/**
+	 * Average encode throughput in bytes of data per second, while encoding, i.e. not
+	 * counting time spent waiting for something to encode.
+	 */
+	public static double getEncodeRate() {
+		return rate(encodedBytes.sum(), encodeNanos.sum());
+	}
+
+	/** Average decode throughput in bytes of data per second, while decoding. */
+	public static double getDecodeRate() {
+		return rate(decodedBytes.sum(), decodeNanos.sum());
+	}
+
+	private static double rate(long bytes, long nanos) {
+		if (nanos == 0)
+			return 0.0;
+		return bytes * 1.0e9 / nanos;
+	}
+
+}
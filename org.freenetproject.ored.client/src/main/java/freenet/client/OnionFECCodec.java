@@ -1,33 +1,54 @@
 package freenet.client;
 
 import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.onionnetworks.fec.PureCode;
 import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
-import freenet.support.LRUMap;
 import freenet.support.client.ClientConstants;
 
 public class OnionFECCodec extends FECCodec {
 
+	/** Null to use the default executor. */
+	private final FECExecutor executor;
+
+	public OnionFECCodec() {
+		this(null);
+	}
+
+	OnionFECCodec(FECExecutor executor) {
+		this.executor = executor;
+	}
+
+	private FECExecutor executor() {
+		return executor == null ? FECExecutor.getDefault() : executor;
+	}
+
 	@Override
 	public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
 			boolean[] checkBlocksPresent, int blockLength) {
+		long startTime = System.nanoTime();
 		int k = dataBlocks.length;
 		int n = dataBlocks.length + checkBlocks.length;
 		PureCode codec = getCodec(k, n);
 		int[] blockNumbers = new int[k];
-		Buffer[] buffers = new Buffer[k];
+		boolean[] filled = new boolean[k];
+		int filledCount = 0;
 		// The data blocks are already in the correct positions in dataBlocks.
 		for (int i = 0; i < dataBlocks.length; i++) {
 			if (dataBlocks[i].length != blockLength)
 				throw new IllegalArgumentException();
 			if (!dataBlocksPresent[i])
 				continue;
-			buffers[i] = new Buffer(dataBlocks[i], 0, blockLength);
+			filled[i] = true;
+			filledCount++;
 			blockNumbers[i] = i;
 		}
+		if (filledCount == k)
+			return; // Nothing to decode.
 		int target = 0;
 		// Fill in the gaps with the check blocks.
 		for (int i = 0; i < checkBlocks.length; i++) {
@@ -35,107 +56,102 @@ public class OnionFECCodec extends FECCodec {
 				continue;
 			if (checkBlocks[i].length != blockLength)
 				throw new IllegalArgumentException();
-			while (target < dataBlocks.length && buffers[target] != null)
+			while (target < dataBlocks.length && filled[target])
 				target++; // Scan for slot.
 			if (target >= dataBlocks.length)
 				continue;
 			// Decode into the slot for the relevant data block.
-			buffers[target] = new Buffer(dataBlocks[target]);
+			filled[target] = true;
+			filledCount++;
 			// Provide the data from the check block.
 			blockNumbers[target] = i + dataBlocks.length;
 			System.arraycopy(checkBlocks[i], 0, dataBlocks[target], 0, blockLength);
 		}
-
-		// Now do the decode.
-		codec.decode(buffers, blockNumbers);
+		if (filledCount < k)
+			throw new IllegalArgumentException("Not enough blocks to decode: " + filledCount + " of " + k);
+
+		// Now do the decode, in place, one stripe at a time.
+		executor().forEachStripe(blockLength, (offset, length) -> {
+			Scratch scratch = Scratch.get(k, 0);
+			Buffer[] buffers = scratch.dataBuffers;
+			// Decoding shuffles the block numbers, so each stripe needs its own copy.
+			int[] numbers = scratch.blockNumbers;
+			try {
+				System.arraycopy(blockNumbers, 0, numbers, 0, k);
+				for (int i = 0; i < k; i++)
+					buffers[i] = new Buffer(dataBlocks[i], offset, length);
+				codec.decode(buffers, numbers);
+			}
+			finally {
+				scratch.clear();
+			}
+		});
 		// The data blocks are now decoded and in the correct locations.
+		FECExecutor.decoded((long) k * blockLength, System.nanoTime() - startTime);
 	}
 
 	/**
 	 * Cache of PureCode by {k,n}. The memory usage is relatively small so we account for
-	 * it in the FEC jobs, see maxMemoryOverheadDecode() etc.
+	 * it in the FEC jobs, see maxMemoryOverheadDecode() etc. Lock-free, as many threads
+	 * may be decoding at once. There are only a few combinations of k and n in practice,
+	 * so we don't bother removing entries whose codec has been garbage collected.
 	 */
-	private synchronized static PureCode getCodec(int k, int n) {
-		CodecKey key = new CodecKey(k, n);
-		SoftReference<PureCode> codeRef;
-		while ((codeRef = recentlyUsedCodecs.peekValue()) != null) {
-			// Remove oldest codecs if they have been GC'ed.
-			if (codeRef.get() == null) {
-				recentlyUsedCodecs.popKey();
-			}
-			else {
-				break;
-			}
-		}
-		codeRef = recentlyUsedCodecs.get(key);
-		if (codeRef != null) {
-			PureCode code = codeRef.get();
-			if (code != null) {
-				recentlyUsedCodecs.push(key, codeRef);
-				return code;
-			}
-		}
-		PureCode code = new PureCode(k, n);
-		recentlyUsedCodecs.push(key, new SoftReference<PureCode>(code));
+	private static final ConcurrentHashMap<Integer, SoftReference<PureCode>> codecs = new ConcurrentHashMap<>();
+
+	private static PureCode getCodec(int k, int n) {
+		Integer key = (n << 16) | k;
+		SoftReference<PureCode> codeRef = codecs.get(key);
+		PureCode code = (codeRef == null) ? null : codeRef.get();
+		if (code != null)
+			return code;
+		// If two threads race here they both create one, which is harmless.
+		code = new PureCode(k, n);
+		codecs.put(key, new SoftReference<PureCode>(code));
 		return code;
 	}
 
-	private static final LRUMap<CodecKey, SoftReference<PureCode>> recentlyUsedCodecs = LRUMap.createSafeMap();
+	/**
+	 * Per-thread arrays for passing stripes to PureCode. Cleared after each use so we
+	 * don't keep blocks reachable.
+	 */
+	private static final class Scratch {
 
-	private static class CodecKey implements Comparable<CodecKey> {
+		private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
 
-		/** Number of input blocks */
-		int k;
+		Buffer[] dataBuffers = new Buffer[0];
 
-		/** Number of output blocks, including input blocks */
-		int n;
+		Buffer[] checkBuffers = new Buffer[0];
 
-		public CodecKey(int k, int n) {
-			this.n = n;
-			this.k = k;
-		}
+		int[] blockNumbers = new int[0];
 
-		@Override
-		public boolean equals(Object o) {
-			if (o instanceof CodecKey) {
-				CodecKey key = (CodecKey) o;
-				return (key.n == n) && (key.k == k);
+		/** PureCode needs arrays of exactly the right length. */
+		static Scratch get(int data, int check) {
+			Scratch s = scratch.get();
+			if (s.dataBuffers.length != data) {
+				s.dataBuffers = new Buffer[data];
+				s.blockNumbers = new int[data];
 			}
-			else {
-				return false;
-			}
-		}
-
-		@Override
-		public int hashCode() {
-			return (n << 16) + k;
+			if (s.checkBuffers.length != check)
+				s.checkBuffers = new Buffer[check];
+			return s;
 		}
 
-		@Override
-		public int compareTo(CodecKey o) {
-			if (n > o.n)
-				return 1;
-			if (n < o.n)
-				return -1;
-			if (k > o.k)
-				return 1;
-			if (k < o.k)
-				return -1;
-			return 0;
+		void clear() {
+			Arrays.fill(dataBuffers, null);
+			Arrays.fill(checkBuffers, null);
 		}
 
 	}
 
 	@Override
 	public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent, int blockLength) {
+		long startTime = System.nanoTime();
 		int k = dataBlocks.length;
 		int n = dataBlocks.length + checkBlocks.length;
 		PureCode codec = getCodec(k, n);
-		Buffer[] data = new Buffer[dataBlocks.length];
-		for (int i = 0; i < data.length; i++) {
+		for (int i = 0; i < dataBlocks.length; i++) {
 			if (dataBlocks[i] == null || dataBlocks[i].length != blockLength)
 				throw new IllegalArgumentException();
-			data[i] = new Buffer(dataBlocks[i]);
 		}
 		int mustEncode = 0;
 		for (int i = 0; i < checkBlocks.length; i++) {
@@ -144,18 +160,34 @@ public class OnionFECCodec extends FECCodec {
 			if (!checkBlocksPresent[i])
 				mustEncode++;
 		}
-		Buffer[] check = new Buffer[mustEncode];
 		if (mustEncode == 0)
 			return; // Done already.
 		int[] toEncode = new int[mustEncode];
+		byte[][] check = new byte[mustEncode][];
 		int x = 0;
 		for (int i = 0; i < checkBlocks.length; i++) {
 			if (checkBlocksPresent[i])
 				continue;
-			check[x] = new Buffer(checkBlocks[i]);
+			check[x] = checkBlocks[i];
 			toEncode[x++] = i + dataBlocks.length;
 		}
-		codec.encode(data, check, toEncode);
+		int encodeCount = mustEncode;
+		executor().forEachStripe(blockLength, (offset, length) -> {
+			Scratch scratch = Scratch.get(k, encodeCount);
+			Buffer[] data = scratch.dataBuffers;
+			Buffer[] repair = scratch.checkBuffers;
+			try {
+				for (int i = 0; i < k; i++)
+					data[i] = new Buffer(dataBlocks[i], offset, length);
+				for (int i = 0; i < encodeCount; i++)
+					repair[i] = new Buffer(check[i], offset, length);
+				codec.encode(data, repair, toEncode);
+			}
+			finally {
+				scratch.clear();
+			}
+		});
+		FECExecutor.encoded((long) k * blockLength, System.nanoTime() - startTime);
 	}
 
 	@Override
@@ -94,6 +94,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logMINOR)
 				Logger.minor(this, "onEncode(" + key.getURI().toString(false, false) + ") for " + this);
 
@@ -126,6 +127,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logMINOR)
 				Logger.minor(this, "Completed '" + this.itemName + "' " + this);
 			if (!containerPutHandlers.remove(this))
@@ -157,6 +159,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logMINOR)
 				Logger.minor(this, "onEncode(" + key.getURI().toString(false, false) + ") for " + this);
 
@@ -185,6 +188,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logMINOR)
 				Logger.minor(this, "Completed '" + this.itemName + "' " + this);
 
@@ -216,6 +220,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logMINOR)
 				Logger.minor(this, "onEncode(" + key + ") for " + this);
 
@@ -233,6 +238,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onMetadata(Metadata m, ClientPutState state, ClientContext context) {
+			setModified(context);
 			// new Error("DEBUGME").printStackTrace();
 			// debugDecompose("ExternPutHandler.onMetadata Begin");
 			if (logMINOR)
@@ -340,6 +346,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logMINOR)
 				Logger.minor(this, "onEncode(" + key.getURI().toString(false, false) + ") for " + this);
 
@@ -354,6 +361,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			setModified(context);
 			boolean wasRoot = false;
 			synchronized (BaseManifestPutter.this) {
 				if (rootMetaPutHandler == this) {
@@ -560,6 +568,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			setModified(context);
 			if (logDEBUG) {
 				// temp hack, ignored if called via super
 				Throwable t = new Throwable("DEBUG onSuccess");
@@ -611,6 +620,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
+			setModified(context);
 			ClientPutState oldState;
 			synchronized (this) {
 				oldState = currentState;
@@ -639,6 +649,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 					if (logMINOR)
 						Logger.minor(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new="
 								+ newState + " for " + this);
+					setModified(context);
 					return;
 				}
 				Logger.error(this, "Ignoring onTransition: cur=" + currentState + ", old=" + oldState + ", new="
@@ -718,6 +729,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onBlockSetFinished(ClientPutState state, ClientContext context) {
+			setModified(context);
 			boolean allBlockSets = false;
 			synchronized (BaseManifestPutter.this) {
 				putHandlerWaitingForBlockSets.remove(this);
@@ -4,12 +4,17 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.onionnetworks.util.FileUtil;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.KeyVerifyException;
+import freenet.keys.SSKBlock;
+import freenet.keys.SSKVerifier;
 
 public abstract class BinaryBlob {
 
@@ -68,6 +73,8 @@ public abstract class BinaryBlob {
 		if (version != BinaryBlob.BINARY_BLOB_OVERALL_VERSION)
 			throw new BinaryBlobFormatException("Unknown overall version");
 
+		// SSK signatures are checked at the end, in parallel.
+		List<SSKBlock> unverified = new ArrayList<SSKBlock>();
 		while (true) {
 			long blobLength;
 			try {
@@ -111,13 +118,16 @@ public abstract class BinaryBlob {
 				dis.readFully(pubkeyBytes);
 				KeyBlock block;
 				try {
-					block = Key.createBlock(keyType, keyBytes, headersBytes, dataBytes, pubkeyBytes);
+					block = Key.createBlock(keyType, keyBytes, headersBytes, dataBytes, pubkeyBytes, true);
 				}
 				catch (KeyVerifyException e) {
 					throw new BinaryBlobFormatException("Invalid key: " + e.getMessage(), e);
 				}
 
-				blocks.add(block);
+				if (block instanceof SSKBlock)
+					unverified.add((SSKBlock) block);
+				else
+					blocks.add(block);
 
 			}
 			else {
@@ -130,6 +140,18 @@ public abstract class BinaryBlob {
 			}
 		}
 
+		List<SSKBlock> failed;
+		try {
+			failed = SSKVerifier.verifyAll(unverified);
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted verifying SSK blocks");
+		}
+		if (!failed.isEmpty())
+			throw new BinaryBlobFormatException(
+					"Invalid key: Signature verification failed for node-level SSK " + failed.get(0).getKey());
+		for (SSKBlock block : unverified)
+			blocks.add(block);
 	}
 
 }
@@ -26,6 +26,7 @@ import freenet.crypt.MultiHashInputStream;
 import freenet.keys.FreenetURI;
 import freenet.clientlogger.Logger;
 import freenet.compress.CompressionOutputSizeException;
+import freenet.compress.DecompressorThreadManager;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 
@@ -33,8 +34,13 @@ import freenet.support.io.FileUtil;
  * A thread which does postprocessing of decompressed data, in particular, writing it to
  * its final destination. This thread also handles hashing and filtering. If these are not
  * required, <code>null</code> may be passed through the relevant constructor arguments.
+ *
+ * Runs on the same pool of threads as the decompressors, rather than a new thread for
+ * every fetch.
  */
-public class ClientGetWorkerThread extends Thread {
+public class ClientGetWorkerThread implements Runnable {
+
+	private final String name;
 
 	private InputStream input;
 
@@ -109,7 +115,7 @@ public class ClientGetWorkerThread extends Thread {
 			String schemeHostAndPort, HashResult[] hashes, boolean filterData, String charset,
 			FoundURICallback prefetchHook, TagReplacerCallback tagReplacer,
 			LinkFilterExceptionProvider linkFilterExceptionProvider) throws URISyntaxException {
-		super("ClientGetWorkerThread-" + counter());
+		this.name = "ClientGetWorkerThread-" + counter();
 		this.input = input;
 		if (uri != null)
 			this.uri = uri.toURI("/");
@@ -131,8 +137,25 @@ public class ClientGetWorkerThread extends Thread {
 					+ filterData + " charset " + charset);
 	}
 
+	/** Start processing the data on another thread. */
+	public void start() {
+		DecompressorThreadManager.run(this);
+	}
+
 	@Override
 	public void run() {
+		Thread thread = Thread.currentThread();
+		String oldName = thread.getName();
+		thread.setName(name);
+		try {
+			innerRun();
+		}
+		finally {
+			thread.setName(oldName);
+		}
+	}
+
+	private void innerRun() {
 		if (logMINOR)
 			Logger.minor(this, "Starting worker thread for " + uri + " mime type " + mimeType + " filter data = "
 					+ filterData + " charset " + charset);
@@ -168,12 +191,12 @@ public class ClientGetWorkerThread extends Thread {
 			}
 			// Dump the rest.
 			try {
+				byte[] buf = new byte[4096];
 				while (true) {
 					// FileInputStream.skip() doesn't do what we want. Use read().
 					// Note this is only necessary because we might have an
 					// AEADInputStream?
 					// FIXME get rid - they should check the end anyway?
-					byte[] buf = new byte[4096];
 					int r = input.read(buf);
 					if (r < 0)
 						break;
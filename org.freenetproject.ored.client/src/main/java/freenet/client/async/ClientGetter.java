@@ -26,8 +26,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serial;
 import java.io.Serializable;
@@ -69,6 +67,7 @@ import freenet.support.io.FileUtil;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.io.NullOutputStream;
 import freenet.support.io.ResumeFailedException;
+import freenet.support.io.RingBufferPipe;
 import freenet.support.io.StorageFormatException;
 
 /**
@@ -379,8 +378,8 @@ public class ClientGetter extends BaseClientGetter
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		OutputStream dataOutput = null;
+		InputStream dataInput = null;
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -412,7 +411,6 @@ public class ClientGetter extends BaseClientGetter
 			if (logMINOR) {
 				Logger.minor(this, "Writing final data to " + finalResult + " return bucket is " + this.returnBucket);
 			}
-			dataOutput.connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
@@ -420,15 +418,21 @@ public class ClientGetter extends BaseClientGetter
 				if (logMINOR) {
 					Logger.minor(this, "Decompressing...");
 				}
-				decompressorManager = new DecompressorThreadManager(dataInput, decompressors, maxLen);
+				decompressorManager = new DecompressorThreadManager(decompressors, maxLen);
+				dataOutput = decompressorManager.getOutputStream();
 				dataInput = decompressorManager.execute();
 			}
+			else {
+				RingBufferPipe pipe = new RingBufferPipe();
+				dataOutput = pipe.getOutputStream();
+				dataInput = pipe.getInputStream();
+			}
 
 			output = finalResult.getOutputStream();
 			if (this.ctx.overrideMIME != null) {
 				mimeType = this.ctx.overrideMIME;
 			}
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, this.uri, mimeType,
+			worker = new ClientGetWorkerThread(dataInput, output, this.uri, mimeType,
 					this.ctx.getSchemeHostAndPort(), this.hashes, this.ctx.filterData, this.ctx.charset,
 					this.ctx.prefetchHook, this.ctx.tagReplacer, context.linkFilterExceptionProvider);
 			worker.start();
@@ -438,6 +442,10 @@ public class ClientGetter extends BaseClientGetter
 			catch (IOException ex2) {
 				// Check if the worker thread caught an exception
 				worker.getError();
+				// Or a decompressor, e.g. because the data is too big.
+				if (decompressorManager != null && decompressorManager.getError() != null) {
+					throw decompressorManager.getError();
+				}
 				// If not, throw the original error
 				throw ex2;
 			}
@@ -498,6 +506,10 @@ public class ClientGetter extends BaseClientGetter
 			ex = new FetchException(FetchExceptionMode.INTERNAL_ERROR, ex2);
 		}
 		finally {
+			if (ex != null && decompressorManager != null) {
+				// Don't leave decompressors blocked on a chain nobody is reading.
+				decompressorManager.cancel();
+			}
 			Closer.close(dataInput);
 			Closer.close(dataOutput);
 			Closer.close(output);
@@ -869,6 +881,7 @@ public class ClientGetter extends BaseClientGetter
 				return;
 			}
 		}
+		this.setModified(context);
 		if (this.persistent()) {
 			context.jobRunner.setCheckpointASAP();
 		}
@@ -13,9 +13,13 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import freenet.bucket.*;
 import freenet.checksum.CRCChecksumChecker;
@@ -32,6 +36,7 @@ import freenet.support.io.FileUtil;
 import freenet.support.io.StorageFormatException;
 import freenet.support.node.NodeInitException;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 /**
@@ -69,6 +74,17 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * inserts should be relatively short-lived or they won't be much use to anyone as the
  * data will have fallen out.
  *
+ * Writing every request on every checkpoint scales with the size of the queue rather than
+ * with what has changed, so client.dat is only rewritten in full occasionally (a
+ * snapshot). In between, each checkpoint writes a journal segment, client.dat.journal.N,
+ * containing only the requests which have been added, have finished, or have called
+ * setModified() since they were last written, and the identifiers of those which have
+ * been removed. Requests call setModified() when their persistent state changes, e.g.
+ * progress or a state transition, so an idle request is not written again. Loading
+ * replays the segments belonging to the snapshot in order. Once the segments hold more
+ * request records than the snapshot, or after SNAPSHOT_INTERVAL, or on shutdown, we
+ * write a new snapshot and delete the journal.
+ *
  * SCHEMA MIGRATION: Note that changing classes that are Serializable can result in
  * restarting downloads or losing uploads.
  *
@@ -78,6 +94,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 
 	static final long INTERVAL = MINUTES.toMillis(10);
 
+	/** Maximum time between full snapshots, after which the journal is compacted. */
+	static final long SNAPSHOT_INTERVAL = HOURS.toMillis(6);
+
+	/** Maximum number of journal segments before the journal is compacted. */
+	static final int MAX_JOURNAL_SEGMENTS = 64;
+
 	private final PersistentStatsChecker statsChecker; // Needed for bandwidth stats
 														// putter
 
@@ -114,9 +136,60 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 
 	private String baseName;
 
+	/** Key to encrypt journal segments with, or null. */
+	private DatabaseKey writeEncryptionKey;
+
+	private Random random;
+
+	/** Identifies the snapshot, so we don't replay journal segments from another one. */
+	private long snapshotID;
+
+	/** If true, the next checkpoint must write a full snapshot. */
+	private boolean mustSnapshot = true;
+
+	private long lastSnapshotTime;
+
+	/** Number of requests in the last snapshot. */
+	private int snapshotRequests;
+
+	/** Number of journal segments written since the last snapshot. */
+	private int journalSegments;
+
+	/** Number of requests written to the journal since the last snapshot. */
+	private int journalRequests;
+
+	/**
+	 * Requests written to the snapshot or the journal since, and whether they had
+	 * finished at the time.
+	 */
+	private final Map<RequestIdentifier, Boolean> writtenRequests = new HashMap<RequestIdentifier, Boolean>();
+
+	/**
+	 * Requests modified via setModified() since they were last written. Requests which
+	 * have already been written are only journaled again if they are in here, or have
+	 * finished since.
+	 */
+	private final Set<RequestIdentifier> modifiedRequests = new HashSet<RequestIdentifier>();
+
 	private static final long MAGIC = 0xd332925f3caf4aedL;
 
-	private static final int VERSION = 1;
+	private static final long JOURNAL_MAGIC = 0x5a1c0e9f4b27d3c1L;
+
+	/** Version 2 adds the snapshot ID. */
+	private static final int VERSION = 2;
+
+	private static final byte JOURNAL_END = 0;
+
+	private static final byte JOURNAL_ADDED = 1;
+
+	private static final byte JOURNAL_PROGRESS = 2;
+
+	private static final byte JOURNAL_COMPLETED = 3;
+
+	private static final byte JOURNAL_REMOVED = 4;
+
+	/** A finished request which has been changed, e.g. its priority or client token. */
+	private static final byte JOURNAL_MODIFIED = 5;
 
 	private static volatile boolean logMINOR;
 	static {
@@ -156,6 +229,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 		synchronized (serializeCheckpoints) {
 			this.dir = dir;
 			this.baseName = baseName;
+			this.random = random;
 			if (noWrite) {
 				writeToBucket = null;
 				writeToFilename = null;
@@ -164,6 +238,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 				deleteFile(dir, baseName, false, true);
 				deleteFile(dir, baseName, true, false);
 				deleteFile(dir, baseName, true, true);
+				deleteJournal(dir, baseName, true);
 				onStarted(true);
 				if (salt == null) {
 					salt = new byte[32];
@@ -196,7 +271,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 	}
 
 	private void deleteFile(File dir, String baseName, boolean backup, boolean encrypted) {
-		File f = makeFilename(dir, baseName, backup, encrypted);
+		deleteFile(makeFilename(dir, baseName, backup, encrypted));
+	}
+
+	private void deleteFile(File f) {
 		try {
 			FileUtil.secureDelete(f);
 		}
@@ -218,8 +296,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 		writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
 		writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
 		writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+		writeEncryptionKey = writeEncrypted ? encryptionKey : null;
 		if (writeToFilename.equals(oldWriteToFilename))
 			return;
+		// The journal must be in the same format as the snapshot.
+		mustSnapshot = true;
 		System.out.println("Will save downloads to " + writeToFilename);
 		deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
 		otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -261,7 +342,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 			innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters,
 					requestRestarter, random);
 		}
-		if (clientDatBakExists) {
+		// The backup is the snapshot before last, so it may be much older than the
+		// journal, and would bring back requests removed since.
+		if (clientDatBakExists && loaded.needsMore()) {
 			innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters,
 					requestRestarter, random);
 		}
@@ -269,6 +352,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 			innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters,
 					requestRestarter, random);
 		}
+		loadJournal(loaded, dir, baseName, encryptionKey, noSerialize, context, requestRestarter);
+		if (!noSerialize && loaded.stats != null) {
+			this.bandwidthStatsPutter.addFrom(loaded.stats);
+		}
 
 		deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
 		otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
@@ -276,6 +363,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 		writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
 		writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
 		writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+		writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+		// Write everything we loaded to a fresh snapshot, with a new ID.
+		mustSnapshot = true;
 
 		if (loaded.doneSomething()) {
 			if (!noSerialize) {
@@ -377,6 +467,41 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 
 	}
 
+	/**
+	 * Create a Bucket for a journal segment, client.dat.journal.N[.crypt].
+	 * @param encryptionKey Non-null if we want an encrypted file.
+	 */
+	private Bucket makeJournalBucket(File dir, String baseName, int segment, DatabaseKey encryptionKey) {
+		File filename = makeJournalFilename(dir, baseName, segment, encryptionKey != null);
+		Bucket bucket = new FileBucket(filename, false, false, false, false);
+		if (encryptionKey != null)
+			bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
+		return bucket;
+	}
+
+	private File makeJournalFilename(File parent, String baseName, int segment, boolean encrypted) {
+		return new File(parent, baseName + ".journal." + segment + (encrypted ? ".crypt" : ""));
+	}
+
+	/**
+	 * Delete all journal segments, encrypted or not.
+	 * @param secure If true, overwrite them first.
+	 */
+	private void deleteJournal(File dir, String baseName, boolean secure) {
+		if (dir == null)
+			return;
+		final String prefix = baseName + ".journal.";
+		File[] segments = dir.listFiles((d, name) -> name.startsWith(prefix));
+		if (segments == null)
+			return;
+		for (File f : segments) {
+			if (secure)
+				deleteFile(f);
+			else
+				f.delete();
+		}
+	}
+
 	private enum RequestLoadStatus {
 
 		// In order of preference, best first.
@@ -407,6 +532,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 
 		private boolean doneSomething;
 
+		/** ID of the snapshot loaded from client.dat, if any, for replaying the journal. */
+		private Long snapshotID;
+
+		/** Stats from the most recent file, only added once everything is loaded. */
+		private PersistentStatsPutter stats;
+
 		/**
 		 * Add a partially loaded request.
 		 * @param reqID The request identifier. Must be non-null; caller should regenerate
@@ -431,6 +562,31 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 			}
 		}
 
+		/**
+		 * Replace a request with a more recent version from the journal. A request which
+		 * failed to load does not replace an older version which succeeded.
+		 */
+		void supersedePartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request,
+				RequestLoadStatus status) {
+			if (reqID == null) {
+				if (request == null) {
+					somethingFailed = true;
+					return;
+				}
+				reqID = request.getRequestIdentifier();
+			}
+			PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
+			if (request == null && old != null && old.request != null)
+				return;
+			partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
+			doneSomething = true;
+		}
+
+		/** A request was removed after the snapshot was written. */
+		void removePartiallyLoadedRequest(RequestIdentifier reqID) {
+			partiallyLoadedRequests.remove(reqID);
+		}
+
 		public boolean needsMore() {
 			return somethingFailed || !doneSomething;
 		}
@@ -497,8 +653,14 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 		if (magic != MAGIC)
 			throw new IOException("Bad magic");
 		int version = ois.readInt();
-		if (version != VERSION)
+		if (version != 1 && version != VERSION)
 			throw new IOException("Bad version");
+		if (version >= 2) {
+			long id = ois.readLong();
+			// The first file we read is client.dat, which the journal belongs to.
+			if (loaded.snapshotID == null)
+				loaded.snapshotID = id;
+		}
 		byte[] salt = new byte[32];
 		try {
 			checker.readAndChecksum(ois, salt, 0, salt.length);
@@ -510,98 +672,207 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 		requestStarters.setGlobalSalt(salt);
 		int requestCount = ois.readInt();
 		for (int i = 0; i < requestCount; i++) {
-			ClientRequest request = null;
 			RequestIdentifier reqID = readRequestIdentifier(ois);
-			if (reqID != null && context.persistentRequestChecker.hasRequest(reqID)) {
-				Logger.warning(this, "Not reading request because already have it");
-				skipChecksummedObject(ois, length); // Request itself
-				skipChecksummedObject(ois, length); // Recovery data
-				continue;
-			}
+			readRequest(loaded, ois, length, reqID, false, context, requestRestarter, noSerialize);
+		}
+		if (latest) {
 			try {
-				if (!noSerialize) {
-					request = (ClientRequest) readChecksummedObject(ois, length);
-					if (request != null) {
-						if (reqID != null) {
-							if (!reqID.sameIdentifier(request.getRequestIdentifier())) {
-								Logger.error(this, "Request does not match request identifier, discarding");
-								request = null;
-							}
-							else {
-								loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-							}
-						}
-					}
-				}
-				else
-					skipChecksummedObject(ois, length);
-			}
-			catch (ChecksumFailedException e) {
-				Logger.error(this, "Failed to load request (checksum failed)");
-				System.err.println("Failed to load a request (checksum failed)");
+				// Don't bother with the buckets to free or the stats unless reading from
+				// the latest version (client.dat not client.dat.bak).
+				readStatsAndBuckets(loaded, ois, length, context);
 			}
 			catch (Throwable t) {
-				// Some more serious problem. Try to load the rest anyway.
-				Logger.error(this, "Failed to load request: " + t, t);
-				System.err.println("Failed to load a request: " + t);
-				t.printStackTrace();
+				Logger.error(this, "Failed to restore stats and delete old temp files: " + t, t);
 			}
-			if (request == null || logMINOR) {
-				try {
-					ClientRequest restored = readRequestFromRecoveryData(requestRestarter, ois, length, reqID);
-					if (request == null && restored != null) {
-						request = restored;
-						boolean loadedFully = restored.fullyResumed();
-						loaded.addPartiallyLoadedRequest(reqID, request,
-								loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+		}
+		ois.close();
+		fis = null;
+	}
+
+	/**
+	 * Read a single request, written by writeRequest(), from the snapshot or a journal
+	 * segment.
+	 * @param supersede If true, this is from the journal, so it replaces any version of
+	 * the request loaded previously.
+	 */
+	private void readRequest(PartialLoad loaded, ObjectInputStream ois, long length, RequestIdentifier reqID,
+			boolean supersede, ClientContext context, ClientRequestRestarter requestRestarter, boolean noSerialize)
+			throws IOException {
+		ClientRequest request = null;
+		if (reqID != null && context.persistentRequestChecker.hasRequest(reqID)) {
+			Logger.warning(this, "Not reading request because already have it");
+			skipChecksummedObject(ois, length); // Request itself
+			skipChecksummedObject(ois, length); // Recovery data
+			return;
+		}
+		try {
+			if (!noSerialize) {
+				request = (ClientRequest) readChecksummedObject(ois, length);
+				if (request != null) {
+					if (reqID != null) {
+						if (!reqID.sameIdentifier(request.getRequestIdentifier())) {
+							Logger.error(this, "Request does not match request identifier, discarding");
+							request = null;
+						}
+						else {
+							addPartiallyLoadedRequest(loaded, supersede, reqID, request, RequestLoadStatus.LOADED);
+						}
 					}
 				}
-				catch (ChecksumFailedException e) {
-					if (request == null) {
-						Logger.error(this, "Failed to recover a request (checksum failed)");
-						System.err.println("Failed to recover a request (checksum failed)");
-					}
-					else {
-						Logger.error(this, "Test recovery failed: Checksum failed for " + reqID);
-					}
-					if (request == null)
-						loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+			}
+			else
+				skipChecksummedObject(ois, length);
+		}
+		catch (ChecksumFailedException e) {
+			Logger.error(this, "Failed to load request (checksum failed)");
+			System.err.println("Failed to load a request (checksum failed)");
+		}
+		catch (Throwable t) {
+			// Some more serious problem. Try to load the rest anyway.
+			Logger.error(this, "Failed to load request: " + t, t);
+			System.err.println("Failed to load a request: " + t);
+			t.printStackTrace();
+		}
+		if (request == null || logMINOR) {
+			try {
+				ClientRequest restored = readRequestFromRecoveryData(requestRestarter, ois, length, reqID);
+				if (request == null && restored != null) {
+					request = restored;
+					boolean loadedFully = restored.fullyResumed();
+					addPartiallyLoadedRequest(loaded, supersede, reqID, request,
+							loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
 				}
-				catch (StorageFormatException e) {
-					if (request == null) {
-						Logger.error(this, "Failed to recovery a request (storage format): " + e, e);
-						System.err.println("Failed to recovery a request (storage format): " + e);
-						e.printStackTrace();
-					}
-					else {
-						Logger.error(this, "Test recovery failed for " + reqID + " : " + e, e);
-					}
-					if (request == null)
-						loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+			}
+			catch (ChecksumFailedException e) {
+				if (request == null) {
+					Logger.error(this, "Failed to recover a request (checksum failed)");
+					System.err.println("Failed to recover a request (checksum failed)");
+				}
+				else {
+					Logger.error(this, "Test recovery failed: Checksum failed for " + reqID);
 				}
+				if (request == null)
+					addPartiallyLoadedRequest(loaded, supersede, reqID, null, RequestLoadStatus.FAILED);
 			}
-			else {
-				skipChecksummedObject(ois, length);
+			catch (StorageFormatException e) {
+				if (request == null) {
+					Logger.error(this, "Failed to recovery a request (storage format): " + e, e);
+					System.err.println("Failed to recovery a request (storage format): " + e);
+					e.printStackTrace();
+				}
+				else {
+					Logger.error(this, "Test recovery failed for " + reqID + " : " + e, e);
+				}
+				if (request == null)
+					addPartiallyLoadedRequest(loaded, supersede, reqID, null, RequestLoadStatus.FAILED);
 			}
 		}
-		if (latest) {
+		else {
+			skipChecksummedObject(ois, length);
+		}
+	}
+
+	private void addPartiallyLoadedRequest(PartialLoad loaded, boolean supersede, RequestIdentifier reqID,
+			ClientRequest request, RequestLoadStatus status) {
+		if (supersede)
+			loaded.supersedePartiallyLoadedRequest(reqID, request, status);
+		else
+			loaded.addPartiallyLoadedRequest(reqID, request, status);
+	}
+
+	/**
+	 * Replay the journal segments belonging to the snapshot we loaded, in order, stopping
+	 * at the first one which is missing or belongs to a different snapshot.
+	 */
+	private void loadJournal(PartialLoad loaded, File dir, String baseName, DatabaseKey encryptionKey,
+			boolean noSerialize, ClientContext context, ClientRequestRestarter requestRestarter) {
+		if (loaded.snapshotID == null)
+			return;
+		int segments = 0;
+		for (int segment = 0;; segment++) {
+			Bucket bucket;
+			if (makeJournalFilename(dir, baseName, segment, false).exists())
+				bucket = makeJournalBucket(dir, baseName, segment, null);
+			else if (encryptionKey != null && makeJournalFilename(dir, baseName, segment, true).exists())
+				bucket = makeJournalBucket(dir, baseName, segment, encryptionKey);
+			else
+				break;
+			InputStream fis = null;
 			try {
-				// Don't bother with the buckets to free or the stats unless reading from
-				// the latest version (client.dat not client.dat.bak).
-				readStatsAndBuckets(ois, length, context);
+				fis = bucket.getInputStream();
+				if (!innerLoadJournal(loaded, fis, bucket.size(), segment, context, requestRestarter, noSerialize))
+					break;
+				segments++;
 			}
 			catch (Throwable t) {
-				Logger.error(this, "Failed to restore stats and delete old temp files: " + t, t);
+				// Later segments are still more recent than what we have, so carry on.
+				Logger.error(this, "Failed to load journal segment " + bucket + " : " + t, t);
+				System.err.println("Failed to load journal segment " + bucket + " : " + t);
+				loaded.setSomethingFailed();
+			}
+			finally {
+				try {
+					if (fis != null)
+						fis.close();
+				}
+				catch (IOException e) {
+					System.err.println("Failed to load journal segment: " + e);
+				}
 			}
 		}
+		if (segments > 0)
+			System.out.println("Replayed " + segments + " journal segments");
+	}
+
+	/**
+	 * @return False if the segment belongs to a different snapshot.
+	 */
+	private boolean innerLoadJournal(PartialLoad loaded, InputStream fis, long length, int segment,
+			ClientContext context, ClientRequestRestarter requestRestarter, boolean noSerialize)
+			throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ObjectInputStream(fis);
+		if (ois.readLong() != JOURNAL_MAGIC)
+			throw new IOException("Bad magic");
+		if (ois.readInt() != VERSION)
+			throw new IOException("Bad version");
+		long id = ois.readLong();
+		int seq = ois.readInt();
+		if (id != loaded.snapshotID || seq != segment) {
+			Logger.normal(this, "Ignoring journal segment " + segment + " from another snapshot");
+			return false;
+		}
+		while (true) {
+			byte type = ois.readByte();
+			if (type == JOURNAL_END)
+				break;
+			RequestIdentifier reqID = readRequestIdentifier(ois);
+			switch (type) {
+			case JOURNAL_ADDED:
+			case JOURNAL_PROGRESS:
+			case JOURNAL_COMPLETED:
+			case JOURNAL_MODIFIED:
+				readRequest(loaded, ois, length, reqID, true, context, requestRestarter, noSerialize);
+				break;
+			case JOURNAL_REMOVED:
+				if (reqID != null)
+					loaded.removePartiallyLoadedRequest(reqID);
+				else
+					Logger.error(this, "Unable to remove request: checksum failed on identifier");
+				break;
+			default:
+				throw new IOException("Unknown journal record type " + type);
+			}
+		}
+		if (!noSerialize)
+			readStatsAndBuckets(loaded, ois, length, context);
 		ois.close();
-		fis = null;
+		return true;
 	}
 
-	private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context)
+	private void readStatsAndBuckets(PartialLoad loaded, ObjectInputStream ois, long length, ClientContext context)
 			throws IOException, ClassNotFoundException {
-		PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-		this.bandwidthStatsPutter.addFrom(storedStatsPutter);
+		// Each file has the complete stats, so only the most recent one is used.
+		loaded.stats = (PersistentStatsPutter) ois.readObject();
 		int count = ois.readInt();
 		DelayedFree[] buckets = new DelayedFree[count];
 		for (int i = 0; i < count; i++) {
@@ -623,10 +894,16 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 	protected void save(boolean shutdown) {
 		if (writeToFilename == null)
 			return;
+		ClientRequest[] requests = getRequests();
+		if (!shutdown && !shouldSnapshot()) {
+			if (innerSaveJournal(requests))
+				return;
+			// Otherwise fall back to a full snapshot.
+		}
 		if (writeToFilename.exists()) {
 			FileUtil.renameTo(writeToFilename, writeToBackupFilename);
 		}
-		if (innerSave(shutdown)) {
+		if (innerSave(requests, shutdown)) {
 			if (deleteAfterSuccessfulWrite != null) {
 				deleteAfterSuccessfulWrite.delete();
 				deleteAfterSuccessfulWrite = null;
@@ -638,17 +915,55 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 		}
 	}
 
-	private boolean innerSave(boolean shutdown) {
+	@Override
+	public void setModified(ClientRequest request) {
+		synchronized (modifiedRequests) {
+			modifiedRequests.add(request.getRequestIdentifier());
+		}
+	}
+
+	/** Get and clear the requests modified since the last checkpoint. */
+	private Set<RequestIdentifier> grabModifiedRequests() {
+		synchronized (modifiedRequests) {
+			Set<RequestIdentifier> modified = new HashSet<RequestIdentifier>(modifiedRequests);
+			modifiedRequests.clear();
+			return modified;
+		}
+	}
+
+	/** Put back the modified requests if we failed to write them. */
+	private void restoreModifiedRequests(Set<RequestIdentifier> modified) {
+		synchronized (modifiedRequests) {
+			modifiedRequests.addAll(modified);
+		}
+	}
+
+	private boolean shouldSnapshot() {
+		if (mustSnapshot)
+			return true;
+		if (journalSegments >= MAX_JOURNAL_SEGMENTS)
+			return true;
+		// Replaying the journal should not cost more than reading the snapshot.
+		if (journalRequests > snapshotRequests)
+			return true;
+		return System.currentTimeMillis() - lastSnapshotTime > SNAPSHOT_INTERVAL;
+	}
+
+	private boolean innerSave(ClientRequest[] requests, boolean shutdown) {
 		DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
 		OutputStream fos = null;
+		long id = random.nextLong();
+		Map<RequestIdentifier, Boolean> written = new HashMap<RequestIdentifier, Boolean>();
+		// The snapshot includes every request, so it covers any modifications.
+		Set<RequestIdentifier> modified = grabModifiedRequests();
 		try {
 			fos = writeToBucket.getOutputStream();
 			BufferedOutputStream bos = new BufferedOutputStream(fos);
 			ObjectOutputStream oos = new ObjectOutputStream(bos);
 			oos.writeLong(MAGIC);
 			oos.writeInt(VERSION);
+			oos.writeLong(id);
 			checker.writeAndChecksum(oos, salt);
-			ClientRequest[] requests = getRequests();
 			if (shutdown) {
 				for (ClientRequest req : requests) {
 					if (req == null)
@@ -663,37 +978,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 			}
 			oos.writeInt(requests.length);
 			for (ClientRequest req : requests) {
-				// Write the request identifier so we can skip reading the request if we
-				// already have it.
-				writeRequestIdentifier(oos, req.getRequestIdentifier());
-				// Write the actual request.
-				writeChecksummedObject(oos, req, req.toString());
-				// Write recovery data. This is just enough to restart the request from
-				// scratch,
-				// but may support continuing the request in simple cases e.g. if a fetch
-				// is now
-				// just a single splitfile.
-				writeRecoveryData(oos, req);
-			}
-			bandwidthStatsPutter.updateData(statsChecker);
-			oos.writeObject(bandwidthStatsPutter);
-			if (buckets == null) {
-				oos.writeInt(0);
-			}
-			else {
-				oos.writeInt(buckets.length);
-				for (DelayedFree bucket : buckets)
-					writeChecksummedObject(oos, bucket, null);
+				written.put(req.getRequestIdentifier(), req.hasFinished());
+				writeRequest(oos, req);
 			}
+			writeStatsAndBuckets(oos, buckets);
 			oos.close();
 			fos = null;
 			Logger.normal(this, "Saved " + requests.length + " requests to " + writeToFilename);
 			persistentTempFactory.finishDelayedFree(buckets);
-			return true;
 		}
 		catch (IOException e) {
 			System.err.println("Failed to write persistent requests: " + e);
 			e.printStackTrace();
+			restoreModifiedRequests(modified);
 			return false;
 		}
 		finally {
@@ -706,6 +1003,127 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 				e.printStackTrace();
 			}
 		}
+		// The old journal applies to the old snapshot, which is now client.dat.bak.
+		deleteJournal(dir, baseName, false);
+		snapshotID = id;
+		mustSnapshot = false;
+		lastSnapshotTime = System.currentTimeMillis();
+		snapshotRequests = requests.length;
+		journalSegments = 0;
+		journalRequests = 0;
+		writtenRequests.clear();
+		writtenRequests.putAll(written);
+		return true;
+	}
+
+	/**
+	 * Write a journal segment containing the requests which have changed since they were
+	 * last written, and those which have been removed.
+	 * @return False if we failed and must write a snapshot instead.
+	 */
+	private boolean innerSaveJournal(ClientRequest[] requests) {
+		int segment = journalSegments;
+		Bucket bucket = makeJournalBucket(dir, baseName, segment, writeEncryptionKey);
+		DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+		Map<RequestIdentifier, Boolean> written = new HashMap<RequestIdentifier, Boolean>();
+		HashSet<RequestIdentifier> current = new HashSet<RequestIdentifier>();
+		List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+		Set<RequestIdentifier> modified = grabModifiedRequests();
+		OutputStream fos = null;
+		try {
+			fos = bucket.getOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+			oos.writeLong(JOURNAL_MAGIC);
+			oos.writeInt(VERSION);
+			oos.writeLong(snapshotID);
+			oos.writeInt(segment);
+			for (ClientRequest req : requests) {
+				RequestIdentifier reqID = req.getRequestIdentifier();
+				current.add(reqID);
+				Boolean wasFinished = writtenRequests.get(reqID);
+				boolean finished = req.hasFinished();
+				byte type;
+				if (wasFinished == null) {
+					type = JOURNAL_ADDED;
+				}
+				else if (finished != wasFinished) {
+					// Finished, or restarted after finishing.
+					type = finished ? JOURNAL_COMPLETED : JOURNAL_PROGRESS;
+				}
+				else {
+					// Already written, so only write it again if it has changed since.
+					if (!modified.contains(reqID))
+						continue;
+					type = finished ? JOURNAL_MODIFIED : JOURNAL_PROGRESS;
+				}
+				oos.writeByte(type);
+				writeRequest(oos, req);
+				written.put(reqID, finished);
+			}
+			for (RequestIdentifier reqID : writtenRequests.keySet()) {
+				if (current.contains(reqID))
+					continue;
+				oos.writeByte(JOURNAL_REMOVED);
+				writeRequestIdentifier(oos, reqID);
+				removed.add(reqID);
+			}
+			oos.writeByte(JOURNAL_END);
+			writeStatsAndBuckets(oos, buckets);
+			oos.close();
+			fos = null;
+			Logger.normal(this, "Saved " + written.size() + " changed and " + removed.size()
+					+ " removed requests to journal segment " + segment + " of " + requests.length + " requests");
+			persistentTempFactory.finishDelayedFree(buckets);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to write persistent requests journal: " + e);
+			e.printStackTrace();
+			bucket.free();
+			mustSnapshot = true;
+			restoreModifiedRequests(modified);
+			return false;
+		}
+		finally {
+			try {
+				if (fos != null)
+					fos.close();
+			}
+			catch (IOException e) {
+				System.err.println("Failed to write persistent requests journal: " + e);
+				e.printStackTrace();
+			}
+		}
+		writtenRequests.putAll(written);
+		for (RequestIdentifier reqID : removed)
+			writtenRequests.remove(reqID);
+		journalSegments++;
+		journalRequests += written.size();
+		return true;
+	}
+
+	private void writeRequest(ObjectOutputStream oos, ClientRequest req) throws IOException {
+		// Write the request identifier so we can skip reading the request if we
+		// already have it.
+		writeRequestIdentifier(oos, req.getRequestIdentifier());
+		// Write the actual request.
+		writeChecksummedObject(oos, req, req.toString());
+		// Write recovery data. This is just enough to restart the request from scratch,
+		// but may support continuing the request in simple cases e.g. if a fetch is now
+		// just a single splitfile.
+		writeRecoveryData(oos, req);
+	}
+
+	private void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+		bandwidthStatsPutter.updateData(statsChecker);
+		oos.writeObject(bandwidthStatsPutter);
+		if (buckets == null) {
+			oos.writeInt(0);
+		}
+		else {
+			oos.writeInt(buckets.length);
+			for (DelayedFree bucket : buckets)
+				writeChecksummedObject(oos, bucket, null);
+		}
 	}
 
 	private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
@@ -854,6 +1272,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
 			deleteFile(dir, baseName, false, true);
 			deleteFile(dir, baseName, true, false);
 			deleteFile(dir, baseName, true, true);
+			deleteJournal(dir, baseName, true);
 		}
 	}
 
@@ -352,6 +352,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			}
 			this.uri = u;
 		}
+		setModified(context);
 		client.onGeneratedURI(u, this);
 	}
 
@@ -378,6 +379,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			finalMetadata.free();
 			return;
 		}
+		setModified(context);
 		client.onGeneratedMetadata(finalMetadata, this);
 	}
 
@@ -446,12 +448,17 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 		if (newState == null)
 			throw new NullPointerException();
 
+		boolean changed = false;
 		synchronized (this) {
 			if (currentState == oldState) {
 				currentState = newState;
-				return;
+				changed = true;
 			}
 		}
+		if (changed) {
+			setModified(context);
+			return;
+		}
 		if (persistent())
 			context.jobRunner.setCheckpointASAP();
 		Logger.normal(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState);
@@ -26,6 +26,15 @@ public interface ClientRequest extends PersistentClientCallback {
 	 */
 	boolean fullyResumed();
 
+	/**
+	 * Return true if the request has finished. ClientLayerPersister assumes that the
+	 * persistent state of a finished request does not change, so it is only written to
+	 * the journal once.
+	 */
+	default boolean hasFinished() {
+		return false;
+	}
+
 	/** Start the request, if it has not already been started. */
 	void start(ClientContext context);
 
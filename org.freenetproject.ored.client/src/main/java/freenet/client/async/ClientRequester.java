@@ -339,6 +339,8 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 
 	/** Notify clients by calling innerNotifyClients off-thread. */
 	public final void notifyClients(ClientContext context) {
+		// The block counts have changed.
+		setModified(context);
 		context.getJobRunner(persistent()).queueNormalOrDrop(new PersistentJob() {
 
 			@Override
@@ -368,9 +370,23 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 				return;
 			sentToNetwork = true;
 		}
+		setModified(context);
 		innerToNetwork(context);
 	}
 
+	/**
+	 * Our persistent state has changed, so the request we belong to must be written again
+	 * at the next checkpoint. Running requests which have not called this are left out of
+	 * the journal.
+	 */
+	protected void setModified(ClientContext context) {
+		if (!persistent())
+			return;
+		ClientBaseCallback cb = getCallback();
+		if (cb instanceof ClientRequest)
+			context.jobRunner.setModified((ClientRequest) cb);
+	}
+
 	/**
 	 * Notify clients that a request has gone to the network, for the first time, i.e. we
 	 * have finished checking the datastore for at least one part of the request.
@@ -408,6 +424,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			oldPrio = priorityClass;
 			this.priorityClass = newPriorityClass;
 		}
+		setModified(ctx);
 		if (logMINOR)
 			Logger.minor(this, "Changing priority class of " + this + " from " + oldPrio + " to " + newPriorityClass);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
@@ -56,6 +56,11 @@ public class DummyJobRunner implements PersistentJobRunner {
 		// Ignore.
 	}
 
+	@Override
+	public void setModified(ClientRequest request) {
+		// Ignore.
+	}
+
 	@Override
 	public boolean hasLoaded() {
 		return true;
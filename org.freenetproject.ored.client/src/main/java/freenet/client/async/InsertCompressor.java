@@ -14,6 +14,7 @@ import freenet.compress.CompressionOutputSizeException;
 import freenet.compress.CompressionRatioException;
 import freenet.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.compress.InvalidCompressionCodecException;
+import freenet.compress.ParallelCompressor;
 import freenet.config.Config;
 import freenet.crypt.HashResult;
 import freenet.crypt.MultiHashInputStream;
@@ -124,122 +125,156 @@ public class InsertCompressor implements CompressJob {
 					.getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
 			int maxTimeForSingleCompressor = config.get("node").getInt("maxTimeForSingleCompressor");
-			for (final COMPRESSOR_TYPE comp : comps) {
-				long compressionStartTime = System.currentTimeMillis();
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
+			if (comps.length > 1 && config.get("node").getBoolean("parallelCompressionTrials")) {
+				for (COMPRESSOR_TYPE comp : comps)
+					startCompression(comp, context);
+				ParallelCompressor.Result[] results;
+				InputStream is = null;
+				MultiHashInputStream hasher = null;
 				try {
-					if (logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if (persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY + 1);
+					is = origData.getInputStream();
+					if (generateHashes != 0)
+						is = hasher = new MultiHashInputStream(is, generateHashes);
+					results = new ParallelCompressor(comps, bucketFactory, context.rc.getTrialExecutor()).compress(is,
+							origSize, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+					if (hasher != null) {
+						// Every codec may have given up before the end.
+						is.skip(Long.MAX_VALUE);
+						hashes = hasher.getResults();
+					}
+				}
+				finally {
+					Closer.close(is);
+				}
+				// Of the codecs which finished, pick the first which fits in minSize,
+				// otherwise the first with the fewest blocks, as the loop below does. This
+				// is not always the codec the loop would pick. The loop limits each codec
+				// to the best size so far. ParallelCompressor instead stops any codec
+				// whose output per byte read is more than LOSING_RATIO times the best one's
+				// at a checkpoint, which is only an estimate: a codec which starts badly
+				// but would have come out ahead may be stopped.
+				boolean fits = false;
+				for (ParallelCompressor.Result r : results) {
+					if (r.data == null)
+						continue;
+					long resultSize = r.data.size();
+					long resultNumberOfBlocks = resultSize / CHKBlock.DATA_LENGTH;
+					if (!fits && (resultSize <= minSize || resultNumberOfBlocks < bestNumberOfBlocks)) {
+						if (logMINOR)
+							Logger.minor(this, "New size " + resultSize + " (" + resultNumberOfBlocks
+									+ " blocks) with " + r.codec);
+						if (bestCompressedData != origData)
+							bestCompressedData.free();
+						bestCompressedData = r.data;
+						bestCompressedDataSize = resultSize;
+						bestNumberOfBlocks = resultNumberOfBlocks;
+						bestCodec = r.codec;
+						fits = resultSize <= minSize;
 					}
 					else {
-						try {
-							inserter.onStartCompression(comp, context);
-						}
-						catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw " + t, t);
-						}
+						r.data.free();
 					}
-
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
+				}
+			}
+			else {
+				for (final COMPRESSOR_TYPE comp : comps) {
+					long compressionStartTime = System.currentTimeMillis();
+					boolean shouldFreeOnFinally = true;
+					RandomAccessBucket result = null;
 					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if (first && generateHashes != 0) {
-							if (logMINOR)
-								Logger.minor(this, "Generating hashes: " + generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
+						if (logMINOR)
+							Logger.minor(this, "Attempt to compress using " + comp);
+						startCompression(comp, context);
+
+						InputStream is = null;
+						OutputStream os = null;
+						MultiHashInputStream hasher = null;
 						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize, amountOfDataToCheckCompressionRatio,
-									minimumCompressionPercentage);
-						}
-						catch (CompressionOutputSizeException | CompressionRatioException e) {
+							is = origData.getInputStream();
+							result = bucketFactory.makeBucket(-1);
+							os = result.getOutputStream();
+							if (first && generateHashes != 0) {
+								if (logMINOR)
+									Logger.minor(this, "Generating hashes: " + generateHashes);
+								is = hasher = new MultiHashInputStream(is, generateHashes);
+							}
+							try {
+								comp.compress(is, os, origSize, bestCompressedDataSize, amountOfDataToCheckCompressionRatio,
+										minimumCompressionPercentage);
+							}
+							catch (CompressionOutputSizeException | CompressionRatioException e) {
+								if (hasher != null) {
+									is.skip(Long.MAX_VALUE);
+									hashes = hasher.getResults();
+									first = false;
+								}
+								continue; // try next compressor type
+							}
+							catch (RuntimeException e) {
+								// ArithmeticException has been seen in bzip2 codec.
+								Logger.error(this, "Compression failed with codec " + comp + " : " + e, e);
+								// Try the next one
+								// RuntimeException is iffy, so lets not try the hasher.
+								continue;
+							}
 							if (hasher != null) {
-								is.skip(Long.MAX_VALUE);
 								hashes = hasher.getResults();
 								first = false;
 							}
-							continue; // try next compressor type
 						}
-						catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec " + comp + " : " + e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
+						finally {
+							Closer.close(is);
+							Closer.close(os);
+						}
+						long resultSize = result.size();
+						long resultNumberOfBlocks = resultSize / CHKBlock.DATA_LENGTH;
+						// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+						if (resultSize <= minSize) {
+							if (logMINOR)
+								Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
+
+							bestCodec = comp;
+							if (bestCompressedData != null && bestCompressedData != origData)
+								// Don't need to removeFrom() : we haven't stored it.
+								bestCompressedData.free();
+							bestCompressedData = result;
+							bestCompressedDataSize = resultSize;
+							bestNumberOfBlocks = resultNumberOfBlocks;
+							shouldFreeOnFinally = false;
+							break;
 						}
-						if (hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
+						if (resultNumberOfBlocks < bestNumberOfBlocks) {
+							if (logMINOR)
+								Logger.minor(this,
+										"New size " + resultSize + " (" + resultNumberOfBlocks
+												+ " blocks) better than old best " + bestCompressedDataSize + " ("
+												+ bestNumberOfBlocks + " blocks)");
+							if (bestCompressedData != null && bestCompressedData != origData)
+								bestCompressedData.free();
+							bestCompressedData = result;
+							bestCompressedDataSize = resultSize;
+							bestNumberOfBlocks = resultNumberOfBlocks;
+							bestCodec = comp;
+							shouldFreeOnFinally = false;
 						}
 					}
+					catch (PersistenceDisabledException e) {
+						if (!context.jobRunner.shuttingDown())
+							Logger.error(this, "Database disabled compressing data", new Exception("error"));
+						shouldFreeOnFinally = true;
+						if (bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
+							bestCompressedData.free();
+					}
 					finally {
-						Closer.close(is);
-						Closer.close(os);
+						if (shouldFreeOnFinally && (result != null) && result != origData)
+							result.free();
 					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize / CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if (resultSize <= minSize) {
-						if (logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
 
-						bestCodec = comp;
-						if (bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
+					// if one iteration of compression took a lot of time, then we will not
+					// try other algorithms
+					if (System.currentTimeMillis() - compressionStartTime > maxTimeForSingleCompressor)
 						break;
-					}
-					if (resultNumberOfBlocks < bestNumberOfBlocks) {
-						if (logMINOR)
-							Logger.minor(this,
-									"New size " + resultSize + " (" + resultNumberOfBlocks
-											+ " blocks) better than old best " + bestCompressedDataSize + " ("
-											+ bestNumberOfBlocks + " blocks)");
-						if (bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				}
-				catch (PersistenceDisabledException e) {
-					if (!context.jobRunner.shuttingDown())
-						Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if (bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
 				}
-				finally {
-					if (shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
-				}
-
-				// if one iteration of compression took a lot of time, then we will not
-				// try other algorithms
-				if (System.currentTimeMillis() - compressionStartTime > maxTimeForSingleCompressor)
-					break;
 			}
 
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
@@ -295,6 +330,31 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	/** Tell the inserter which codec we are trying. */
+	private void startCompression(final COMPRESSOR_TYPE comp, ClientContext context)
+			throws PersistenceDisabledException {
+		// Only produce if we are compressing *the original data*
+		if (persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY + 1);
+		}
+		else {
+			try {
+				inserter.onStartCompression(comp, context);
+			}
+			catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw " + t, t);
+			}
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if (persistent) {
 			try {
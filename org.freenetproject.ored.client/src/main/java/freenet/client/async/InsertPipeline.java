@@ -0,0 +1,290 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import freenet.client.events.InsertPipelineEvent;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.io.NativeThread;
+
+/**
+ * The stages a splitfile insert's blocks go through once the data has been compressed:
+ * FEC encoding each segment, encrypting each block into a CHK, and sending it.
+ *
+ * FEC encoding is limited by the {@link MemoryLimitedJobRunner}. Encryption runs on a
+ * pool shared by all inserts, so the blocks of a segment are encrypted on several cores
+ * while the same segment is being FEC encoded; when the pool's queue is full the encoding
+ * thread encrypts blocks itself, which slows down the FEC stage rather than letting work
+ * pile up. Only the key of each encrypted block is kept for the segment, so encrypting
+ * doesn't need memory beyond what the FEC job was given. Encrypted check blocks are kept,
+ * up to {@link #MAX_READY_BLOCKS} per insert and {@link #MAX_ALL_READY_BLOCKS} over all
+ * inserts, so that sending them doesn't read and encrypt them again; any that don't fit
+ * are encrypted again when sent, as they were before.
+ *
+ * Also keeps the throughput and queue depth of each stage, for
+ * {@link InsertPipelineEvent}. Not persistent; the counts start again on restart.
+ */
+final class InsertPipeline {
+
+	/** Threads encrypting blocks, over all inserts. */
+	static final int ENCRYPT_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	/** Most blocks queued for the encrypt threads before callers encrypt their own. */
+	private static final int ENCRYPT_QUEUE = ENCRYPT_THREADS * 4;
+
+	/** Blocks per encrypt job, so the queue isn't handling each block separately. */
+	private static final int BLOCKS_PER_JOB = 8;
+
+	/** Most encrypted blocks kept per insert for the sender, 4MiB. */
+	static final int MAX_READY_BLOCKS = 128;
+
+	/** Most encrypted blocks kept for the sender over all inserts, 16MiB. */
+	static final int MAX_ALL_READY_BLOCKS = 512;
+
+	/** Encrypted blocks kept for the sender over all inserts. */
+	private static final AtomicInteger allReady = new AtomicInteger();
+
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+
+	private static final ThreadPoolExecutor encryptExecutor;
+	static {
+		encryptExecutor = new ThreadPoolExecutor(ENCRYPT_THREADS, ENCRYPT_THREADS, 30, SECONDS,
+				new ArrayBlockingQueue<Runnable>(ENCRYPT_QUEUE),
+				(r) -> new NativeThread(r, "Insert encrypt thread " + threadCounter.incrementAndGet(),
+						MemoryLimitedJobRunner.THREAD_PRIORITY, true),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		encryptExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/** Counts for one stage. */
+	static final class Stage {
+
+		final String name;
+
+		private final LongAdder items = new LongAdder();
+
+		private final LongAdder bytes = new LongAdder();
+
+		/** Items waiting for or being processed by this stage. */
+		private final AtomicInteger queued = new AtomicInteger();
+
+		/** When the stage first had work, for the throughput. */
+		private volatile long startTime;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		/** Change the number of items waiting, e.g. -1 when one is taken off the queue. */
+		void queued(int delta) {
+			if (startTime == 0)
+				startTime = System.nanoTime();
+			queued.addAndGet(delta);
+		}
+
+		void done(int count, long byteCount) {
+			if (startTime == 0)
+				startTime = System.nanoTime();
+			items.add(count);
+			bytes.add(byteCount);
+		}
+
+		long getItems() {
+			return items.sum();
+		}
+
+		int getQueued() {
+			return queued.get();
+		}
+
+		InsertPipelineEvent.Stage snapshot() {
+			long start = startTime;
+			long bytes = this.bytes.sum();
+			double rate = 0.0;
+			if (start != 0) {
+				long elapsed = System.nanoTime() - start;
+				if (elapsed > 0)
+					rate = bytes * 1e9 / elapsed;
+			}
+			return new InsertPipelineEvent.Stage(name, items.sum(), bytes, rate, queued.get());
+		}
+
+	}
+
+	/** Segments FEC encoded. Queued counts segments waiting for memory or being encoded. */
+	final Stage fec = new Stage("fec");
+
+	/** Blocks encrypted into CHKs. */
+	final Stage encrypt = new Stage("encrypt");
+
+	/** Blocks inserted. Queued counts encrypted blocks waiting to be sent. */
+	final Stage send = new Stage("send");
+
+	/** Encrypted blocks waiting to be sent, by segment and block number. */
+	private final Map<Long, ClientCHKBlock> ready = new HashMap<Long, ClientCHKBlock>();
+
+	/** Set by clear(), after which no more blocks are kept. */
+	private boolean cleared;
+
+	private long lastReport;
+
+	private static Long key(int segNo, int blockNo) {
+		return ((long) segNo << 32) | (blockNo & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Blocks being encrypted on the shared threads. Get their keys with {@link #get()}.
+	 */
+	final class Batch {
+
+		private final ClientCHK[] results;
+
+		private final CountDownLatch done;
+
+		private volatile Throwable failure;
+
+		Batch(final SplitFileInserterSegmentStorage segment, final byte[][] blocks, final int firstBlockNo) {
+			results = new ClientCHK[blocks.length];
+			int jobs = (blocks.length + BLOCKS_PER_JOB - 1) / BLOCKS_PER_JOB;
+			done = new CountDownLatch(jobs);
+			encrypt.queued(blocks.length);
+			for (int i = 0; i < jobs; i++) {
+				final int start = i * BLOCKS_PER_JOB;
+				final int end = Math.min(blocks.length, start + BLOCKS_PER_JOB);
+				encryptExecutor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							for (int j = start; j < end; j++) {
+								ClientCHKBlock block = segment.encodeBlock(blocks[j]);
+								results[j] = block.getClientKey();
+								segment.offerReady(firstBlockNo + j, block);
+							}
+						}
+						catch (Throwable t) {
+							failure = t;
+						}
+						finally {
+							encrypt.queued(start - end);
+							encrypt.done(end - start, (long) (end - start) * CHKBlock.DATA_LENGTH);
+							done.countDown();
+						}
+					}
+
+				});
+			}
+		}
+
+		/** Wait for all the blocks to be encrypted, or to fail. */
+		void await() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		/** Wait for all the blocks to be encrypted, and return their keys. */
+		ClientCHK[] get() {
+			await();
+			Throwable t = failure;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			if (t != null)
+				throw new RuntimeException(t);
+			return results;
+		}
+
+	}
+
+	/**
+	 * Start encrypting the given blocks of a segment. Each block is offered back to the
+	 * segment once encrypted, and then only its key is kept.
+	 * @param firstBlockNo The block number of the first block.
+	 */
+	Batch encrypt(SplitFileInserterSegmentStorage segment, byte[][] blocks, int firstBlockNo) {
+		return new Batch(segment, blocks, firstBlockNo);
+	}
+
+	/**
+	 * Keep an encrypted block until it is sent.
+	 * @return False if there are already too many, for this insert or over all inserts,
+	 * or the insert has finished.
+	 */
+	synchronized boolean offerReady(int segNo, int blockNo, ClientCHKBlock block) {
+		if (cleared)
+			return false;
+		Long key = key(segNo, blockNo);
+		if (ready.containsKey(key)) {
+			ready.put(key, block);
+			return true;
+		}
+		if (ready.size() >= MAX_READY_BLOCKS)
+			return false;
+		if (allReady.incrementAndGet() > MAX_ALL_READY_BLOCKS) {
+			allReady.decrementAndGet();
+			return false;
+		}
+		ready.put(key, block);
+		send.queued(1);
+		return true;
+	}
+
+	/** @return The encrypted block, if we have it, which is then forgotten. */
+	synchronized ClientCHKBlock takeReady(int segNo, int blockNo) {
+		ClientCHKBlock block = ready.remove(key(segNo, blockNo));
+		if (block != null) {
+			allReady.decrementAndGet();
+			send.queued(-1);
+		}
+		return block;
+	}
+
+	/**
+	 * Forget all the encrypted blocks because the insert has finished, and don't keep any
+	 * more, which may still be offered by a segment being encoded.
+	 */
+	synchronized void clear() {
+		cleared = true;
+		allReady.addAndGet(-ready.size());
+		send.queued(-ready.size());
+		ready.clear();
+	}
+
+	/**
+	 * @return True if progress should be reported, i.e. it has not been reported in the
+	 * last second.
+	 */
+	synchronized boolean shouldReport(long now) {
+		if (now - lastReport < 1000)
+			return false;
+		lastReport = now;
+		return true;
+	}
+
+	InsertPipelineEvent getEvent() {
+		return new InsertPipelineEvent(new InsertPipelineEvent.Stage[] { fec.snapshot(), encrypt.snapshot(),
+				send.snapshot() });
+	}
+
+}
@@ -26,6 +26,19 @@ public interface KeyListener {
 	 */
 	public boolean probablyWantKey(Key key, byte[] saltedKey);
 
+	/**
+	 * List the keys we want, so the tracker can index them rather than calling
+	 * probablyWantKey() on every listener for every block. Called once, when the
+	 * listener is registered, without holding the tracker's lock. The list may include
+	 * keys we no longer want: probablyWantKey() is still called before anything else.
+	 * @param salter The KeySalter to salt the keys with.
+	 * @return The salted keys, or null if we can't list them, in which case we will be
+	 * asked about every key.
+	 */
+	default byte[][] getSaltedKeys(KeySalter salter) {
+		return null;
+	}
+
 	/**
 	 * Do we want the key? This is called by the ULPR code, because fetching the key will
 	 * involve significant work. tripPendingKey() on the other hand will go straight to
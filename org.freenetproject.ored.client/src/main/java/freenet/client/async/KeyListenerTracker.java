@@ -7,6 +7,7 @@ import static java.lang.String.format;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import freenet.client.request.SendableGet;
@@ -71,9 +72,10 @@ class KeyListenerTracker implements KeySalter {
 
 	/**
 	 * Transient even for persistent scheduler. There is one for each of transient,
-	 * persistent.
+	 * persistent. Indexed by salted key so we don't have to ask every listener about
+	 * every block.
 	 */
-	private final ArrayList<KeyListener> keyListeners;
+	private final SaltedKeyIndex keyListeners;
 
 	final boolean persistent;
 
@@ -87,7 +89,7 @@ class KeyListenerTracker implements KeySalter {
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		this.sched = sched;
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new SaltedKeyIndex();
 		if (globalSalt == null) {
 			globalSalt = new byte[32];
 			random.nextBytes(globalSalt);
@@ -116,22 +118,40 @@ class KeyListenerTracker implements KeySalter {
 			// twice.
 			if (keyListeners.contains(listener))
 				return;
-			keyListeners.add(listener);
+			// Unindexed until we have its keys, so it sees every block in the meantime.
+			keyListeners.add(listener, null);
+		}
+		// May involve disk I/O, so don't hold the lock.
+		byte[][] saltedKeys;
+		try {
+			saltedKeys = listener.getSaltedKeys(this);
+		}
+		catch (Throwable t) {
+			Logger.error(this, format("Error in getSaltedKeys callback for %s", listener), t);
+			saltedKeys = null;
+		}
+		int size;
+		synchronized (this) {
+			// If it was removed while we were reading the keys, leave it removed.
+			if (saltedKeys != null && !keyListeners.index(listener, saltedKeys))
+				saltedKeys = null;
+			size = keyListeners.countListeners();
 		}
 		if (logMINOR)
-			Logger.minor(this,
-					"Added pending keys to " + this + " : size now " + keyListeners.size() + " : " + listener);
+			Logger.minor(this, "Added pending keys to " + this + " : size now " + size + " : "
+					+ ((saltedKeys == null) ? "unindexed" : (saltedKeys.length + " keys")) + " : " + listener);
 	}
 
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
+		int size;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			size = keyListeners.countListeners();
 		}
 		listener.onRemove();
 		if (logMINOR)
-			Logger.minor(this,
-					"Removed pending keys from " + this + " : size now " + keyListeners.size() + " : " + listener,
+			Logger.minor(this, "Removed pending keys from " + this + " : size now " + size + " : " + listener,
 					new Exception("debug"));
 		return ret;
 	}
@@ -139,7 +159,9 @@ class KeyListenerTracker implements KeySalter {
 	public boolean removePendingKeys(HasKeyListener hasListener) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			ArrayList<KeyListener> all = new ArrayList<KeyListener>(keyListeners.countListeners());
+			keyListeners.getAll(all);
+			for (KeyListener listener : all) {
 				HasKeyListener hkl;
 				try {
 					hkl = listener.getHasKeyListener();
@@ -193,7 +215,9 @@ class KeyListenerTracker implements KeySalter {
 
 	public synchronized long countWaitingKeys() {
 		long count = 0;
-		for (KeyListener listener : keyListeners) {
+		ArrayList<KeyListener> all = new ArrayList<KeyListener>(keyListeners.countListeners());
+		keyListeners.getAll(all);
+		for (KeyListener listener : all) {
 			try {
 				count += listener.countKeys();
 			}
@@ -226,7 +250,9 @@ class KeyListenerTracker implements KeySalter {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert (key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
+		keyListeners.get(saltedKey, candidates);
+		for (KeyListener listener : candidates) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
 					return true;
@@ -332,17 +358,18 @@ class KeyListenerTracker implements KeySalter {
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			keyListeners.get(saltedKey, matches);
+			for (Iterator<KeyListener> i = matches.iterator(); i.hasNext();) {
+				KeyListener listener = i.next();
 				try {
-					if (!listener.probablyWantKey(key, saltedKey)) {
+					if (listener.probablyWantKey(key, saltedKey)) {
 						continue;
 					}
 				}
 				catch (Throwable t) {
 					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
-					continue;
 				}
-				matches.add(listener);
+				i.remove();
 			}
 		}
 		return matches;
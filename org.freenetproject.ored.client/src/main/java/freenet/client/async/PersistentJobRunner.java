@@ -66,6 +66,13 @@ public interface PersistentJobRunner {
 	 */
 	void setCheckpointASAP();
 
+	/**
+	 * A request's persistent state has changed, so it must be written again at the next
+	 * checkpoint, even if it has finished. Does not checkpoint by itself: call
+	 * setCheckpointASAP() too if the change must not wait.
+	 */
+	void setModified(ClientRequest request);
+
 	/** Has the queue started yet? */
 	boolean hasLoaded();
 
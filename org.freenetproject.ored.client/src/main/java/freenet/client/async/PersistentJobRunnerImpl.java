@@ -345,6 +345,11 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
 		checkpointOffThread();
 	}
 
+	@Override
+	public void setModified(ClientRequest request) {
+		// Ignore: every checkpoint writes every request.
+	}
+
 	protected void updateLastCheckpointed() {
 		lastCheckpointed = System.currentTimeMillis();
 	}
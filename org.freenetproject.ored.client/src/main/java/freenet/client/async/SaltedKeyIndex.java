@@ -0,0 +1,234 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import freenet.support.Fields;
+
+/**
+ * Index from salted routing keys to the {@link KeyListener}s which want them, so that
+ * finding the listeners for an incoming block costs O(1) expected time rather than a
+ * bloom filter check on every registered listener.
+ *
+ * Only the first 8 bytes of each salted key are stored, in an open addressing hash table.
+ * The salted keys are SHA-256 output so the prefix is already uniformly distributed. The
+ * index may therefore return listeners which don't want the key (prefix collisions, keys
+ * which have already been found), so callers must still check probablyWantKey(). It never
+ * omits a listener which does want the key.
+ *
+ * Listeners which can't list their keys (e.g. USKFetcher, which matches on editions) are
+ * kept on a separate list and are returned for every key.
+ *
+ * Not thread-safe: the caller (KeyListenerTracker) synchronizes.
+ */
+final class SaltedKeyIndex {
+
+	private static final int MIN_CAPACITY = 64;
+
+	private long[] prefixes;
+
+	/** Listener for each slot, null if the slot is empty. */
+	private KeyListener[] listeners;
+
+	private int mask;
+
+	/** Number of occupied slots. */
+	private int size;
+
+	/** The prefixes each indexed listener was added with, so it can be removed again. */
+	private final HashMap<KeyListener, long[]> byListener = new HashMap<KeyListener, long[]>();
+
+	private final ArrayList<KeyListener> unindexed = new ArrayList<KeyListener>();
+
+	SaltedKeyIndex() {
+		this.allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		this.prefixes = new long[capacity];
+		this.listeners = new KeyListener[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+	static long prefix(byte[] saltedKey) {
+		return Fields.bytesToLong(saltedKey, 0);
+	}
+
+	boolean contains(KeyListener listener) {
+		return this.byListener.containsKey(listener) || this.unindexed.contains(listener);
+	}
+
+	/**
+	 * Add a listener.
+	 * @param saltedKeys The salted keys the listener wants, or null if it must be checked
+	 * for every key.
+	 * @return False if the listener was already present.
+	 */
+	boolean add(KeyListener listener, byte[][] saltedKeys) {
+		if (this.contains(listener)) {
+			return false;
+		}
+		if (saltedKeys == null) {
+			this.unindexed.add(listener);
+			return true;
+		}
+		this.addIndexed(listener, saltedKeys);
+		return true;
+	}
+
+	/**
+	 * Index a listener which was added without its keys, so it is no longer returned for
+	 * every key.
+	 * @return False if the listener is not present unindexed, e.g. because it has been
+	 * removed since it was added.
+	 */
+	boolean index(KeyListener listener, byte[][] saltedKeys) {
+		if (!this.unindexed.remove(listener)) {
+			return false;
+		}
+		this.addIndexed(listener, saltedKeys);
+		return true;
+	}
+
+	private void addIndexed(KeyListener listener, byte[][] saltedKeys) {
+		long[] p = new long[saltedKeys.length];
+		for (int i = 0; i < saltedKeys.length; i++) {
+			p[i] = prefix(saltedKeys[i]);
+		}
+		this.byListener.put(listener, p);
+		this.ensureCapacity(this.size + p.length);
+		for (long prefix : p) {
+			this.insert(prefix, listener);
+		}
+	}
+
+	/**
+	 * Remove a listener.
+	 * @return False if the listener was not present.
+	 */
+	boolean remove(KeyListener listener) {
+		long[] p = this.byListener.remove(listener);
+		if (p == null) {
+			return this.unindexed.remove(listener);
+		}
+		for (long prefix : p) {
+			this.delete(prefix, listener);
+		}
+		if (this.listeners.length > MIN_CAPACITY && this.size * 8 < this.listeners.length) {
+			this.rehash(this.listeners.length / 4);
+		}
+		return true;
+	}
+
+	/**
+	 * Add every listener which may want the key to {@code matches}, each listener once.
+	 */
+	void get(byte[] saltedKey, List<KeyListener> matches) {
+		long prefix = prefix(saltedKey);
+		int start = matches.size();
+		for (int i = this.slot(prefix); this.listeners[i] != null; i = (i + 1) & this.mask) {
+			if (this.prefixes[i] != prefix) {
+				continue;
+			}
+			KeyListener listener = this.listeners[i];
+			// A splitfile can contain the same block more than once.
+			if (matches.subList(start, matches.size()).contains(listener)) {
+				continue;
+			}
+			matches.add(listener);
+		}
+		matches.addAll(this.unindexed);
+	}
+
+	/** Add every listener, indexed or not, to {@code list}. */
+	void getAll(List<KeyListener> list) {
+		list.addAll(this.byListener.keySet());
+		list.addAll(this.unindexed);
+	}
+
+	/** @return The number of listeners. */
+	int countListeners() {
+		return this.byListener.size() + this.unindexed.size();
+	}
+
+	/** @return The number of listeners which are checked for every key. */
+	int countUnindexed() {
+		return this.unindexed.size();
+	}
+
+	/** @return The number of indexed keys. */
+	int countKeys() {
+		return this.size;
+	}
+
+	private int slot(long prefix) {
+		return ((int) prefix) & this.mask;
+	}
+
+	private void ensureCapacity(int entries) {
+		int capacity = this.listeners.length;
+		while (entries * 2 > capacity) {
+			capacity *= 2;
+		}
+		if (capacity != this.listeners.length) {
+			this.rehash(capacity);
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldPrefixes = this.prefixes;
+		KeyListener[] oldListeners = this.listeners;
+		this.allocate(Math.max(capacity, MIN_CAPACITY));
+		for (int i = 0; i < oldListeners.length; i++) {
+			if (oldListeners[i] != null) {
+				this.insert(oldPrefixes[i], oldListeners[i]);
+			}
+		}
+	}
+
+	private void insert(long prefix, KeyListener listener) {
+		int i = this.slot(prefix);
+		while (this.listeners[i] != null) {
+			i = (i + 1) & this.mask;
+		}
+		this.prefixes[i] = prefix;
+		this.listeners[i] = listener;
+		this.size++;
+	}
+
+	private void delete(long prefix, KeyListener listener) {
+		int hole = this.slot(prefix);
+		while (true) {
+			if (this.listeners[hole] == null) {
+				return; // Not found, should not happen.
+			}
+			if (this.prefixes[hole] == prefix && this.listeners[hole] == listener) {
+				break;
+			}
+			hole = (hole + 1) & this.mask;
+		}
+		// Shift back any following entries which can no longer be reached past the hole.
+		int j = hole;
+		while (true) {
+			j = (j + 1) & this.mask;
+			if (this.listeners[j] == null) {
+				break;
+			}
+			int home = this.slot(this.prefixes[j]);
+			if (((j - home) & this.mask) >= ((j - hole) & this.mask)) {
+				this.prefixes[hole] = this.prefixes[j];
+				this.listeners[hole] = this.listeners[j];
+				hole = j;
+			}
+		}
+		this.listeners[hole] = null;
+		this.prefixes[hole] = 0;
+		this.size--;
+	}
+
+}
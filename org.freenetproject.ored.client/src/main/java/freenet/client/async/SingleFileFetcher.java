@@ -3,13 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -1093,8 +1090,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
 				List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			InputStream pipeIn = null;
+			OutputStream pipeOut = null;
 			Bucket data = null;
 			// FIXME not strictly correct and unnecessary - archive size already checked
 			// against ctx.max*Length inside SingleFileFetcher
@@ -1105,11 +1102,10 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if (decompressors != null) {
 					if (logMINOR)
 						Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager = new DecompressorThreadManager(pipeIn, decompressors,
-							maxLen);
+					DecompressorThreadManager decompressorManager = new DecompressorThreadManager(decompressors, maxLen);
+					pipeOut = decompressorManager.getOutputStream();
 					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output,
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output,
 							null, null, ctx.getSchemeHostAndPort(), null, false, null, null, null,
 							context.linkFilterExceptionProvider);
 					worker.start();
@@ -1122,9 +1118,11 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				// We want to see anything thrown when these are closed.
 				output.close();
 				output = null;
-				pipeOut.close();
+				if (pipeOut != null)
+					pipeOut.close();
 				pipeOut = null;
-				pipeIn.close();
+				if (pipeIn != null)
+					pipeIn.close();
 				pipeIn = null;
 			}
 			catch (Throwable t) {
@@ -1270,8 +1268,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
 				List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			InputStream pipeIn = null;
+			OutputStream pipeOut = null;
 			Bucket finalData = null;
 			// does matter only on pre-1255 keys (1255 keys have top block sizes)
 			// FIXME would save at most few tics on decompression
@@ -1285,11 +1283,10 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				if (decompressors != null) {
 					if (logMINOR)
 						Logger.minor(this, "decompressing...");
-					pipeIn.connect(pipeOut);
-					DecompressorThreadManager decompressorManager = new DecompressorThreadManager(pipeIn, decompressors,
-							maxLen);
+					DecompressorThreadManager decompressorManager = new DecompressorThreadManager(decompressors, maxLen);
+					pipeOut = decompressorManager.getOutputStream();
 					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output,
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output,
 							null, null, ctx.getSchemeHostAndPort(), null, false, null, null, null,
 							context.linkFilterExceptionProvider);
 					worker.start();
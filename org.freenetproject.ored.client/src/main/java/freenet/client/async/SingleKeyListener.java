@@ -88,6 +88,11 @@ public class SingleKeyListener implements KeyListener {
 		return key.equals(this.key);
 	}
 
+	@Override
+	public byte[][] getSaltedKeys(KeySalter salter) {
+		return new byte[][] { salter.saltKey(key) };
+	}
+
 	@Override
 	public synchronized void onRemove() {
 		done = true;
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 
 import freenet.checksum.ChecksumFailedException;
 import freenet.client.FetchException;
@@ -297,6 +298,28 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		return false;
 	}
 
+	@Override
+	public byte[][] getSaltedKeys(KeySalter salter) {
+		// Read them back from disk rather than keeping them in RAM, we only need them
+		// once.
+		ArrayList<byte[]> saltedKeys = new ArrayList<byte[]>();
+		for (SplitFileFetcherSegmentStorage segment : storage.segments) {
+			SplitFileSegmentKeys keys;
+			try {
+				keys = segment.readSegmentKeys();
+			}
+			catch (IOException | ChecksumFailedException e) {
+				Logger.error(this, "Unable to read keys for " + fetcher + " : " + e
+						+ " - will check its bloom filter for every key", e);
+				return null;
+			}
+			for (int j = 0; j < keys.totalKeys(); j++) {
+				saltedKeys.add(salter.saltKey(keys.getKey(j, null, false).getNodeKey(false)));
+			}
+		}
+		return saltedKeys.toArray(new byte[saltedKeys.size()][]);
+	}
+
 	@Override
 	public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
 		// Caller has already called probablyWantKey(), so don't do it again.
@@ -204,6 +204,7 @@ public class SplitFileInserter implements ClientPutState, Serializable, SplitFil
 
 	@Override
 	public void encodingProgress() {
+		ctx.eventProducer.produceEvent(storage.pipeline.getEvent(), context);
 		// We've encoded a segment. Start inserting the blocks we have immediately.
 		if (ctx.getCHKOnly) {
 			// We are not inserting any blocks. Wait for onHasKeys().
@@ -254,6 +255,7 @@ public class SplitFileInserter implements ClientPutState, Serializable, SplitFil
 				if (logMINOR)
 					Logger.minor(this, "Succeeding on " + SplitFileInserter.this);
 				unregisterSender();
+				storage.pipeline.clear();
 				if (!(ctx.earlyEncode || ctx.getCHKOnly)) {
 					reportMetadata(metadata);
 				}
@@ -288,6 +290,7 @@ public class SplitFileInserter implements ClientPutState, Serializable, SplitFil
 			@Override
 			public boolean run(ClientContext context) {
 				unregisterSender();
+				storage.pipeline.clear();
 				raf.close();
 				raf.free();
 				originalData.close();
@@ -306,6 +309,8 @@ public class SplitFileInserter implements ClientPutState, Serializable, SplitFil
 	@Override
 	public void onInsertedBlock() {
 		parent.completedBlock(false, context);
+		if (storage.pipeline.shouldReport(System.currentTimeMillis()))
+			ctx.eventProducer.produceEvent(storage.pipeline.getEvent(), context);
 	}
 
 	@Override
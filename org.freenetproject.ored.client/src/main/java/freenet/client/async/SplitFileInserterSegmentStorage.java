@@ -450,6 +450,7 @@ public class SplitFileInserterSegmentStorage {
 		if (encoding)
 			return;
 		encoding = true;
+		parent.pipeline.fec.queued(1);
 		int totalBlockCount = dataBlockCount + checkBlockCount + crossCheckBlockCount;
 		long limit = totalBlockCount * CHKBlock.DATA_LENGTH
 				+ Math.max(parent.codec.maxMemoryOverheadDecode(dataBlockCount, crossCheckBlockCount),
@@ -478,6 +479,7 @@ public class SplitFileInserterSegmentStorage {
 				}
 				finally {
 					chunk.release();
+					parent.pipeline.fec.queued(-1);
 					try {
 						if (!shutdown) {
 							// We do want to call the callback even if we threw something,
@@ -505,6 +507,8 @@ public class SplitFileInserterSegmentStorage {
 
 	private void innerEncode(MemoryLimitedChunk chunk) {
 		RAFLock lock = null;
+		InsertPipeline.Batch dataKeys = null;
+		InsertPipeline.Batch checkKeys = null;
 		try {
 			synchronized (this) {
 				if (cancelled)
@@ -514,19 +518,24 @@ public class SplitFileInserterSegmentStorage {
 			if (logMINOR)
 				Logger.minor(this, "Encoding " + this + " for " + parent);
 			byte[][] dataBlocks = readDataAndCrossCheckBlocks();
-			generateKeys(dataBlocks, 0);
+			// Encrypt the data blocks on other threads while we FEC encode. Only the keys
+			// are kept, apart from the blocks which fit in the pipeline, so this needs no
+			// more memory than the job was given.
+			dataKeys = parent.pipeline.encrypt(this, dataBlocks, 0);
 			byte[][] checkBlocks = new byte[checkBlockCount][];
 			for (int i = 0; i < checkBlocks.length; i++)
 				checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-			if (dataBlocks == null || checkBlocks == null)
-				return; // Failed with disk error.
 			parent.codec.encode(dataBlocks, checkBlocks, new boolean[checkBlocks.length], CHKBlock.DATA_LENGTH);
+			checkKeys = parent.pipeline.encrypt(this, checkBlocks,
+					dataBlockCount + crossCheckBlockCount);
 			for (int i = 0; i < checkBlocks.length; i++)
 				writeCheckBlock(i, checkBlocks[i]);
-			generateKeys(checkBlocks, dataBlockCount + crossCheckBlockCount);
+			setKeys(dataKeys.get(), 0);
+			setKeys(checkKeys.get(), dataBlockCount + crossCheckBlockCount);
 			synchronized (this) {
 				encoded = true;
 			}
+			parent.pipeline.fec.done(1, (long) (dataBlocks.length + checkBlocks.length) * CHKBlock.DATA_LENGTH);
 			if (logMINOR)
 				Logger.minor(this, "Encoded " + this + " for " + parent);
 		}
@@ -538,19 +547,41 @@ public class SplitFileInserterSegmentStorage {
 			parent.fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, t, null));
 		}
 		finally {
+			// The encrypt threads use the blocks, which count towards the memory limit,
+			// until they have finished, even if we failed.
+			if (dataKeys != null)
+				dataKeys.await();
+			if (checkKeys != null)
+				checkKeys.await();
 			if (lock != null)
 				lock.unlock();
 		}
 	}
 
 	/**
-	 * Generate keys for each block and record them.
+	 * Record the keys for each block.
 	 * @throws IOException
 	 */
-	private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
-		for (int i = 0; i < dataBlocks.length; i++) {
-			setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+	private void setKeys(ClientCHK[] keys, int offset) throws IOException {
+		for (int i = 0; i < keys.length; i++)
+			setKey(i + offset, keys[i]);
+	}
+
+	/**
+	 * Called by the encrypt threads with each block encrypted while encoding. Blocks which
+	 * can't be sent until the segment has been encoded are kept for the sender, if there
+	 * is room.
+	 */
+	void offerReady(int blockNo, ClientCHKBlock block) {
+		// Data blocks may be sent before the segment is encoded, so may already have
+		// been, and would never be taken.
+		if (blockNo < dataBlockCount)
+			return;
+		synchronized (this) {
+			if (blockChooser.hasSucceeded(blockNo))
+				return;
 		}
+		parent.pipeline.offerReady(segNo, blockNo, block);
 	}
 
 	private byte[][] readDataAndCrossCheckBlocks() throws IOException {
@@ -595,8 +626,13 @@ public class SplitFileInserterSegmentStorage {
 				throw new IOException("Already inserted block " + blockNo + " for " + this + " for " + parent);
 			}
 		}
+		ClientCHKBlock block = parent.pipeline.takeReady(segNo, blockNo);
+		if (block != null)
+			return block;
 		byte[] buf = readBlock(blockNo);
-		return encodeBlock(buf);
+		block = encodeBlock(buf);
+		parent.pipeline.encrypt.done(1, CHKBlock.DATA_LENGTH);
+		return block;
 	}
 
 	private byte[] readBlock(int blockNo) throws IOException {
@@ -683,6 +719,7 @@ public class SplitFileInserterSegmentStorage {
 			if (parent.hasFinished())
 				return;
 			this.setKey(blockNo, key);
+			parent.pipeline.send.done(1, CHKBlock.DATA_LENGTH);
 			if (blockChooser.onSuccess(blockNo))
 				parent.callback.onInsertedBlock();
 			lazyWriteMetadata();
@@ -198,6 +198,9 @@ public class SplitFileInserterStorage {
 	// System utilities.
 	final MemoryLimitedJobRunner memoryLimitedJobRunner;
 
+	/** Hands blocks between the stages of the insert, and counts how they are doing. */
+	final InsertPipeline pipeline = new InsertPipeline();
+
 	final PersistentJobRunner jobRunner;
 
 	final Ticker ticker;
@@ -18,11 +18,9 @@
 
 package freenet.client.async;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.nio.charset.StandardCharsets;
@@ -1457,8 +1455,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
 				List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			InputStream pipeIn = null;
+			OutputStream pipeOut = null;
 			Bucket data = null;
 			long maxLen = Math.max(USKFetcher.this.ctx.maxTempLength, USKFetcher.this.ctx.maxOutputLength);
 			try {
@@ -1468,11 +1466,10 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					if (logMINOR) {
 						Logger.minor(this, "decompressing...");
 					}
-					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager = new DecompressorThreadManager(pipeIn, decompressors,
-							maxLen);
+					DecompressorThreadManager decompressorManager = new DecompressorThreadManager(decompressors, maxLen);
+					pipeOut = decompressorManager.getOutputStream();
 					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output,
+					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output,
 							null, null, USKFetcher.this.ctx.getSchemeHostAndPort(), null, false, null, null, null,
 							context.linkFilterExceptionProvider);
 					worker.start();
@@ -1485,8 +1482,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 
 				output.close();
-				pipeOut.close();
-				pipeIn.close();
+				if (pipeOut != null) {
+					pipeOut.close();
+				}
+				if (pipeIn != null) {
+					pipeIn.close();
+				}
 				output = null;
 				pipeOut = null;
 				pipeIn = null;
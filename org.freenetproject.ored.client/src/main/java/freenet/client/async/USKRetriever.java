@@ -3,11 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.List;
 
@@ -143,19 +141,18 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		}
 
-		PipedInputStream pipeIn = null;
-		PipedOutputStream pipeOut = null;
+		InputStream pipeIn = null;
+		OutputStream pipeOut = null;
 		try {
 			output = finalResult.getOutputStream();
 			// Decompress
 			if (decompressors != null) {
 				if (logMINOR)
 					Logger.minor(this, "Decompressing...");
-				pipeIn = new PipedInputStream();
-				pipeOut = new PipedOutputStream(pipeIn);
-				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
+				decompressorManager = new DecompressorThreadManager(decompressors, maxLen);
+				pipeOut = decompressorManager.getOutputStream();
 				pipeIn = decompressorManager.execute();
-				ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null,
+				ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null,
 						null, ctx.getSchemeHostAndPort(), null, false, null, null, null,
 						context.linkFilterExceptionProvider);
 				worker.start();
@@ -0,0 +1,62 @@
+package freenet.client.events;
+
+import freenet.support.SizeUtil;
+
+/**
+ * How the stages of a splitfile insert are getting on: FEC encoding, encrypting blocks and
+ * sending them. Sent as segments are encoded and, at most once a second, as blocks are
+ * inserted.
+ */
+public class InsertPipelineEvent implements ClientEvent {
+
+	static final int CODE = 0x11;
+
+	/** One stage of the insert. */
+	public static final class Stage {
+
+		public final String name;
+
+		/** Segments or blocks processed. */
+		public final long items;
+
+		public final long bytes;
+
+		/** Bytes per second since the stage started. */
+		public final double bytesPerSecond;
+
+		/** Segments or blocks waiting for this stage. */
+		public final int queued;
+
+		public Stage(String name, long items, long bytes, double bytesPerSecond, int queued) {
+			this.name = name;
+			this.items = items;
+			this.bytes = bytes;
+			this.bytesPerSecond = bytesPerSecond;
+			this.queued = queued;
+		}
+
+	}
+
+	public final Stage[] stages;
+
+	public InsertPipelineEvent(Stage[] stages) {
+		this.stages = stages;
+	}
+
+	@Override
+	public String getDescription() {
+		StringBuilder sb = new StringBuilder("Insert pipeline:");
+		for (Stage stage : stages) {
+			sb.append(' ').append(stage.name).append(' ').append(stage.items);
+			sb.append(" (").append(SizeUtil.formatSize((long) stage.bytesPerSecond)).append("/s, ");
+			sb.append(stage.queued).append(" queued)");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public int getCode() {
+		return CODE;
+	}
+
+}
@@ -25,7 +25,17 @@ class CSSParser extends CSSTokenizerFilter {
 
 	CSSParser(Reader r, Writer w, boolean paranoidStringCheck, FilterCallback cb, String charset,
 			boolean stopAtDetectedCharset, boolean isInline) {
-		super(r, w, cb, charset, stopAtDetectedCharset, isInline);
+		this(r, w, paranoidStringCheck, cb, charset, stopAtDetectedCharset, isInline,
+				ContentFilter.streamingCSSTokenizer);
+	}
+
+	/**
+	 * @param streaming If true, use the streaming tokenizer, otherwise the original one.
+	 * @see ContentFilter#streamingCSSTokenizer
+	 */
+	CSSParser(Reader r, Writer w, boolean paranoidStringCheck, FilterCallback cb, String charset,
+			boolean stopAtDetectedCharset, boolean isInline, boolean streaming) {
+		super(r, w, cb, charset, stopAtDetectedCharset, isInline, streaming);
 		this.cb = cb;
 	}
 
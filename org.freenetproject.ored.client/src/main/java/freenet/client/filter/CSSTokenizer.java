@@ -0,0 +1,481 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+
+import freenet.client.filter.CSSTokenizerFilter.ParsedIdentifier;
+import freenet.client.filter.CSSTokenizerFilter.ParsedWord;
+import freenet.client.filter.CSSTokenizerFilter.SimpleParsedWord;
+import freenet.clientlogger.Logger;
+
+/**
+ * The lexical part of the CSS filter, used by {@link CSSTokenizerFilter} instead of
+ * reading its input a character at a time and splitting values with its original
+ * tokenizer. The input is read a block at a time into a {@link CharBuffer}, from which
+ * the filter takes runs of characters that can't change its state at once. Values are
+ * split into words in a single pass driven by tables of character classes, again copying
+ * runs of ordinary characters at once, and the buffers are reused from one value to the
+ * next.
+ *
+ * The words are exactly those the original tokenizer produces, so the filter's output is
+ * the same. The original is kept as a fallback, see
+ * {@link ContentFilter#streamingCSSTokenizer}.
+ */
+final class CSSTokenizer {
+
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerClass(CSSTokenizer.class);
+	}
+
+	// Character classes. Everything from 128 up is ordinary.
+
+	private static final byte ORDINARY = 0;
+
+	private static final byte SPACE = 1;
+
+	private static final byte COMMA = 2;
+
+	private static final byte QUOTE = 3;
+
+	private static final byte BACKSLASH = 4;
+
+	private static final byte OPEN = 5;
+
+	private static final byte CLOSE = 6;
+
+	// Flags.
+
+	private static final byte HEX = 1;
+
+	private static final byte DIGIT = 2;
+
+	/** Letters, hyphen and underscore, which can be anywhere in an identifier. */
+	private static final byte NAME = 4;
+
+	/** Ends a run of ordinary characters in a string: backslash and newlines. */
+	private static final byte STRING_SPECIAL = 8;
+
+	/**
+	 * Might change the state of {@link CSSTokenizerFilter#parse()}: punctuation, quotes,
+	 * newlines, comments, escapes and nulls.
+	 */
+	private static final byte SYNTAX = 16;
+
+	private static final byte[] CLASSES = new byte[128];
+
+	private static final byte[] FLAGS = new byte[128];
+
+	static {
+		for (char c : " \t\r\n\f".toCharArray())
+			CLASSES[c] = SPACE;
+		CLASSES[','] = COMMA;
+		CLASSES['"'] = QUOTE;
+		CLASSES['\''] = QUOTE;
+		CLASSES['\\'] = BACKSLASH;
+		CLASSES['('] = OPEN;
+		CLASSES[')'] = CLOSE;
+		for (char c = '0'; c <= '9'; c++)
+			FLAGS[c] = HEX | DIGIT;
+		for (char c = 'a'; c <= 'z'; c++) {
+			FLAGS[c] = (byte) (c <= 'f' ? HEX | NAME : NAME);
+			FLAGS[Character.toUpperCase(c)] = FLAGS[c];
+		}
+		FLAGS['-'] = NAME;
+		FLAGS['_'] = NAME;
+		for (char c : "\\\r\n\f".toCharArray())
+			FLAGS[c] = STRING_SPECIAL;
+		for (char c : "\0\\\r\n\f/*\"'{}:;,".toCharArray())
+			FLAGS[c] |= SYNTAX;
+	}
+
+	private final Reader r;
+
+	private final CharBuffer in;
+
+	private final ArrayList<ParsedWord> words = new ArrayList<ParsedWord>();
+
+	/** The original token. */
+	private final StringBuilder origToken = new StringBuilder();
+
+	/** The decoded token. */
+	private final StringBuilder decodedToken = new StringBuilder();
+
+	private final StringBuilder escape = new StringBuilder(6);
+
+	/**
+	 * @param r The input.
+	 * @param bufferSize How much of the input to read at once.
+	 */
+	CSSTokenizer(Reader r, int bufferSize) {
+		this.r = r;
+		this.in = CharBuffer.allocate(bufferSize);
+		in.limit(0);
+	}
+
+	/** @return The next character of the input, or -1 at the end. */
+	int read() throws IOException {
+		if (!in.hasRemaining() && !fill())
+			return -1;
+		return in.get();
+	}
+
+	/**
+	 * Copy characters from the input which has already been read, up to the next one
+	 * which might change the filter's state.
+	 * @return The number of characters copied.
+	 */
+	int readOrdinary(StringBuilder out) {
+		char[] buf = in.array();
+		int start = in.position();
+		int limit = in.limit();
+		int end = start;
+		while (end < limit) {
+			char c = buf[end];
+			if (c < 128 ? (FLAGS[c] & SYNTAX) != 0 : c == (char) 0xFEFF)
+				break;
+			end++;
+		}
+		out.append(buf, start, end - start);
+		in.position(end);
+		return end - start;
+	}
+
+	private boolean fill() throws IOException {
+		int read;
+		do {
+			read = r.read(in.array(), 0, in.capacity());
+		}
+		while (read == 0);
+		in.position(0);
+		in.limit(Math.max(read, 0));
+		return read > 0;
+	}
+
+	private static byte classOf(char c) {
+		return c < 128 ? CLASSES[c] : ORDINARY;
+	}
+
+	private static boolean isHex(char c) {
+		return c < 128 && (FLAGS[c] & HEX) != 0;
+	}
+
+	private static boolean isDigit(char c) {
+		return c < 128 && (FLAGS[c] & DIGIT) != 0;
+	}
+
+	/**
+	 * @param length The length of the identifier so far.
+	 * @return True if the character can follow the identifier so far.
+	 */
+	private static boolean isIdentifierChar(char c, int length) {
+		if (c >= 0xA1)
+			return true;
+		if (c >= 128)
+			return false;
+		return (FLAGS[c] & NAME) != 0 || ((FLAGS[c] & DIGIT) != 0 && length > 0);
+	}
+
+	private static char decodeEscape(StringBuilder escape) {
+		int value = 0;
+		for (int i = 0; i < escape.length(); i++)
+			value = (value << 4) + Character.digit(escape.charAt(i), 16);
+		return (char) value;
+	}
+
+	/**
+	 * Split up a string, taking into account CSS rules for escaping, strings and
+	 * identifiers.
+	 * @return The words, or null if the string is invalid.
+	 */
+	ParsedWord[] split(String input, boolean allowCommaDelimiters) {
+		if (logDEBUG)
+			Logger.debug(this, "Splitting \"" + input + "\" allowCommaDelimiters=" + allowCommaDelimiters);
+		try {
+			if (!innerSplit(input, allowCommaDelimiters))
+				return null;
+			return words.toArray(new ParsedWord[words.size()]);
+		}
+		finally {
+			words.clear();
+			origToken.setLength(0);
+			decodedToken.setLength(0);
+		}
+	}
+
+	private boolean innerSplit(String input, boolean allowCommaDelimiters) {
+		ParsedWord lastWord = null;
+		// ", ' or 0 (not in string)
+		char stringchar = 0;
+		boolean escaping = false;
+		// Eat the next linefeed due to an escape closing.
+		boolean eatLF = false;
+		// We don't like the original token, it bends the spec in unacceptable ways.
+		boolean dontLikeOrigToken = false;
+		boolean couldBeIdentifier = true;
+		boolean hasBracket = false;
+		boolean addComma = false;
+		// Brackets prevent tokenisation, see e.g. rgb().
+		int bracketCount = 0;
+		int length = input.length();
+		for (int i = 0; i < length; i++) {
+			char c = input.charAt(i);
+			if (stringchar == 0) {
+				if (eatLF && c == '\n') {
+					eatLF = false;
+					continue;
+				}
+				eatLF = false;
+				if (escaping) {
+					if (escape.length() == 0) {
+						if (isHex(c))
+							escape.append(c);
+						else if (c == '\n' || c == '\r' || c == '\f')
+							// Newline. Can only be escaped in a string.
+							return false;
+						else {
+							escaping = false;
+							origToken.append(c);
+							decodedToken.append(c);
+						}
+					}
+					else if (isHex(c)) {
+						escape.append(c);
+						if (escape.length() == 6) {
+							origToken.append(escape);
+							decodedToken.append(decodeEscape(escape));
+							escape.setLength(0);
+							escaping = false;
+						}
+					}
+					else if (classOf(c) == SPACE) {
+						// Whitespace terminates the escape. Convert it to standard
+						// whitespace to avoid any complications.
+						origToken.append(escape);
+						decodedToken.append(decodeEscape(escape));
+						origToken.append(' ');
+						escape.setLength(0);
+						escaping = false;
+						// \r might be followed by a \n
+						if (c == '\r')
+							eatLF = true;
+					}
+					else
+						// Anything else is invalid once the escape has started.
+						return false;
+					continue;
+				}
+				byte cls = classOf(c);
+				if (bracketCount == 0 && (cls == SPACE || (cls == COMMA && allowCommaDelimiters))) {
+					if (c == ',') {
+						if (decodedToken.length() == 0) {
+							if (lastWord == null) {
+								if (logDEBUG)
+									Logger.debug(this, "Extra comma before first element in \"" + input + "\" i=" + i);
+								return false;
+							}
+							else if (lastWord.postComma) {
+								if (logDEBUG)
+									Logger.debug(this,
+											"Extra comma after element " + lastWord + " in \"" + input + "\" i=" + i);
+								// Allow it, delete it.
+								lastWord.changed = true;
+							}
+							else
+								lastWord.postComma = true;
+						}
+						else {
+							if (addComma) {
+								if (logDEBUG)
+									Logger.debug(this, "Extra comma after a comma in \"" + input + "\" i=" + i);
+								return false;
+							}
+							addComma = true;
+						}
+					}
+					if (decodedToken.length() > 0) {
+						ParsedWord word = makeWord(dontLikeOrigToken, couldBeIdentifier, hasBracket);
+						if (word == null)
+							return false;
+						if (addComma) {
+							word.postComma = true;
+							addComma = false;
+						}
+						words.add(word);
+						origToken.setLength(0);
+						decodedToken.setLength(0);
+						dontLikeOrigToken = false;
+						couldBeIdentifier = true;
+						hasBracket = false;
+						lastWord = word;
+					}
+					continue;
+				}
+				switch (cls) {
+				case QUOTE:
+					stringchar = c;
+					origToken.append(c);
+					decodedToken.append(c);
+					couldBeIdentifier = false;
+					break;
+				case BACKSLASH:
+					origToken.append(c);
+					escape.setLength(0);
+					escaping = true;
+					break;
+				case OPEN:
+					bracketCount++;
+					origToken.append(c);
+					decodedToken.append(c);
+					couldBeIdentifier = false;
+					hasBracket = true;
+					break;
+				case CLOSE:
+					bracketCount--;
+					if (bracketCount < 0)
+						return false;
+					origToken.append(c);
+					decodedToken.append(c);
+					couldBeIdentifier = false;
+					break;
+				default:
+					// A run of ordinary characters, which are copied at once. Whitespace and
+					// commas are ordinary when they don't separate words.
+					int start = i;
+					int tokenLength = origToken.length();
+					char last = tokenLength == 0 ? 0 : origToken.charAt(tokenLength - 1);
+					while (true) {
+						if (couldBeIdentifier) {
+							if (!isIdentifierChar(c, tokenLength))
+								couldBeIdentifier = false;
+							// Cannot start with a hyphen followed by a digit.
+							if (tokenLength == 1 && last == '-' && isDigit(c))
+								couldBeIdentifier = false;
+						}
+						tokenLength++;
+						last = c;
+						if (++i == length)
+							break;
+						c = input.charAt(i);
+						cls = classOf(c);
+						if (!(cls == ORDINARY || (cls == COMMA && !allowCommaDelimiters)
+								|| (bracketCount > 0 && (cls == SPACE || cls == COMMA))))
+							break;
+					}
+					origToken.append(input, start, i);
+					decodedToken.append(input, start, i);
+					i--;
+					break;
+				}
+			}
+			else {
+				// We are in a string.
+				if (eatLF && c == '\n') {
+					// Here we do want to include it in the original, but it is invisible
+					// along with the preceding \
+					eatLF = false;
+					origToken.append(c);
+					continue;
+				}
+				eatLF = false;
+
+				if (c == stringchar && !escaping) {
+					origToken.append(c);
+					decodedToken.append(c);
+					stringchar = 0;
+				}
+				else if (c == '\f' || c == '\r' || (c == '\n' && !escaping)) {
+					// Invalid end of line in string. The whole construct is invalid.
+					return false;
+				}
+				else if (c == '\\' && !escaping) {
+					escaping = true;
+					escape.setLength(0);
+					origToken.append(c);
+				}
+				else if (escaping && escape.length() == 0) {
+					if (isHex(c))
+						escape.append(c);
+					else if (c == '\n') {
+						// In a string, an escaped newline is equal to nothing.
+						origToken.append(c);
+					}
+					else {
+						// Escape one character.
+						origToken.append(c);
+						decodedToken.append(c);
+						escaping = false;
+					}
+				}
+				else if (escaping) {
+					if (isHex(c)) {
+						escape.append(c);
+						if (escape.length() == 6) {
+							origToken.append(escape);
+							decodedToken.append(decodeEscape(escape));
+							escape.setLength(0);
+							escaping = false;
+						}
+					}
+					else if (classOf(c) == SPACE) {
+						// Whitespace terminates the escape.
+						origToken.append(escape);
+						decodedToken.append(decodeEscape(escape));
+						escape.setLength(0);
+						escaping = false;
+					}
+					else
+						return false;
+				}
+				else {
+					// A run of ordinary characters in the string.
+					int start = i;
+					while (++i < length) {
+						c = input.charAt(i);
+						if (c == stringchar || (c < 128 && (FLAGS[c] & STRING_SPECIAL) != 0))
+							break;
+					}
+					origToken.append(input, start, i);
+					decodedToken.append(input, start, i);
+					i--;
+				}
+			}
+		}
+		if (escaping && escape.length() > 0) {
+			origToken.append(escape);
+			decodedToken.append(decodeEscape(escape));
+		}
+		else if (escaping) {
+			// Newline rule?
+			dontLikeOrigToken = true;
+		}
+		if (origToken.length() > 0) {
+			ParsedWord word = makeWord(dontLikeOrigToken, couldBeIdentifier, hasBracket);
+			if (word == null)
+				return false;
+			words.add(word);
+		}
+		return true;
+	}
+
+	private ParsedWord makeWord(boolean dontLikeOrigToken, boolean couldBeIdentifier, boolean hasBracket) {
+		if (logDEBUG)
+			Logger.debug(this, "Token: orig: \"" + origToken + "\" decoded: \"" + decodedToken + "\" dontLike="
+					+ dontLikeOrigToken + " couldBeIdentifier=" + couldBeIdentifier);
+		// Most words are identifiers or simple words, so don't look for strings, url() etc.
+		// if they can't be one.
+		if (couldBeIdentifier)
+			return new ParsedIdentifier(origToken.toString(), decodedToken.toString(), dontLikeOrigToken);
+		char first = origToken.charAt(0);
+		if (!hasBracket && first != '"' && first != '\'')
+			return new SimpleParsedWord(origToken.toString());
+		return CSSTokenizerFilter.parseToken(origToken, decodedToken, dontLikeOrigToken, couldBeIdentifier);
+	}
+
+}
@@ -47,6 +47,9 @@ class CSSTokenizerFilter {
 
 	private Reader r;
 
+	/** Reads and splits the input, or null to use the original tokenizer. */
+	private final CSSTokenizer tokenizer;
+
 	Writer w = null;
 
 	FilterCallback cb;
@@ -69,11 +72,18 @@ class CSSTokenizerFilter {
 		passedCharset = "UTF-8";
 		stopAtDetectedCharset = false;
 		isInline = false;
+		tokenizer = null;
 	}
 
+	/**
+	 * @param streaming If true, use {@link CSSTokenizer}, otherwise the original
+	 * tokenizer.
+	 */
 	CSSTokenizerFilter(Reader r, Writer w, FilterCallback cb, String charset, boolean stopAtDetectedCharset,
-			boolean isInline) {
+			boolean isInline, boolean streaming) {
 		this.r = r;
+		// Inline styles are short.
+		this.tokenizer = streaming ? new CSSTokenizer(r, isInline ? 256 : 8192) : null;
 		this.w = w;
 		this.cb = cb;
 		passedCharset = charset;
@@ -2209,7 +2219,7 @@ class CSSTokenizerFilter {
 
 		while (true) {
 			try {
-				x = r.read();
+				x = (tokenizer != null) ? tokenizer.read() : r.read();
 			}
 			catch (IOException e) {
 				throw e;
@@ -2319,7 +2329,7 @@ class CSSTokenizerFilter {
 					String postSpace = buffer.substring(i);
 					buffer.setLength(i);
 					String orig = buffer.toString().trim();
-					ParsedWord[] parts = split(orig, false);
+					ParsedWord[] parts = tokenize(orig, false);
 					if (logDEBUG)
 						Logger.debug(this, "Split: " + CSSPropertyVerifier.toString(parts));
 					buffer.setLength(0);
@@ -2468,7 +2478,7 @@ class CSSTokenizerFilter {
 						int importIndex = strbuffer.toLowerCase().indexOf("@import");
 						if ("".equals(strbuffer.substring(0, importIndex).trim())) {
 							String str1 = strbuffer.substring(importIndex + 7, strbuffer.length());
-							ParsedWord[] strparts = split(str1, false);
+							ParsedWord[] strparts = tokenize(str1, false);
 							if (strparts != null && strparts.length > 0
 									&& (strparts[0] instanceof ParsedURL || strparts[0] instanceof ParsedString)) {
 								String uri;
@@ -2807,6 +2817,10 @@ class CSSTokenizerFilter {
 
 				default:
 					buffer.append(c);
+					if (tokenizer != null && tokenizer.readOrdinary(buffer) > 0) {
+						prevc = buffer.charAt(buffer.length() - 2);
+						c = buffer.charAt(buffer.length() - 1);
+					}
 					if (logDEBUG)
 						Logger.debug(this, "STATE2 default CASE: " + c);
 					break;
@@ -2923,7 +2937,7 @@ class CSSTokenizerFilter {
 
 					CSSPropertyVerifier obj = getVerifier(propertyName);
 					if (obj != null) {
-						ParsedWord[] words = split(propertyValue, obj.allowCommaDelimiters);
+						ParsedWord[] words = tokenize(propertyValue, obj.allowCommaDelimiters);
 						if (logDEBUG)
 							Logger.debug(this, "Split: " + CSSPropertyVerifier.toString(words));
 						if (words != null && !ignoreElementsS2 && !ignoreElementsS3
@@ -3013,7 +3027,7 @@ class CSSTokenizerFilter {
 							Logger.debug(this,
 									"Found PropertyName:" + propertyName + " propertyValue:" + propertyValue);
 						if (obj != null) {
-							ParsedWord[] words = split(propertyValue, obj.allowCommaDelimiters);
+							ParsedWord[] words = tokenize(propertyValue, obj.allowCommaDelimiters);
 							if (logDEBUG)
 								Logger.debug(this, "Split: " + CSSPropertyVerifier.toString(words));
 							if (!ignoreElementsS2 && !ignoreElementsS3
@@ -3105,6 +3119,10 @@ class CSSTokenizerFilter {
 
 				default:
 					buffer.append(c);
+					if (tokenizer != null && tokenizer.readOrdinary(buffer) > 0) {
+						prevc = buffer.charAt(buffer.length() - 2);
+						c = buffer.charAt(buffer.length() - 1);
+					}
 					if (logDEBUG)
 						Logger.debug(this, "STATE3 default CASE : " + c);
 					break;
@@ -3148,6 +3166,10 @@ class CSSTokenizerFilter {
 					}
 				default:
 					buffer.append(c);
+					if (tokenizer != null && tokenizer.readOrdinary(buffer) > 0) {
+						prevc = buffer.charAt(buffer.length() - 2);
+						c = buffer.charAt(buffer.length() - 1);
+					}
 					break;
 				}
 				break;
@@ -3536,7 +3558,7 @@ class CSSTokenizerFilter {
 	 * @param str1
 	 * @return
 	 */
-	private static ParsedWord[] split(String input, boolean allowCommaDelimiters) {
+	static ParsedWord[] split(String input, boolean allowCommaDelimiters) {
 		if (logDEBUG)
 			Logger.debug(CSSTokenizerFilter.class,
 					"Splitting \"" + input + "\" allowCommaDelimiters=" + allowCommaDelimiters);
@@ -3834,7 +3856,7 @@ class CSSTokenizerFilter {
 		return words.toArray(new ParsedWord[words.size()]);
 	}
 
-	private static ParsedWord parseToken(StringBuilder origToken, StringBuilder decodedToken, boolean dontLikeOrigToken,
+	static ParsedWord parseToken(StringBuilder origToken, StringBuilder decodedToken, boolean dontLikeOrigToken,
 			boolean couldBeIdentifier) {
 		if (origToken.length() > 2) {
 			char c = origToken.charAt(0);
@@ -4015,6 +4037,12 @@ class CSSTokenizerFilter {
 		return new SimpleParsedWord(origToken.toString());
 	}
 
+	private ParsedWord[] tokenize(String input, boolean allowCommaDelimiters) {
+		if (tokenizer != null)
+			return tokenizer.split(input, allowCommaDelimiters);
+		return split(input, allowCommaDelimiters);
+	}
+
 	private static ParsedIdentifier makeParsedIdentifier(String string) {
 		ParsedWord[] words = split(string, false);
 		if (words == null)
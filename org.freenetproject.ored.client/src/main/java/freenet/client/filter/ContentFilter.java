@@ -34,6 +34,12 @@ public class ContentFilter {
 	public static final String[] HTML_MIME_TYPES = new String[] { "text/html", "application/xhtml+xml",
 			"text/xml+xhtml", "text/xhtml", "application/xhtml" };
 
+	/**
+	 * Whether CSS is split into words by the single-pass {@link CSSTokenizer}. If false,
+	 * the original character-at-a-time tokenizer is used instead; the output is the same.
+	 */
+	public static volatile boolean streamingCSSTokenizer = true;
+
 	private static volatile boolean logMINOR;
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
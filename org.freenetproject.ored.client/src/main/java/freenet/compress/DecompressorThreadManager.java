@@ -4,6 +4,7 @@
 package freenet.compress;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import freenet.support.LogThresholdCallback;
 import freenet.support.TimeUtil;
@@ -13,31 +14,89 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.ArrayDeque;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import freenet.clientlogger.Logger;
+import freenet.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedInputStream;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.RingBufferPipe;
 
 /**
  * Creates and manages decompressor threads. This class is given all decompressors which
- * should be applied to an InputStream via addDecompressor. The decompressors will be
- * strung together and executed when the execute method is called. This class also stores
- * any errors which may arise.
+ * should be applied to the data, which is written to {@link #getOutputStream()}. The
+ * decompressors will be strung together and executed when the execute method is called.
+ * This class also stores any errors which may arise.
+ *
+ * The stages are connected by {@link RingBufferPipe}s, so a slow stage holds up the ones
+ * before it rather than data piling up in memory, and run on a shared pool of threads.
+ * Only so many stages may run at once across all fetches; execute() waits for room for
+ * all of a chain's stages together, so a chain never waits on a stage which can't start.
+ * If any stage fails, every pipe in the chain is aborted, so the thread writing the
+ * compressed data and the one reading the result fail quickly too.
  *
  * @author sajack
  */
 public class DecompressorThreadManager {
 
+	/** Most decompressor stages which may run at once, over all fetches. */
+	static final int MAX_RUNNING_STAGES = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+	private static final Semaphore runningStages = new Semaphore(MAX_RUNNING_STAGES, true);
+
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+
+	/**
+	 * Runs the decompressor stages and the ClientGetWorkerThread's which read their output.
+	 * Threads are kept for a while and reused; the number running decompressors is limited
+	 * by {@link #runningStages}, so the pool itself must not be, or a chain could block on
+	 * a stage waiting for a thread.
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, SECONDS,
+			new SynchronousQueue<Runnable>(), (r) -> {
+				Thread t = new Thread(r, "Decompressor thread " + threadCounter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+
+	private static final Map<COMPRESSOR_TYPE, Stats> stats = new EnumMap<COMPRESSOR_TYPE, Stats>(
+			COMPRESSOR_TYPE.class);
+	static {
+		for (COMPRESSOR_TYPE type : COMPRESSOR_TYPE.values())
+			stats.put(type, new Stats());
+	}
+
+	private static final class Stats {
+
+		final LongAdder runs = new LongAdder();
+
+		final LongAdder bytesIn = new LongAdder();
+
+		final LongAdder bytesOut = new LongAdder();
+
+		/** Time spent decompressing, not waiting for input or for room for the output. */
+		final LongAdder busyNanos = new LongAdder();
+
+	}
+
 	final Queue<DecompressorThread> threads;
 
-	PipedInputStream input;
+	/** Every pipe in the chain, the first one being where the caller writes. */
+	private final List<RingBufferPipe> pipes;
 
-	PipedOutputStream output = new PipedOutputStream();
+	InputStream input;
 
 	final long maxLen;
 
@@ -57,36 +116,42 @@ public class DecompressorThreadManager {
 
 	/**
 	 * Creates a new DecompressorThreadManager
-	 * @param inputStream The stream that will be decompressed, if compressed
+	 * @param decompressors The decompressors to apply, the last one first. Will be
+	 * emptied.
 	 * @param maxLen The maximum number of bytes to extract
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors,
-			long maxLen) throws IOException {
+	public DecompressorThreadManager(List<? extends Compressor> decompressors, long maxLen) {
 		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
+		pipes = new ArrayList<RingBufferPipe>(decompressors.size() + 1);
 		this.maxLen = maxLen;
-		if (inputStream == null) {
-			IOException e = new IOException("Input stream may not be null");
-			onFailure(e);
-			throw e;
-		}
-		input = inputStream;
+		RingBufferPipe pipe = new RingBufferPipe();
+		pipes.add(pipe);
 		while (!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size() - 1);
 			if (logMINOR)
 				Logger.minor(this, "Decompressing with " + compressor);
-			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
-			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			RingBufferPipe next = new RingBufferPipe();
+			pipes.add(next);
+			threads.add(new DecompressorThread(compressor, this, pipe, next, maxLen));
+			pipe = next;
 		}
+		input = pipe.getInputStream();
+	}
+
+	/**
+	 * @return The stream to write the compressed data to. The caller must close it when
+	 * it has written everything.
+	 */
+	public OutputStream getOutputStream() {
+		return pipes.get(0).getOutputStream();
 	}
 
 	/**
-	 * Creates and executes a new thread for each decompressor, chaining the output of the
-	 * previous to the next.
+	 * Starts a stage for each decompressor, chaining the output of the previous to the
+	 * next. May wait for other fetches' decompressors to finish first.
 	 * @return An InputStream from which uncompressed data may be read from
 	 */
-	public synchronized PipedInputStream execute() throws Throwable {
+	public synchronized InputStream execute() throws Throwable {
 		if (error != null)
 			throw error;
 		if (threads.isEmpty()) {
@@ -94,42 +159,58 @@ public class DecompressorThreadManager {
 			return input;
 		}
 		try {
+			int permits = Math.min(threads.size(), MAX_RUNNING_STAGES);
+			runningStages.acquire(permits);
 			int count = 0;
 			while (!threads.isEmpty()) {
-				if (getError() != null)
-					throw getError();
 				DecompressorThread threadRunnable = threads.remove();
 				if (threads.isEmpty())
 					threadRunnable.setLast();
-				Thread t = new Thread(threadRunnable, "DecompressorThread" + count);
-				t.start();
+				if (count < permits)
+					threadRunnable.holdsPermit = true;
+				executor.execute(threadRunnable);
 				if (logMINOR)
-					Logger.minor(this, "Started decompressor thread " + t);
+					Logger.minor(this, "Started decompressor " + threadRunnable.compressor);
 				count++;
 			}
-			output.close();
 		}
 		catch (Throwable t) {
 			onFailure(t);
 			throw t;
 		}
-		finally {
-			Closer.close(output);
-		}
 		return input;
 
 	}
 
+	/**
+	 * Run a job on the threads used for decompression, e.g. something reading the
+	 * output of {@link #execute()}.
+	 */
+	public static void run(Runnable job) {
+		executor.execute(job);
+	}
+
 	/**
 	 * Informs the manager that a nonrecoverable exception has occured in the
 	 * decompression threads
 	 * @param t The thrown exception
 	 */
 	public synchronized void onFailure(Throwable t) {
-		error = t;
+		if (error == null)
+			error = t;
+		for (RingBufferPipe pipe : pipes)
+			pipe.abort(t);
 		onFinish();
 	}
 
+	/**
+	 * Stop decompressing, e.g. because the fetch has been cancelled. Anything blocked on
+	 * the chain's streams will get an IOException.
+	 */
+	public void cancel() {
+		onFailure(new IOException("Decompression cancelled"));
+	}
+
 	/**
 	 * Marks that the decompression of the stream has finished and wakes threads blocking
 	 * on completion
@@ -168,6 +249,34 @@ public class DecompressorThreadManager {
 		return error;
 	}
 
+	/** Number of times the given codec has been used to decompress since startup. */
+	public static long getDecompressions(COMPRESSOR_TYPE type) {
+		return stats.get(type).runs.sum();
+	}
+
+	/** Compressed bytes read by the given codec since startup. */
+	public static long getDecompressedBytesIn(COMPRESSOR_TYPE type) {
+		return stats.get(type).bytesIn.sum();
+	}
+
+	/** Decompressed bytes written by the given codec since startup. */
+	public static long getDecompressedBytesOut(COMPRESSOR_TYPE type) {
+		return stats.get(type).bytesOut.sum();
+	}
+
+	/**
+	 * Average throughput of the given codec in decompressed bytes per second, while
+	 * decompressing, i.e. not counting time spent waiting for the data or for whatever
+	 * reads the output.
+	 */
+	public static double getDecompressRate(COMPRESSOR_TYPE type) {
+		Stats s = stats.get(type);
+		long nanos = s.busyNanos.sum();
+		if (nanos == 0)
+			return 0.0;
+		return s.bytesOut.sum() * 1e9 / nanos;
+	}
+
 	/**
 	 * Represents a thread which invokes a decompressor upon an input stream. These
 	 * threads should be instantiated by a <code>DecompressorThreadManager</code>
@@ -179,11 +288,11 @@ public class DecompressorThreadManager {
 		/** The compressor whose decompress method will be invoked */
 		final Compressor compressor;
 
-		/** The stream compressed data will be read from */
-		private InputStream input;
+		/** The pipe compressed data will be read from */
+		private final RingBufferPipe inputPipe;
 
-		/** The stream decompressed data will be written */
-		private OutputStream output;
+		/** The pipe decompressed data will be written to */
+		private final RingBufferPipe outputPipe;
 
 		/**
 		 * A upper limit to how much data may be decompressed. This is passed to the
@@ -200,11 +309,14 @@ public class DecompressorThreadManager {
 		 */
 		boolean isLast = false;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input,
-				PipedOutputStream output, long maxLen) {
+		/** Whether we must release a place in {@link #runningStages} when done. */
+		boolean holdsPermit = false;
+
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, RingBufferPipe input,
+				RingBufferPipe output, long maxLen) {
 			this.compressor = compressor;
-			this.input = new BufferedInputStream(input);
-			this.output = new BufferedOutputStream(output);
+			this.inputPipe = input;
+			this.outputPipe = output;
 			this.maxLen = maxLen;
 			this.manager = manager;
 		}
@@ -214,26 +326,41 @@ public class DecompressorThreadManager {
 		public void run() {
 			if (logMINOR)
 				Logger.minor(this, "Decompressing...");
+			// The decompressors read and write a few bytes at a time, so buffer both ends
+			// rather than taking the pipe's lock for each.
+			CountedInputStream input = new CountedInputStream(
+					new BufferedInputStream(inputPipe.getInputStream(), 32768));
+			CountedOutputStream output = new CountedOutputStream(
+					new BufferedOutputStream(outputPipe.getOutputStream(), 32768));
 			try {
 				if (manager.getError() == null) {
+					long start = System.nanoTime();
 					compressor.decompress(input, output, maxLen, maxLen * 4);
-					input.close();
 					output.close();
-					// Avoid relatively expensive repeated close on normal completion
-					input = null;
-					output = null;
+					long time = System.nanoTime() - start - inputPipe.getReadWaitNanos()
+							- outputPipe.getWriteWaitNanos();
+					if (compressor instanceof COMPRESSOR_TYPE) {
+						Stats s = stats.get(compressor);
+						s.runs.increment();
+						s.bytesIn.add(input.count());
+						s.bytesOut.add(output.written());
+						s.busyNanos.add(Math.max(0, time));
+					}
+					input.close();
 					if (isLast)
 						manager.onFinish();
 				}
 				if (logMINOR)
 					Logger.minor(this, "Finished decompressing...");
 			}
-			catch (Exception e) {
+			catch (Throwable e) {
 				manager.onFailure(e);
 			}
 			finally {
 				Closer.close(input);
 				Closer.close(output);
+				if (holdsPermit)
+					runningStages.release();
 			}
 		}
 
@@ -247,4 +374,4 @@ public class DecompressorThreadManager {
 
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,337 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.compress;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import freenet.bucket.BucketFactory;
+import freenet.bucket.RandomAccessBucket;
+import freenet.clientlogger.Logger;
+import freenet.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+import freenet.support.io.RingBufferPipe;
+
+/**
+ * Tries several codecs on the same data at once, reading it only once. Each codec runs on
+ * its own thread and is fed through a {@link RingBufferPipe}, so they all go at the speed
+ * of the slowest one still running, and the data is not buffered anywhere else.
+ *
+ * Once a codec has read enough data for its output size to mean something, any codec
+ * whose output is clearly bigger than the best so far, in proportion to the input it has
+ * read, is stopped, so that it doesn't hold up the rest or use CPU for nothing. This is
+ * checked each time another amountOfDataToCheckCompressionRatio bytes have been fed, and
+ * "clearly bigger" means more than {@link #LOSING_RATIO} times the best codec's output
+ * per byte read. It is a heuristic, so the winner is not necessarily the codec that would
+ * win if they all ran to the end: one which compresses the start of the data badly but
+ * the rest well may be stopped early.
+ */
+public class ParallelCompressor {
+
+	/**
+	 * A codec is stopped if its output per byte of input is this much bigger than the best
+	 * codec's. Codecs buffer differently, so the estimate is rough.
+	 */
+	static final double LOSING_RATIO = 1.5;
+
+	private static final int BUFFER_SIZE = 32768;
+
+	private final COMPRESSOR_TYPE[] codecs;
+
+	private final BucketFactory bucketFactory;
+
+	private final Executor executor;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** What one codec produced. */
+	public static final class Result {
+
+		public final COMPRESSOR_TYPE codec;
+
+		/** The compressed data, or null if the codec failed or was stopped. */
+		public final RandomAccessBucket data;
+
+		/** Why there is no data, if there isn't. */
+		public final Throwable failure;
+
+		Result(COMPRESSOR_TYPE codec, RandomAccessBucket data, Throwable failure) {
+			this.codec = codec;
+			this.data = data;
+			this.failure = failure;
+		}
+
+	}
+
+	/**
+	 * @param codecs The codecs to try.
+	 * @param bucketFactory Makes the buckets for the compressed data.
+	 * @param executor Runs the codecs. Must start each job straight away rather than queue
+	 * it, as all of them must be running for any of them to get all the data.
+	 */
+	public ParallelCompressor(COMPRESSOR_TYPE[] codecs, BucketFactory bucketFactory, Executor executor) {
+		this.codecs = codecs;
+		this.bucketFactory = bucketFactory;
+		this.executor = executor;
+	}
+
+	/**
+	 * Compress the data with every codec. Returns when they have all finished.
+	 * @param input The data. Not closed.
+	 * @param maxLength The size of the data; a codec which produces more fails.
+	 * @param amountOfDataToCheckCompressionRatio How much data each codec must read
+	 * before it is checked against the minimum compression percentage, or against the
+	 * other codecs.
+	 * @param minimumCompressionPercentage See
+	 * {@link Compressor#compress(InputStream, OutputStream, long, long, long, int)}.
+	 * @return The results, in the same order as the codecs. The caller must free the data.
+	 * @throws IOException If the data could not be read. No data is returned.
+	 */
+	public Result[] compress(InputStream input, long maxLength, long amountOfDataToCheckCompressionRatio,
+			int minimumCompressionPercentage) throws IOException {
+		CountDownLatch done = new CountDownLatch(codecs.length);
+		Trial[] trials = new Trial[codecs.length];
+		try {
+			for (int i = 0; i < codecs.length; i++)
+				trials[i] = new Trial(codecs[i], bucketFactory.makeBucket(-1), maxLength,
+						amountOfDataToCheckCompressionRatio, minimumCompressionPercentage, done);
+		}
+		catch (IOException e) {
+			for (Trial trial : trials)
+				if (trial != null)
+					trial.data.free();
+			throw e;
+		}
+		int started = 0;
+		try {
+			for (Trial trial : trials) {
+				executor.execute(trial);
+				started++;
+			}
+			feed(input, trials, amountOfDataToCheckCompressionRatio);
+		}
+		catch (IOException | RuntimeException e) {
+			for (Trial trial : trials)
+				trial.stop(e);
+			for (int i = started; i < trials.length; i++)
+				done.countDown();
+			await(done);
+			for (Trial trial : trials)
+				trial.data.free();
+			throw e;
+		}
+		await(done);
+		Result[] results = new Result[trials.length];
+		for (int i = 0; i < trials.length; i++) {
+			Trial trial = trials[i];
+			if (trial.failure != null) {
+				trial.data.free();
+				results[i] = new Result(trial.codec, null, trial.failure);
+			}
+			else {
+				results[i] = new Result(trial.codec, trial.data, null);
+			}
+		}
+		return results;
+	}
+
+	/** Copy the data to every codec still running. */
+	private void feed(InputStream input, Trial[] trials, long amountOfDataToCheckCompressionRatio)
+			throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		long read = 0;
+		long nextCheck = amountOfDataToCheckCompressionRatio;
+		int running = trials.length;
+		while (running > 0) {
+			int n = input.read(buf);
+			if (n < 0)
+				break;
+			if (n == 0)
+				throw new IOException("Returned zero from read()");
+			read += n;
+			running = 0;
+			for (Trial trial : trials) {
+				if (trial.stopped)
+					continue;
+				try {
+					trial.pipe.getOutputStream().write(buf, 0, n);
+					running++;
+				}
+				catch (IOException e) {
+					// The codec gave up, and has recorded why.
+					trial.stopped = true;
+				}
+			}
+			if (read >= nextCheck && running > 1) {
+				stopLosers(trials);
+				nextCheck = read + amountOfDataToCheckCompressionRatio;
+			}
+		}
+		for (Trial trial : trials)
+			trial.pipe.getOutputStream().close();
+	}
+
+	private void stopLosers(Trial[] trials) {
+		double best = Double.MAX_VALUE;
+		for (Trial trial : trials)
+			if (!trial.stopped)
+				best = Math.min(best, trial.ratio());
+		if (best == Double.MAX_VALUE)
+			return;
+		for (Trial trial : trials) {
+			if (trial.stopped)
+				continue;
+			double ratio = trial.ratio();
+			if (ratio != Double.MAX_VALUE && ratio > best * LOSING_RATIO) {
+				if (logMINOR)
+					Logger.minor(this, "Stopping " + trial.codec + " at ratio " + ratio + ", best " + best);
+				trial.stopped = true;
+				trial.stop(new CompressionRatioException("Losing to another codec"));
+			}
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static final class Trial implements Runnable {
+
+		final COMPRESSOR_TYPE codec;
+
+		final RandomAccessBucket data;
+
+		final RingBufferPipe pipe = new RingBufferPipe();
+
+		final long maxLength;
+
+		final long amountOfDataToCheckCompressionRatio;
+
+		final int minimumCompressionPercentage;
+
+		final CountDownLatch done;
+
+		/** Bytes the codec has read and written so far, updated only by the codec's thread. */
+		volatile long bytesIn;
+
+		volatile long bytesOut;
+
+		volatile Throwable failure;
+
+		/** Why we stopped the codec, if we did. */
+		volatile Throwable stopReason;
+
+		/** Only used by the thread feeding the data. */
+		boolean stopped;
+
+		Trial(COMPRESSOR_TYPE codec, RandomAccessBucket data, long maxLength,
+				long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage, CountDownLatch done) {
+			this.codec = codec;
+			this.data = data;
+			this.maxLength = maxLength;
+			this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+			this.minimumCompressionPercentage = minimumCompressionPercentage;
+			this.done = done;
+		}
+
+		/** Output per byte of input, or MAX_VALUE if it hasn't read enough to tell. */
+		double ratio() {
+			long in = bytesIn;
+			if (in < amountOfDataToCheckCompressionRatio || in == 0)
+				return Double.MAX_VALUE;
+			return (double) bytesOut / in;
+		}
+
+		void stop(Throwable reason) {
+			stopReason = reason;
+			pipe.abort(reason);
+		}
+
+		@Override
+		public void run() {
+			InputStream is = new FilterInputStream(pipe.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b != -1)
+						bytesIn++;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0)
+						bytesIn += n;
+					return n;
+				}
+			};
+			OutputStream os = null;
+			try {
+				os = new FilterOutputStream(data.getOutputStream()) {
+					@Override
+					public void write(int b) throws IOException {
+						out.write(b);
+						bytesOut++;
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+						bytesOut += len;
+					}
+				};
+				codec.compress(is, os, maxLength, maxLength, amountOfDataToCheckCompressionRatio,
+						minimumCompressionPercentage);
+				os.close();
+				os = null;
+			}
+			catch (Throwable t) {
+				if (stopReason != null) {
+					t = stopReason;
+				}
+				else if (!(t instanceof CompressionOutputSizeException || t instanceof CompressionRatioException)) {
+					// Those just mean it lost. ArithmeticException has been seen in bzip2.
+					Logger.error(this, "Compression failed with codec " + codec + " : " + t, t);
+				}
+				failure = t;
+				pipe.abort(t);
+			}
+			finally {
+				// Makes the feeder stop writing to us if we finished early.
+				Closer.close(is);
+				Closer.close(os);
+				done.countDown();
+			}
+		}
+
+	}
+
+}
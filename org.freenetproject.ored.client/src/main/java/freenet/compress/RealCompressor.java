@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.compress;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -20,6 +21,13 @@ public class RealCompressor {
 
 	private final ExecutorService executorService;
 
+	/**
+	 * Runs the codecs for a {@link ParallelCompressor}. These must all run at once, so
+	 * the pool can't be limited; how many jobs do this is limited by
+	 * {@link #executorService}.
+	 */
+	private final ExecutorService trialExecutorService;
+
 	private ClientContext context;
 
 	private static volatile boolean logMINOR;
@@ -30,6 +38,12 @@ public class RealCompressor {
 	public RealCompressor() {
 		this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
 				new CompressorThreadFactory());
+		this.trialExecutorService = Executors.newCachedThreadPool(new CompressorThreadFactory());
+	}
+
+	/** For running a {@link ParallelCompressor} from a compression job. */
+	public Executor getTrialExecutor() {
+		return trialExecutorService;
 	}
 
 	public void setClientContext(ClientContext context) {
@@ -113,6 +127,7 @@ public class RealCompressor {
 	public void shutdown() {
 		// TODO: should we wait here?
 		this.executorService.shutdown();
+		this.trialExecutorService.shutdown();
 	}
 
 	public static class CompressorThreadFactory implements ThreadFactory {
@@ -103,6 +103,16 @@ public abstract class Key implements WritableToDataOutputStream, Comparable<Key>
 
 	public static KeyBlock createBlock(short keyType, byte[] keyBytes, byte[] headersBytes, byte[] dataBytes,
 			byte[] pubkeyBytes) throws KeyVerifyException {
+		return createBlock(keyType, keyBytes, headersBytes, dataBytes, pubkeyBytes, false);
+	}
+
+	/**
+	 * @param dontVerifySignature If true, don't check the signature of an SSK block. The
+	 * caller must verify it, e.g. with {@link SSKVerifier#verifyAll(java.util.List)}. CHK
+	 * blocks are always verified.
+	 */
+	public static KeyBlock createBlock(short keyType, byte[] keyBytes, byte[] headersBytes, byte[] dataBytes,
+			byte[] pubkeyBytes, boolean dontVerifySignature) throws KeyVerifyException {
 		byte type = (byte) (keyType >> 8);
 		byte subtype = (byte) (keyType & 0xFF);
 		if (type == NodeCHK.BASE_TYPE) {
@@ -121,7 +131,7 @@ public abstract class Key implements WritableToDataOutputStream, Comparable<Key>
 				throw new KeyVerifyException("Failed to construct pubkey: " + e, e);
 			}
 			NodeSSK key = new NodeSSK(pubKey.asBytesHash(), keyBytes, pubKey, subtype);
-			return new SSKBlock(dataBytes, headersBytes, key, false);
+			return new SSKBlock(dataBytes, headersBytes, key, dontVerifySignature);
 		}
 		else {
 			throw new KeyVerifyException("No such key type " + Integer.toHexString(type));
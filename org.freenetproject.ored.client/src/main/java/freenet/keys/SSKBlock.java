@@ -3,15 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.keys;
 
-import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
-import org.bouncycastle.crypto.signers.DSASigner;
-
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
 import freenet.crypt.DSAPublicKey;
-import freenet.crypt.Global;
 import freenet.crypt.SHA256;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
@@ -143,49 +138,13 @@ public class SSKBlock implements KeyBlock {
 		if (x + SIG_R_LENGTH + SIG_S_LENGTH > headers.length)
 			throw new SSKVerifyException(
 					"Headers too short: " + headers.length + " should be at least " + x + SIG_R_LENGTH + SIG_S_LENGTH);
-		// Compute the hash on the data
 		if (!dontVerify || logMINOR) { // force verify on log minor
-			byte[] bufR = new byte[SIG_R_LENGTH];
-			byte[] bufS = new byte[SIG_S_LENGTH];
-
-			System.arraycopy(headers, x, bufR, 0, SIG_R_LENGTH);
-			x += SIG_R_LENGTH;
-			System.arraycopy(headers, x, bufS, 0, SIG_S_LENGTH);
-			x += SIG_S_LENGTH;
-
-			MessageDigest md = null;
-			byte[] overallHash;
-			try {
-				md = SHA256.getMessageDigest();
-				md.update(data);
-				byte[] dataHash = md.digest();
-				// All headers up to and not including the signature
-				md.update(headers, 0, headersOffset + ENCRYPTED_HEADERS_LENGTH);
-				// Then the implicit data hash
-				md.update(dataHash);
-				// Makes the implicit overall hash
-				overallHash = md.digest();
-			}
-			finally {
-				SHA256.returnMessageDigest(md);
-			}
-
-			// Now verify it
-			BigInteger r = new BigInteger(1, bufR);
-			BigInteger s = new BigInteger(1, bufS);
-			DSASigner dsa = new DSASigner();
-			dsa.init(false, new DSAPublicKeyParameters(pubKey.getY(), Global.getDSAgroupBigAParameters()));
-
-			// We probably don't need to try both here...
-			// but that's what the legacy code was doing...
-			// @see comments in Global before touching it
-			if (!(dsa.verifySignature(Global.truncateHash(overallHash), r, s)
-					|| dsa.verifySignature(overallHash, r, s))) {
+			if (!verifySignature()) {
 				if (dontVerify)
 					Logger.error(this, "DSA verification failed with dontVerify!!!!");
 				throw new SSKVerifyException("Signature verification failed for node-level SSK");
 			}
-		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
+		}
 		if (!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
 			throw new SSKVerifyException(
 					"E(H(docname)) wrong - wrong key?? \nfrom headers: " + HexUtil.bytesToHex(ehDocname)
@@ -194,6 +153,31 @@ public class SSKBlock implements KeyBlock {
 				^ hashIdentifier;
 	}
 
+	/**
+	 * Check the signature, for a block created with dontVerify. Blocks which have been
+	 * verified recently aren't verified again.
+	 * @return True if the signature is valid.
+	 */
+	boolean verifySignature() {
+		MessageDigest md = null;
+		byte[] overallHash;
+		try {
+			md = SHA256.getMessageDigest();
+			md.update(data);
+			byte[] dataHash = md.digest();
+			// All headers up to and not including the signature
+			md.update(headers, 0, headersOffset + ENCRYPTED_HEADERS_LENGTH);
+			// Then the implicit data hash
+			md.update(dataHash);
+			// Makes the implicit overall hash
+			overallHash = md.digest();
+		}
+		finally {
+			SHA256.returnMessageDigest(md);
+		}
+		return SSKVerifier.verify(nodeKey, pubKey, overallHash, headers, headersOffset + ENCRYPTED_HEADERS_LENGTH);
+	}
+
 	@Override
 	public NodeSSK getKey() {
 		return nodeKey;
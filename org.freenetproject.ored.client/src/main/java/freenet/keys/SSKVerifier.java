@@ -0,0 +1,159 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSAVerifier;
+import freenet.crypt.Global;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUMap;
+import freenet.clientlogger.Logger;
+
+/**
+ * Verifies the signatures on SSK blocks. Remembers which blocks have recently been
+ * verified, so the same block coming back from the datastore, or from another peer,
+ * isn't verified again. Blocks which have been read in bulk, e.g. from a binary blob, can
+ * be verified in parallel.
+ */
+public final class SSKVerifier {
+
+	/** Number of verified signatures to remember. */
+	static final int MAX_VERIFIED = 4096;
+
+	/** Routing key, hash of everything signed, and the signature. Positive results only. */
+	private static final LRUMap<ByteArrayWrapper, Boolean> verified = LRUMap
+			.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+
+	private static long verifications;
+
+	private static long cacheHits;
+
+	private static ExecutorService executor;
+
+	private SSKVerifier() {
+	}
+
+	/**
+	 * Verify the signature on a block.
+	 * @param key The key, for its routing key.
+	 * @param pubKey The key's public key.
+	 * @param overallHash The hash of everything the signature covers.
+	 * @param headers The headers, containing the signature.
+	 * @param sigOffset The index of the signature in the headers.
+	 * @return True if the signature is valid.
+	 */
+	static boolean verify(NodeSSK key, DSAPublicKey pubKey, byte[] overallHash, byte[] headers, int sigOffset) {
+		byte[] routingKey = key.getRoutingKey();
+		int sigLength = SSKBlock.SIG_R_LENGTH + SSKBlock.SIG_S_LENGTH;
+		byte[] buf = new byte[routingKey.length + overallHash.length + sigLength];
+		System.arraycopy(routingKey, 0, buf, 0, routingKey.length);
+		System.arraycopy(overallHash, 0, buf, routingKey.length, overallHash.length);
+		System.arraycopy(headers, sigOffset, buf, routingKey.length + overallHash.length, sigLength);
+		ByteArrayWrapper w = new ByteArrayWrapper(buf);
+		synchronized (verified) {
+			verifications++;
+			if (verified.containsKey(w)) {
+				cacheHits++;
+				verified.push(w, Boolean.TRUE);
+				return true;
+			}
+		}
+		byte[] bufR = new byte[SSKBlock.SIG_R_LENGTH];
+		byte[] bufS = new byte[SSKBlock.SIG_S_LENGTH];
+		System.arraycopy(headers, sigOffset, bufR, 0, SSKBlock.SIG_R_LENGTH);
+		System.arraycopy(headers, sigOffset + SSKBlock.SIG_R_LENGTH, bufS, 0, SSKBlock.SIG_S_LENGTH);
+		BigInteger r = new BigInteger(1, bufR);
+		BigInteger s = new BigInteger(1, bufS);
+		if (pubKey.getGroup() != Global.DSAgroupBigA) {
+			// SSKs are always verified against the standard group, whatever the pubkey says.
+			try {
+				pubKey = new DSAPublicKey(Global.DSAgroupBigA, pubKey.getY());
+			}
+			catch (IllegalArgumentException e) {
+				return false;
+			}
+		}
+		// We probably don't need to try both here...
+		// but that's what the legacy code was doing...
+		// @see comments in Global before touching it
+		if (!DSAVerifier.verify(pubKey, r, s, Global.truncateHash(overallHash), overallHash))
+			return false;
+		synchronized (verified) {
+			verified.push(w, Boolean.TRUE);
+			while (verified.size() > MAX_VERIFIED)
+				verified.popKey();
+		}
+		return true;
+	}
+
+	/**
+	 * Verify blocks which were created with dontVerify, in parallel.
+	 * @return The blocks whose signatures are not valid.
+	 */
+	public static List<SSKBlock> verifyAll(List<SSKBlock> blocks) throws InterruptedException {
+		return verifyAll(blocks, getExecutor());
+	}
+
+	/**
+	 * Verify blocks which were created with dontVerify, in parallel on the given executor.
+	 * @return The blocks whose signatures are not valid.
+	 */
+	public static List<SSKBlock> verifyAll(List<SSKBlock> blocks, ExecutorService executor)
+			throws InterruptedException {
+		List<SSKBlock> failed = new ArrayList<SSKBlock>();
+		if (blocks.size() <= 1) {
+			for (SSKBlock block : blocks) {
+				if (!block.verifySignature())
+					failed.add(block);
+			}
+			return failed;
+		}
+		List<Callable<Boolean>> jobs = new ArrayList<Callable<Boolean>>(blocks.size());
+		for (final SSKBlock block : blocks)
+			jobs.add(block::verifySignature);
+		List<Future<Boolean>> results = executor.invokeAll(jobs);
+		for (int i = 0; i < blocks.size(); i++) {
+			try {
+				if (!results.get(i).get())
+					failed.add(blocks.get(i));
+			}
+			catch (ExecutionException e) {
+				Logger.error(SSKVerifier.class, "Verifying " + blocks.get(i).getKey() + " failed: " + e, e);
+				failed.add(blocks.get(i));
+			}
+		}
+		return failed;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null)
+			// Daemon threads, which go away when idle.
+			executor = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return executor;
+	}
+
+	/** Number of SSK signatures checked, including those found in the cache. */
+	public static long getVerifications() {
+		synchronized (verified) {
+			return verifications;
+		}
+	}
+
+	/** Number of SSK signatures which had already been verified. */
+	public static long getCacheHits() {
+		synchronized (verified) {
+			return cacheHits;
+		}
+	}
+
+}
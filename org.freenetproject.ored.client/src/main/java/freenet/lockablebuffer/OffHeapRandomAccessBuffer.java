@@ -0,0 +1,130 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.lockablebuffer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import freenet.bucket.OffHeapStorage;
+import freenet.bucket.SlabAllocator;
+import freenet.client.async.ClientContext;
+
+/**
+ * A fixed size RAF stored in memory outside the Java heap, in chunks from a
+ * {@link SlabAllocator}. The equivalent of a ByteArrayRandomAccessBuffer.
+ */
+public class OffHeapRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+	private final OffHeapStorage storage;
+
+	private final long size;
+
+	private boolean readOnly;
+
+	private boolean closed;
+
+	/** If true, free() is because the data has been copied to disk. */
+	private boolean migrated;
+
+	/**
+	 * Create an empty RAF.
+	 * @return The RAF, or null if the allocator doesn't have enough memory left.
+	 */
+	public static OffHeapRandomAccessBuffer create(SlabAllocator allocator, long size) {
+		OffHeapStorage storage = new OffHeapStorage(allocator);
+		if (!storage.ensureCapacity(size, true)) {
+			storage.free(false);
+			return null;
+		}
+		return new OffHeapRandomAccessBuffer(storage, size, false);
+	}
+
+	/** The storage must already have room for size bytes. */
+	public OffHeapRandomAccessBuffer(OffHeapStorage storage, long size, boolean readOnly) {
+		if (storage.capacity() < size)
+			throw new IllegalArgumentException("Storage is smaller than the RAF");
+		this.storage = storage;
+		this.size = size;
+		this.readOnly = readOnly;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		if (closed || storage.isFreed())
+			throw new IOException("Closed");
+		if (fileOffset < 0)
+			throw new IllegalArgumentException("Cannot read before zero");
+		if (fileOffset + length > size)
+			throw new IOException("Cannot read after end: trying to read from " + fileOffset + " to "
+					+ (fileOffset + length) + " on block length " + size);
+		storage.read(fileOffset, buf, bufOffset, length);
+	}
+
+	@Override
+	public synchronized void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+		if (closed || storage.isFreed())
+			throw new IOException("Closed");
+		if (fileOffset < 0)
+			throw new IllegalArgumentException("Cannot write before zero");
+		if (fileOffset + length > size)
+			throw new IOException("Cannot write after end: trying to write from " + fileOffset + " to "
+					+ (fileOffset + length) + " on block length " + size);
+		if (readOnly)
+			throw new IOException("Read-only");
+		storage.write(fileOffset, buf, bufOffset, length);
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+
+	@Override
+	public synchronized void free() {
+		storage.free(migrated);
+	}
+
+	/** The data has been copied elsewhere, so free() counts as a migration. */
+	public synchronized void setMigrated() {
+		migrated = true;
+	}
+
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public RAFLock lockOpen() {
+		return new RAFLock() {
+
+			@Override
+			protected void innerUnlock() {
+				// Do nothing. Always open.
+			}
+
+		};
+	}
+
+	@Override
+	public void onResume(ClientContext context) {
+		// Do nothing.
+	}
+
+	@Override
+	public void storeTo(DataOutputStream dos) {
+		throw new UnsupportedOperationException();
+	}
+
+	// Default hashCode() and equals() are correct for this type.
+
+}
@@ -0,0 +1,65 @@
+package freenet.bucket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.lockablebuffer.ByteArrayRandomAccessBuffer;
+import junit.framework.TestCase;
+
+public class BucketToolsCopyRangeTest extends TestCase {
+
+	private final byte[] data = new byte[200 * 1024];
+
+	@Override
+	protected void setUp() {
+		new Random(1).nextBytes(data);
+	}
+
+	private void checkRanges(Bucket bucket) throws Exception {
+		long[][] ranges = { { 0, data.length }, { 0, 1 }, { 12345, 100000 }, { data.length - 1, 1 },
+				{ 70000, 0 } };
+		for (long[] range : ranges) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			BucketTools.copyTo(bucket, Channels.newChannel(out), range[0], range[1]);
+			byte[] expected = Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1]));
+			assertTrue(Arrays.equals(expected, out.toByteArray()));
+		}
+		try {
+			BucketTools.copyTo(bucket, Channels.newChannel(new ByteArrayOutputStream()), data.length - 10, 20);
+			fail("Copied past the end");
+		}
+		catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	public void testArrayBucket() throws Exception {
+		checkRanges(new ArrayBucket(data));
+	}
+
+	public void testRAFBucket() throws Exception {
+		checkRanges(new RAFBucket(new ByteArrayRandomAccessBuffer(data)));
+	}
+
+	public void testFileBucket() throws Exception {
+		File file = File.createTempFile("copyrange", ".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(file)) {
+				fos.write(data);
+			}
+			FileBucket bucket = new FileBucket(file, true, false, false, false);
+			checkRanges(bucket);
+			// Not freed by copying.
+			checkRanges(new NoFreeBucket(bucket));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,23 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.bucket;
+
+import java.io.IOException;
+
+public class OffHeapBucketTest extends BucketTestBase {
+
+	private final SlabAllocator allocator = new SlabAllocator(16 * 1024 * 1024);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new OffHeapBucket(allocator);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+		assertEquals(0, allocator.getUsedBytes());
+	}
+
+}
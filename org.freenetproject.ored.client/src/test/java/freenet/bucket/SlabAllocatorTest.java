@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.bucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.bucket.SlabAllocator.Chunk;
+import freenet.bucket.SlabAllocator.Stats;
+import freenet.bucket.TempBucketFactory.TempBucket;
+import freenet.crypt.MasterSecret;
+import freenet.support.Executor;
+import freenet.support.SerialExecutor;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class SlabAllocatorTest extends TestCase {
+
+	private static final int SLAB = SlabAllocator.SLAB_SIZE;
+
+	public void testChunkSize() {
+		assertEquals(1024, SlabAllocator.chunkSize(0));
+		assertEquals(1024, SlabAllocator.chunkSize(1));
+		assertEquals(1024, SlabAllocator.chunkSize(1024));
+		assertEquals(2048, SlabAllocator.chunkSize(1025));
+		assertEquals(32768, SlabAllocator.chunkSize(32768));
+		assertEquals(65536, SlabAllocator.chunkSize(32769));
+		assertEquals(65536, SlabAllocator.chunkSize(65536));
+		assertEquals(-1, SlabAllocator.chunkSize(65537));
+	}
+
+	public void testAllocateAndFree() {
+		SlabAllocator allocator = new SlabAllocator(SLAB * 4);
+		Chunk a = allocator.allocate(100);
+		assertEquals(1024, a.capacity());
+		assertEquals(SLAB, allocator.getReservedBytes());
+		assertEquals(1024, allocator.getUsedBytes());
+		Chunk b = allocator.allocate(5000);
+		assertEquals(8192, b.capacity());
+		assertEquals(SLAB * 2, allocator.getReservedBytes());
+		assertEquals(1024 + 8192, allocator.getUsedBytes());
+		// Chunks don't overlap.
+		Chunk c = allocator.allocate(1);
+		a.buf.put(0, (byte) 1);
+		a.buf.put(1023, (byte) 2);
+		c.buf.put(0, (byte) 3);
+		assertEquals(1, a.buf.get(0));
+		assertEquals(2, a.buf.get(1023));
+		allocator.free(a, false);
+		try {
+			allocator.free(a, false);
+			fail();
+		}
+		catch (IllegalStateException e) {
+			// Ok.
+		}
+		// Reused from the free list.
+		Chunk d = allocator.allocate(1024);
+		assertSame(a, d);
+		Stats s = allocator.getStats()[0];
+		assertEquals(1024, s.chunkSize);
+		assertEquals(2, s.chunksInUse);
+		assertEquals(1, s.slabs);
+		assertEquals(1, s.slabsAllocated);
+		assertEquals(2, s.hits);
+		assertEquals(0, s.misses);
+		allocator.free(b, true);
+		allocator.free(c, false);
+		allocator.free(d, true);
+		assertEquals(0, allocator.getUsedBytes());
+		assertEquals(1, allocator.getStats()[0].migrations);
+		assertEquals(1, allocator.getStats()[3].migrations);
+	}
+
+	public void testTooBig() {
+		SlabAllocator allocator = new SlabAllocator(SLAB * 4);
+		try {
+			allocator.allocate(SlabAllocator.MAX_CHUNK_SIZE + 1);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	/** The limit is never exceeded, and free slabs are given back to make room. */
+	public void testLimit() {
+		SlabAllocator allocator = new SlabAllocator(SLAB * 2);
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		Chunk chunk;
+		while ((chunk = allocator.allocate(SlabAllocator.MAX_CHUNK_SIZE)) != null)
+			chunks.add(chunk);
+		assertEquals(SLAB * 2 / SlabAllocator.MAX_CHUNK_SIZE, chunks.size());
+		assertEquals(SLAB * 2, allocator.getReservedBytes());
+		assertNull(allocator.allocate(1024));
+		assertEquals(1, allocator.getStats()[0].misses);
+		// Free one slab's worth of big chunks, then small chunks can use the space.
+		int perSlab = SLAB / SlabAllocator.MAX_CHUNK_SIZE;
+		for (int i = 0; i < perSlab; i++)
+			allocator.free(chunks.remove(chunks.size() - 1), false);
+		assertNotNull(allocator.allocate(1024));
+		assertEquals(SLAB * 2, allocator.getReservedBytes());
+		Stats[] stats = allocator.getStats();
+		assertEquals(1, stats[stats.length - 1].slabs);
+		assertEquals(1, stats[0].slabs);
+	}
+
+	public void testLowerLimit() {
+		SlabAllocator allocator = new SlabAllocator(SLAB * 4);
+		Chunk a = allocator.allocate(1024);
+		Chunk b = allocator.allocate(2048);
+		assertEquals(SLAB * 2, allocator.getReservedBytes());
+		allocator.setMaxBytes(SLAB);
+		// Can't give back slabs which are in use.
+		assertEquals(SLAB * 2, allocator.getReservedBytes());
+		allocator.free(a, false);
+		assertEquals(SLAB, allocator.getReservedBytes());
+		assertNull(allocator.allocate(1024));
+		allocator.free(b, false);
+		assertEquals(SLAB, allocator.getReservedBytes());
+		assertNotNull(allocator.allocate(2048));
+	}
+
+	/** Off-heap buckets in a TempBucketFactory migrate to disk when the pool is full. */
+	public void testTempBucketFactory() throws IOException {
+		Random r = new Random(1234);
+		Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		File dir = new File("slab-allocator-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+		try {
+			BucketFilenameGenerator fg = new BucketFilenameGenerator(r, true, dir, "slab-test-");
+			TempBucketFactory factory = new TempBucketFactory(exec, fg, 65536, SLAB * 2, r, false, 1024 * 1024 * 2,
+					new MasterSecret());
+			factory.setOffHeap(true);
+			byte[] data = new byte[40000];
+			r.nextBytes(data);
+			ArrayList<TempBucket> buckets = new ArrayList<TempBucket>();
+			for (int i = 0; i < 64; i++) {
+				TempBucket bucket = (TempBucket) factory.makeBucket(data.length);
+				OutputStream os = bucket.getOutputStream();
+				os.write(data);
+				os.close();
+				buckets.add(bucket);
+			}
+			assertTrue(factory.getSlabAllocator().getReservedBytes() <= SLAB * 2);
+			boolean migrated = false;
+			for (TempBucket bucket : buckets) {
+				if (!bucket.isRAMBucket())
+					migrated = true;
+				assertEquals(data.length, bucket.size());
+				byte[] read = BucketTools.toByteArray(bucket);
+				assertTrue(Arrays.equals(data, read));
+			}
+			assertTrue(migrated);
+			for (TempBucket bucket : buckets)
+				bucket.free();
+			assertEquals(0, factory.getSlabAllocator().getUsedBytes());
+		}
+		finally {
+			FileUtil.removeAll(dir);
+		}
+	}
+
+}
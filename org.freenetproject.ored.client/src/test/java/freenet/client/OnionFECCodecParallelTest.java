@@ -0,0 +1,38 @@
+package freenet.client;
+
+/**
+ * Same as OnionFECCodecTest, but with each block split into several stripes which are
+ * decoded and encoded in parallel.
+ */
+public class OnionFECCodecParallelTest extends OnionFECCodecTest {
+
+	private static final FECExecutor executor = new FECExecutor(4, 256);
+
+	@Override
+	protected OnionFECCodec createCodec() {
+		return new OnionFECCodec(executor);
+	}
+
+	public void testReplaceDefault() {
+		FECExecutor old = FECExecutor.getDefault();
+		FECExecutor first = new FECExecutor(2, 256);
+		try {
+			FECExecutor.setDefault(first);
+			FECExecutor.setDefault(new FECExecutor(2, 256));
+			// Still usable by anyone who fetched it before it was replaced.
+			int[] total = new int[1];
+			first.forEachStripe(4096, (offset, length) -> {
+				synchronized (total) {
+					total[0] += length;
+				}
+			});
+			assertEquals(4096, total[0]);
+		}
+		finally {
+			FECExecutor.getDefault().shutdown();
+			first.shutdown();
+			FECExecutor.setDefault(old);
+		}
+	}
+
+}
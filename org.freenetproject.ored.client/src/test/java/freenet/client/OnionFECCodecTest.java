@@ -14,7 +14,7 @@ public class OnionFECCodecTest extends TestCase {
 
 	private static final int MAX_SEGMENT_SIZE = 255;
 
-	private final OnionFECCodec codec = new OnionFECCodec();
+	private final OnionFECCodec codec = createCodec();
 
 	private byte[][] originalDataBlocks;
 
@@ -28,6 +28,10 @@ public class OnionFECCodecTest extends TestCase {
 
 	private boolean[] dataBlocksPresent;
 
+	protected OnionFECCodec createCodec() {
+		return new OnionFECCodec();
+	}
+
 	public void testDecodeRandomSubset() {
 		Random r = new Random(19412106);
 		int iterations = TestProperty.EXTENSIVE ? 100 : 10;
@@ -0,0 +1,434 @@
+package freenet.client.async;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.bucket.BucketFilenameGenerator;
+import freenet.bucket.PersistentTempBucketFactory;
+import freenet.bucket.TempBucketFactory;
+import freenet.checksum.ChecksumChecker;
+import freenet.client.request.RequestClient;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.Ticker;
+import freenet.support.WaitableExecutor;
+import freenet.support.fcp.RequestIdentifier;
+import freenet.support.fcp.RequestIdentifier.RequestType;
+import freenet.support.io.FileUtil;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the snapshot and journal written by {@link ClientLayerPersister} can be read
+ * back, and that a damaged journal loses no more than it has to.
+ */
+public class ClientLayerPersisterTest extends TestCase {
+
+	private static final String BASE_NAME = "client.dat";
+
+	/**
+	 * Number of finished requests which don't change, so the snapshot holds more requests
+	 * than the journal and checkpoints don't compact it.
+	 */
+	private static final int FINISHED = 16;
+
+	/** Requests resumed by the most recent load, by identifier. */
+	static final Map<String, TestRequest> resumed = new HashMap<String, TestRequest>();
+
+	private File dir;
+
+	private WaitableExecutor exec;
+
+	private Ticker ticker;
+
+	private RandomSource random;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = new File("client-layer-persister-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+		exec = new WaitableExecutor(new PooledExecutor());
+		ticker = new CheatingTicker(exec);
+		random = new DummyRandomSource(12345);
+		synchronized (resumed) {
+			resumed.clear();
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	static class TestRequest implements ClientRequest, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final String identifier;
+
+		short priority;
+
+		boolean finished;
+
+		/** Only in the serialized request, not in the recovery data. */
+		final String payload;
+
+		/** True if we were restarted from the recovery data. */
+		transient boolean restored;
+
+		TestRequest(String identifier) {
+			this.identifier = identifier;
+			this.payload = "SERIALIZED:" + identifier;
+		}
+
+		@Override
+		public void getClientDetail(DataOutputStream dos, ChecksumChecker checker) throws IOException {
+			dos.writeUTF(identifier);
+			dos.writeShort(priority);
+			dos.writeBoolean(finished);
+		}
+
+		@Override
+		public void onResume(ClientContext context) {
+			synchronized (resumed) {
+				resumed.put(identifier, this);
+			}
+		}
+
+		@Override
+		public RequestClient getRequestClient() {
+			return null;
+		}
+
+		@Override
+		public void onShutdown(ClientContext context) {
+			// Ignore.
+		}
+
+		@Override
+		public RequestIdentifier getRequestIdentifier() {
+			return new RequestIdentifier(true, "test", identifier, RequestType.GET);
+		}
+
+		@Override
+		public boolean fullyResumed() {
+			return true;
+		}
+
+		@Override
+		public boolean hasFinished() {
+			return finished;
+		}
+
+		@Override
+		public void start(ClientContext context) {
+			// Ignore.
+		}
+
+		@Override
+		public void cancel(ClientContext context) {
+			// Ignore.
+		}
+
+	}
+
+	private static final ClientRequestRestarter RESTARTER = (dis, reqID, context, checker) -> {
+		TestRequest request = new TestRequest(dis.readUTF());
+		request.priority = dis.readShort();
+		request.finished = dis.readBoolean();
+		request.restored = true;
+		return request;
+	};
+
+	private static final RequestStarterSchedulerGroup STARTERS = new RequestStarterSchedulerGroup() {
+
+		@Override
+		public ClientRequestScheduler getChkFetchSchedulerBulk() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getChkPutSchedulerBulk() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getSskFetchSchedulerBulk() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getSskPutSchedulerBulk() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getChkFetchSchedulerRT() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getChkPutSchedulerRT() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getSskFetchSchedulerRT() {
+			return null;
+		}
+
+		@Override
+		public ClientRequestScheduler getSskPutSchedulerRT() {
+			return null;
+		}
+
+		@Override
+		public void setGlobalSalt(byte[] salt) {
+			// Ignore.
+		}
+
+	};
+
+	private static final PersistentStatsChecker STATS = new PersistentStatsChecker() {
+
+		@Override
+		public long[] getTotalIO() {
+			return new long[2];
+		}
+
+		@Override
+		public long getUptime() {
+			return 0;
+		}
+
+	};
+
+	/**
+	 * Create a persister, as on startup, and load whatever is on disk.
+	 * @param requests The persistent requests, which are saved on each checkpoint.
+	 */
+	private ClientLayerPersister load(List<ClientRequest> requests) throws Exception {
+		return load(() -> requests.toArray(new ClientRequest[requests.size()]));
+	}
+
+	private ClientLayerPersister load(ClientRequestsFetcher requests) throws Exception {
+		BucketFilenameGenerator fg = new BucketFilenameGenerator(random, true, dir, "temp-");
+		TempBucketFactory tbf = new TempBucketFactory(exec, fg, 0, 0, random, false, 0, null);
+		PersistentTempBucketFactory ptbf = new PersistentTempBucketFactory(new File(dir, "persistent-temp"),
+				"freenet-temp-", random, random, false);
+		ClientLayerPersister persister = new ClientLayerPersister(exec, ticker, STATS, requests, ptbf, tbf,
+				new PersistentStatsPutter());
+		ClientContext context = new ClientContext(0, persister, exec, null, ptbf, tbf, null, null, null, random,
+				random, ticker, null, fg, null, null, null, null, null, null, null, (reqID) -> false, null, null, null,
+				null, null, 10);
+		persister.start(context);
+		persister.setFilesAndLoad(dir, BASE_NAME, false, false, null, context, STARTERS, RESTARTER, random);
+		exec.waitForIdle();
+		return persister;
+	}
+
+	/**
+	 * Load from disk, returning the requests which were resumed. These are then saved in
+	 * a fresh snapshot, as on startup.
+	 */
+	private Map<String, TestRequest> reload() throws Exception {
+		synchronized (resumed) {
+			resumed.clear();
+		}
+		final Map<String, TestRequest> loaded = new HashMap<String, TestRequest>();
+		ClientLayerPersister persister = load(() -> {
+			synchronized (resumed) {
+				return resumed.values().toArray(new ClientRequest[resumed.size()]);
+			}
+		});
+		persister.shutdown();
+		synchronized (resumed) {
+			loaded.putAll(resumed);
+		}
+		return loaded;
+	}
+
+	private void checkpoint(ClientLayerPersister persister) {
+		persister.setCheckpointASAP();
+		exec.waitForIdle();
+	}
+
+	private File journalSegment(int segment) {
+		return new File(dir, BASE_NAME + ".journal." + segment);
+	}
+
+	/** @return The number of journal segments since the last snapshot. */
+	private int journalSegments() {
+		int segments = 0;
+		while (journalSegment(segments).exists())
+			segments++;
+		return segments;
+	}
+
+	private List<ClientRequest> makeFinishedRequests() {
+		List<ClientRequest> requests = new ArrayList<ClientRequest>();
+		for (int i = 0; i < FINISHED; i++) {
+			TestRequest done = new TestRequest("D" + i);
+			done.finished = true;
+			requests.add(done);
+		}
+		return requests;
+	}
+
+	/**
+	 * Write a snapshot containing A and B, then two journal segments: the first finishes A,
+	 * removes B and adds C, the second changes the priority of A after it has finished.
+	 */
+	private void writeSnapshotAndJournal() throws Exception {
+		List<ClientRequest> requests = makeFinishedRequests();
+		TestRequest a = new TestRequest("A");
+		TestRequest b = new TestRequest("B");
+		requests.add(a);
+		requests.add(b);
+		ClientLayerPersister persister = load(requests);
+		assertTrue(new File(dir, BASE_NAME).exists());
+		int segments = journalSegments();
+
+		a.finished = true;
+		requests.remove(b);
+		requests.add(new TestRequest("C"));
+		checkpoint(persister);
+		assertEquals(segments + 1, journalSegments());
+
+		a.priority = 3;
+		persister.setModified(a);
+		checkpoint(persister);
+		assertEquals(segments + 2, journalSegments());
+		persister.shutdown();
+	}
+
+	public void testRoundTrip() throws Exception {
+		writeSnapshotAndJournal();
+		Map<String, TestRequest> loaded = reload();
+		assertEquals(FINISHED + 2, loaded.size());
+		TestRequest a = loaded.get("A");
+		assertTrue(a.finished);
+		assertEquals(3, a.priority);
+		assertFalse(a.restored);
+		assertFalse(loaded.get("C").finished);
+		assertFalse(loaded.get("C").restored);
+		// Loading writes a fresh snapshot, so the journal has been compacted.
+		assertFalse(journalSegment(0).exists());
+		assertEquals(loaded.keySet(), reload().keySet());
+	}
+
+	public void testFinishedRequestNotRewritten() throws Exception {
+		List<ClientRequest> requests = makeFinishedRequests();
+		TestRequest a = new TestRequest("A");
+		a.finished = true;
+		requests.add(a);
+		ClientLayerPersister persister = load(requests);
+		requests.add(new TestRequest("B"));
+		checkpoint(persister);
+		// A finished before the snapshot, so only B is written.
+		byte[] data = Files.readAllBytes(journalSegment(journalSegments() - 1).toPath());
+		assertTrue(indexOf(data, "SERIALIZED:B") >= 0);
+		assertTrue(indexOf(data, "SERIALIZED:A") < 0);
+		a.priority = 3;
+		persister.setModified(a);
+		checkpoint(persister);
+		data = Files.readAllBytes(journalSegment(journalSegments() - 1).toPath());
+		assertTrue(indexOf(data, "SERIALIZED:A") >= 0);
+		persister.shutdown();
+	}
+
+	public void testRunningRequestWrittenOnlyWhenModified() throws Exception {
+		List<ClientRequest> requests = makeFinishedRequests();
+		TestRequest a = new TestRequest("A");
+		TestRequest b = new TestRequest("B");
+		requests.add(a);
+		requests.add(b);
+		ClientLayerPersister persister = load(requests);
+		requests.add(new TestRequest("C"));
+		checkpoint(persister);
+		// A and B are running but have not changed since the snapshot.
+		byte[] data = Files.readAllBytes(journalSegment(journalSegments() - 1).toPath());
+		assertTrue(indexOf(data, "SERIALIZED:C") >= 0);
+		assertTrue(indexOf(data, "SERIALIZED:A") < 0);
+		assertTrue(indexOf(data, "SERIALIZED:B") < 0);
+		a.priority = 3;
+		persister.setModified(a);
+		checkpoint(persister);
+		data = Files.readAllBytes(journalSegment(journalSegments() - 1).toPath());
+		assertTrue(indexOf(data, "SERIALIZED:A") >= 0);
+		assertTrue(indexOf(data, "SERIALIZED:B") < 0);
+		assertTrue(indexOf(data, "SERIALIZED:C") < 0);
+		persister.shutdown();
+		Map<String, TestRequest> loaded = reload();
+		assertEquals(FINISHED + 3, loaded.size());
+		assertEquals(3, loaded.get("A").priority);
+		assertFalse(loaded.get("A").restored);
+	}
+
+	public void testTruncatedJournalSegment() throws Exception {
+		writeSnapshotAndJournal();
+		// A torn write of the newest segment loses only that segment.
+		try (RandomAccessFile raf = new RandomAccessFile(journalSegment(journalSegments() - 1), "rw")) {
+			raf.setLength(16);
+		}
+		Map<String, TestRequest> loaded = reload();
+		assertEquals(FINISHED + 2, loaded.size());
+		assertTrue(loaded.get("A").finished);
+		assertEquals(0, loaded.get("A").priority);
+		assertTrue(loaded.containsKey("C"));
+	}
+
+	public void testCorruptRequestInJournal() throws Exception {
+		writeSnapshotAndJournal();
+		// Damage the serialized request, so it must be restarted from the recovery data.
+		// C has not changed since it was added, so it is only in the first segment.
+		File segment = journalSegment(journalSegments() - 2);
+		byte[] data = Files.readAllBytes(segment.toPath());
+		int offset = indexOf(data, "SERIALIZED:C");
+		assertTrue(offset >= 0);
+		data[offset] ^= 0x55;
+		Files.write(segment.toPath(), data);
+		Map<String, TestRequest> loaded = reload();
+		assertEquals(FINISHED + 2, loaded.size());
+		assertTrue(loaded.get("C").restored);
+		assertFalse(loaded.get("A").restored);
+		assertEquals(3, loaded.get("A").priority);
+	}
+
+	public void testStaleJournalSegmentIgnored() throws Exception {
+		writeSnapshotAndJournal();
+		File stale = new File(dir, "stale");
+		Files.copy(journalSegment(journalSegments() - 2).toPath(), stale.toPath());
+		// Loading writes a new snapshot with a new ID.
+		reload();
+		Files.move(stale.toPath(), journalSegment(0).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Map<String, TestRequest> loaded = reload();
+		assertEquals(FINISHED + 2, loaded.size());
+		assertEquals(3, loaded.get("A").priority);
+	}
+
+	private static int indexOf(byte[] data, String s) {
+		byte[] pattern = s.getBytes(StandardCharsets.US_ASCII);
+		outer: for (int i = 0; i + pattern.length <= data.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+}
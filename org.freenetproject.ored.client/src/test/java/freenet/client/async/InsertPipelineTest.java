@@ -0,0 +1,79 @@
+package freenet.client.async;
+
+import freenet.client.events.InsertPipelineEvent;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import junit.framework.TestCase;
+
+public class InsertPipelineTest extends TestCase {
+
+	private static ClientCHKBlock block(int i) throws Exception {
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		data[0] = (byte) i;
+		return ClientCHKBlock.encodeSplitfileBlock(data, null, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	public void testReadyBlocksAreBounded() throws Exception {
+		InsertPipeline pipeline = new InsertPipeline();
+		ClientCHKBlock block = block(1);
+		for (int i = 0; i < InsertPipeline.MAX_READY_BLOCKS; i++)
+			assertTrue(pipeline.offerReady(i / 10, i % 10, block));
+		assertFalse(pipeline.offerReady(1000, 0, block));
+		assertEquals(InsertPipeline.MAX_READY_BLOCKS, pipeline.send.getQueued());
+		assertSame(block, pipeline.takeReady(0, 5));
+		assertNull(pipeline.takeReady(0, 5));
+		assertNull(pipeline.takeReady(1000, 0));
+		assertTrue(pipeline.offerReady(1000, 0, block));
+		pipeline.clear();
+		assertEquals(0, pipeline.send.getQueued());
+		assertNull(pipeline.takeReady(1000, 0));
+		assertFalse(pipeline.offerReady(1000, 0, block));
+	}
+
+	public void testReadyBlocksAreBoundedOverAllInserts() throws Exception {
+		ClientCHKBlock block = block(1);
+		int inserts = InsertPipeline.MAX_ALL_READY_BLOCKS / InsertPipeline.MAX_READY_BLOCKS;
+		InsertPipeline[] pipelines = new InsertPipeline[inserts + 1];
+		try {
+			for (int i = 0; i < pipelines.length; i++) {
+				pipelines[i] = new InsertPipeline();
+				for (int j = 0; j < InsertPipeline.MAX_READY_BLOCKS; j++)
+					assertEquals(i < inserts, pipelines[i].offerReady(0, j, block));
+			}
+			assertSame(block, pipelines[0].takeReady(0, 0));
+			assertTrue(pipelines[inserts].offerReady(0, 0, block));
+			assertFalse(pipelines[inserts].offerReady(0, 1, block));
+			pipelines[1].clear();
+			for (int j = 1; j < InsertPipeline.MAX_READY_BLOCKS; j++)
+				assertTrue(pipelines[inserts].offerReady(0, j, block));
+		}
+		finally {
+			for (InsertPipeline pipeline : pipelines)
+				if (pipeline != null)
+					pipeline.clear();
+		}
+	}
+
+	public void testEvent() {
+		InsertPipeline pipeline = new InsertPipeline();
+		pipeline.fec.queued(2);
+		pipeline.fec.queued(-1);
+		pipeline.fec.done(1, 10 * CHKBlock.DATA_LENGTH);
+		pipeline.send.done(3, 3 * CHKBlock.DATA_LENGTH);
+		InsertPipelineEvent event = pipeline.getEvent();
+		assertEquals(3, event.stages.length);
+		assertEquals("fec", event.stages[0].name);
+		assertEquals(1, event.stages[0].items);
+		assertEquals(1, event.stages[0].queued);
+		assertEquals(0, event.stages[1].items);
+		assertEquals(0.0, event.stages[1].bytesPerSecond);
+		assertEquals(3L * CHKBlock.DATA_LENGTH, event.stages[2].bytes);
+		assertTrue(event.stages[2].bytesPerSecond > 0);
+		assertTrue(event.getDescription().startsWith("Insert pipeline: fec 1 "));
+		assertTrue(pipeline.shouldReport(100000));
+		assertFalse(pipeline.shouldReport(100500));
+		assertTrue(pipeline.shouldReport(101000));
+	}
+
+}
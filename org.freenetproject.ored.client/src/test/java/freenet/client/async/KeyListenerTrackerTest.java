@@ -0,0 +1,147 @@
+package freenet.client.async;
+
+import java.util.Random;
+
+import freenet.client.request.SendableGet;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import junit.framework.TestCase;
+
+/**
+ * Tests for registering listeners with KeyListenerTracker while their keys are being
+ * read.
+ */
+public class KeyListenerTrackerTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private KeyListenerTracker tracker;
+
+	@Override
+	protected void setUp() {
+		byte[] salt = new byte[32];
+		this.random.nextBytes(salt);
+		this.tracker = new KeyListenerTracker(false, false, false, null, null, salt, false);
+	}
+
+	private Key randomKey() {
+		byte[] routingKey = new byte[32];
+		this.random.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+	public void testAddIndexesKeys() {
+		Key key = this.randomKey();
+		Listener listener = new Listener(key) {
+			@Override
+			public byte[][] getSaltedKeys(KeySalter salter) {
+				return new byte[][] { salter.saltKey(this.key) };
+			}
+		};
+		this.tracker.addPendingKeys(listener);
+		assertTrue(this.tracker.anyProbablyWantKey(key, null));
+		assertFalse(this.tracker.anyProbablyWantKey(this.randomKey(), null));
+		assertEquals(1, this.tracker.countWaitingKeys());
+	}
+
+	/** A block which arrives while the keys are being read must still reach the listener. */
+	public void testMatchedWhileReadingKeys() {
+		Key key = this.randomKey();
+		boolean[] matched = new boolean[1];
+		Listener listener = new Listener(key) {
+			@Override
+			public byte[][] getSaltedKeys(KeySalter salter) {
+				matched[0] = KeyListenerTrackerTest.this.tracker.anyProbablyWantKey(this.key, null);
+				return new byte[][] { salter.saltKey(this.key) };
+			}
+		};
+		this.tracker.addPendingKeys(listener);
+		assertTrue(matched[0]);
+	}
+
+	/** A listener removed while its keys are being read must not be registered afterwards. */
+	public void testRemovedWhileReadingKeys() {
+		Key key = this.randomKey();
+		Listener listener = new Listener(key) {
+			@Override
+			public byte[][] getSaltedKeys(KeySalter salter) {
+				assertTrue(KeyListenerTrackerTest.this.tracker.removePendingKeys(this));
+				return new byte[][] { salter.saltKey(this.key) };
+			}
+		};
+		this.tracker.addPendingKeys(listener);
+		assertTrue(listener.removed);
+		assertEquals(0, this.tracker.countWaitingKeys());
+		assertFalse(this.tracker.anyProbablyWantKey(key, null));
+		assertFalse(this.tracker.removePendingKeys(listener));
+	}
+
+	private static class Listener implements KeyListener {
+
+		final Key key;
+
+		boolean removed;
+
+		Listener(Key key) {
+			this.key = key;
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return key.equals(this.key);
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass() {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return 1;
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			this.removed = true;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+	}
+
+}
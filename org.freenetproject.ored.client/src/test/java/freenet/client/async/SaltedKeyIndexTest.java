@@ -0,0 +1,182 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import freenet.client.request.SendableGet;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the salted key index used by KeyListenerTracker.
+ */
+public class SaltedKeyIndexTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private byte[] randomKey() {
+		byte[] key = new byte[32];
+		this.random.nextBytes(key);
+		return key;
+	}
+
+	public void testGet() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		byte[][] keys1 = { this.randomKey(), this.randomKey() };
+		byte[][] keys2 = { this.randomKey(), keys1[1] };
+		Listener l1 = new Listener();
+		Listener l2 = new Listener();
+		assertTrue(index.add(l1, keys1));
+		assertTrue(index.add(l2, keys2));
+		assertFalse(index.add(l1, keys1));
+
+		assertEquals(List.of(l1), this.get(index, keys1[0]));
+		assertEquals(List.of(l2), this.get(index, keys2[0]));
+		assertEquals(2, this.get(index, keys1[1]).size());
+		assertTrue(this.get(index, this.randomKey()).isEmpty());
+
+		assertTrue(index.remove(l1));
+		assertFalse(index.remove(l1));
+		assertTrue(this.get(index, keys1[0]).isEmpty());
+		assertEquals(List.of(l2), this.get(index, keys1[1]));
+		assertEquals(2, index.countKeys());
+	}
+
+	public void testDuplicateKeys() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		byte[] key = this.randomKey();
+		Listener l = new Listener();
+		index.add(l, new byte[][] { key, key });
+		assertEquals(List.of(l), this.get(index, key));
+		index.remove(l);
+		assertEquals(0, index.countKeys());
+	}
+
+	public void testUnindexedAlwaysReturned() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		Listener indexed = new Listener();
+		Listener unindexed = new Listener();
+		byte[] key = this.randomKey();
+		index.add(indexed, new byte[][] { key });
+		index.add(unindexed, null);
+		assertEquals(List.of(unindexed), this.get(index, this.randomKey()));
+		assertEquals(List.of(indexed, unindexed), this.get(index, key));
+		assertEquals(1, index.countUnindexed());
+		assertTrue(index.remove(unindexed));
+		assertEquals(0, index.countUnindexed());
+	}
+
+	public void testIndexLater() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		Listener l = new Listener();
+		byte[] key = this.randomKey();
+		assertFalse(index.index(l, new byte[][] { key }));
+		index.add(l, null);
+		assertTrue(index.index(l, new byte[][] { key }));
+		assertEquals(0, index.countUnindexed());
+		assertEquals(List.of(l), this.get(index, key));
+		assertTrue(this.get(index, this.randomKey()).isEmpty());
+		assertFalse(index.index(l, new byte[][] { key }));
+		assertTrue(index.remove(l));
+		assertEquals(0, index.countKeys());
+	}
+
+	/**
+	 * Grow and shrink the table with many listeners, checking every remaining key can
+	 * still be found after each removal.
+	 */
+	public void testManyListeners() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		List<Listener> listeners = new ArrayList<>();
+		List<byte[][]> keys = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			byte[][] k = new byte[1 + this.random.nextInt(20)][];
+			for (int j = 0; j < k.length; j++) {
+				k[j] = this.randomKey();
+			}
+			Listener l = new Listener();
+			index.add(l, k);
+			listeners.add(l);
+			keys.add(k);
+		}
+		assertEquals(200, index.countListeners());
+		while (!listeners.isEmpty()) {
+			int x = this.random.nextInt(listeners.size());
+			assertTrue(index.remove(listeners.remove(x)));
+			keys.remove(x);
+			for (int i = 0; i < listeners.size(); i++) {
+				for (byte[] k : keys.get(i)) {
+					assertEquals(List.of(listeners.get(i)), this.get(index, k));
+				}
+			}
+		}
+		assertEquals(0, index.countKeys());
+	}
+
+	private List<KeyListener> get(SaltedKeyIndex index, byte[] key) {
+		List<KeyListener> matches = new ArrayList<>();
+		index.get(key, matches);
+		return matches;
+	}
+
+	private static class Listener implements KeyListener {
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return true;
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass() {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return 0;
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+	}
+
+}
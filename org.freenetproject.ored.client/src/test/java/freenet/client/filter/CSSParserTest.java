@@ -1256,11 +1256,18 @@ public class CSSParserTest extends TestCase {
 	}
 
 	private String filter(String css) throws IOException, URISyntaxException {
+		String filtered = filter(css, true);
+		// The original tokenizer must give the same output.
+		assertEquals("key=\"" + css + "\"", filter(css, false), filtered);
+		return filtered;
+	}
+
+	private String filter(String css, boolean streaming) throws IOException, URISyntaxException {
 		StringWriter w = new StringWriter();
 		GenericReadFilterCallback cb = new GenericReadFilterCallback(new URI(
 				"/CHK@OR904t6ylZOwoobMJRmSn7HsPGefHSP7zAjoLyenSPw,x2EzszO4Kqot8akqmKYXJbkD-fSj6noOVGB-K2YisZ4,AAIC--8/1-works.html"),
 				null, null, null);
-		CSSParser p = new CSSParser(new StringReader(css), w, false, cb, "UTF-8", false, false);
+		CSSParser p = new CSSParser(new StringReader(css), w, false, cb, "UTF-8", false, false, streaming);
 		p.parse();
 		return w.toString();
 	}
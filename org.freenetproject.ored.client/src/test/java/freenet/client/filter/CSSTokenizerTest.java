@@ -0,0 +1,101 @@
+package freenet.client.filter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Random;
+
+import freenet.client.filter.CSSTokenizerFilter.ParsedWord;
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link CSSTokenizer} gives the same results as the original tokenizer in
+ * {@link CSSTokenizerFilter}.
+ */
+public class CSSTokenizerTest extends TestCase {
+
+	private static final String[] VALUES = { "", " ", "red", "0 auto", "1px solid #ccc", "-1px", "-a1", "a-1", "_x",
+			"\"DejaVu Sans\", sans-serif", "'a' , 'b'", "a,,b", ",a", "a, ,b", "rgb(1, 2, 3) blue", "rgb(1,2",
+			"a)", "url(\"/CHK@abc/a.png\") no-repeat", "URL( 'x.png' )", "url(x.png)", "url(  )", "url('x.png\")",
+			"attr(title)", "attr( )", "counter(c)", "counters(c, \".\", decimal)", "counter(c, \"x\")",
+			"\"unterminated", "\"new\nline\"", "\"esc\\\nline\"", "\"esc\\\r\nline\"", "\"\\41 b\"", "\"\\000041b\"",
+			"\\41 b", "\\41\r\nb", "\\000041b", "\\\"quote", "\\\n", "a\\", "\"a\\", "\"\\41", "\\4g",
+			"\u00e9t\u00e9 \u00a0x", "\"x\"y", "\"x\",", "12px/1.5 Georgia, serif", "bold 14px/1.2 \"a b\",c",
+			"a\tb\fc\r\nd", "\"a\tb\"", "'it''s'" };
+
+	private static String describe(ParsedWord[] words) {
+		if (words == null)
+			return "null";
+		StringBuilder sb = new StringBuilder();
+		for (ParsedWord word : words) {
+			sb.append(word.getClass().getSimpleName()).append(':').append(word.original).append(':');
+			sb.append(word.encode(true)).append(':').append(word.encode(false)).append(':').append(word.postComma);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	public void testSplit() {
+		CSSTokenizer tokenizer = new CSSTokenizer(new StringReader(""), 16);
+		// Twice, to check the buffers are reset between values.
+		for (int i = 0; i < 2; i++) {
+			for (String value : VALUES) {
+				for (boolean commas : new boolean[] { false, true }) {
+					assertEquals("\"" + value + "\" commas=" + commas,
+							describe(CSSTokenizerFilter.split(value, commas)), describe(tokenizer.split(value, commas)));
+				}
+			}
+		}
+	}
+
+	public void testRead() throws IOException {
+		String s = "h1 { color: red; }\n\u00e9";
+		CSSTokenizer tokenizer = new CSSTokenizer(new StringReader(s), 3);
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = tokenizer.read()) != -1)
+			sb.append((char) c);
+		assertEquals(s, sb.toString());
+		assertEquals(-1, tokenizer.read());
+	}
+
+	public void testStylesheet() throws IOException, URISyntaxException {
+		String[] selectors = { "body", "div.content", "#header h1", "ul li a:hover", "table tr td", "p.note > span",
+				"a[href]", "h2 + p", "input[type=\"text\"]", "h1:visited", "@page :left" };
+		String[] declarations = { "color: #336699", "margin: 0 auto", "padding: 4px 8px", "font-size: 12px",
+				"font-family: \"Helvetica Neue\", Arial, sans-serif", "background: #fff url(bg.png) no-repeat top left",
+				"border: 1px solid #ccc", "line-height: 1.5em", "font: bold 14px/1.2 Georgia, serif",
+				"content: counter(c) \". \"", "quotes: '\\201C' '\\201D'", "background-color: rgb(10, 20, 30)",
+				"width: 100% !important", "bogus: 1", "color: \"unterminated" };
+		Random random = new Random(0);
+		StringBuilder sb = new StringBuilder("@charset \"UTF-8\";\n@import url(\"a.css\") screen, print;\n");
+		for (int i = 0; i < 500; i++) {
+			if (i % 50 == 0)
+				sb.append("/* section ").append(i).append(" */\n");
+			if (i % 97 == 0)
+				sb.append("@media print {\n");
+			sb.append(selectors[random.nextInt(selectors.length)]).append(" {\n");
+			int n = 1 + random.nextInt(5);
+			for (int j = 0; j < n; j++)
+				sb.append('\t').append(declarations[random.nextInt(declarations.length)]).append(";\n");
+			sb.append("}\n");
+			if (i % 97 == 0)
+				sb.append("}\n");
+		}
+		String css = sb.toString();
+		String filtered = filter(css, true);
+		assertTrue(filtered.length() > css.length() / 2);
+		assertEquals(filter(css, false), filtered);
+	}
+
+	private static String filter(String css, boolean streaming) throws IOException, URISyntaxException {
+		StringWriter w = new StringWriter();
+		GenericReadFilterCallback cb = new GenericReadFilterCallback(new URI("/CHK@abc/index.html"), null, null,
+				null);
+		new CSSParser(new StringReader(css), w, false, cb, "UTF-8", false, false, streaming).parse();
+		return w.toString();
+	}
+
+}
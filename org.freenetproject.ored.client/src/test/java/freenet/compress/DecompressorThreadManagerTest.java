@@ -0,0 +1,123 @@
+package freenet.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import freenet.compress.Compressor.COMPRESSOR_TYPE;
+import junit.framework.TestCase;
+
+public class DecompressorThreadManagerTest extends TestCase {
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+			gos.write(data);
+		}
+		return bos.toByteArray();
+	}
+
+	/** Write the data on another thread, as the fetchers do. */
+	private static Thread writeAsync(final OutputStream out, final byte[] data) {
+		Thread t = new Thread(() -> {
+			try {
+				out.write(data);
+				out.close();
+			}
+			catch (IOException e) {
+				// The chain failed; the reader will find out.
+			}
+		});
+		t.start();
+		return t;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int r;
+		while ((r = in.read(buf)) > 0)
+			bos.write(buf, 0, r);
+		return bos.toByteArray();
+	}
+
+	public void testChain() throws Throwable {
+		byte[] data = new byte[1 << 20];
+		Random random = new Random(0);
+		// Compressible, but not too much.
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) random.nextInt(16);
+		byte[] compressed = gzip(gzip(data));
+		long runs = DecompressorThreadManager.getDecompressions(COMPRESSOR_TYPE.GZIP);
+		long bytesOut = DecompressorThreadManager.getDecompressedBytesOut(COMPRESSOR_TYPE.GZIP);
+
+		List<Compressor> decompressors = new ArrayList<Compressor>();
+		decompressors.add(COMPRESSOR_TYPE.GZIP);
+		decompressors.add(COMPRESSOR_TYPE.GZIP);
+		DecompressorThreadManager manager = new DecompressorThreadManager(decompressors, data.length);
+		InputStream in = manager.execute();
+		Thread writer = writeAsync(manager.getOutputStream(), compressed);
+		byte[] result = readAll(in);
+		manager.waitFinished();
+		writer.join();
+		assertTrue(Arrays.equals(data, result));
+		assertEquals(runs + 2, DecompressorThreadManager.getDecompressions(COMPRESSOR_TYPE.GZIP));
+		assertTrue(DecompressorThreadManager.getDecompressedBytesOut(COMPRESSOR_TYPE.GZIP) >= bytesOut + data.length);
+		assertTrue(DecompressorThreadManager.getDecompressRate(COMPRESSOR_TYPE.GZIP) > 0);
+	}
+
+	public void testTooBig() throws Throwable {
+		// Small enough that the decompressor finds the end while checking how big it is.
+		byte[] data = new byte[1500];
+		List<Compressor> decompressors = new ArrayList<Compressor>();
+		decompressors.add(COMPRESSOR_TYPE.GZIP);
+		DecompressorThreadManager manager = new DecompressorThreadManager(decompressors, 1000);
+		InputStream in = manager.execute();
+		Thread writer = writeAsync(manager.getOutputStream(), gzip(data));
+		try {
+			readAll(in);
+			fail();
+		}
+		catch (IOException e) {
+			// Expected: the pipe was aborted.
+		}
+		try {
+			manager.waitFinished();
+			fail();
+		}
+		catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+	}
+
+	public void testCancel() throws Throwable {
+		List<Compressor> decompressors = new ArrayList<Compressor>();
+		decompressors.add(COMPRESSOR_TYPE.GZIP);
+		DecompressorThreadManager manager = new DecompressorThreadManager(decompressors, 1000);
+		InputStream in = manager.execute();
+		manager.cancel();
+		try {
+			in.read();
+			fail();
+		}
+		catch (IOException e) {
+			// Expected.
+		}
+		try {
+			manager.getOutputStream().write(1);
+			fail();
+		}
+		catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package freenet.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import freenet.bucket.ArrayBucketFactory;
+import freenet.compress.Compressor.COMPRESSOR_TYPE;
+import junit.framework.TestCase;
+
+public class ParallelCompressorTest extends TestCase {
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() {
+		executor.shutdown();
+	}
+
+	private static byte[] decompress(COMPRESSOR_TYPE codec, InputStream is) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.decompress(is, out, Long.MAX_VALUE, Long.MAX_VALUE);
+		is.close();
+		return out.toByteArray();
+	}
+
+	public void testAllCodecsGetAllTheData() throws Exception {
+		// Bigger than a pipe, so the codecs have to keep up with each other.
+		byte[] data = new byte[1024 * 1024];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ("The quick brown fox ".charAt(i % 20) + (i / 4096) % 3);
+		COMPRESSOR_TYPE[] codecs = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+		ParallelCompressor compressor = new ParallelCompressor(codecs, new ArrayBucketFactory(), executor);
+		ParallelCompressor.Result[] results = compressor.compress(new ByteArrayInputStream(data), data.length,
+				Long.MAX_VALUE, 10);
+		assertEquals(codecs.length, results.length);
+		for (int i = 0; i < codecs.length; i++) {
+			assertEquals(codecs[i], results[i].codec);
+			assertNull(results[i].failure);
+			assertTrue(results[i].data.size() < data.length / 10);
+			byte[] got = decompress(codecs[i], results[i].data.getInputStream());
+			assertTrue(Arrays.equals(data, got));
+			results[i].data.free();
+		}
+	}
+
+	public void testIncompressible() throws Exception {
+		byte[] data = new byte[512 * 1024];
+		new Random(42).nextBytes(data);
+		COMPRESSOR_TYPE[] codecs = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+		ParallelCompressor compressor = new ParallelCompressor(codecs, new ArrayBucketFactory(), executor);
+		ParallelCompressor.Result[] results = compressor.compress(new ByteArrayInputStream(data), data.length, 65536,
+				10);
+		for (ParallelCompressor.Result result : results) {
+			assertNull(result.data);
+			assertTrue(result.failure instanceof CompressionRatioException
+					|| result.failure instanceof CompressionOutputSizeException);
+		}
+	}
+
+	public void testLoserStoppedEarly() throws Exception {
+		// A random block repeated: gzip's 32KB window can't see the repeats, LZMA's can.
+		byte[] block = new byte[64 * 1024];
+		new Random(42).nextBytes(block);
+		byte[] data = new byte[4 * 1024 * 1024];
+		for (int i = 0; i < data.length; i += block.length)
+			System.arraycopy(block, 0, data, i, block.length);
+		COMPRESSOR_TYPE[] codecs = { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.LZMA_NEW };
+		ParallelCompressor compressor = new ParallelCompressor(codecs, new ArrayBucketFactory(), executor);
+		// No minimum percentage, so gzip can only fail by losing to LZMA, which is checked
+		// long before the end of the data.
+		ParallelCompressor.Result[] results = compressor.compress(new ByteArrayInputStream(data), data.length,
+				256 * 1024, 0);
+		assertNull(results[0].data);
+		assertTrue(results[0].failure instanceof CompressionRatioException);
+		assertNull(results[1].failure);
+		assertTrue(results[1].data.size() < data.length / 10);
+		assertTrue(Arrays.equals(data, decompress(codecs[1], results[1].data.getInputStream())));
+		results[1].data.free();
+	}
+
+}
@@ -0,0 +1,40 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.lockablebuffer;
+
+import java.io.IOException;
+
+import freenet.bucket.RandomAccessBufferTestBase;
+import freenet.bucket.SlabAllocator;
+import freenet.support.api.RandomAccessBuffer;
+
+public class OffHeapRandomAccessBufferTest extends RandomAccessBufferTestBase {
+
+	private static final int[] TEST_LIST = new int[] { 0, 1, 32, 64, 32768, 1024 * 1024, 1024 * 1024 + 1 };
+
+	private final SlabAllocator allocator = new SlabAllocator(16 * 1024 * 1024);
+
+	public OffHeapRandomAccessBufferTest() {
+		super(TEST_LIST);
+	}
+
+	@Override
+	protected RandomAccessBuffer construct(long size) {
+		RandomAccessBuffer raf = OffHeapRandomAccessBuffer.create(allocator, size);
+		assertNotNull(raf);
+		return raf;
+	}
+
+	public void testOutOfMemory() throws IOException {
+		SlabAllocator small = new SlabAllocator(1024 * 1024);
+		OffHeapRandomAccessBuffer raf = OffHeapRandomAccessBuffer.create(small, 4096);
+		assertNotNull(raf);
+		assertNull(OffHeapRandomAccessBuffer.create(small, 2 * 1024 * 1024));
+		// The partial allocation was given back.
+		assertEquals(4096, small.getUsedBytes());
+		raf.free();
+		assertEquals(0, small.getUsedBytes());
+	}
+
+}
@@ -0,0 +1,270 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.support.LRUMap;
+
+/**
+ * DSA signature verification, as BouncyCastle's DSASigner does it, but with fixed-base
+ * exponentiation tables: one for the generator of each group, which is shared by every
+ * key, and one for each public key which is used often enough to be worth it.
+ *
+ * A verification computes g^u1 * y^u2 mod p. With a table of base^(d * 2^(w*i)) for every
+ * w-bit digit d of the exponent, this is one multiplication per digit instead of a
+ * square per bit. Building a table costs a few hundred multiplications, so tables for
+ * public keys are only built once a key has been seen several times, and only a few are
+ * kept. The pubkey cache should call {@link #forget(DSAPublicKey)} when it drops a key.
+ *
+ * Several candidate hashes can be checked against the same signature (see the comments
+ * in {@link Global} on truncated hashes): y^u2 doesn't depend on the hash, so it is only
+ * computed once.
+ */
+public final class DSAVerifier {
+
+	/** Bits per digit in the generator's table. 2^8 - 1 entries per digit, 2MB or so. */
+	static final int GROUP_WINDOW_BITS = 8;
+
+	/** Bits per digit in the tables for public keys. 15 entries per digit, 250KB or so. */
+	static final int KEY_WINDOW_BITS = 4;
+
+	/** Maximum number of public keys to keep tables for. */
+	static final int MAX_KEY_TABLES = 16;
+
+	/** Build a table for a public key once it has been used for this many verifications. */
+	static final int KEY_TABLE_THRESHOLD = 8;
+
+	/** Maximum number of public keys to count uses of, before they get a table. */
+	static final int MAX_COUNTED_KEYS = 1024;
+
+	/** Public keys are chosen by whoever inserts the SSK, so don't trust their hashCode(). */
+	private static final Comparator<DSAPublicKey> KEY_ORDER = new Comparator<DSAPublicKey>() {
+
+		@Override
+		public int compare(DSAPublicKey a, DSAPublicKey b) {
+			int cmp = a.getY().compareTo(b.getY());
+			if (cmp != 0)
+				return cmp;
+			DSAGroup ga = a.getGroup();
+			DSAGroup gb = b.getGroup();
+			if (ga == gb)
+				return 0;
+			cmp = ga.getP().compareTo(gb.getP());
+			if (cmp != 0)
+				return cmp;
+			cmp = ga.getQ().compareTo(gb.getQ());
+			if (cmp != 0)
+				return cmp;
+			return ga.getG().compareTo(gb.getG());
+		}
+
+	};
+
+	private static final ConcurrentHashMap<DSAGroup, FixedBaseTable> groupTables = new ConcurrentHashMap<>();
+
+	/** Locks keyUses too. */
+	private static final LRUMap<DSAPublicKey, FixedBaseTable> keyTables = LRUMap.createSafeMap(KEY_ORDER);
+
+	private static final LRUMap<DSAPublicKey, Integer> keyUses = LRUMap.createSafeMap(KEY_ORDER);
+
+	private static long verifications;
+
+	private static long keyTableHits;
+
+	private DSAVerifier() {
+	}
+
+	/**
+	 * Verify a DSA signature.
+	 * @param key The public key.
+	 * @param r The signature's R.
+	 * @param s The signature's S.
+	 * @param hashes The candidate hashes which may have been signed. Converted to a
+	 * number exactly as DSASigner does.
+	 * @return True if the signature is valid for any of the hashes.
+	 */
+	public static boolean verify(DSAPublicKey key, BigInteger r, BigInteger s, byte[]... hashes) {
+		DSAGroup group = key.getGroup();
+		BigInteger p = group.getP();
+		BigInteger q = group.getQ();
+		if (r.signum() <= 0 || r.compareTo(q) >= 0 || s.signum() <= 0 || s.compareTo(q) >= 0)
+			return false;
+		BigInteger w = s.modInverse(q);
+		BigInteger u2 = r.multiply(w).mod(q);
+		FixedBaseTable keyTable = getKeyTable(key);
+		BigInteger yu2 = (keyTable != null) ? keyTable.pow(u2) : key.getY().modPow(u2, p);
+		FixedBaseTable groupTable = getGroupTable(group);
+		for (byte[] hash : hashes) {
+			BigInteger u1 = calculateE(q, hash).multiply(w).mod(q);
+			BigInteger v = groupTable.multiply(groupTable.pow(u1), yu2).mod(q);
+			if (v.equals(r))
+				return true;
+		}
+		return false;
+	}
+
+	/** As DSASigner.calculateE(): the leftmost bits of the hash, as many as q has. */
+	private static BigInteger calculateE(BigInteger q, byte[] hash) {
+		int hashBits = hash.length * 8;
+		BigInteger e = new BigInteger(1, hash);
+		if (q.bitLength() < hashBits)
+			e = e.shiftRight(hashBits - q.bitLength());
+		return e;
+	}
+
+	private static FixedBaseTable getGroupTable(DSAGroup group) {
+		FixedBaseTable table = groupTables.get(group);
+		if (table != null)
+			return table;
+		// There is only ever one group in practice, so don't bother limiting these.
+		return groupTables.computeIfAbsent(group,
+				(g) -> new FixedBaseTable(g.getG(), g.getP(), g.getQ().bitLength(), GROUP_WINDOW_BITS));
+	}
+
+	/** @return The table for the key, or null if it hasn't been used enough to have one. */
+	private static FixedBaseTable getKeyTable(DSAPublicKey key) {
+		synchronized (keyTables) {
+			verifications++;
+			FixedBaseTable table = keyTables.get(key);
+			if (table != null) {
+				keyTableHits++;
+				keyTables.push(key, table);
+				return table;
+			}
+			Integer uses = keyUses.get(key);
+			int count = (uses == null) ? 1 : uses + 1;
+			if (count < KEY_TABLE_THRESHOLD) {
+				keyUses.push(key, count);
+				while (keyUses.size() > MAX_COUNTED_KEYS)
+					keyUses.popKey();
+				return null;
+			}
+			keyUses.removeKey(key);
+		}
+		// Build it outside the lock. Another thread may build the same table at the same
+		// time, which is harmless.
+		FixedBaseTable table = new FixedBaseTable(key.getY(), key.getP(), key.getQ().bitLength(), KEY_WINDOW_BITS);
+		synchronized (keyTables) {
+			keyTables.push(key, table);
+			while (keyTables.size() > MAX_KEY_TABLES)
+				keyTables.popKey();
+		}
+		return table;
+	}
+
+	/** Drop the table for a public key, if there is one, e.g. because it has left the cache. */
+	public static void forget(DSAPublicKey key) {
+		synchronized (keyTables) {
+			keyTables.removeKey(key);
+			keyUses.removeKey(key);
+		}
+	}
+
+	/** @return True if there is a table for the key. For tests. */
+	static boolean hasKeyTable(DSAPublicKey key) {
+		synchronized (keyTables) {
+			return keyTables.containsKey(key);
+		}
+	}
+
+	public static long getVerifications() {
+		synchronized (keyTables) {
+			return verifications;
+		}
+	}
+
+	public static long getKeyTableHits() {
+		synchronized (keyTables) {
+			return keyTableHits;
+		}
+	}
+
+	public static int getKeyTableCount() {
+		return keyTables.size();
+	}
+
+	/**
+	 * base^(d * 2^(windowBits * i)) mod p for every digit position i of an exponent of up to
+	 * maxBits bits and every non-zero digit d. Immutable once built.
+	 *
+	 * Products are reduced with Barrett reduction, which is two multiplications and is
+	 * about twice as fast as BigInteger.mod() at these sizes.
+	 */
+	static final class FixedBaseTable {
+
+		private final BigInteger base;
+
+		private final BigInteger p;
+
+		/** Bits in p. */
+		private final int k;
+
+		/** floor(2^(2k) / p) */
+		private final BigInteger mu;
+
+		private final int windowBits;
+
+		/** [position][digit - 1] */
+		private final BigInteger[][] powers;
+
+		FixedBaseTable(BigInteger base, BigInteger p, int maxBits, int windowBits) {
+			if (8 % windowBits != 0)
+				throw new IllegalArgumentException("Digits must not straddle bytes: " + windowBits);
+			this.base = base;
+			this.p = p;
+			this.k = p.bitLength();
+			this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(p);
+			this.windowBits = windowBits;
+			int positions = (maxBits + windowBits - 1) / windowBits;
+			int digits = (1 << windowBits) - 1;
+			powers = new BigInteger[positions][digits];
+			BigInteger b = base.mod(p);
+			for (int i = 0; i < positions; i++) {
+				BigInteger[] row = powers[i];
+				row[0] = b;
+				for (int d = 1; d < digits; d++)
+					row[d] = multiply(row[d - 1], b);
+				// b^(2^windowBits) is the base for the next position.
+				b = multiply(row[digits - 1], b);
+			}
+		}
+
+		/** @return base^e mod p, for 0 <= e. */
+		BigInteger pow(BigInteger e) {
+			if (e.signum() < 0 || e.bitLength() > powers.length * windowBits)
+				return base.modPow(e, p);
+			byte[] bytes = e.toByteArray();
+			int mask = (1 << windowBits) - 1;
+			BigInteger result = null;
+			for (int i = 0; i < powers.length; i++) {
+				int bit = i * windowBits;
+				int index = bytes.length - 1 - (bit >> 3);
+				if (index < 0)
+					break;
+				int digit = ((bytes[index] & 0xff) >> (bit & 7)) & mask;
+				if (digit == 0)
+					continue;
+				BigInteger power = powers[i][digit - 1];
+				result = (result == null) ? power : multiply(result, power);
+			}
+			return (result == null) ? BigInteger.ONE : result;
+		}
+
+		/** @return a * b mod p, for 0 <= a, b < p. */
+		BigInteger multiply(BigInteger a, BigInteger b) {
+			BigInteger x = a.multiply(b);
+			BigInteger estimate = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+			BigInteger r = x.subtract(estimate.multiply(p));
+			// The estimate is at most 2 too small.
+			while (r.compareTo(p) >= 0)
+				r = r.subtract(p);
+			return r;
+		}
+
+	}
+
+}
@@ -0,0 +1,137 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import org.bouncycastle.crypto.params.DSAPrivateKeyParameters;
+import org.bouncycastle.crypto.params.DSAPublicKeyParameters;
+import org.bouncycastle.crypto.params.ParametersWithRandom;
+import org.bouncycastle.crypto.signers.DSASigner;
+
+import junit.framework.TestCase;
+
+public class DSAVerifierTest extends TestCase {
+
+	private static final DSAGroup GROUP = Global.DSAgroupBigA;
+
+	private final Random random = new Random(1234);
+
+	private final SecureRandom secureRandom = new SecureRandom(new byte[] { 1, 2, 3 });
+
+	private BigInteger newPrivateKey() {
+		return new BigInteger(GROUP.getQ().bitLength() - 1, random).add(BigInteger.ONE);
+	}
+
+	private DSAPublicKey publicKey(BigInteger x) {
+		return new DSAPublicKey(GROUP, GROUP.getG().modPow(x, GROUP.getP()));
+	}
+
+	private BigInteger[] sign(BigInteger x, byte[] hash) {
+		DSASigner dsa = new DSASigner();
+		dsa.init(true,
+				new ParametersWithRandom(new DSAPrivateKeyParameters(x, Global.getDSAgroupBigAParameters()), secureRandom));
+		return dsa.generateSignature(hash);
+	}
+
+	private static boolean verifyBC(DSAPublicKey key, BigInteger r, BigInteger s, byte[] hash) {
+		DSASigner dsa = new DSASigner();
+		dsa.init(false, new DSAPublicKeyParameters(key.getY(), Global.getDSAgroupBigAParameters()));
+		return dsa.verifySignature(hash, r, s);
+	}
+
+	private byte[] randomHash() {
+		byte[] hash = new byte[32];
+		random.nextBytes(hash);
+		return hash;
+	}
+
+	/** Same answers as DSASigner, for good and bad signatures. */
+	public void testMatchesDSASigner() {
+		for (int i = 0; i < 10; i++) {
+			BigInteger x = newPrivateKey();
+			DSAPublicKey key = publicKey(x);
+			byte[] hash = randomHash();
+			byte[] truncated = Global.truncateHash(hash);
+			BigInteger[] sig = sign(x, truncated);
+			BigInteger r = sig[0];
+			BigInteger s = sig[1];
+			assertTrue(verifyBC(key, r, s, truncated));
+			assertTrue(DSAVerifier.verify(key, r, s, truncated));
+			assertTrue(DSAVerifier.verify(key, r, s, truncated, hash));
+			assertTrue(DSAVerifier.verify(key, r, s, hash, truncated));
+			assertEquals(verifyBC(key, r, s, hash), DSAVerifier.verify(key, r, s, hash));
+
+			byte[] other = randomHash();
+			assertFalse(DSAVerifier.verify(key, r, s, other));
+			assertFalse(DSAVerifier.verify(key, r.add(BigInteger.ONE), s, truncated));
+			assertFalse(DSAVerifier.verify(key, r, s.add(BigInteger.ONE), truncated));
+			assertFalse(DSAVerifier.verify(publicKey(newPrivateKey()), r, s, truncated));
+			assertFalse(DSAVerifier.verify(key, r, s));
+		}
+	}
+
+	/** Signatures over the full hash, as some very old SSKs have. */
+	public void testFullHash() {
+		BigInteger x = newPrivateKey();
+		DSAPublicKey key = publicKey(x);
+		byte[] hash = randomHash();
+		hash[0] |= (byte) 0x80;
+		BigInteger[] sig = sign(x, hash);
+		assertTrue(verifyBC(key, sig[0], sig[1], hash));
+		assertTrue(DSAVerifier.verify(key, sig[0], sig[1], Global.truncateHash(hash), hash));
+		assertFalse(DSAVerifier.verify(key, sig[0], sig[1], Global.truncateHash(hash)));
+	}
+
+	public void testOutOfRange() {
+		DSAPublicKey key = publicKey(newPrivateKey());
+		byte[] hash = randomHash();
+		BigInteger q = GROUP.getQ();
+		assertFalse(DSAVerifier.verify(key, BigInteger.ZERO, BigInteger.ONE, hash));
+		assertFalse(DSAVerifier.verify(key, BigInteger.ONE, BigInteger.ZERO, hash));
+		assertFalse(DSAVerifier.verify(key, q, BigInteger.ONE, hash));
+		assertFalse(DSAVerifier.verify(key, BigInteger.ONE, q, hash));
+	}
+
+	/** A key used often gets a table, which gives the same answers. */
+	public void testKeyTable() {
+		BigInteger x = newPrivateKey();
+		DSAPublicKey key = publicKey(x);
+		DSAVerifier.forget(key);
+		for (int i = 0; i < DSAVerifier.KEY_TABLE_THRESHOLD * 2; i++) {
+			byte[] hash = Global.truncateHash(randomHash());
+			BigInteger[] sig = sign(x, hash);
+			assertTrue(DSAVerifier.verify(key, sig[0], sig[1], hash));
+			assertFalse(DSAVerifier.verify(key, sig[0], sig[1], randomHash()));
+		}
+		assertTrue(DSAVerifier.hasKeyTable(key));
+		// Equal, but not the same object, e.g. read from the store again.
+		assertTrue(DSAVerifier.hasKeyTable(key.cloneKey()));
+		DSAVerifier.forget(key.cloneKey());
+		assertFalse(DSAVerifier.hasKeyTable(key));
+	}
+
+	public void testFixedBaseTable() {
+		BigInteger p = GROUP.getP();
+		BigInteger q = GROUP.getQ();
+		BigInteger base = GROUP.getG();
+		for (int windowBits : new int[] { 1, 2, 4, 8 }) {
+			DSAVerifier.FixedBaseTable table = new DSAVerifier.FixedBaseTable(base, p, q.bitLength(), windowBits);
+			assertEquals(BigInteger.ONE, table.pow(BigInteger.ZERO));
+			assertEquals(base, table.pow(BigInteger.ONE));
+			BigInteger max = q.subtract(BigInteger.ONE);
+			assertEquals(base.modPow(max, p), table.pow(max));
+			for (int i = 0; i < 20; i++) {
+				BigInteger e = new BigInteger(q.bitLength(), random);
+				assertEquals(base.modPow(e, p), table.pow(e));
+			}
+			// Too big for the table.
+			BigInteger big = BigInteger.ONE.shiftLeft(q.bitLength() + 8).add(BigInteger.TEN);
+			assertEquals(base.modPow(big, p), table.pow(big));
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import freenet.keys.CHKBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FEC encode and decode of a full 128 data / 128 check block splitfile segment. Decode
+ * is the worst case, where every data block has to be recovered from the check blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OnionFECCodecBenchmark {
+
+	private static final int DATA_BLOCKS = 128;
+
+	private static final int CHECK_BLOCKS = 128;
+
+	private static final int BLOCK_SIZE = CHKBlock.DATA_LENGTH;
+
+	private final OnionFECCodec codec = new OnionFECCodec();
+
+	private byte[][] originalDataBlocks;
+
+	private byte[][] originalCheckBlocks;
+
+	/** Decoded into by decode(). */
+	private byte[][] dataBlocks;
+
+	/** Decoded from by decode(), encoded into by encode(). */
+	private byte[][] checkBlocks;
+
+	private boolean[] dataBlocksPresent;
+
+	private boolean[] checkBlocksPresent;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		Random random = new Random(1234);
+		this.originalDataBlocks = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		for (byte[] block : this.originalDataBlocks) {
+			random.nextBytes(block);
+		}
+		this.originalCheckBlocks = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		this.codec.encode(this.originalDataBlocks, this.originalCheckBlocks, new boolean[CHECK_BLOCKS], BLOCK_SIZE);
+		this.dataBlocks = new byte[DATA_BLOCKS][BLOCK_SIZE];
+		this.checkBlocks = new byte[CHECK_BLOCKS][BLOCK_SIZE];
+		this.dataBlocksPresent = new boolean[DATA_BLOCKS];
+		this.checkBlocksPresent = new boolean[CHECK_BLOCKS];
+	}
+
+	/** Each invocation takes tens of milliseconds, so resetting per invocation is fine. */
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		for (int i = 0; i < DATA_BLOCKS; i++) {
+			Arrays.fill(this.dataBlocks[i], (byte) 0);
+		}
+		Arrays.fill(this.dataBlocksPresent, false);
+		for (int i = 0; i < CHECK_BLOCKS; i++) {
+			System.arraycopy(this.originalCheckBlocks[i], 0, this.checkBlocks[i], 0, BLOCK_SIZE);
+		}
+		Arrays.fill(this.checkBlocksPresent, true);
+	}
+
+	@Benchmark
+	public byte[][] decode() {
+		this.codec.decode(this.dataBlocks, this.checkBlocks, this.dataBlocksPresent, this.checkBlocksPresent,
+				BLOCK_SIZE);
+		return this.dataBlocks;
+	}
+
+	@Benchmark
+	public byte[][] encode() {
+		Arrays.fill(this.checkBlocksPresent, false);
+		this.codec.encode(this.originalDataBlocks, this.checkBlocks, this.checkBlocksPresent, BLOCK_SIZE);
+		return this.checkBlocks;
+	}
+
+}
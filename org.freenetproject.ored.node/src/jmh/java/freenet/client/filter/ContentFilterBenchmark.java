@@ -0,0 +1,98 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the CSS and HTML filters on typical freesite content. Each invocation
+ * filters about 64 KiB, so operations per second times 64 is KiB per second. Both CSS
+ * tokenizers are measured, see {@link ContentFilter#streamingCSSTokenizer}; the HTML filter
+ * uses the CSS filter for styles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentFilterBenchmark {
+
+	private static final int TARGET_LENGTH = 64 * 1024;
+
+	private static final String CSS_RULES = ""
+			+ "body { margin: 0 auto; padding: 1em 2%; font-family: \"DejaVu Sans\", sans-serif; }\n"
+			+ "h1, h2 > span.title { color: #336699; border-bottom: 1px solid rgb(200, 200, 200); }\n"
+			+ "a:hover { text-decoration: underline; background: url(\"/CHK@abc/image.png\") no-repeat; }\n"
+			+ "@media screen { div#content { width: 80%; float: left; } }\n"
+			+ "ul li + li { list-style-type: square; margin-left: -0.5em !important; }\n";
+
+	private static final String HTML_BODY = "<div class=\"post\" id=\"p1\"><h2>Title</h2>\n"
+			+ "<p>Some <b>bold</b> and <i>italic</i> text with <a href=\"/USK@abc/site/1/\">a link</a>"
+			+ " and an <img src=\"image.png\" alt=\"image\" width=\"10\" height=\"10\">.</p>\n"
+			+ "<table><tr><td style=\"color: red\">cell</td><td>&amp; &lt;entity&gt;</td></tr></table>\n"
+			+ "<ul><li>one</li><li>two</li></ul></div>\n";
+
+	@Param({ "true", "false" })
+	public boolean streamingCSSTokenizer;
+
+	private String css;
+
+	private byte[] html;
+
+	private FilterCallback cb;
+
+	@Setup
+	public void setup() throws URISyntaxException {
+		ContentFilter.streamingCSSTokenizer = this.streamingCSSTokenizer;
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < TARGET_LENGTH) {
+			sb.append(CSS_RULES);
+		}
+		this.css = sb.toString();
+		sb = new StringBuilder("<!DOCTYPE html>\n<html><head><title>Benchmark</title>\n");
+		sb.append("<style type=\"text/css\">").append(CSS_RULES).append("</style></head><body>\n");
+		while (sb.length() < TARGET_LENGTH) {
+			sb.append(HTML_BODY);
+		}
+		sb.append("</body></html>\n");
+		this.html = sb.toString().getBytes(StandardCharsets.UTF_8);
+		this.cb = new GenericReadFilterCallback(new URI("/CHK@benchmark/index.html"), null, null, null);
+	}
+
+	@Benchmark
+	public String css() throws IOException {
+		StringWriter w = new StringWriter(this.css.length());
+		new CSSParser(new StringReader(this.css), w, false, this.cb, "UTF-8", false, false).parse();
+		return w.toString();
+	}
+
+	@Benchmark
+	public byte[] html() throws IOException, DataFilterException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(this.html.length);
+		new HTMLFilter().readFilter(new ByteArrayInputStream(this.html), os, "UTF-8", null, null, this.cb);
+		return os.toByteArray();
+	}
+
+}
@@ -0,0 +1,83 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of messages to and from the wire format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+	/** A request, which is small, or the CHK headers returned for it. */
+	@Param({ "FNPCHKDataRequest", "FNPCHKDataFound" })
+	public String type;
+
+	private Message message;
+
+	private byte[] encoded;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1234);
+		if ("FNPCHKDataRequest".equals(this.type)) {
+			byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+			random.nextBytes(routingKey);
+			this.message = DMT.createFNPCHKDataRequest(random.nextLong(), (short) 18,
+					new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256));
+		}
+		else {
+			byte[] headers = new byte[CHKBlock.TOTAL_HEADERS_LENGTH];
+			random.nextBytes(headers);
+			this.message = DMT.createFNPCHKDataFound(random.nextLong(), headers);
+		}
+		this.encoded = this.message.encodeToPacket();
+		if (this.decode() == null) {
+			throw new IllegalStateException("Unable to decode " + this.message);
+		}
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return this.message.encodeToPacket();
+	}
+
+	/** Into a buffer we already have, as the packet sender could. */
+	@Benchmark
+	public int encodeToBuffer() {
+		this.buffer.clear();
+		return this.message.encodeTo(this.buffer);
+	}
+
+	@Benchmark
+	public Message decode() {
+		return Message.decodeMessageFromPacket(this.encoded, 0, this.encoded.length, null, 0);
+	}
+
+}
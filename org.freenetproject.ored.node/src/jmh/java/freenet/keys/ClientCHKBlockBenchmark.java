@@ -0,0 +1,63 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import freenet.bucket.ArrayBucket;
+import freenet.bucket.ArrayBucketFactory;
+import freenet.bucket.Bucket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verifying and decrypting a full, uncompressed CHK block, as done for every block we
+ * fetch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientCHKBlockBenchmark {
+
+	/** Key.ALGO_AES_PCFB_256_SHA256 (old keys) or Key.ALGO_AES_CTR_256_SHA256. */
+	@Param({ "2", "3" })
+	public byte cryptoAlgorithm;
+
+	private final ArrayBucketFactory bucketFactory = new ArrayBucketFactory();
+
+	private CHKBlock block;
+
+	private ClientCHK key;
+
+	@Setup
+	public void setup() throws CHKEncodeException, IOException {
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		new Random(1234).nextBytes(data);
+		ClientCHKBlock encoded = ClientCHKBlock.encode(new ArrayBucket(data), false, true, (short) -1, data.length,
+				null, null, this.cryptoAlgorithm);
+		this.block = encoded.getBlock();
+		this.key = encoded.getClientKey();
+	}
+
+	/** Includes verifying the block against its routing key, as the fetch path does. */
+	@Benchmark
+	public Bucket decode() throws CHKVerifyException, CHKDecodeException, IOException {
+		return new ClientCHKBlock(this.block, this.key).decode(this.bucketFactory, CHKBlock.DATA_LENGTH, false);
+	}
+
+}
@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encryption and decryption of a single-fragment NPFPacket, as done for every data packet
+ * sent to or received from a peer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NewPacketFormatBenchmark {
+
+	/** Payload length. The largest fits a packet at the default MTU. */
+	@Param({ "64", "512", "1200" })
+	public int payloadLength;
+
+	private final Random random = new Random(1234);
+
+	private SessionKey sessionKey;
+
+	private NewPacketFormat format;
+
+	private NPFPacket packet;
+
+	private int paddedLength;
+
+	private byte[] encrypted;
+
+	@Setup
+	public void setup() throws UnsupportedCipherException {
+		// Encrypt and decrypt with the same key so we can read back what we sent.
+		byte[] key = this.randomBytes(32);
+		BlockCipher cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		BlockCipher ivCipher = new Rijndael(256, 256);
+		ivCipher.initialize(this.randomBytes(32));
+		this.sessionKey = new SessionKey(null, cipher, key, cipher, key, ivCipher, this.randomBytes(32),
+				this.randomBytes(32), new NewPacketFormatKeyContext(0, 0), 0);
+		this.format = new NewPacketFormat(null, 0, 0);
+
+		this.packet = new NPFPacket();
+		this.packet.setSequenceNumber(0);
+		byte[] data = this.randomBytes(this.payloadLength);
+		this.packet.addMessageFragment(new MessageFragment(this.payloadLength <= 255, false, true, 0,
+				this.payloadLength, this.payloadLength, 0, data, null));
+		this.paddedLength = this.packet.getLength() + NewPacketFormat.HMAC_LENGTH;
+		this.encrypted = this.encrypt();
+		if (this.decrypt() == null) {
+			throw new IllegalStateException("Unable to decrypt packet");
+		}
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		this.random.nextBytes(buf);
+		return buf;
+	}
+
+	@Benchmark
+	public byte[] encrypt() {
+		return NewPacketFormat.encryptPacket(this.packet, this.paddedLength, this.sessionKey, this.random);
+	}
+
+	@Benchmark
+	public NPFPacket decrypt() {
+		return this.format.tryDecipherPacket(this.encrypted, 0, this.encrypted.length, this.sessionKey);
+	}
+
+}
@@ -0,0 +1,184 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the closest peer to a target location, counting each peer's peers, as
+ * {@link PeerManager#closerPeer} does for every request: by looking at every peer, as it
+ * used to, and with a {@link RoutingIndex}. Only the location side of routing is measured;
+ * the checks on each peer, e.g. for backoff, are the same either way, but the index makes
+ * them only for the peers nearest the target.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingIndexBenchmark {
+
+	@Param({ "40", "100", "200" })
+	public int peerCount;
+
+	/** How many peers each peer has. */
+	private static final int DEGREE = 40;
+
+	/** How many peers the request has already been routed to. */
+	private static final int ROUTED_TO = 3;
+
+	private static final int TARGETS = 1024;
+
+	private final Random random = new Random(1234);
+
+	private double myLoc;
+
+	private double prevLoc;
+
+	private PeerLocation[] peers;
+
+	private double[] selectionRate;
+
+	private RoutingIndex index;
+
+	private Set<Integer> routedTo;
+
+	private double[] targets;
+
+	private int next;
+
+	@Setup
+	public void setup() {
+		this.myLoc = this.random.nextDouble();
+		this.prevLoc = this.random.nextDouble();
+		this.peers = new PeerLocation[this.peerCount];
+		this.selectionRate = new double[this.peerCount];
+		double[] own = new double[this.peerCount];
+		double[][] theirs = new double[this.peerCount][];
+		for (int i = 0; i < this.peerCount; i++) {
+			own[i] = this.random.nextDouble();
+			theirs[i] = new double[DEGREE];
+			for (int j = 0; j < DEGREE; j++) {
+				theirs[i][j] = this.random.nextDouble();
+			}
+			this.peers[i] = new PeerLocation(Double.toString(own[i]));
+			this.peers[i].updateLocation(own[i], theirs[i]);
+			this.selectionRate[i] = this.random.nextDouble();
+		}
+		this.index = new RoutingIndex(null, own, theirs);
+		this.routedTo = new HashSet<>();
+		while (this.routedTo.size() < ROUTED_TO) {
+			this.routedTo.add(this.random.nextInt(this.peerCount));
+		}
+		this.targets = new double[TARGETS];
+		for (int i = 0; i < TARGETS; i++) {
+			this.targets[i] = this.random.nextDouble();
+			if (this.scan(this.targets[i]) != this.lookup(this.targets[i])) {
+				throw new IllegalStateException("Scan and index disagree for " + this.targets[i]);
+			}
+		}
+	}
+
+	private double nextTarget() {
+		double target = this.targets[this.next];
+		this.next = (this.next + 1) % TARGETS;
+		return target;
+	}
+
+	@Benchmark
+	public int scan() {
+		return this.scan(this.nextTarget());
+	}
+
+	@Benchmark
+	public int index() {
+		return this.lookup(this.nextTarget());
+	}
+
+	/** What closerPeer used to do. */
+	private int scan(double target) {
+		double[] selectionRates = new double[this.peers.length];
+		double totalSelectionRate = 0.0;
+		for (int i = 0; i < this.peers.length; i++) {
+			selectionRates[i] = this.selectionRate[i];
+			totalSelectionRate += selectionRates[i];
+		}
+		Set<Double> excludeLocations = new HashSet<>();
+		excludeLocations.add(this.myLoc);
+		excludeLocations.add(this.prevLoc);
+		for (int r : this.routedTo) {
+			excludeLocations.add(this.peers[r].getLocation());
+		}
+		int closest = -1;
+		double closestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < this.peers.length; i++) {
+			if (this.routedTo.contains(i) || selectionRates[i] > totalSelectionRate) {
+				continue;
+			}
+			double diff = Location.distance(this.peers[i].getLocation(), target);
+			double l = this.peers[i].getClosestPeerLocation(target, excludeLocations);
+			if (!Double.isNaN(l)) {
+				diff = Math.min(diff, Location.distance(l, target));
+			}
+			if (diff < closestDistance) {
+				closestDistance = diff;
+				closest = i;
+			}
+		}
+		return closest;
+	}
+
+	/** What closerPeer does now. */
+	private int lookup(double target) {
+		RoutingIndex.Walk walk = this.index.walk(target);
+		try {
+			while (walk.next()) {
+				if (walk.isFOAF() && this.isExcluded(walk.location())) {
+					continue;
+				}
+				if (walk.markSeen()) {
+					continue;
+				}
+				int p = walk.owner();
+				if (this.routedTo.contains(p)) {
+					continue;
+				}
+				return p;
+			}
+			return -1;
+		}
+		finally {
+			walk.release();
+		}
+	}
+
+	private boolean isExcluded(double loc) {
+		if (loc == this.myLoc || loc == this.prevLoc) {
+			return true;
+		}
+		for (int r : this.routedTo) {
+			if (loc == this.peers[r].getLocation()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import freenet.bucket.ArrayBucket;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.TrivialTicker;
+import freenet.support.io.FileUtil;
+import freenet.support.node.SemiOrderedShutdownHook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CHK fetches and inserts against a SaltedHashFreenetStore in a temporary directory.
+ * Every block is in the store before measurement starts, so put() measures overwriting
+ * an existing key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaltedHashFreenetStoreBenchmark {
+
+	private static final int BLOCKS = 1024;
+
+	@Param({ "true", "false" })
+	public boolean slotFilter;
+
+	private File dir;
+
+	private SaltedHashFreenetStore<CHKBlock> saltStore;
+
+	private CHKStore store;
+
+	private CHKBlock[] blocks;
+
+	private NodeCHK[] keys;
+
+	private int next;
+
+	@Setup
+	public void setup() throws IOException, CHKEncodeException {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		this.dir = Files.createTempDirectory("saltedhash-benchmark").toFile();
+		Random random = new Random(1234);
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		this.store = new CHKStore();
+		this.saltStore = SaltedHashFreenetStore.construct(this.dir, "benchmark", this.store, random, BLOCKS * 2,
+				this.slotFilter, SemiOrderedShutdownHook.get(), true, true, new TrivialTicker(executor), null);
+		this.saltStore.start(null, true);
+		this.blocks = new CHKBlock[BLOCKS];
+		this.keys = new NodeCHK[BLOCKS];
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		for (int i = 0; i < BLOCKS; i++) {
+			random.nextBytes(data);
+			ClientCHKBlock block = ClientCHKBlock.encode(new ArrayBucket(data), false, true, (short) -1, data.length,
+					null, null, Key.ALGO_AES_CTR_256_SHA256);
+			this.blocks[i] = block.getBlock();
+			this.keys[i] = block.getClientKey().getNodeCHK();
+			this.store.put(this.blocks[i], false);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.saltStore.close();
+		FileUtil.removeAll(this.dir);
+	}
+
+	private int nextIndex() {
+		int i = this.next;
+		this.next = (i + 1) % BLOCKS;
+		return i;
+	}
+
+	@Benchmark
+	public CHKBlock fetch() throws IOException {
+		return this.store.fetch(this.keys[this.nextIndex()], false, false, null);
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		this.store.put(this.blocks[this.nextIndex()], false);
+	}
+
+}
@@ -0,0 +1,73 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and writing SimpleFieldSets shaped like a noderef: a few levels of nesting and
+ * a mix of short and long values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimpleFieldSetBenchmark {
+
+	/** Number of top level subsets. */
+	@Param({ "4", "64" })
+	public int subsets;
+
+	private SimpleFieldSet fieldSet;
+
+	private String text;
+
+	@Setup
+	public void setup() throws IOException {
+		this.fieldSet = new SimpleFieldSet(false);
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 64; i++) {
+			longValue.append(Integer.toHexString(i * 0x9E3779B1));
+		}
+		for (int i = 0; i < this.subsets; i++) {
+			String prefix = "subset" + i + ".";
+			this.fieldSet.putSingle(prefix + "version", "Fred,0.7,1.0,1503");
+			this.fieldSet.put(prefix + "opennet", (i & 1) == 0);
+			this.fieldSet.put(prefix + "location", i / (double) this.subsets);
+			this.fieldSet.putSingle(prefix + "physical.udp", "192.0.2." + i + ":12345");
+			this.fieldSet.putSingle(prefix + "ark.pubURI", longValue.toString());
+			this.fieldSet.putSingle(prefix + "auth.negTypes", "9;10");
+		}
+		this.text = this.write();
+	}
+
+	@Benchmark
+	public SimpleFieldSet parse() throws IOException {
+		return new SimpleFieldSet(this.text, false, true, false);
+	}
+
+	@Benchmark
+	public String write() throws IOException {
+		StringWriter sw = new StringWriter();
+		this.fieldSet.writeTo(sw);
+		return sw.toString();
+	}
+
+}
@@ -628,6 +628,7 @@ public class ClientGet extends FCPClientRequest
 	public void receive(ClientEvent ce, ClientContext context) {
 		if (logMINOR)
 			Logger.minor(this, "Receiving " + ce + " on " + this);
+		setModified(context);
 		final FCPMessage progress;
 		final int verbosityMask;
 		if (ce instanceof SplitfileProgressEvent) {
@@ -15,6 +15,7 @@ import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.FinishedCompressionEvent;
 import freenet.client.events.ExpectedHashesEvent;
+import freenet.client.events.InsertPipelineEvent;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.client.events.StartedCompressionEvent;
 import freenet.keys.FreenetURI;
@@ -46,6 +47,8 @@ public abstract class ClientPutBase extends FCPClientRequest implements ClientPu
 
 	private static final int VERBOSITY_COMPRESSION_START_END = 512;
 
+	private static final int VERBOSITY_INSERT_PIPELINE = 1024;
+
 	// Stuff waiting for reconnection
 	/** Has the request succeeded? */
 	protected boolean succeeded;
@@ -320,6 +323,18 @@ public abstract class ClientPutBase extends FCPClientRequest implements ClientPu
 			return;
 		if (logMINOR)
 			Logger.minor(this, "Receiving event " + ce + " on " + this);
+		if (ce instanceof InsertPipelineEvent) {
+			// Frequent and not persisted, so not kept as the progress message either.
+			if ((verbosity & VERBOSITY_INSERT_PIPELINE) == VERBOSITY_INSERT_PIPELINE) {
+				FCPMessage msg = new InsertPipelineMessage(identifier, global, (InsertPipelineEvent) ce);
+				if (persistence == Persistence.CONNECTION)
+					origHandler.outputHandler.queue(msg);
+				else
+					client.queueClientRequestMessage(msg, VERBOSITY_INSERT_PIPELINE);
+			}
+			return;
+		}
+		setModified(context);
 		if (ce instanceof SplitfileProgressEvent) {
 			if ((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
 				SimpleProgressMessage progress = new SimpleProgressMessage(identifier, global,
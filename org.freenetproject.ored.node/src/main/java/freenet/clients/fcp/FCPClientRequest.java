@@ -271,10 +271,17 @@ public abstract class FCPClientRequest implements Serializable, ClientRequest {
 		return persistence != Persistence.CONNECTION;
 	}
 
+	@Override
 	public boolean hasFinished() {
 		return finished;
 	}
 
+	/** Our persistent state has changed, so write us again at the next checkpoint. */
+	protected void setModified(ClientContext context) {
+		if (persistence == Persistence.FOREVER)
+			context.jobRunner.setModified(this);
+	}
+
 	/** Get identifier string for request */
 	public String getIdentifier() {
 		return identifier;
@@ -400,6 +407,7 @@ public abstract class FCPClientRequest implements Serializable, ClientRequest {
 			return; // quick return, nothing was changed
 		}
 
+		server.core.clientContext.jobRunner.setModified(this);
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 
 		// this could become too complex with more parameters, but for now its ok
@@ -0,0 +1,54 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.client.events.InsertPipelineEvent;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Throughput and queue depth of each stage of a splitfile insert. Only sent if the client
+ * asked for it in the Verbosity.
+ */
+public class InsertPipelineMessage extends FCPMessage {
+
+	final String identifier;
+
+	final boolean global;
+
+	final InsertPipelineEvent event;
+
+	public InsertPipelineMessage(String identifier, boolean global, InsertPipelineEvent event) {
+		this.identifier = identifier;
+		this.global = global;
+		this.event = event;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		for (InsertPipelineEvent.Stage stage : event.stages) {
+			String prefix = "Stage." + stage.name + ".";
+			fs.put(prefix + "Items", stage.items);
+			fs.put(prefix + "Bytes", stage.bytes);
+			fs.put(prefix + "BytesPerSecond", (long) stage.bytesPerSecond);
+			fs.put(prefix + "Queued", stage.queued);
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return "InsertPipeline";
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE,
+				"InsertPipeline goes from server to client not the other way around", identifier, global);
+	}
+
+}
@@ -168,6 +168,9 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	private final RequestClient rc;
 
+	/** What to cache the filtered data under, or null if it can't be cached. */
+	private final FilteredContentCache.Key cacheKey;
+
 	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier,
 			ClientContext context, FetchContext fctx, RequestClient rc, REFILTER_POLICY refilter) {
 		this.refilterPolicy = refilter;
@@ -177,6 +180,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		this.timeStarted = System.currentTimeMillis();
 		this.fctx = fctx;
 		this.rc = rc;
+		this.cacheKey = (tracker.filterCache == null) ? null : FilteredContentCache.makeKey(key, fctx);
 		FetchContext alteredFctx = new FetchContext(fctx, FetchContext.IDENTICAL_MASK);
 		alteredFctx.maxOutputLength = fctx.maxTempLength = maxSize;
 		alteredFctx.eventProducer.addEventListener(this);
@@ -219,7 +223,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	public void start(ClientContext context) throws FetchException {
 		try {
-			if (!checkCache(context))
+			if (!checkFilterCache() && !checkCache(context))
 				context.start(getter);
 		}
 		catch (FetchException e) {
@@ -238,6 +242,31 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/**
+	 * Look for a filtered copy of the data from an earlier fetch.
+	 * @return True if it was found and we don't need to start the request.
+	 */
+	private boolean checkFilterCache() {
+		if (cacheKey == null)
+			return false;
+		FetchResult result = tracker.filterCache.get(cacheKey, maxSize);
+		if (result == null)
+			return false;
+		onSuccess(result, null);
+		return true;
+	}
+
+	/**
+	 * Keep data we have filtered ourselves for later fetches of the same key.
+	 * @return The result to use instead, which may share the data with the cache.
+	 */
+	private FetchResult cacheFiltered(FetchResult result) {
+		if (cacheKey == null)
+			return result;
+		Bucket data = tracker.filterCache.put(cacheKey, result.getMimeType(), result.asBucket());
+		return new FetchResult(result, data);
+	}
+
 	/**
 	 * Look up the key in the downloads queue.
 	 * @return True if it was found and we don't need to start the request.
@@ -330,7 +359,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				os = null;
 				// Since we are not re-using the data bucket, we can happily stay in the
 				// FProxyFetchTracker.
-				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
+				this.onSuccess(cacheFiltered(new FetchResult(new ClientMetadata(fullMimeType), output)), null);
 				output = null;
 				return true;
 			}
@@ -474,6 +503,9 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
+		// Data from the downloads queue or the cache isn't ours to cache.
+		if (state != null)
+			result = cacheFiltered(result);
 		Bucket droppedData = null;
 		synchronized (this) {
 			if (cancelled)
@@ -38,15 +38,20 @@ public class FProxyFetchTracker implements Runnable {
 
 	private final RequestClient rc;
 
+	/** Filtered data from earlier fetches, or null. */
+	final FilteredContentCache filterCache;
+
 	private boolean queuedJob;
 
 	private boolean requeue;
 
-	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc,
+			FilteredContentCache filterCache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		this.filterCache = filterCache;
 	}
 
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx,
@@ -6,8 +6,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -18,6 +16,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import freenet.bucket.Bucket;
 import freenet.bucket.BucketFactory;
@@ -74,7 +73,6 @@ import freenet.support.URIPreEncoder;
 import freenet.support.URLEncoder;
 import freenet.support.client.DefaultMIMETypes;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
 
@@ -143,6 +141,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	// FIXME make this configurable (or get rid of prefetch support)
 	static final int MAX_PREFETCH = 50;
 
+	/** Most ranges we send separately; if asked for more, we send all the data. */
+	static final int MAX_RANGES = 16;
+
 	public FProxyToadlet(final HighLevelSimpleClient client, NodeClientCore core, FProxyFetchTracker tracker) {
 		super(client);
 		client.setMaxLength(MAX_LENGTH_NO_PROGRESS);
@@ -319,6 +320,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			// Testing on FF3.5.1 shows that application/x-force-download wants to run it
 			// in wine,
 			// whereas application/force-download wants to save it.
+			String etag = getETag(key, requestedMimeType, maybeCharset, force, true);
+			if (etag != null)
+				headers.put("ETag", etag);
 			context.sendReplyHeadersFProxy(200, "OK", headers, "application/force-download", size);
 			context.writeData(data);
 		}
@@ -335,51 +339,38 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			 * How_Mozilla_determines_MIME_Types#HTTP
 			 */
 			retHdr.put("Content-Encoding", "identity");
+			retHdr.put("X-Content-Type-Options", "nosniff");
+			retHdr.put("Accept-Ranges", "bytes");
+			String etag = getETag(key, requestedMimeType, maybeCharset, force, false);
+			if (etag != null)
+				retHdr.put("ETag", etag);
 
 			String rangeStr = hdr.get("range");
-			// was a range request
-			if (rangeStr != null) {
-
-				long range[];
+			List<long[]> ranges = null;
+			// was a range request, for the data we still have
+			if (rangeStr != null && ifRangeMatches(hdr.get("if-range"), etag)) {
 				try {
-					range = parseRange(rangeStr);
+					ranges = resolveRanges(parseRanges(rangeStr), size);
 				}
 				catch (HTTPRangeException e) {
 					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
-				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem
-					// instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE
-					// caused by the connection to the client and an internal one, we just
-					// close the connection in both cases.
-					os.close();
-					os = null; // If we can't write, we need to throw, so we don't send
-								// too little data.
-				}
-				finally {
-					Closer.close(is);
-					Closer.close(os);
+				if (ranges.isEmpty()) {
+					MultiValueTable<String, String> rangeHdr = new MultiValueTable<String, String>();
+					rangeHdr.put("Content-Range", "bytes */" + size);
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", rangeHdr, null, 0);
+					return;
 				}
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
-				retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+				// Not worth it, just send the lot.
+				if (ranges.size() > MAX_RANGES)
+					ranges = null;
 			}
-			else {
-				retHdr.put("X-Content-Type-Options", "nosniff");
+			// FIXME catch IOException when writing and tell the user there is a problem
+			// instead of just closing the connection. Currently there is no way to tell
+			// the difference between an IOE caused by the connection to the client and an
+			// internal one, we just close the connection in both cases.
+			if (ranges == null) {
 				if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
 					context.sendReplyHeadersStatic(200, "OK", retHdr, mimeType, size, new Date());
 				}
@@ -388,7 +379,43 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 				context.writeData(data);
 			}
+			else if (ranges.size() == 1) {
+				long[] range = ranges.get(0);
+				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, range[1] - range[0] + 1);
+				context.writeData(data, range[0], range[1] - range[0] + 1);
+			}
+			else {
+				writeRanges(context, retHdr, data, mimeType, size, ranges);
+			}
+		}
+	}
+
+	/**
+	 * Send several ranges of the data as multipart/byteranges, straight from the bucket.
+	 * @param ranges The ranges, from {@link #resolveRanges(List, long)}.
+	 */
+	private static void writeRanges(ToadletContext ctx, MultiValueTable<String, String> retHdr, Bucket data,
+			String mimeType, long size, List<long[]> ranges) throws ToadletContextClosedException, IOException {
+		String boundary = "freenet-byteranges-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+		byte[][] partHeaders = new byte[ranges.size()][];
+		long length = 0;
+		for (int i = 0; i < partHeaders.length; i++) {
+			long[] range = ranges.get(i);
+			partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: bytes "
+					+ range[0] + "-" + range[1] + "/" + size + "\r\n\r\n").getBytes("US-ASCII");
+			length += partHeaders[i].length + range[1] - range[0] + 1;
 		}
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+		length += end.length;
+		ctx.sendReplyHeadersFProxy(206, "Partial content", retHdr, "multipart/byteranges; boundary=" + boundary,
+				length);
+		for (int i = 0; i < partHeaders.length; i++) {
+			long[] range = ranges.get(i);
+			ctx.writeData(partHeaders[i]);
+			ctx.writeData(data, range[0], range[1] - range[0] + 1);
+		}
+		ctx.writeData(end);
 	}
 
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
@@ -656,7 +683,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		String rangeStr = ctx.getHeaders().get("range");
 		if (rangeStr != null) {
 			try {
-				parseRange(rangeStr);
+				parseRanges(rangeStr);
 			}
 			catch (HTTPRangeException e) {
 				Logger.normal(this, "Invalid Range Header: " + rangeStr, e);
@@ -780,6 +807,19 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				override = override + "&forcedownload";
 		}
 
+		// The browser already has the data, and it can't have changed, so don't fetch it.
+		String etag = getETag(key, requestedMimeType, maybeCharset, force,
+				httprequest.isParameterSet("forcedownload"));
+		if (etag != null && etagMatches(ctx.getHeaders().get("if-none-match"), etag)) {
+			MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+			retHdr.put("ETag", etag);
+			if (container.enableCachingForChkAndSskKeys())
+				ctx.sendReplyHeadersStatic(304, "Not Modified", retHdr, null, -1, new Date());
+			else
+				ctx.sendReplyHeadersFProxy(304, "Not Modified", retHdr, null, -1);
+			return;
+		}
+
 		Bucket data = null;
 		String mimeType = null;
 		String referer = sanitizeReferer(ctx);
@@ -1337,8 +1377,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		random = new byte[32];
 		core.random.nextBytes(random);
 
+		core.tempBucketFactory.addRAMPressureListener(server.filteredContentCache);
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.clientContext, client.getFetchContext(),
-				new RequestClientBuilder().realTime().build());
+				new RequestClientBuilder().realTime().build(), server.filteredContentCache);
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
 		core.setFProxy(fproxy);
@@ -1459,6 +1500,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 				"FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, node.nodeStats);
+		server.register(metricsToadlet, null, MetricsToadlet.PATH, true, true);
+
 		ConnectivityToadlet connectivityToadlet = new ConnectivityToadlet(client, node);
 		server.register(connectivityToadlet, "FProxyToadlet.categoryStatus", "/connectivity/", true,
 				"ConnectivityToadlet.connectivityTitle", "ConnectivityToadlet.connectivity", true, null);
@@ -1510,27 +1554,107 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/**
+	 * The ETag of what we send for a key, for conditional requests. Only CHKs and SSKs
+	 * always have the same data, so other keys have none. Covers everything in the request
+	 * which changes what we send, and is different after a restart, so it can't be used to
+	 * tell what someone has looked at before.
+	 */
+	static String getETag(FreenetURI key, String requestedMimeType, String maybeCharset, boolean force,
+			boolean forceDownload) {
+		if (!(key.isCHK() || key.isSSK()))
+			return null;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			bos.write(random);
+			bos.write(key.toString().getBytes("UTF-8"));
+			bos.write(("\n" + requestedMimeType + "\n" + maybeCharset + "\n" + force + "\n" + forceDownload)
+					.getBytes("UTF-8"));
+		}
+		catch (IOException e) {
+			throw new Error(e);
+		}
+		return '"' + HexUtil.bytesToHex(SHA256.digest(bos.toByteArray())) + '"';
+	}
 
-		long result[] = new long[2];
+	/**
+	 * @param ifNoneMatch The If-None-Match header, may be null.
+	 * @return True if it includes the given ETag, i.e. the browser already has the data.
+	 */
+	static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param ifRange The If-Range header, may be null.
+	 * @param etag Our ETag for the data, null if it may have changed.
+	 * @return True if the Range header should be used, false if the browser's copy is out
+	 * of date and it should get all the data instead.
+	 */
+	static boolean ifRangeMatches(String ifRange, String etag) {
+		if (ifRange == null)
+			return true;
+		if (etag == null)
+			return false;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\""))
+			return ifRange.equals(etag);
+		// A weak ETag never matches. Otherwise it's a date, and the data hasn't changed
+		// since any date.
+		return !ifRange.startsWith("W/");
+	}
+
+	/**
+	 * Parse a Range header.
+	 * @return The ranges, in the order given. Each is {first, last}, inclusive; last is -1
+	 * if the range goes to the end, and first is -1 if it is the last so many bytes.
+	 */
+	static List<long[]> parseRanges(String hdrrange) throws HTTPRangeException {
+		List<long[]> ranges = new ArrayList<long[]>();
 		try {
 			String[] units = hdrrange.split("=", 2);
 			// FIXME are MBytes and co valid? if so, we need to adjust the values and
 			// return always bytes
-			if (!"bytes".equals(units[0])) {
+			if (!"bytes".equals(units[0].trim())) {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
-			if (result[0] < 0)
-				throw new HTTPRangeException("Negative 'from' value");
-			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
-			}
-			else {
-				result[1] = -1;
+			for (String spec : units[1].split(",")) {
+				spec = spec.trim();
+				if (spec.isEmpty())
+					continue;
+				String[] range = spec.split("-", 2);
+				long[] result = new long[2];
+				String from = range[0].trim();
+				String to = range[1].trim();
+				if (from.isEmpty()) {
+					result[0] = -1;
+					result[1] = Long.parseLong(to);
+					if (result[1] <= 0)
+						throw new HTTPRangeException("Suffix length must be positive");
+				}
+				else {
+					result[0] = Long.parseLong(from);
+					if (result[0] < 0)
+						throw new HTTPRangeException("Negative 'from' value");
+					if (to.length() > 0) {
+						result[1] = Long.parseLong(to);
+						if (result[1] < result[0])
+							throw new HTTPRangeException("'from' value must not be more than 'to' value");
+					}
+					else {
+						result[1] = -1;
+					}
+				}
+				ranges.add(result);
 			}
 		}
 		catch (NumberFormatException nfe) {
@@ -1539,7 +1663,43 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		catch (IndexOutOfBoundsException ioobe) {
 			throw new HTTPRangeException(ioobe);
 		}
-		return result;
+		if (ranges.isEmpty())
+			throw new HTTPRangeException("No ranges");
+		return ranges;
+	}
+
+	/**
+	 * Work out which bytes the ranges ask for, given the size of the data.
+	 * @param ranges From {@link #parseRanges(String)}.
+	 * @return The ranges, as inclusive {first, last} within the data, sorted, with any
+	 * that overlap or touch merged. Empty if none of them are within the data.
+	 */
+	static List<long[]> resolveRanges(List<long[]> ranges, long size) {
+		List<long[]> resolved = new ArrayList<long[]>(ranges.size());
+		for (long[] range : ranges) {
+			long first = range[0];
+			long last = range[1];
+			if (first == -1) {
+				first = Math.max(0, size - last);
+				last = size - 1;
+			}
+			else if (last == -1 || last >= size) {
+				last = size - 1;
+			}
+			if (first >= size)
+				continue;
+			resolved.add(new long[] { first, last });
+		}
+		resolved.sort((a, b) -> Long.compare(a[0], b[0]));
+		List<long[]> merged = new ArrayList<long[]>(resolved.size());
+		for (long[] range : resolved) {
+			long[] prev = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (prev != null && range[0] <= prev[1] + 1)
+				prev[1] = Math.max(prev[1], range[1]);
+			else
+				merged.add(range);
+		}
+		return merged;
 	}
 
 	@Override
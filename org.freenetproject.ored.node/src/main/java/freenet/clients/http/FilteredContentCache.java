@@ -0,0 +1,303 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+
+import freenet.bucket.Bucket;
+import freenet.bucket.MultiReaderBucket;
+import freenet.bucket.TempBucketFactory;
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.keys.FreenetURI;
+import freenet.nodelogger.Logger;
+import freenet.support.LRUMap;
+
+/**
+ * Filtered copies of the files FProxy has shown recently, so that showing one again, e.g.
+ * in another tab or to another user of a gateway, doesn't run the content filter over it
+ * again. Only CHKs and SSKs are cached, as their content can't change; the key also
+ * includes everything else the filter's output depends on.
+ *
+ * Limited to a total size in bytes, dropping the least recently used first. The data is
+ * shared with {@link MultiReaderBucket}, so an entry which is dropped while it is being
+ * sent to a browser is only freed once it has been sent. The buckets come from the
+ * {@link TempBucketFactory}, which asks us to drop those in RAM when it runs short, before
+ * it moves buckets which are still in use to disk.
+ */
+public class FilteredContentCache implements TempBucketFactory.RAMPressureListener {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FilteredContentCache.class);
+	}
+
+	/** No entry may take up more than this fraction of the cache. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	/** What the filter's output depends on. */
+	static final class Key {
+
+		final FreenetURI uri;
+
+		/** The MIME type the user asked for, if any. */
+		final String overrideMIME;
+
+		final String charset;
+
+		/** Where links are rewritten to point to. */
+		final String schemeHostAndPort;
+
+		private final int hashCode;
+
+		Key(FreenetURI uri, String overrideMIME, String charset, String schemeHostAndPort) {
+			this.uri = uri;
+			this.overrideMIME = overrideMIME;
+			this.charset = charset;
+			this.schemeHostAndPort = schemeHostAndPort;
+			this.hashCode = Objects.hash(uri, overrideMIME, charset, schemeHostAndPort);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hashCode == k.hashCode && uri.equals(k.uri) && Objects.equals(overrideMIME, k.overrideMIME)
+					&& Objects.equals(charset, k.charset) && Objects.equals(schemeHostAndPort, k.schemeHostAndPort);
+		}
+
+		@Override
+		public String toString() {
+			return uri + ":" + overrideMIME + ":" + charset + ":" + schemeHostAndPort;
+		}
+
+	}
+
+	private static final class Entry {
+
+		/** The data, which is freed once the cache and every reader have freed it. */
+		final MultiReaderBucket shared;
+
+		/** The cache's own reference to the data. */
+		final Bucket reference;
+
+		/** The bucket the data is actually in, to tell whether it is in RAM. */
+		final Bucket data;
+
+		final String mimeType;
+
+		final long size;
+
+		Entry(Bucket data, String mimeType) {
+			this.data = data;
+			this.shared = new MultiReaderBucket(data);
+			this.reference = this.shared.getReaderBucket();
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+
+		boolean inRAM() {
+			return data instanceof TempBucketFactory.TempBucket && ((TempBucketFactory.TempBucket) data).isRAMBucket();
+		}
+
+	}
+
+	private final LRUMap<Key, Entry> entries = new LRUMap<Key, Entry>();
+
+	private long maxSize;
+
+	private long size;
+
+	private long hits;
+
+	private long misses;
+
+	private long stored;
+
+	private long evicted;
+
+	public FilteredContentCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return The key to cache a fetch's filtered data under, or null if it can't be
+	 * cached: the data isn't filtered, the key isn't a CHK or SSK, or the filter's output
+	 * isn't the same for everyone because of web-pushing.
+	 */
+	static Key makeKey(FreenetURI uri, FetchContext fctx) {
+		if (!fctx.filterData || fctx.tagReplacer != null)
+			return null;
+		if (!uri.isCHK() && !uri.isSSK())
+			return null;
+		return new Key(uri, fctx.overrideMIME, fctx.charset, fctx.getSchemeHostAndPort());
+	}
+
+	/**
+	 * Look for filtered data.
+	 * @param maxLength The largest the data may be.
+	 * @return The data and its MIME type, which the caller must free, or null.
+	 */
+	FetchResult get(Key key, long maxLength) {
+		Bucket reader;
+		String mimeType;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			reader = (entry == null || entry.size > maxLength) ? null : entry.shared.getReaderBucket();
+			if (reader == null) {
+				misses++;
+				return null;
+			}
+			entries.push(key, entry);
+			hits++;
+			mimeType = entry.mimeType;
+		}
+		if (logMINOR)
+			Logger.minor(this, "Found " + key);
+		return new FetchResult(new ClientMetadata(mimeType), reader);
+	}
+
+	/**
+	 * Keep filtered data, if it isn't too big. The cache takes over the data, and the
+	 * caller gets a bucket to use instead.
+	 * @return The bucket the caller should use and free instead of the one it passed in,
+	 * which is that bucket if it wasn't cached.
+	 */
+	Bucket put(Key key, String mimeType, Bucket data) {
+		Bucket reader;
+		List<Entry> toFree;
+		synchronized (this) {
+			if (data.size() > maxSize / MAX_ENTRY_FRACTION || entries.containsKey(key))
+				return data;
+			data.setReadOnly();
+			Entry entry = new Entry(data, mimeType);
+			// Before anything can evict it.
+			reader = entry.shared.getReaderBucket();
+			entries.push(key, entry);
+			size += entry.size;
+			stored++;
+			toFree = evict(maxSize);
+		}
+		free(toFree);
+		if (logMINOR)
+			Logger.minor(this, "Cached " + data.size() + " bytes for " + key);
+		return reader;
+	}
+
+	/** Drop the least recently used entries until the cache is no bigger than the limit. */
+	private synchronized List<Entry> evict(long limit) {
+		List<Entry> toFree = null;
+		while (size > limit) {
+			Entry entry = entries.popValue();
+			if (entry == null)
+				break;
+			size -= entry.size;
+			evicted++;
+			if (toFree == null)
+				toFree = new ArrayList<Entry>();
+			toFree.add(entry);
+		}
+		return toFree;
+	}
+
+	private static void free(List<Entry> toFree) {
+		if (toFree == null)
+			return;
+		for (Entry entry : toFree)
+			entry.reference.free();
+	}
+
+	/** Drop everything, e.g. because a filter setting has changed. */
+	public void clear() {
+		free(evict(-1));
+	}
+
+	@Override
+	public long shrinkRAMUsage(long bytes) {
+		List<Key> keys = new ArrayList<Key>();
+		List<Entry> toFree = new ArrayList<Entry>();
+		long freed = 0;
+		synchronized (this) {
+			// Least recently used first.
+			for (Enumeration<Key> e = entries.keys(); e.hasMoreElements() && freed < bytes;) {
+				Key key = e.nextElement();
+				Entry entry = entries.get(key);
+				if (!entry.inRAM())
+					continue;
+				keys.add(key);
+				toFree.add(entry);
+				freed += entry.size;
+			}
+			for (int i = 0; i < keys.size(); i++) {
+				entries.removeKey(keys.get(i));
+				size -= toFree.get(i).size;
+				evicted++;
+			}
+		}
+		free(toFree);
+		if (logMINOR)
+			Logger.minor(this, "Dropped " + toFree.size() + " entries, " + freed + " bytes, to free RAM");
+		return freed;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(long maxSize) {
+		List<Entry> toFree;
+		synchronized (this) {
+			this.maxSize = maxSize;
+			toFree = evict(maxSize);
+		}
+		free(toFree);
+	}
+
+	/** @return The total size of the cached data. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return The fraction of lookups which found something, or 0 if there have been none. */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0.0 : ((double) hits) / lookups;
+	}
+
+	/** @return The number of entries added. */
+	public synchronized long getStored() {
+		return stored;
+	}
+
+	/** @return The number of entries dropped to make room or free RAM. */
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+
+}
@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.http.HTTPRequest;
+import freenet.node.NodeStats;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Serves the node's metrics in the Prometheus text format, for monitoring tools. Unlike
+ * StatisticsToadlet, this doesn't build a page: the registry writes straight into one
+ * buffer. Requires full access.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String PATH = "/metrics/";
+
+	private final NodeStats stats;
+
+	MetricsToadlet(HighLevelSimpleClient client, NodeStats stats) {
+		super(client);
+		this.stats = stats;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx)
+			throws ToadletContextClosedException, IOException, RedirectException {
+		if (!ctx.checkFullAccess(this))
+			return;
+		writeReply(ctx, 200, MetricsRegistry.CONTENT_TYPE, "OK", stats.metrics.toText());
+	}
+
+	@Override
+	public String path() {
+		return PATH;
+	}
+
+}
@@ -21,6 +21,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Random;
 
+import freenet.client.filter.ContentFilter;
 import freenet.client.filter.HTMLFilter;
 import freenet.client.filter.LinkFilterExceptionProvider;
 import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
@@ -161,6 +162,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	/** The IntervalPusherManager handles interval pushing */
 	public IntervalPusherManager intervalPushManager;
 
+	static final long DEFAULT_FILTER_CACHE_SIZE = 16 * 1024 * 1024;
+
+	/** Filtered copies of what FProxy has shown recently. Sized by the config. */
+	final FilteredContentCache filteredContentCache = new FilteredContentCache(0);
+
 	private static volatile boolean logMINOR;
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
@@ -229,6 +235,22 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 
 	}
 
+	private class FProxyFilterCacheSizeCallback extends LongCallback {
+
+		@Override
+		public Long get() {
+			return filteredContentCache.getMaxSize();
+		}
+
+		@Override
+		public void set(Long val) throws InvalidConfigValueException {
+			if (val < 0)
+				throw new InvalidConfigValueException(l10n("filterCacheSizeNegative"));
+			filteredContentCache.setMaxSize(val);
+		}
+
+	}
+
 	private class FProxyPortCallback extends IntCallback {
 
 		@Override
@@ -748,6 +770,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				true, false, "SimpleToadletServer.passthroughMaxSizeProgress",
 				"SimpleToadletServer.passthroughMaxSizeProgressLong", new FProxyPassthruMaxSizeProgress(), true);
 		FProxyToadlet.MAX_LENGTH_WITH_PROGRESS = fproxyConfig.getLong("passthroughMaxSizeProgress");
+		fproxyConfig.register("filterCacheSize", DEFAULT_FILTER_CACHE_SIZE, configItemOrder++, true, false,
+				"SimpleToadletServer.filterCacheSize", "SimpleToadletServer.filterCacheSizeLong",
+				new FProxyFilterCacheSizeCallback(), true);
+		filteredContentCache.setMaxSize(Math.max(0, fproxyConfig.getLong("filterCacheSize")));
 		System.out.println("Set fproxy max length to " + FProxyToadlet.MAX_LENGTH_NO_PROGRESS
 				+ " and max length with progress to " + FProxyToadlet.MAX_LENGTH_WITH_PROGRESS + " = "
 				+ fproxyConfig.getLong("passthroughMaxSizeProgress"));
@@ -842,6 +868,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 							throw new InvalidConfigValueException("-1 = disabled, 0+ = set a minimum interval"); // FIXME
 																													// l10n
 						HTMLFilter.metaRefreshSamePageMinInterval = val;
+						filteredContentCache.clear();
 					}
 				}, false);
 		HTMLFilter.metaRefreshSamePageMinInterval = Math.max(-1, fproxyConfig.getInt("metaRefreshSamePageInterval"));
@@ -861,6 +888,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 							throw new InvalidConfigValueException("-1 = disabled, 0+ = set a minimum interval"); // FIXME
 																													// l10n
 						HTMLFilter.metaRefreshRedirectMinInterval = val;
+						filteredContentCache.clear();
 					}
 				}, false);
 		HTMLFilter.metaRefreshRedirectMinInterval = Math.max(-1, fproxyConfig.getInt("metaRefreshRedirectInterval"));
@@ -877,10 +905,28 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					@Override
 					public void set(Boolean val) {
 						HTMLFilter.embedM3uPlayer = val;
+						filteredContentCache.clear();
 					}
 				});
 		HTMLFilter.embedM3uPlayer = fproxyConfig.getBoolean("embedM3uPlayerInFreesites");
 
+		fproxyConfig.register("streamingCSSTokenizer", true, configItemOrder++, true, false,
+				"SimpleToadletServer.streamingCSSTokenizer", "SimpleToadletServer.streamingCSSTokenizerLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return ContentFilter.streamingCSSTokenizer;
+					}
+
+					@Override
+					public void set(Boolean val) {
+						// The output is the same either way, so the filter cache stays valid.
+						ContentFilter.streamingCSSTokenizer = val;
+					}
+				});
+		ContentFilter.streamingCSSTokenizer = fproxyConfig.getBoolean("streamingCSSTokenizer");
+
 		fproxyConfig.register("refilterPolicy", "RE_FILTER", configItemOrder++, true, false,
 				"SimpleToadletServer.refilterPolicy", "SimpleToadletServer.refilterPolicyLong", new ReFilterCallback());
 
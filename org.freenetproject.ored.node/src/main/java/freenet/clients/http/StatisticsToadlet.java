@@ -16,6 +16,7 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import freenet.client.FECExecutor;
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.request.RequestClient;
@@ -23,10 +24,12 @@ import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.http.HTTPRequest;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.NioUdpSocketHandler;
 import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
+import freenet.node.FailureTable;
 import freenet.node.Location;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
@@ -469,6 +472,13 @@ public class StatisticsToadlet extends Toadlet {
 				HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 				drawThreadPriorityStatsBox(threadsPriorityInfobox);
 
+				drawFailureTableShardsBox(nextTableCell.addChild("div", "class", "infobox"));
+
+				FProxyToadlet fproxy = core.getFProxy();
+				if (fproxy != null && fproxy.fetchTracker.filterCache != null)
+					drawFilterCacheBox(nextTableCell.addChild("div", "class", "infobox"),
+							fproxy.fetchTracker.filterCache);
+
 				nextTableCell = overviewTableRow.addChild("td");
 
 				// thread usage box
@@ -659,6 +669,9 @@ public class StatisticsToadlet extends Toadlet {
 		jvmStatsList.addChild("li", l10n("maxMemory", "memory", SizeUtil.formatSize(maxJavaMem, true)));
 		jvmStatsList.addChild("li", l10n("threads", new String[] { "running", "max" },
 				new String[] { thousandPoint.format(threadCount), Integer.toString(stats.getThreadLimit()) }));
+		int virtualThreadCount = stats.getVirtualThreadCount();
+		if (virtualThreadCount > 0)
+			jvmStatsList.addChild("li", l10n("virtualThreads", "count", thousandPoint.format(virtualThreadCount)));
 		jvmStatsList.addChild("li", l10n("cpus", "count", Integer.toString(availableCpus)));
 		jvmStatsList.addChild("li", l10n("javaVersion", "version", System.getProperty("java.version")));
 		jvmStatsList.addChild("li", l10n("jvmVendor", "vendor", System.getProperty("java.vendor")));
@@ -697,6 +710,44 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
+	private void drawFailureTableShardsBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("failureTableShards"));
+		HTMLNode content = box.addChild("div", "class", "infobox-content");
+		FailureTable failureTable = node.getFailureTable();
+
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("failureTableShard"));
+		row.addChild("th", l10n("failureTableKeys"));
+		row.addChild("th", l10n("failureTableOffers"));
+		row.addChild("th", l10n("failureTableExpiring"));
+		row.addChild("th", l10n("failureTableLocked"));
+		row.addChild("th", l10n("failureTableContended"));
+
+		for (int i = 0; i < failureTable.getShardCount(); i++) {
+			long acquired = failureTable.getShardLockAcquisitions(i);
+			long contended = failureTable.getShardLockContentions(i);
+			row = table.addChild("tr");
+			row.addChild("td", String.valueOf(i));
+			row.addChild("td", String.valueOf(failureTable.getShardEntries(i)));
+			row.addChild("td", String.valueOf(failureTable.getShardOffers(i)));
+			row.addChild("td", String.valueOf(failureTable.getShardScheduledExpiries(i)));
+			row.addChild("td", String.valueOf(acquired));
+			row.addChild("td", acquired == 0 ? "-" : fix3p1pct.format(((double) contended) / acquired));
+		}
+	}
+
+	private void drawFilterCacheBox(HTMLNode box, FilteredContentCache cache) {
+		box.addChild("div", "class", "infobox-header", "Filtered content cache");
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", "Size:\u00a0" + SizeUtil.formatSize(cache.getSize()) + " / "
+				+ SizeUtil.formatSize(cache.getMaxSize()) + " in " + cache.getEntries() + " entries");
+		long hits = cache.getHits();
+		list.addChild("li", "Hits:\u00a0" + hits + " / " + (hits + cache.getMisses()) + " ("
+				+ fix3p1pct.format(cache.getHitRate()) + ")");
+		list.addChild("li", "Stored:\u00a0" + cache.getStored() + ", evicted:\u00a0" + cache.getEvicted());
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -1442,9 +1493,15 @@ public class StatisticsToadlet extends Toadlet {
 				"pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())
 						+ " (CHK) " + fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT()) + " (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "messageFilters:\u00a0" + node.getUSM().getFilterCount() + "\u00a0("
+				+ fix1p1.format(node.getUSM().getFiltersScannedPerMessage()) + " scanned per message)");
 		overviewList.addChild("li",
 				"RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed()) + " / "
 						+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		overviewList.addChild("li",
+				"FEC:\u00a0" + FECExecutor.getDecodes() + " decodes at "
+						+ SizeUtil.formatSize((long) FECExecutor.getDecodeRate()) + "/s, " + FECExecutor.getEncodes()
+						+ " encodes at " + SizeUtil.formatSize((long) FECExecutor.getEncodeRate()) + "/s");
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
@@ -1452,6 +1509,7 @@ public class StatisticsToadlet extends Toadlet {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"
 					+ fix3p1pct.format(((double) decoded[0]) / ((double) decoded[1])) + "\u00a0(" + decoded[1] + ")");
 		}
+		overviewList.addChild("li", "packetsDroppedSendQueueFull:\u00a0" + NioUdpSocketHandler.getDroppedSends());
 
 	}
 
@@ -110,6 +110,16 @@ public interface ToadletContext {
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Write part of a bucket, e.g. for a range request. You must send reply headers first.
+	 * Only the requested part is read, and it is not copied anywhere else first.
+	 * @param data The Bucket which contains the data. Unlike {@link #writeData(Bucket)},
+	 * this does not free it, so several parts can be sent from the same bucket.
+	 * @param offset Where to start.
+	 * @param length How many bytes to send.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Get the page maker object.
 	 */
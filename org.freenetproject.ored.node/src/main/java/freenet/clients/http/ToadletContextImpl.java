@@ -12,6 +12,9 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -77,6 +80,12 @@ public class ToadletContextImpl implements ToadletContext {
 
 	private final OutputStream sockOutputStream;
 
+	/**
+	 * The socket's own channel if it has one, so that files can be sent to it without
+	 * going through the JVM, otherwise a channel writing to {@link #sockOutputStream}.
+	 */
+	private final WritableByteChannel sockChannel;
+
 	private final PageMaker pagemaker;
 
 	private final BucketFactory bf;
@@ -128,6 +137,8 @@ public class ToadletContextImpl implements ToadletContext {
 		this.closed = false;
 		this.uri = uri;
 		sockOutputStream = sock.getOutputStream();
+		SocketChannel channel = sock.getChannel();
+		sockChannel = (channel != null) ? channel : Channels.newChannel(sockOutputStream);
 		remoteAddr = sock.getInetAddress();
 		if (logDEBUG)
 			Logger.debug(this, "Connection from " + remoteAddr);
@@ -927,6 +938,18 @@ public class ToadletContextImpl implements ToadletContext {
 		data.free();
 	}
 
+	/**
+	 * Sends the data straight from the file with FileChannel.transferTo() if it is in an
+	 * unencrypted file, and otherwise reads just the part needed, through one buffer.
+	 * @see BucketTools#copyTo(Bucket, WritableByteChannel, long, long)
+	 */
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
+		if (closed)
+			throw new ToadletContextClosedException();
+		BucketTools.copyTo(data, sockChannel, offset, length);
+	}
+
 	@Override
 	public BucketFactory getBucketFactory() {
 		return bf;
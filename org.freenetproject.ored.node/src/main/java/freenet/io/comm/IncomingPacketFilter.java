@@ -4,6 +4,7 @@
 package freenet.io.comm;
 
 import freenet.node.OutgoingPacketMangler;
+import freenet.nodelogger.Logger;
 
 /**
  * Filter interface used by Freenet to decrypt incoming UDP packets.
@@ -14,7 +15,10 @@ public interface IncomingPacketFilter {
 
 	public enum DECODED {
 
-		DECODED, NOT_DECODED, DIDNT_WANT_OPENNET, SHUTTING_DOWN
+		DECODED, NOT_DECODED, DIDNT_WANT_OPENNET, SHUTTING_DOWN,
+
+		/** Handed to another thread to decode, so the result isn't known yet. */
+		QUEUED
 
 	}
 
@@ -32,6 +36,26 @@ public interface IncomingPacketFilter {
 	 */
 	DECODED process(byte[] buf, int offset, int length, Peer peer, long now);
 
+	/**
+	 * Process several packets which were received together. By default, each is passed
+	 * to process() in turn. A failure to process one packet must not lose the rest.
+	 * @param bufs The packets, each starting at offset 0. May be reused later on.
+	 * @param lengths The length of each packet.
+	 * @param peers The peer which sent each packet.
+	 * @param count The number of packets.
+	 * @param now The time at which the packets were received.
+	 */
+	default void processBatch(byte[][] bufs, int[] lengths, Peer[] peers, int count, long now) {
+		for (int i = 0; i < count; i++) {
+			try {
+				process(bufs[i], 0, lengths[i], peers[i], now);
+			}
+			catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " processing packet from " + peers[i], t);
+			}
+		}
+	}
+
 	// Outgoing packets are handled elsewhere...
 
 	/**
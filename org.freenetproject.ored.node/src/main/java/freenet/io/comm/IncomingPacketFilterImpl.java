@@ -3,6 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.io.comm;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.crypt.EntropySource;
@@ -13,7 +19,22 @@ import freenet.node.PeerNode;
 import freenet.support.LogThresholdCallback;
 import freenet.nodelogger.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.TokenBucket;
+import freenet.support.io.NativeThread;
 
+/**
+ * Decodes the packets received on one port. The peer a packet came from is looked up by
+ * its address, which doesn't depend on how many peers we have. Packets which can't be
+ * decoded by that peer go to the packet mangler, for handshakes, and if it doesn't want
+ * them either, we try every peer in case one has changed its address.
+ *
+ * Optionally, packets from known peers are decoded on several threads. Each peer's
+ * packets always go to the same thread, so are handled in the order they arrived. Any
+ * which that peer can't decode, and packets from unknown addresses, go to a single thread
+ * for the packet mangler, which expects to be called by one thread at a time. Trying
+ * every peer is then limited to {@link #TRIAL_DECRYPTS_PER_SECOND}, so junk sent to our
+ * port can't back up that thread, and the handshakes queued behind it.
+ */
 public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 
 	private static volatile boolean logMINOR;
@@ -26,6 +47,18 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		});
 	}
 
+	/** Feed the timing of one packet in this many to the random number generator. */
+	private static final int ENTROPY_SAMPLE_INTERVAL = 64;
+
+	/**
+	 * How often we may try every peer on a packet that nothing else could decode, when
+	 * decoding in parallel.
+	 */
+	static final int TRIAL_DECRYPTS_PER_SECOND = 20;
+
+	/** Packets waiting for each decoding thread before we drop them. */
+	private static final int LANE_QUEUE = 256;
+
 	private FNPPacketMangler mangler;
 
 	private NodeCrypto crypto;
@@ -34,11 +67,61 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 
 	private final EntropySource fnpTimingSource;
 
-	public IncomingPacketFilterImpl(FNPPacketMangler mangler, Node node, NodeCrypto crypto) {
+	/** Packets received, for sampling the timing. Only used by the receiving thread. */
+	private int receivedPackets;
+
+	/** Null if not decoding in parallel, when every peer is always tried, as before. */
+	private final TokenBucket trialDecrypts;
+
+	/**
+	 * The threads decoding packets from known peers, each handling some of the peers, or
+	 * null if packets are decoded by the thread receiving them.
+	 */
+	private final ThreadPoolExecutor[] lanes;
+
+	/**
+	 * Held while a peer's packets are decoded, by the peer's lane, so a peer's packets are
+	 * never decoded on two threads at once, even when trying every peer.
+	 */
+	private final Object[] laneLocks;
+
+	/** Runs the packet mangler, if there are lanes. */
+	private final ThreadPoolExecutor slowLane;
+
+	/**
+	 * @param parallel If true, decode packets from different peers on several threads.
+	 */
+	public IncomingPacketFilterImpl(FNPPacketMangler mangler, Node node, NodeCrypto crypto, boolean parallel) {
 		this.mangler = mangler;
 		this.node = node;
 		this.crypto = crypto;
 		fnpTimingSource = new EntropySource();
+		if (parallel) {
+			trialDecrypts = new TokenBucket(TRIAL_DECRYPTS_PER_SECOND,
+					SECONDS.toNanos(1) / TRIAL_DECRYPTS_PER_SECOND, TRIAL_DECRYPTS_PER_SECOND);
+			int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+			lanes = new ThreadPoolExecutor[threads];
+			laneLocks = new Object[threads];
+			for (int i = 0; i < threads; i++) {
+				lanes[i] = makeLane("Packet decoder " + (i + 1));
+				laneLocks[i] = new Object();
+			}
+			slowLane = makeLane("Packet decoder (handshakes)");
+		}
+		else {
+			trialDecrypts = null;
+			lanes = null;
+			laneLocks = null;
+			slowLane = null;
+		}
+	}
+
+	private static ThreadPoolExecutor makeLane(final String name) {
+		ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 30, SECONDS,
+				new ArrayBlockingQueue<Runnable>(LANE_QUEUE),
+				(r) -> new NativeThread(r, name, NativeThread.MAX_PRIORITY, true));
+		lane.allowCoreThreadTimeOut(true);
+		return lane;
 	}
 
 	@Override
@@ -62,13 +145,104 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+		if (++receivedPackets % ENTROPY_SAMPLE_INTERVAL == 0)
+			sampleTiming();
+		long startTime = System.nanoTime();
+		PeerNode opn = lookup(peer);
+		if (lanes != null)
+			return queue(Arrays.copyOfRange(buf, offset, offset + length), peer, opn, now);
+		try {
+			return innerProcess(buf, offset, length, peer, opn, now);
+		}
+		finally {
+			recordProcessTime(startTime);
+		}
+	}
+
+	/** Find the peer a packet came from by its address. Overridden by tests. */
+	PeerNode lookup(Peer peer) {
+		return node.peers.getByPeer(peer, mangler);
+	}
+
+	/** Overridden by tests. */
+	void sampleTiming() {
+		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
+	}
+
+	/** Overridden by tests. */
+	void recordProcessTime(long startTime) {
+		node.nodeStats.packetProcessTime.recordSince(startTime);
+	}
+
+	private int laneOf(PeerNode pn) {
+		return (System.identityHashCode(pn) & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * Decode the packet on the sender's lane, or on the slow lane if we don't know the
+	 * sender. If the lane is too far behind, the packet is dropped.
+	 * @param data A copy of the packet, as the receive buffer will be reused.
+	 */
+	private DECODED queue(final byte[] data, final Peer peer, final PeerNode opn, final long now) {
+		try {
+			if (opn == null) {
+				slowLane.execute(() -> timedProcess(data, peer, null, now));
+			}
+			else {
+				lanes[laneOf(opn)].execute(() -> {
+					long startTime = System.nanoTime();
+					boolean decoded = decode(opn, data, 0, data.length, peer, now);
+					recordProcessTime(startTime);
+					if (decoded) {
+						if (logMINOR)
+							successfullyDecodedPackets.incrementAndGet();
+					}
+					else {
+						try {
+							slowLane.execute(() -> {
+								long start = System.nanoTime();
+								try {
+									decodeSlowly(data, 0, data.length, peer, opn, now);
+								}
+								finally {
+									recordProcessTime(start);
+								}
+							});
+						}
+						catch (RejectedExecutionException e) {
+							if (logMINOR)
+								failedDecodePackets.incrementAndGet();
+						}
+					}
+				});
+			}
+			return DECODED.QUEUED;
+		}
+		catch (RejectedExecutionException e) {
+			if (logMINOR) {
+				Logger.minor(this, "Dropped packet from " + peer + " as decoding is too far behind");
+				failedDecodePackets.incrementAndGet();
+			}
+			return DECODED.NOT_DECODED;
+		}
+	}
+
+	private void timedProcess(byte[] data, Peer peer, PeerNode opn, long now) {
+		long startTime = System.nanoTime();
+		try {
+			innerProcess(data, 0, data.length, peer, opn, now);
+		}
+		finally {
+			recordProcessTime(startTime);
+		}
+	}
+
+	private DECODED innerProcess(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
 		if (logMINOR)
 			Logger.minor(this, "Packet length " + length + " from " + peer);
-		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
-		PeerNode opn = node.peers.getByPeer(peer, mangler);
 
 		if (opn != null) {
-			if (opn.handleReceivedPacket(buf, offset, length, now, peer)) {
+			if (decode(opn, buf, offset, length, peer, now)) {
 				if (logMINOR)
 					successfullyDecodedPackets.incrementAndGet();
 				return DECODED.DECODED;
@@ -77,6 +251,14 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		return decodeSlowly(buf, offset, length, peer, opn, now);
+	}
+
+	/**
+	 * Handle a packet the peer at its address couldn't decode: a handshake, or a packet
+	 * from a peer whose address has changed.
+	 */
+	private DECODED decodeSlowly(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if (decoded == DECODED.DECODED) {
 			if (logMINOR)
@@ -84,15 +266,20 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		}
 		else if (decoded == DECODED.NOT_DECODED) {
 
-			for (PeerNode pn : crypto.getPeerNodes()) {
-				if (pn == opn)
-					continue;
-				if (pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if (logMINOR)
-						successfullyDecodedPackets.incrementAndGet();
-					return DECODED.DECODED;
+			if (trialDecrypts == null || trialDecrypts.instantGrab(1)) {
+				for (PeerNode pn : crypto.getPeerNodes()) {
+					if (pn == opn)
+						continue;
+					if (decode(pn, buf, offset, length, peer, now)) {
+						if (logMINOR)
+							successfullyDecodedPackets.incrementAndGet();
+						return DECODED.DECODED;
+					}
 				}
 			}
+			else if (logMINOR) {
+				Logger.minor(this, "Not trying every peer on packet from " + peer + ": too many recently");
+			}
 
 			if (logMINOR)
 				failedDecodePackets.incrementAndGet();
@@ -100,4 +287,12 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return decoded;
 	}
 
+	private boolean decode(PeerNode pn, byte[] buf, int offset, int length, Peer peer, long now) {
+		if (lanes == null)
+			return pn.handleReceivedPacket(buf, offset, length, now, peer);
+		synchronized (laneLocks[laneOf(pn)]) {
+			return pn.handleReceivedPacket(buf, offset, length, now, peer);
+		}
+	}
+
 }
@@ -19,17 +19,16 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
-import freenet.io.Serializer;
+import freenet.io.comm.MessageLayout.Kind;
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
@@ -40,6 +39,10 @@ import freenet.support.Logger.LogLevel;
 /**
  * A Message which can be read from and written to a DatagramPacket.
  *
+ * The fields are kept in arrays laid out by the MessageType's {@link MessageLayout}, with
+ * primitives unboxed, and are encoded straight into a ByteBuffer. The name based getters
+ * and setters still work as they always have.
+ *
  * SECURITY REDFLAG WARNING: Messages should normally be recreated rather than passed on.
  * Messages can contain sub-messages, these are used to avoid having to add whole new
  * message types every time we add one field to a message... Passing on a message as-is
@@ -74,7 +77,15 @@ public class Message {
 
 	private final boolean _internal;
 
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageLayout _layout;
+
+	/** Primitive fields, as raw bits. */
+	final long[] _primitives;
+
+	final Object[] _objects;
+
+	/** Bit i is set if field i of the layout has been set. */
+	private long _setFields;
 
 	private List<Message> _subMessages;
 
@@ -84,6 +95,16 @@ public class Message {
 
 	short priority;
 
+	/** Largest encode buffer we keep for each thread. Messages are normally much smaller. */
+	private static final int MAX_CACHED_ENCODE_BUFFER = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> encodeBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(4096);
+		}
+	};
+
 	private boolean needsLoadRT;
 
 	private boolean needsLoadBulk;
@@ -98,6 +119,17 @@ public class Message {
 		return decodeMessage(bb, peer, buf.length + overhead, true, false, true);
 	}
 
+	/**
+	 * Decode a message from the remaining bytes in the buffer, which must be big-endian.
+	 * Consumes the buffer.
+	 */
+	public static Message decodeMessageFromPacket(ByteBuffer buf, PeerContext peer, int overhead) {
+		if (buf.order() != ByteOrder.BIG_ENDIAN)
+			throw new IllegalArgumentException("Messages are big-endian");
+		int length = buf.remaining();
+		return decodeMessage(new ByteBufferInputStream(buf), peer, length + overhead, true, false, false);
+	}
+
 	private static Message decodeMessage(ByteBufferInputStream bb, PeerContext peer, int recvByteCount,
 			boolean mayHaveSubMessages, boolean inSubMessage, boolean veryLax) {
 		MessageType mspec;
@@ -121,16 +153,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to
-														// deal with element type
-					m.set(name, Serializer.readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				}
-				else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m._layout.read(m, bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -196,6 +219,9 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_layout = spec.getLayout();
+		_primitives = new long[_layout.primitiveCount];
+		_objects = new Object[_layout.objectCount];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -203,7 +229,10 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_layout = m._layout;
+		_primitives = m._primitives.clone();
+		_objects = m._objects.clone();
+		_setFields = m._setFields;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -212,48 +241,89 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/**
+	 * @return The slot of a primitive field of the given kind which has been set, or -1
+	 * if the field is some other kind, in which case the caller should fall back to
+	 * getObject() so it fails just as it would have with boxed fields.
+	 */
+	private int primitiveSlot(String key, Kind kind) {
+		int index = _layout.indexOf(key);
+		if (index < 0 || _layout.kinds[index] != kind || !isSet(index))
+			return -1;
+		return _layout.slots[index];
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.BOOLEAN);
+		return slot >= 0 ? _primitives[slot] != 0 : (Boolean) getObject(key);
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.BYTE);
+		return slot >= 0 ? (byte) _primitives[slot] : (Byte) getObject(key);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.SHORT);
+		return slot >= 0 ? (short) _primitives[slot] : (Short) getObject(key);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.INT);
+		return slot >= 0 ? (int) _primitives[slot] : (Integer) getObject(key);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.LONG);
+		return slot >= 0 ? _primitives[slot] : (Long) getObject(key);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.DOUBLE);
+		return slot >= 0 ? Double.longBitsToDouble(_primitives[slot]) : (Double) getObject(key);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int slot = primitiveSlot(key, Kind.FLOAT);
+		return slot >= 0 ? Float.intBitsToFloat((int) _primitives[slot]) : (Float) getObject(key);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String) _payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int index = _layout.indexOf(key);
+		if (index < 0 || !isSet(index))
+			return null;
+		int slot = _layout.slots[index];
+		switch (_layout.kinds[index]) {
+		case BOOLEAN:
+			return _primitives[slot] != 0;
+		case BYTE:
+			return (byte) _primitives[slot];
+		case SHORT:
+			return (short) _primitives[slot];
+		case INT:
+			return (int) _primitives[slot];
+		case LONG:
+			return _primitives[slot];
+		case FLOAT:
+			return Float.intBitsToFloat((int) _primitives[slot]);
+		case DOUBLE:
+			return Double.longBitsToDouble(_primitives[slot]);
+		default:
+			return _objects[slot];
+		}
 	}
 
 	public byte[] getShortBufferBytes(String key) {
@@ -261,32 +331,58 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/**
+	 * Set a primitive field of the given kind without boxing it.
+	 * @return False if the field is some other kind, in which case the caller should fall
+	 * back to set(String, Object), so it fails just as it would have with boxed fields.
+	 */
+	private boolean setPrimitive(String key, Kind kind, long bits) {
+		int index = _layout.indexOf(key);
+		if (index < 0 || _layout.kinds[index] != kind)
+			return false;
+		setPrimitive(index, bits);
+		return true;
+	}
+
+	/** Only for MessageLayout, which knows the field is a primitive. */
+	void setPrimitive(int index, long bits) {
+		_primitives[_layout.slots[index]] = bits;
+		_setFields |= 1L << index;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if (!setPrimitive(key, Kind.BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if (!setPrimitive(key, Kind.BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if (!setPrimitive(key, Kind.SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if (!setPrimitive(key, Kind.INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if (!setPrimitive(key, Kind.LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		if (!setPrimitive(key, Kind.DOUBLE, Double.doubleToRawLongBits(d)))
+			set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		if (!setPrimitive(key, Kind.FLOAT, Float.floatToRawIntBits(f)))
+			set(key, Float.valueOf(f));
 	}
 
 	public void set(String key, Object value) {
@@ -296,25 +392,90 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int index = _layout.indexOf(key);
+		if (index < 0)
+			// Added to the type after this message was created.
+			throw new IllegalStateException("Field \"" + key + "\" was not defined when " + this + " was created");
+		switch (_layout.kinds[index]) {
+		case BOOLEAN:
+			setPrimitive(index, (Boolean) value ? 1 : 0);
+			break;
+		case BYTE:
+			setPrimitive(index, (Byte) value);
+			break;
+		case SHORT:
+			setPrimitive(index, (Short) value);
+			break;
+		case INT:
+			setPrimitive(index, (Integer) value);
+			break;
+		case LONG:
+			setPrimitive(index, (Long) value);
+			break;
+		case FLOAT:
+			setPrimitive(index, Float.floatToRawIntBits((Float) value));
+			break;
+		case DOUBLE:
+			setPrimitive(index, Double.doubleToRawLongBits((Double) value));
+			break;
+		default:
+			_objects[_layout.slots[index]] = value;
+			_setFields |= 1L << index;
+		}
 	}
 
 	public byte[] encodeToPacket() {
-		return encodeToPacket(true, false);
+		ByteBuffer buf = encodeBuffer.get();
+		while (true) {
+			buf.clear();
+			try {
+				encodeTo(buf, true);
+				break;
+			}
+			catch (BufferOverflowException e) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2);
+				if (buf.capacity() <= MAX_CACHED_ENCODE_BUFFER)
+					encodeBuffer.set(buf);
+			}
+		}
+		byte[] ret = new byte[buf.position()];
+		buf.flip();
+		buf.get(ret);
+		if (logDEBUG)
+			Logger.debug(this, "Length: " + ret.length + ", hash: " + Fields.hashCode(ret));
+		return ret;
+	}
+
+	/**
+	 * Encode the message, including any sub-messages, into the buffer at its position.
+	 * Writes exactly the same bytes as encodeToPacket().
+	 * @return The number of bytes written.
+	 * @throws BufferOverflowException If the message doesn't fit. The buffer's position
+	 * is then undefined.
+	 * @throws IllegalArgumentException If the buffer isn't big-endian.
+	 */
+	public int encodeTo(ByteBuffer buf) {
+		if (buf.order() != ByteOrder.BIG_ENDIAN)
+			throw new IllegalArgumentException("Messages are big-endian");
+		return encodeTo(buf, true);
 	}
 
-	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
+	/**
+	 * Encode the message, including any sub-messages, into the array.
+	 * @return The number of bytes written.
+	 * @throws BufferOverflowException If the message doesn't fit.
+	 */
+	public int encodeTo(byte[] buf, int offset) {
+		return encodeTo(ByteBuffer.wrap(buf, offset, buf.length - offset), true);
+	}
 
+	private int encodeTo(ByteBuffer buf, boolean includeSubMessages) {
 		if (logDEBUG)
 			Logger.debug(this, "My spec code: " + _spec.getName().hashCode() + " for " + _spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+		int start = buf.position();
+		buf.putInt(_spec.getName().hashCode());
 		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
-			}
-			dos.flush();
+			_layout.write(this, buf);
 		}
 		catch (IOException e) {
 			e.printStackTrace();
@@ -322,23 +483,15 @@ public class Message {
 		}
 
 		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				}
-				catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+			for (Message subMessage : _subMessages) {
+				// Length first, which we don't know until we have written it.
+				int lengthPosition = buf.position();
+				buf.putShort((short) 0);
+				int length = subMessage.encodeTo(buf, false);
+				buf.putShort(lengthPosition, (short) length);
 			}
 		}
-
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG)
-			Logger.debug(this, "Length: " + buf.length + ", hash: " + Fields.hashCode(buf));
-		return buf;
+		return buf.position() - start;
 	}
 
 	@Override
@@ -348,7 +501,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -368,11 +521,16 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int index = _layout.indexOf(fieldName);
+		return index >= 0 && isSet(index);
+	}
+
+	boolean isSet(int index) {
+		return (_setFields & (1L << index)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r = _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName + " not set");
 		}
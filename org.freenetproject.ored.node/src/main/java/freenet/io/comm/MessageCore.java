@@ -18,20 +18,22 @@
  */
 package freenet.io.comm;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
+import freenet.support.PooledExecutor;
 import freenet.nodelogger.Logger;
 import freenet.support.Ticker;
 import freenet.support.TimeUtil;
@@ -59,11 +61,17 @@ public class MessageCore {
 
 	private Executor _executor;
 
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	/**
+	 * Outstanding filters, indexed by source, type and uid so that dispatch does not
+	 * have to scan all of them. _filters serves as lock for both.
+	 */
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
 
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 
+	/** Number of messages dispatched through checkFilters(). Protected by _filters. */
+	private long _messagesChecked;
+
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10); // maybe
@@ -142,51 +150,32 @@ public class MessageCore {
 		// filter.
 		if (logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		ArrayList<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if (logMINOR)
-						Logger.minor(this, "Removing " + f);
-					i.remove();
-					if (timedOutFilters == null)
-						timedOutFilters = new HashSet<MessageFilter>();
-					if (!timedOutFilters.add(f))
-						Logger.error(this, "Filter " + f + " is in filter list twice!");
-					if (logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc
-								// may want it for the next filter.
-								Logger.error(this,
-										"Timed out but should have matched in _unclaimed: " + m + " for " + f);
-								break;
-							}
+			// Only the filters which have actually timed out are visited, plus those with
+			// callbacks, because their client callbacks may say they should time out.
+			nextTimeout = _filters.removeTimedOut(tStart, timedOutFilters, nextTimeout);
+			if (logMINOR) {
+				for (MessageFilter f : timedOutFilters) {
+					Logger.minor(this, "Removing " + f);
+					for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
+						Message m = it.next();
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc
+							// may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: " + m + " for " + f);
+							break;
 						}
 					}
 				}
-				else {
-					if (f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
-				}
-				// Do not break after finding a non-timed-out filter because some filters
-				// may
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs
-				// here.
-
-				// See also the end of waitFor() for another weird case.
 			}
+			// See also the end of waitFor() for another weird case.
 		}
 
-		if (timedOutFilters != null) {
-			for (MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for (MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 
 		long tEnd = System.currentTimeMillis();
@@ -206,7 +195,6 @@ public class MessageCore {
 	 */
 	public void checkFilters(Message m, PacketSocketHandler from) {
 		final boolean logMINOR = MessageCore.logMINOR;
-		final boolean logDEBUG = MessageCore.logDEBUG;
 		long tStart = System.currentTimeMillis();
 		if (logMINOR)
 			Logger.minor(this, "checkFilters: " + m + " from " + m.getSource());
@@ -219,46 +207,25 @@ public class MessageCore {
 					"" + (System.currentTimeMillis() % 60000) + ' ' + from + " <- " + m.getSource() + " : " + m);
 		}
 		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: " + f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if (status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if (timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				}
-				else if (status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees
-					// it even if it times out.
-					f.setMessage(m);
-					if (logMINOR)
-						Logger.minor(this, "Matched (1): " + f);
-					break; // Only one match permitted per message
-				}
-				else if (logDEBUG)
-					Logger.minor(this, "Did not match " + f);
-			}
-		}
-		if (timedOut != null) {
-			for (MessageFilter f : timedOut) {
+			_messagesChecked++;
+			match = _filters.match(m, tStart, timedOut);
+			if (match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees
+				// it even if it times out.
+				match.setMessage(m);
 				if (logMINOR)
-					Logger.minor(this, "Timed out " + f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
+					Logger.minor(this, "Matched (1): " + match);
 			}
 		}
+		for (MessageFilter f : timedOut) {
+			if (logMINOR)
+				Logger.minor(this, "Timed out " + f);
+			f.setMessage(null);
+			f.onTimedOut(_executor);
+		}
 		if (match != null) {
 			match.onMatched(_executor);
 		}
@@ -273,8 +240,7 @@ public class MessageCore {
 				Logger.error(this, "Dispatcher threw " + t, t);
 			}
 		}
-		if (timedOut != null)
-			timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver
 		// isn't receiving yet
 		if (!matched) {
@@ -298,25 +264,12 @@ public class MessageCore {
 			synchronized (_filters) {
 				if (logMINOR)
 					Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if (status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if (logMINOR)
-							Logger.minor(this, "Matched (2): " + f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					}
-					else if (status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if (timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = _filters.match(m, tStart, timedOut);
+				if (match != null) {
+					matched = true;
+					if (logMINOR)
+						Logger.minor(this, "Matched (2): " + match);
+					match.setMessage(m);
 				}
 				if (!matched) {
 					while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
@@ -339,11 +292,9 @@ public class MessageCore {
 			if (match != null) {
 				match.onMatched(_executor);
 			}
-			if (timedOut != null) {
-				for (MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for (MessageFilter f : timedOut) {
+				f.setMessage(null);
+				f.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -363,16 +314,7 @@ public class MessageCore {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste
 														// objects for better locking
 		synchronized (_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-				MessageFilter f = i.next();
-				if (f.matchesDroppedConnection(ctx)) {
-					if (droppedFilters == null)
-						droppedFilters = new ArrayList<MessageFilter>();
-					droppedFilters.add(f);
-					i.remove();
-				}
-			}
+			droppedFilters = _filters.removeMatching(ctx, false);
 		}
 		if (droppedFilters != null) {
 			for (MessageFilter mf : droppedFilters) {
@@ -386,16 +328,7 @@ public class MessageCore {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste
 														// objects for better locking
 		synchronized (_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-				MessageFilter f = i.next();
-				if (f.matchesRestartedConnection(ctx)) {
-					if (droppedFilters == null)
-						droppedFilters = new ArrayList<MessageFilter>();
-					droppedFilters.add(f);
-					i.remove();
-				}
-			}
+			droppedFilters = _filters.removeMatching(ctx, true);
 		}
 		if (droppedFilters != null) {
 			for (MessageFilter mf : droppedFilters) {
@@ -467,25 +400,12 @@ public class MessageCore {
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if (logMINOR)
 					Logger.minor(this, "Not in _unclaimed");
-				// Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if (logMINOR)
-							Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if (logMINOR)
-							Logger.minor(this, "Added in middle - mf timeout=" + mf.getTimeout() + " - my timeout="
-									+ filter.getTimeout());
-						return;
-					}
-				}
+				// Index orders the filter by timeout
+				if (!_filters.add(filter))
+					Logger.error(this, "Filter " + filter + " is in filter list twice!");
+				if (logMINOR)
+					Logger.minor(this, "Added filter - my timeout=" + timeout);
+				return;
 			}
 		}
 		if (ret != null) {
@@ -561,25 +481,11 @@ public class MessageCore {
 			if (ret == null) {
 				if (logMINOR)
 					Logger.minor(this, "Not in _unclaimed");
-				// Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if (logMINOR)
-							Logger.minor(this, "Added at end " + filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if (logMINOR)
-							Logger.minor(this, "Added in middle - mf timeout=" + mf.getTimeout() + " - my timeout="
-									+ filter.getTimeout() + " filter " + filter);
-						break;
-					}
-				}
+				// Index orders the filter by timeout
+				if (!_filters.add(filter))
+					Logger.error(this, "Filter " + filter + " is in filter list twice!");
+				if (logMINOR)
+					Logger.minor(this, "Added filter - my timeout=" + filter.getTimeout() + " filter " + filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -594,7 +500,14 @@ public class MessageCore {
 		// Unlock to wait on filter
 		// Waiting on the filter won't release the outer lock
 		// So we have to release it here
-		if (ret == null) {
+		if (ret == null && PooledExecutor.isVirtual(Thread.currentThread())) {
+			if (logMINOR)
+				Logger.minor(this, "Parking...");
+			ret = parkFor(filter);
+			if (logMINOR)
+				Logger.minor(this, "Returning " + ret + " from " + filter);
+		}
+		else if (ret == null) {
 			if (logMINOR)
 				Logger.minor(this, "Waiting...");
 			synchronized (filter) {
@@ -642,9 +555,6 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to
 			// call onMatched().
@@ -665,6 +575,38 @@ public class MessageCore {
 		return ret;
 	}
 
+	/**
+	 * The rest of waitFor() for a virtual thread. Object.wait() would pin the carrier
+	 * thread for as long as we wait, so instead park outside the filter's lock, and have
+	 * the filter unpark us when it is matched, times out or is disconnected.
+	 */
+	private Message parkFor(MessageFilter filter) throws DisconnectedException {
+		filter.setWaiter(Thread.currentThread());
+		try {
+			while (true) {
+				long wait;
+				synchronized (filter) {
+					long now = System.currentTimeMillis();
+					if (filter.matched() || (filter.droppedConnection() != null) || filter.reallyTimedOut(now))
+						break;
+					wait = filter.getTimeout() - now;
+				}
+				if (wait <= 0)
+					break;
+				// Returns immediately if we were unparked since setting the waiter.
+				LockSupport.parkNanos(filter, MILLISECONDS.toNanos(wait));
+			}
+		}
+		finally {
+			filter.setWaiter(null);
+		}
+		synchronized (filter) {
+			if (filter.droppedConnection() != null)
+				throw new DisconnectedException();
+			return filter.getMessage();
+		}
+	}
+
 	/**
 	 * Send a Message to a PeerContext.
 	 * @throws NotConnectedException If we are not currently connected to the node.
@@ -691,6 +633,28 @@ public class MessageCore {
 		}
 	}
 
+	/**
+	 * @return the number of message filters currently waiting for a message
+	 */
+	public int getFilterCount() {
+		synchronized (_filters) {
+			return _filters.size();
+		}
+	}
+
+	/**
+	 * @return the average number of filters tested per message dispatched, or 0 if no
+	 * messages have been dispatched yet
+	 */
+	public double getFiltersScannedPerMessage() {
+		synchronized (_filters) {
+			long messages = _messagesChecked;
+			if (messages == 0)
+				return 0.0;
+			return ((double) _filters.getFiltersScanned()) / messages;
+		}
+	}
+
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized (_filters) {
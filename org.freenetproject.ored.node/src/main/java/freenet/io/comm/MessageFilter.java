@@ -21,6 +21,7 @@ package freenet.io.comm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 import freenet.support.Executor;
 import freenet.nodelogger.Logger;
@@ -76,6 +77,9 @@ public final class MessageFilter {
 
 	private boolean _setTimeout = false;
 
+	/** A virtual thread parked in MessageCore.waitFor(), rather than wait()ing on us. */
+	private volatile Thread _waiter;
+
 	private MessageFilter() {
 		_timeoutFromWait = true;
 	}
@@ -156,6 +160,32 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	/**
+	 * Returns the message type this filter (not including the chain) matches, or null if
+	 * it matches any type.
+	 */
+	MessageType getType() {
+		return _type;
+	}
+
+	/**
+	 * Returns the value this filter (not including the chain) requires for the given
+	 * field, or null if the field is not constrained.
+	 */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return (i >= 0) ? _fields.get(i) : null;
+		}
+	}
+
+	/**
+	 * Returns the next filter in the or() chain, or null.
+	 */
+	MessageFilter getOr() {
+		return _or;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -297,13 +327,25 @@ public final class MessageFilter {
 		return _message;
 	}
 
+	void setWaiter(Thread waiter) {
+		_waiter = waiter;
+	}
+
+	/** Caller must hold the lock. */
+	private void wakeWaiters() {
+		notifyAll();
+		Thread waiter = _waiter;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
 	public synchronized void setMessage(Message message) {
 		// Logger.debug(this, "setMessage("+message+") on "+this, new Exception("debug"));
 		_message = message;
 		// Avoid race conditions where it is removed from the filter list because of a
 		// timeout but not woken up.
 		_matched = true;
-		notifyAll();
+		wakeWaiters();
 	}
 
 	public long getInitialTimeout() {
@@ -362,7 +404,7 @@ public final class MessageFilter {
 		synchronized (this) {
 			cb = _callback;
 			_droppedConnection = ctx;
-			notifyAll();
+			wakeWaiters();
 			_ctr = null;
 		}
 		if (cb != null) {
@@ -397,7 +439,7 @@ public final class MessageFilter {
 		synchronized (this) {
 			_droppedConnection = ctx;
 			cb = _callback;
-			notifyAll();
+			wakeWaiters();
 			_ctr = null;
 		}
 		if (cb != null) {
@@ -466,7 +508,7 @@ public final class MessageFilter {
 	public void onTimedOut(Executor executor) {
 		final AsyncMessageFilterCallback cb;
 		synchronized (this) {
-			notifyAll();
+			wakeWaiters();
 			cb = _callback;
 		}
 		if (cb != null) {
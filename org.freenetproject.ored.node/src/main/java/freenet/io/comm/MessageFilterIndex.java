@@ -0,0 +1,380 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.nodelogger.Logger;
+
+/**
+ * Index of the outstanding {@link MessageFilter}s of a {@link MessageCore}.
+ *
+ * Filters are bucketed by (source, type, uid) for each filter in their or() chain, so
+ * that an incoming message only has to be tested against the filters which could
+ * possibly match it, rather than against every outstanding filter. Filters which do not
+ * specify a type are kept in a separate wildcard bucket which is always checked. Within
+ * every bucket, and in the global timeout queue, filters are ordered by timeout and then
+ * by insertion order, so the filter with the nearest expiry still gets priority when more
+ * than one matches.
+ *
+ * Not thread-safe: the caller (MessageCore) synchronizes on the index.
+ */
+final class MessageFilterIndex {
+
+	/** All filters, in order of timeout. */
+	private final TreeSet<Entry> byTimeout = new TreeSet<>();
+
+	/** Filters with a type, keyed by (source or null, type, uid or null). */
+	private final HashMap<Key, TreeSet<Entry>> byKey = new HashMap<>();
+
+	/** Filters (or chain members) which do not specify a type. */
+	private final TreeSet<Entry> wildcard = new TreeSet<>();
+
+	/** Filters with an async callback, which may time out early via shouldTimeout(). */
+	private final TreeSet<Entry> withCallback = new TreeSet<>();
+
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<>();
+
+	/** Reused to look up buckets for incoming messages without allocating. */
+	private final Key probe = new Key(null, null, null);
+
+	/** Candidate buckets for the current message. At most four keyed plus the wildcards. */
+	private final ArrayList<TreeSet<Entry>> candidates = new ArrayList<>(5);
+
+	private long nextSeq;
+
+	private long filtersScanned;
+
+	/** Incremented for each message matched, to mark the filters tested for it. */
+	private long matchStamp;
+
+	/**
+	 * Add a filter. The filter's current timeout determines its priority.
+	 * @return False if the filter was already present.
+	 */
+	boolean add(MessageFilter filter) {
+		if (this.entries.containsKey(filter)) {
+			return false;
+		}
+		Entry e = new Entry(filter, filter.getTimeout(), this.nextSeq++, filter.hasCallback());
+		for (MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			if (type == null) {
+				if (!e.wildcard) {
+					e.wildcard = true;
+					this.wildcard.add(e);
+				}
+				continue;
+			}
+			Key k = new Key(f.getSource(), type, f.getField(DMT.UID));
+			if (e.keys.contains(k)) {
+				continue;
+			}
+			e.keys.add(k);
+			this.byKey.computeIfAbsent(k, (key) -> new TreeSet<>()).add(e);
+		}
+		this.byTimeout.add(e);
+		if (e.callback) {
+			this.withCallback.add(e);
+		}
+		this.entries.put(filter, e);
+		return true;
+	}
+
+	/**
+	 * Remove a filter.
+	 * @return False if the filter was not present.
+	 */
+	boolean remove(MessageFilter filter) {
+		Entry e = this.entries.get(filter);
+		if (e == null) {
+			return false;
+		}
+		this.removeEntry(e);
+		return true;
+	}
+
+	private void removeEntry(Entry e) {
+		this.entries.remove(e.filter);
+		this.byTimeout.remove(e);
+		if (e.callback) {
+			this.withCallback.remove(e);
+		}
+		if (e.wildcard) {
+			this.wildcard.remove(e);
+		}
+		for (Key k : e.keys) {
+			TreeSet<Entry> bucket = this.byKey.get(k);
+			if (bucket != null) {
+				bucket.remove(e);
+				if (bucket.isEmpty()) {
+					this.byKey.remove(k);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the filter with the nearest timeout which matches the message, and remove it.
+	 * Any candidate filters found to have timed out are also removed and added to
+	 * {@code timedOut}.
+	 * @return The matched filter, or null.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		this.findCandidates(m);
+		long stamp = ++this.matchStamp;
+		Entry best = null;
+		ArrayList<Entry> toRemove = null;
+		for (TreeSet<Entry> bucket : this.candidates) {
+			for (Entry e : bucket) {
+				if (best != null && e.compareTo(best) >= 0) {
+					// Anything further along this bucket would lose to the current match.
+					break;
+				}
+				if (e.removed || e.scanned == stamp) {
+					continue;
+				}
+				e.scanned = stamp;
+				this.filtersScanned++;
+				MessageFilter f = e.filter;
+				if (f.matched()) {
+					Logger.error(this, "removed pre-matched message filter found in _filters: " + f);
+					e.removed = true;
+					toRemove = addTo(toRemove, e);
+					continue;
+				}
+				MATCHED status = f.match(m, now);
+				if (status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+					e.removed = true;
+					toRemove = addTo(toRemove, e);
+					timedOut.add(f);
+				}
+				else if (status == MATCHED.MATCHED) {
+					best = e;
+					break; // Only one match permitted per message
+				}
+			}
+		}
+		this.candidates.clear();
+		if (toRemove != null) {
+			for (Entry e : toRemove) {
+				this.removeEntry(e);
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		this.removeEntry(best);
+		return best.filter;
+	}
+
+	private static ArrayList<Entry> addTo(ArrayList<Entry> list, Entry e) {
+		if (list == null) {
+			list = new ArrayList<>();
+		}
+		list.add(e);
+		return list;
+	}
+
+	private void findCandidates(Message m) {
+		PeerContext source = m.getSource();
+		MessageType type = m.getSpec();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		this.addCandidates(source, type, uid);
+		if (uid != null) {
+			this.addCandidates(source, type, null);
+		}
+		if (source != null) {
+			this.addCandidates(null, type, uid);
+			if (uid != null) {
+				this.addCandidates(null, type, null);
+			}
+		}
+		if (!this.wildcard.isEmpty()) {
+			this.candidates.add(this.wildcard);
+		}
+	}
+
+	private void addCandidates(PeerContext source, MessageType type, Object uid) {
+		this.probe.source = source;
+		this.probe.type = type;
+		this.probe.uid = uid;
+		this.probe.hash = Key.hash(source, type, uid);
+		TreeSet<Entry> bucket = this.byKey.get(this.probe);
+		if (bucket != null) {
+			this.candidates.add(bucket);
+		}
+		this.probe.source = null;
+		this.probe.uid = null;
+	}
+
+	/**
+	 * Remove every filter that has timed out, either because its timeout has passed or
+	 * because its callback says it should time out.
+	 * @param now The current time.
+	 * @param timedOut Removed filters are added to this list.
+	 * @param nextTimeout The latest time at which this should be called again.
+	 * @return The time at which this should be called again, taking into account
+	 * filters with callbacks.
+	 */
+	long removeTimedOut(long now, List<MessageFilter> timedOut, long nextTimeout) {
+		ArrayList<Entry> toRemove = null;
+		// Filters whose timeout has passed are at the head of the queue.
+		for (Entry e : this.byTimeout) {
+			if (e.timeout >= now) {
+				break;
+			}
+			if (e.filter.timedOut(now)) {
+				toRemove = addTo(toRemove, e);
+			}
+		}
+		// Callbacks can ask to time out at any point, so they must be polled.
+		for (Entry e : this.withCallback) {
+			if (e.timeout < now) {
+				continue; // Already checked above.
+			}
+			if (e.filter.timedOut(now)) {
+				toRemove = addTo(toRemove, e);
+			}
+			else if (nextTimeout > e.filter.getTimeout()) {
+				nextTimeout = e.filter.getTimeout();
+			}
+		}
+		if (toRemove != null) {
+			for (Entry e : toRemove) {
+				this.removeEntry(e);
+				timedOut.add(e.filter);
+			}
+		}
+		return nextTimeout;
+	}
+
+	/**
+	 * Remove every filter which is waiting for a message from a peer which has
+	 * disconnected or restarted.
+	 * @param restarted True if the peer restarted, false if it disconnected.
+	 * @return The removed filters, or null if there are none.
+	 */
+	ArrayList<MessageFilter> removeMatching(PeerContext ctx, boolean restarted) {
+		ArrayList<MessageFilter> removed = null;
+		for (Iterator<Entry> i = this.byTimeout.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			MessageFilter f = e.filter;
+			if (restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if (removed == null) {
+					removed = new ArrayList<>();
+				}
+				removed.add(f);
+			}
+		}
+		if (removed != null) {
+			for (MessageFilter f : removed) {
+				this.remove(f);
+			}
+		}
+		return removed;
+	}
+
+	int size() {
+		return this.entries.size();
+	}
+
+	/** @return The number of filters tested against incoming messages. */
+	long getFiltersScanned() {
+		return this.filtersScanned;
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+
+		final MessageFilter filter;
+
+		/** Timeout when the filter was added. Used for ordering only. */
+		final long timeout;
+
+		final long seq;
+
+		final boolean callback;
+
+		final ArrayList<Key> keys = new ArrayList<>(1);
+
+		boolean wildcard;
+
+		/** Set when matching finds the filter is to be removed. */
+		boolean removed;
+
+		/**
+		 * The stamp of the last message the filter was tested against, so that a filter
+		 * in several buckets is only tested once per message.
+		 */
+		long scanned;
+
+		Entry(MessageFilter filter, long timeout, long seq, boolean callback) {
+			this.filter = filter;
+			this.timeout = timeout;
+			this.seq = seq;
+			this.callback = callback;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			if (this.timeout != o.timeout) {
+				return (this.timeout < o.timeout) ? -1 : 1;
+			}
+			return Long.compare(this.seq, o.seq);
+		}
+
+	}
+
+	private static final class Key {
+
+		PeerContext source;
+
+		MessageType type;
+
+		Object uid;
+
+		int hash;
+
+		Key(PeerContext source, MessageType type, Object uid) {
+			this.source = source;
+			this.type = type;
+			this.uid = uid;
+			this.hash = hash(source, type, uid);
+		}
+
+		static int hash(PeerContext source, MessageType type, Object uid) {
+			int h = (type == null) ? 0 : type.hashCode();
+			if (source != null) {
+				h = h * 31 + source.hashCode();
+			}
+			if (uid != null) {
+				h = h * 31 + uid.hashCode();
+			}
+			return h;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key k)) {
+				return false;
+			}
+			return this.hash == k.hash && Objects.equals(this.type, k.type) && Objects.equals(this.source, k.source)
+					&& Objects.equals(this.uid, k.uid);
+		}
+
+	}
+
+}
@@ -0,0 +1,256 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import freenet.io.Serializer;
+import freenet.support.ByteBufferInputStream;
+
+/**
+ * The fields of a MessageType compiled into a fixed layout, so a Message can keep its
+ * fields in arrays rather than a map, and primitive fields without boxing them. Each field
+ * has an index, which is also its bit in the mask of fields which have been set, and a
+ * slot in either the primitive or the object array. Primitives are stored as their raw
+ * bits: floats and doubles with floatToRawIntBits() and doubleToRawLongBits().
+ *
+ * Encodes and decodes exactly the same bytes as Serializer does for the same types, but
+ * straight to and from a ByteBuffer. Types other than primitives, strings and arrays are
+ * still written and read by Serializer.
+ */
+final class MessageLayout {
+
+	/** The fields are set in a long bitmask. The most any DMT message has is 16. */
+	static final int MAX_FIELDS = 64;
+
+	enum Kind {
+
+		BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, DOUBLE_ARRAY, FLOAT_ARRAY, LIST, OBJECT;
+
+		boolean isPrimitive() {
+			return ordinal() <= DOUBLE.ordinal();
+		}
+
+		static Kind of(Class<?> type) {
+			if (type == Boolean.class)
+				return BOOLEAN;
+			if (type == Byte.class)
+				return BYTE;
+			if (type == Short.class)
+				return SHORT;
+			if (type == Integer.class)
+				return INT;
+			if (type == Long.class)
+				return LONG;
+			if (type == Float.class)
+				return FLOAT;
+			if (type == Double.class)
+				return DOUBLE;
+			if (type == String.class)
+				return STRING;
+			if (type == double[].class)
+				return DOUBLE_ARRAY;
+			if (type == float[].class)
+				return FLOAT_ARRAY;
+			if (type == LinkedList.class)
+				return LIST;
+			return OBJECT;
+		}
+
+	}
+
+	final String messageName;
+
+	final String[] names;
+
+	final Kind[] kinds;
+
+	final Class<?>[] types;
+
+	/** Element types of LIST fields. */
+	final Class<?>[] listTypes;
+
+	/** Index into the primitive or the object array, depending on the kind. */
+	final int[] slots;
+
+	/** Field indexes in the order they go on the wire. */
+	final int[] wireOrder;
+
+	final int primitiveCount;
+
+	final int objectCount;
+
+	private final Map<String, Integer> indexes;
+
+	MessageLayout(MessageType type) {
+		messageName = type.getName();
+		List<String> ordered = type.getOrderedFields();
+		Map<String, Class<?>> fields = type.getFields();
+		indexes = new HashMap<String, Integer>(fields.size() * 2);
+		int count = fields.size();
+		if (count > MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in " + messageName + ": " + count);
+		names = new String[count];
+		kinds = new Kind[count];
+		types = new Class<?>[count];
+		listTypes = new Class<?>[count];
+		slots = new int[count];
+		wireOrder = new int[ordered.size()];
+		int fieldCount = 0;
+		int primitives = 0;
+		int objects = 0;
+		int wire = 0;
+		for (String name : ordered) {
+			Integer index = indexes.get(name);
+			if (index == null) {
+				// Added twice? Same field, written twice, just as encodeToPacket() always
+				// has.
+				index = fieldCount++;
+				indexes.put(name, index);
+				names[index] = name;
+				types[index] = fields.get(name);
+				kinds[index] = Kind.of(types[index]);
+				listTypes[index] = type.getLinkedListTypes().get(name);
+				slots[index] = kinds[index].isPrimitive() ? primitives++ : objects++;
+			}
+			wireOrder[wire++] = index;
+		}
+		primitiveCount = primitives;
+		objectCount = objects;
+	}
+
+	/** @return The index of the field, or -1 if there is no such field. */
+	int indexOf(String name) {
+		Integer index = indexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/** Write the fields of the message, not including the type or sub-messages. */
+	void write(Message m, ByteBuffer buf) throws IOException {
+		DataOutputStream dos = null;
+		for (int index : wireOrder) {
+			if (!m.isSet(index))
+				throw new NullPointerException("Field " + names[index] + " not set in " + messageName);
+			int slot = slots[index];
+			long bits = kinds[index].isPrimitive() ? m._primitives[slot] : 0;
+			switch (kinds[index]) {
+			case BOOLEAN:
+				buf.put((byte) (bits != 0 ? 1 : 0));
+				break;
+			case BYTE:
+				buf.put((byte) bits);
+				break;
+			case SHORT:
+				buf.putShort((short) bits);
+				break;
+			case INT:
+				buf.putInt((int) bits);
+				break;
+			case LONG:
+				buf.putLong(bits);
+				break;
+			case FLOAT:
+				// As DataOutputStream.writeFloat(), which collapses NaNs.
+				buf.putInt(Float.floatToIntBits(Float.intBitsToFloat((int) bits)));
+				break;
+			case DOUBLE:
+				buf.putLong(Double.doubleToLongBits(Double.longBitsToDouble(bits)));
+				break;
+			case STRING:
+				String s = (String) m._objects[slot];
+				buf.putInt(s.length());
+				for (int i = 0; i < s.length(); i++)
+					buf.putChar(s.charAt(i));
+				break;
+			case DOUBLE_ARRAY:
+				double[] doubles = (double[]) m._objects[slot];
+				if (doubles.length > 255)
+					throw new IllegalArgumentException("Cannot serialize an array of more than 255 doubles; attempted to "
+							+ "serialize " + doubles.length + ".");
+				buf.put((byte) doubles.length);
+				for (double d : doubles)
+					buf.putLong(Double.doubleToLongBits(d));
+				break;
+			case FLOAT_ARRAY:
+				float[] floats = (float[]) m._objects[slot];
+				buf.putShort((short) floats.length);
+				for (float f : floats)
+					buf.putInt(Float.floatToIntBits(f));
+				break;
+			default:
+				if (dos == null)
+					dos = new DataOutputStream(new ByteBufferOutputStream(buf));
+				Serializer.writeToDataOutputStream(m._objects[slot], dos);
+			}
+		}
+	}
+
+	/** Read the fields of the message, after the type and before any sub-messages. */
+	void read(Message m, ByteBufferInputStream bb) throws IOException {
+		for (int index : wireOrder) {
+			switch (kinds[index]) {
+			case BOOLEAN:
+				// Only 0 and 1 are written, anything else means something is wrong.
+				byte b = bb.readByte();
+				if (b != 0 && b != 1)
+					throw new IOException("Boolean is non boolean value: " + b);
+				m.setPrimitive(index, b);
+				break;
+			case BYTE:
+				m.setPrimitive(index, bb.readByte());
+				break;
+			case SHORT:
+				m.setPrimitive(index, bb.readShort());
+				break;
+			case INT:
+				m.setPrimitive(index, bb.readInt());
+				break;
+			case LONG:
+				m.setPrimitive(index, bb.readLong());
+				break;
+			case FLOAT:
+				m.setPrimitive(index, bb.readInt());
+				break;
+			case DOUBLE:
+				m.setPrimitive(index, bb.readLong());
+				break;
+			case LIST:
+				m.set(names[index], Serializer.readListFromDataInputStream(listTypes[index], bb));
+				break;
+			default:
+				// Checks the type, e.g. a Key field might be declared as a NodeCHK.
+				m.set(names[index], Serializer.readFromDataInputStream(types[index], bb));
+			}
+		}
+	}
+
+	/** Lets Serializer write objects straight into the buffer. */
+	private static final class ByteBufferOutputStream extends OutputStream {
+
+		private final ByteBuffer buf;
+
+		ByteBufferOutputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			buf.put(b, off, len);
+		}
+
+	}
+
+}
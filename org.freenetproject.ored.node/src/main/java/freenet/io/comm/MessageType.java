@@ -47,6 +47,9 @@ public class MessageType {
 
 	private final boolean isLossyPacketMessage;
 
+	/** Compiled from the fields when the first message is created. */
+	private volatile MessageLayout layout;
+
 	public MessageType(String name, short priority) {
 		this(name, priority, false, false);
 	}
@@ -76,6 +79,8 @@ public class MessageType {
 	public void addField(String name, Class<?> type) {
 		this._fields.put(name, type);
 		this._orderedFields.addLast(name);
+		// Messages already created keep the old layout.
+		this.layout = null;
 	}
 
 	public void addRoutedToNodeMessageFields() {
@@ -173,6 +178,17 @@ public class MessageType {
 		return length;
 	}
 
+	/** The fields compiled into slots, see {@link MessageLayout}. */
+	MessageLayout getLayout() {
+		MessageLayout l = this.layout;
+		if (l == null) {
+			// Another thread may compile it at the same time, which is harmless.
+			l = new MessageLayout(this);
+			this.layout = l;
+		}
+		return l;
+	}
+
 	public boolean isLossyPacketMessage() {
 		return this.isLossyPacketMessage;
 	}
@@ -0,0 +1,426 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.node.Node;
+import freenet.nodelogger.Logger;
+
+/**
+ * UdpSocketHandler using a non-blocking DatagramChannel.
+ *
+ * The receive thread waits on a Selector, then drains every datagram that is ready (up
+ * to {@link #MAX_RECEIVE_BATCH}) through preallocated direct buffers into preallocated
+ * arrays, and passes them to the IncomingPacketFilter together. Each packet still costs
+ * the source address created by DatagramChannel.receive(), and the Peer. The arrays are
+ * reused for the next batch, so a filter which decodes packets on other threads copies
+ * each one.
+ *
+ * Sends are copied into pooled direct buffers, or a heap buffer of their own if they are
+ * larger than {@link #BUFFER_SIZE}, and each one allocates its queue entry and target
+ * address. Whichever thread finds the queue idle sends everything queued, including
+ * packets queued by other threads meanwhile, so concurrent senders don't contend on the
+ * socket. If the socket's send buffer is full the receive thread finishes the job when
+ * the channel becomes writable, rather than a sender blocking. If too many packets are
+ * queued we drop them, as the network would.
+ */
+public class NioUdpSocketHandler extends UdpSocketHandler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(NioUdpSocketHandler.class);
+	}
+
+	/** Maximum number of datagrams to receive before processing them. */
+	static final int MAX_RECEIVE_BATCH = 32;
+
+	/** Size of the pooled buffers. Larger packets are not pooled. */
+	private static final int BUFFER_SIZE = 1500;
+
+	/** Maximum number of packets waiting to be sent. */
+	static final int MAX_QUEUED_SENDS = 256;
+
+	/** Don't log dropped sends more often than this. */
+	private static final long DROP_LOG_INTERVAL = MINUTES.toMillis(1);
+
+	/** Packets dropped because the send queue was full, on all sockets. */
+	private static final AtomicLong droppedSends = new AtomicLong();
+
+	/** Maximum number of idle send buffers to keep. */
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private final DatagramChannel channel;
+
+	private final Selector selector;
+
+	private final SelectionKey key;
+
+	private final ByteBuffer[] receiveBuffers;
+
+	private final byte[][] receiveData;
+
+	private final int[] receiveLengths;
+
+	private final Peer[] receivePeers;
+
+	/** Packets waiting to be sent. Also the lock for the send state. */
+	private final ArrayDeque<Outgoing> sendQueue = new ArrayDeque<Outgoing>();
+
+	/** True if some thread is currently sending the queue. */
+	private boolean flushing;
+
+	/** True if the send buffer was full and we are waiting for the channel. */
+	private boolean waitingForWritable;
+
+	private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+
+	/** Packets dropped since we last logged it. Protected by sendQueue. */
+	private long droppedSinceLogged;
+
+	/** When we last logged dropped packets. Protected by sendQueue. */
+	private long lastDropLogged;
+
+	public NioUdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title,
+			IOStatisticCollector collector) throws SocketException {
+		this(open(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	private NioUdpSocketHandler(DatagramChannel channel, int listenPort, InetAddress bindto, Node node,
+			long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		super(channel.socket(), listenPort, bindto, node, startupTime, title, collector);
+		this.channel = channel;
+		try {
+			channel.configureBlocking(false);
+			this.selector = Selector.open();
+			this.key = channel.register(this.selector, SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			try {
+				channel.close();
+			}
+			catch (IOException e1) {
+				// Ignore
+			}
+			throw wrap(e);
+		}
+		this.receiveBuffers = new ByteBuffer[MAX_RECEIVE_BATCH];
+		this.receiveData = new byte[MAX_RECEIVE_BATCH][];
+		for (int i = 0; i < MAX_RECEIVE_BATCH; i++) {
+			this.receiveBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			this.receiveData[i] = new byte[BUFFER_SIZE];
+		}
+		this.receiveLengths = new int[MAX_RECEIVE_BATCH];
+		this.receivePeers = new Peer[MAX_RECEIVE_BATCH];
+	}
+
+	private static DatagramChannel open(int listenPort, InetAddress bindto) throws SocketException {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			// Exit reasonably quickly
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(bindto, listenPort));
+			return channel;
+		}
+		catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				}
+				catch (IOException e1) {
+					// Ignore
+				}
+			}
+			throw wrap(e);
+		}
+	}
+
+	private static SocketException wrap(IOException e) {
+		if (e instanceof SocketException) {
+			return (SocketException) e;
+		}
+		SocketException se = new SocketException(e.toString());
+		se.initCause(e);
+		return se;
+	}
+
+	@Override
+	void runLoop() {
+		try {
+			while (isActive()) {
+				try {
+					this.selector.select();
+					this.selector.selectedKeys().clear();
+					if (!isActive()) {
+						break;
+					}
+					if (this.key.isValid() && this.key.isWritable()) {
+						this.onWritable();
+					}
+					this.receiveBatch();
+				}
+				catch (ClosedChannelException | ClosedSelectorException e) {
+					if (isActive()) {
+						Logger.error(this, "Channel closed unexpectedly: " + e, e);
+					}
+					break;
+				}
+				catch (Throwable t) {
+					System.err.println("Caught " + t);
+					t.printStackTrace(System.err);
+					Logger.error(this, "Caught " + t, t);
+				}
+			}
+		}
+		finally {
+			try {
+				this.selector.close();
+			}
+			catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/** Receive every datagram that is ready, up to MAX_RECEIVE_BATCH, and process them. */
+	private void receiveBatch() throws IOException {
+		int count = 0;
+		while (count < MAX_RECEIVE_BATCH) {
+			ByteBuffer buf = this.receiveBuffers[count];
+			buf.clear();
+			SocketAddress from = this.channel.receive(buf);
+			if (from == null) {
+				break;
+			}
+			InetSocketAddress source = (InetSocketAddress) from;
+			buf.flip();
+			int length = buf.remaining();
+			buf.get(this.receiveData[count], 0, length);
+			this.receiveLengths[count] = length;
+			this.receivePeers[count] = receivedPacket(source.getAddress(), source.getPort(), length);
+			count++;
+		}
+		if (count == 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (logMINOR) {
+			Logger.minor(this, "Processing " + count + " packets");
+		}
+		try {
+			getLowLevelFilter().processBatch(this.receiveData, this.receiveLengths, this.receivePeers, count, now);
+		}
+		catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from " + getLowLevelFilter(), t);
+		}
+		finally {
+			for (int i = 0; i < count; i++) {
+				this.receivePeers[i] = null;
+			}
+		}
+	}
+
+	/** Number of packets dropped because a send queue was full, on all sockets. */
+	public static long getDroppedSends() {
+		return droppedSends.get();
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses)
+			throws LocalAddressException {
+		assert (blockToSend != null);
+		InetAddress address = getSendAddress(destination, allowLocalAddresses);
+		if (address == null) {
+			return;
+		}
+		ByteBuffer buf = this.takeBuffer(blockToSend.length);
+		buf.put(blockToSend);
+		buf.flip();
+		Outgoing packet = new Outgoing(buf, destination, address, destination.getPort());
+		boolean flush;
+		long dropped = 0;
+		synchronized (this.sendQueue) {
+			if (this.sendQueue.size() >= MAX_QUEUED_SENDS) {
+				flush = false;
+				packet = null;
+				this.droppedSinceLogged++;
+				long now = System.currentTimeMillis();
+				if (now - this.lastDropLogged >= DROP_LOG_INTERVAL) {
+					dropped = this.droppedSinceLogged;
+					this.droppedSinceLogged = 0;
+					this.lastDropLogged = now;
+				}
+			}
+			else {
+				this.sendQueue.addLast(packet);
+				flush = !this.flushing && !this.waitingForWritable;
+				if (flush) {
+					this.flushing = true;
+				}
+			}
+		}
+		if (packet == null) {
+			this.returnBuffer(buf);
+			droppedSends.incrementAndGet();
+			if (dropped > 0) {
+				Logger.normal(this, "Send queue full, dropped " + dropped + " packets since last logged, latest to "
+						+ destination);
+			}
+			else if (logMINOR) {
+				Logger.minor(this, "Send queue full, dropping packet to " + destination);
+			}
+			return;
+		}
+		if (flush) {
+			this.flushSendQueue();
+		}
+	}
+
+	/**
+	 * Send queued packets until the queue is empty or the socket's send buffer is full.
+	 * Caller must have set flushing.
+	 */
+	private void flushSendQueue() {
+		while (true) {
+			Outgoing packet;
+			synchronized (this.sendQueue) {
+				packet = this.sendQueue.peekFirst();
+				if (packet == null) {
+					this.flushing = false;
+					return;
+				}
+			}
+			int sent;
+			try {
+				sent = this.channel.send(packet.buf, packet.target);
+			}
+			catch (IOException | UnsupportedAddressTypeException e) {
+				if (!isActive()) {
+					synchronized (this.sendQueue) {
+						this.sendQueue.clear();
+						this.flushing = false;
+					}
+					return;
+				}
+				sendFailed(packet.destination, packet.address, e);
+				sent = -1;
+			}
+			if (sent == 0) {
+				// Send buffer is full. Let the receive thread finish when we can write.
+				synchronized (this.sendQueue) {
+					this.flushing = false;
+					this.waitingForWritable = true;
+				}
+				try {
+					this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					this.selector.wakeup();
+				}
+				catch (RuntimeException e) {
+					// Cancelled, i.e. closed.
+				}
+				return;
+			}
+			synchronized (this.sendQueue) {
+				this.sendQueue.pollFirst();
+			}
+			if (sent > 0) {
+				sentPacket(packet.destination, packet.address, packet.target.getPort(), sent);
+			}
+			this.returnBuffer(packet.buf);
+		}
+	}
+
+	/**
+	 * Stop sending as though the socket's send buffer were full, so packets are queued
+	 * until onWritable(). For tests.
+	 */
+	void suspendSending() {
+		synchronized (this.sendQueue) {
+			this.waitingForWritable = true;
+		}
+	}
+
+	/** Called on the receive thread when the channel can be written to again. */
+	void onWritable() {
+		this.key.interestOps(SelectionKey.OP_READ);
+		synchronized (this.sendQueue) {
+			this.waitingForWritable = false;
+			if (this.flushing) {
+				return;
+			}
+			this.flushing = true;
+		}
+		this.flushSendQueue();
+	}
+
+	private ByteBuffer takeBuffer(int length) {
+		if (length > BUFFER_SIZE) {
+			return ByteBuffer.allocate(length);
+		}
+		ByteBuffer buf;
+		synchronized (this.bufferPool) {
+			buf = this.bufferPool.pollFirst();
+		}
+		if (buf == null) {
+			buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	private void returnBuffer(ByteBuffer buf) {
+		if (!buf.isDirect()) {
+			return;
+		}
+		synchronized (this.bufferPool) {
+			if (this.bufferPool.size() < MAX_POOLED_BUFFERS) {
+				this.bufferPool.addFirst(buf);
+			}
+		}
+	}
+
+	@Override
+	void onClose() {
+		this.selector.wakeup();
+	}
+
+	private static final class Outgoing {
+
+		final ByteBuffer buf;
+
+		final Peer destination;
+
+		final InetAddress address;
+
+		final InetSocketAddress target;
+
+		Outgoing(ByteBuffer buf, Peer destination, InetAddress address, int port) {
+			this.buf = buf;
+			this.destination = destination;
+			this.address = address;
+			this.target = new InetSocketAddress(address, port);
+		}
+
+	}
+
+}
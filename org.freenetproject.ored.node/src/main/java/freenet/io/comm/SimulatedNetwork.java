@@ -0,0 +1,298 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import freenet.nodelogger.Logger;
+import freenet.support.Executor;
+import freenet.support.PrioritizedTicker;
+import freenet.support.Ticker;
+import freenet.support.VirtualTicker;
+
+/**
+ * Carries packets between nodes in the same JVM, without sockets, for simulations. Nodes
+ * are found by port number, so each must have a different one, as with real sockets on
+ * one host.
+ *
+ * Each node's uplink has a latency, a chance of losing each packet, and a bandwidth.
+ * Packets queue for the uplink as they would for a real one, and are dropped if they
+ * would have to wait more than {@link #MAX_QUEUE_DELAY} ms. Delivery is scheduled on a
+ * {@link Ticker}: with a {@link VirtualTicker}, and its clock, the network runs in virtual
+ * time, e.g. to test the transport; with a real ticker and the system clock it can carry
+ * the traffic of real nodes, see {@link SimulatedUdpSocketHandler}.
+ */
+public class SimulatedNetwork {
+
+	/** A node, or anything else, which can receive packets. */
+	public interface Endpoint {
+
+		/**
+		 * Called when a packet arrives. Not called again for this endpoint until it
+		 * returns.
+		 * @param data The packet, which the endpoint may keep.
+		 * @param from The address and port it was sent from.
+		 * @param now The time it arrived.
+		 */
+		void deliver(byte[] data, Peer from, long now);
+
+	}
+
+	/** The longest a packet may wait for its uplink before it is dropped. */
+	public static final long MAX_QUEUE_DELAY = 1000;
+
+	private final Ticker ticker;
+
+	private final LongSupplier clock;
+
+	private final Random random;
+
+	private final ConcurrentHashMap<Integer, Node> nodes = new ConcurrentHashMap<Integer, Node>();
+
+	private volatile Link defaultLink = new Link(0, 0.0, 0);
+
+	private final ConcurrentHashMap<Integer, Link> links = new ConcurrentHashMap<Integer, Link>();
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	private final AtomicLong lost = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private static final class Link {
+
+		final long latency;
+
+		final double loss;
+
+		final int bytesPerSecond;
+
+		Link(long latency, double loss, int bytesPerSecond) {
+			if (latency < 0 || loss < 0.0 || loss > 1.0 || bytesPerSecond < 0)
+				throw new IllegalArgumentException();
+			this.latency = latency;
+			this.loss = loss;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+	}
+
+	private static final class Node {
+
+		final Endpoint endpoint;
+
+		/** Packets waiting to be delivered, and whether some thread is delivering them. */
+		private final ArrayDeque<Arrival> inbox = new ArrayDeque<Arrival>();
+
+		private boolean delivering;
+
+		/** When the uplink will have sent everything queued, in microseconds. */
+		private long busyUntil;
+
+		Node(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+
+	}
+
+	private static final class Arrival {
+
+		final byte[] data;
+
+		final Peer from;
+
+		Arrival(byte[] data, Peer from) {
+			this.data = data;
+			this.from = from;
+		}
+
+	}
+
+	/**
+	 * @param ticker Schedules delivery of packets.
+	 * @param clock The time, in milliseconds, on the same clock as the ticker.
+	 * @param random Decides which packets are lost.
+	 */
+	public SimulatedNetwork(Ticker ticker, LongSupplier clock, Random random) {
+		this.ticker = ticker;
+		this.clock = clock;
+		this.random = random;
+	}
+
+	/**
+	 * Create a network on the system clock, with a ticker of its own, to carry the
+	 * traffic of real nodes.
+	 * @param executor Runs the ticker's jobs, i.e. the deliveries.
+	 * @param random Decides which packets are lost.
+	 */
+	public static SimulatedNetwork realTime(Executor executor, Random random) {
+		PrioritizedTicker ticker = new PrioritizedTicker(executor, 0);
+		ticker.start();
+		return new SimulatedNetwork(ticker, System::currentTimeMillis, random);
+	}
+
+	/** The current time, on the network's clock. */
+	public long currentTimeMillis() {
+		return clock.getAsLong();
+	}
+
+	/**
+	 * Set the uplink of every node which doesn't have its own.
+	 * @param latency How long a packet takes to arrive once sent, in ms.
+	 * @param loss The probability of losing each packet.
+	 * @param bytesPerSecond The bandwidth, including UDP/IP headers, or 0 for unlimited.
+	 */
+	public void setDefaultLink(long latency, double loss, int bytesPerSecond) {
+		defaultLink = new Link(latency, loss, bytesPerSecond);
+	}
+
+	/**
+	 * Set the uplink of the node on the given port.
+	 * @see #setDefaultLink(long, double, int)
+	 */
+	public void setLink(int port, long latency, double loss, int bytesPerSecond) {
+		links.put(port, new Link(latency, loss, bytesPerSecond));
+	}
+
+	/**
+	 * Start receiving packets sent to a port.
+	 * @throws SocketException If something is already using the port.
+	 */
+	public void attach(int port, Endpoint endpoint) throws SocketException {
+		if (nodes.putIfAbsent(port, new Node(endpoint)) != null)
+			throw new SocketException("Simulated port " + port + " is already in use");
+	}
+
+	/** Stop receiving packets sent to a port. Any on the way are lost. */
+	public void detach(int port, Endpoint endpoint) {
+		Node node = nodes.get(port);
+		if (node != null && node.endpoint == endpoint)
+			nodes.remove(port, node);
+	}
+
+	/**
+	 * Send a packet.
+	 * @param fromPort The port of the sender, which must be attached.
+	 * @param fromAddress The address the packet appears to come from.
+	 * @param data The packet. Not copied, so must not be changed afterwards.
+	 * @param toPort The port of the recipient. If nothing is attached there, the packet
+	 * is lost, as with UDP.
+	 * @return False if the packet was dropped because the uplink was too busy.
+	 */
+	public boolean send(int fromPort, InetAddress fromAddress, byte[] data, int toPort) {
+		sent.incrementAndGet();
+		Node sender = nodes.get(fromPort);
+		if (sender == null) {
+			// Closed while sending.
+			lost.incrementAndGet();
+			return true;
+		}
+		Link link = links.get(fromPort);
+		if (link == null)
+			link = defaultLink;
+		long now = clock.getAsLong();
+		long arrival;
+		synchronized (sender) {
+			long nowMicros = now * 1000;
+			long start = Math.max(nowMicros, sender.busyUntil);
+			if (link.bytesPerSecond > 0) {
+				if (start - nowMicros > MAX_QUEUE_DELAY * 1000) {
+					dropped.incrementAndGet();
+					return false;
+				}
+				long bytes = data.length + UdpSocketHandler.UDPv4_HEADERS_LENGTH;
+				sender.busyUntil = start + bytes * 1000000 / link.bytesPerSecond;
+				start = sender.busyUntil;
+			}
+			// Round up, so that nothing arrives sooner than it should.
+			arrival = (start + 999) / 1000 + link.latency;
+		}
+		if (link.loss > 0.0) {
+			boolean lose;
+			synchronized (random) {
+				lose = random.nextDouble() < link.loss;
+			}
+			if (lose) {
+				lost.incrementAndGet();
+				return true;
+			}
+		}
+		final Peer from = new Peer(fromAddress, fromPort);
+		final byte[] packet = data;
+		final int port = toPort;
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				arrive(port, packet, from);
+			}
+
+		}, "Simulated packet to " + toPort, arrival - now, false, false);
+		return true;
+	}
+
+	/** Hand a packet to its recipient, one at a time per recipient. */
+	private void arrive(int port, byte[] data, Peer from) {
+		Node node = nodes.get(port);
+		if (node == null) {
+			lost.incrementAndGet();
+			return;
+		}
+		synchronized (node) {
+			node.inbox.addLast(new Arrival(data, from));
+			if (node.delivering)
+				return;
+			node.delivering = true;
+		}
+		while (true) {
+			Arrival packet;
+			synchronized (node) {
+				packet = node.inbox.pollFirst();
+				if (packet == null) {
+					node.delivering = false;
+					return;
+				}
+			}
+			delivered.incrementAndGet();
+			try {
+				node.endpoint.deliver(packet.data, packet.from, clock.getAsLong());
+			}
+			catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " delivering to port " + port, t);
+			}
+		}
+	}
+
+	/** The number of packets sent so far. */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/** The number of packets delivered so far. */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * The number of packets lost at random, or because the sender or recipient wasn't
+	 * attached.
+	 */
+	public long getLost() {
+		return lost.get();
+	}
+
+	/** The number of packets dropped because the sender's uplink was too busy. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
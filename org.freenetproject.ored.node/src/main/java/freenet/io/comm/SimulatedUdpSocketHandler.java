@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.node.Node;
+import freenet.nodelogger.Logger;
+
+/**
+ * UdpSocketHandler which sends and receives through a {@link SimulatedNetwork} rather than
+ * a socket, for simulations of many nodes in one JVM. There is no thread per node:
+ * packets are handed to the node by whichever thread delivers them, one at a time.
+ */
+public class SimulatedUdpSocketHandler extends UdpSocketHandler implements SimulatedNetwork.Endpoint {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedUdpSocketHandler.class);
+	}
+
+	private final SimulatedNetwork network;
+
+	private final int port;
+
+	/** The address our packets come from. */
+	private final InetAddress address;
+
+	public SimulatedUdpSocketHandler(SimulatedNetwork network, int listenPort, InetAddress bindto, Node node,
+			long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		super(null, listenPort, bindto, node, startupTime, title, collector);
+		this.network = network;
+		this.port = listenPort;
+		this.address = (bindto == null || bindto.isAnyLocalAddress()) ? InetAddress.getLoopbackAddress() : bindto;
+		network.attach(listenPort, this);
+	}
+
+	@Override
+	boolean hasReceiveThread() {
+		return false;
+	}
+
+	@Override
+	public void deliver(byte[] data, Peer from, long now) {
+		if (!isActive()) {
+			return;
+		}
+		Peer peer = receivedPacket(from.getAddress(false), from.getPort(), data.length);
+		try {
+			getLowLevelFilter().process(data, 0, data.length, peer, now);
+		}
+		catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from " + getLowLevelFilter(), t);
+		}
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses)
+			throws LocalAddressException {
+		assert (blockToSend != null);
+		InetAddress address = getSendAddress(destination, allowLocalAddresses);
+		if (address == null) {
+			return;
+		}
+		int toPort = destination.getPort();
+		// The caller may reuse the buffer.
+		byte[] data = Arrays.copyOf(blockToSend, blockToSend.length);
+		if (this.network.send(this.port, this.address, data, toPort)) {
+			sentPacket(destination, address, toPort, data.length);
+		}
+		else if (logMINOR) {
+			Logger.minor(this, "Simulated uplink full, dropping packet to " + destination);
+		}
+	}
+
+	@Override
+	void onClose() {
+		this.network.detach(this.port, this);
+	}
+
+	@Override
+	public int getPortNumber() {
+		return this.port;
+	}
+
+	@Override
+	public String toString() {
+		return "simulated:" + this.port;
+	}
+
+}
@@ -164,6 +164,15 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title,
 			IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/**
+	 * @param sock The already bound socket to use. May be the socket of a
+	 * DatagramChannel, or null if the subclass carries the packets itself.
+	 */
+	UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime,
+			String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -174,7 +183,18 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		// _sock = (DatagramSocket) Updater.getResource();
 		// } else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		_sock = sock;
+		if (_sock != null) {
+			configureSocket(listenPort);
+		}
+		// }
+		// Only used for debugging, no need to seed from Yarrow
+		dropRandom = node.fastWeakRandom;
+		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
+		tracker.startSend(startupTime);
+	}
+
+	private void configureSocket(int listenPort) throws SocketException {
 		int sz = _sock.getReceiveBufferSize();
 		if (sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -192,16 +212,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with " + node.getTrafficClass().value, e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock,
-				socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
-		if (logMINOR)
-			Logger.minor(this,
-					"Setting IPV6_PREFER_SRC_PUBLIC for port " + listenPort + " is a " + (r ? "success" : "failure"));
-		// }
-		// Only used for debugging, no need to seed from Yarrow
-		dropRandom = node.fastWeakRandom;
-		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
-		tracker.startSend(startupTime);
+		// We can't get at the file descriptor of a channel's socket adaptor.
+		if (_sock.getChannel() == null) {
+			boolean r = socketOptions.setAddressPreference(_sock,
+					socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+			if (logMINOR)
+				Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port " + listenPort + " is a "
+						+ (r ? "success" : "failure"));
+		}
 	}
 
 	/** Must be called, or we will NPE in run() */
@@ -210,6 +228,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		lowLevelFilter = f;
 	}
 
+	IncomingPacketFilter getLowLevelFilter() {
+		return lowLevelFilter;
+	}
+
+	boolean isActive() {
+		return _active;
+	}
+
 	public InetAddress getBindTo() {
 		return _bindTo;
 	}
@@ -263,8 +289,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			}
 		}
 		finally {
-			System.err.println("run() exiting for UdpSocketHandler on port " + _sock.getLocalPort());
-			Logger.error(this, "run() exiting for UdpSocketHandler on port " + _sock.getLocalPort());
+			System.err.println("run() exiting for " + getClass().getSimpleName() + " on port " + listenPort);
+			Logger.error(this, "run() exiting for " + getClass().getSimpleName() + " on port " + listenPort);
 			synchronized (this) {
 				_isDone = true;
 				notifyAll();
@@ -272,7 +298,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void runLoop() {
+	/** Receive packets until closed. */
+	void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -371,12 +398,34 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses)
 			throws LocalAddressException {
 		assert (blockToSend != null);
+		InetAddress address = getSendAddress(destination, allowLocalAddresses);
+		if (address == null)
+			return;
+		int port = destination.getPort();
+		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
+		packet.setAddress(address);
+		packet.setPort(port);
+
+		try {
+			_sock.send(packet);
+			sentPacket(destination, address, port, blockToSend.length);
+		}
+		catch (IOException | UnsupportedAddressTypeException e) {
+			sendFailed(destination, address, e);
+		}
+	}
+
+	/**
+	 * Check whether we can send a packet to a peer, and look up its address.
+	 * @return The address to send to, or null if the packet should not be sent.
+	 */
+	InetAddress getSendAddress(Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
 		if (!_active) {
 			Logger.error(this, "Trying to send packet but no longer active");
 			// It is essential that for recording accurate AddressTracker data that we
 			// don't send any more
 			// packets after shutdown.
-			return;
+			return null;
 		}
 		// there should be no DNS needed here, but go ahead if we can, but complain doing
 		// it
@@ -388,37 +437,44 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			if (destination.getAddress(true, allowLocalAddresses) == null) {
 				Logger.error(this, "Tried sending to bad destination address: null:" + destination.getPort(),
 						new Exception("error"));
-				return;
+				return null;
 			}
 		}
 		if (_dropProbability > 0) {
 			if (dropRandom.nextInt() % _dropProbability == 0) {
-				Logger.normal(this, "DROPPED: " + _sock.getLocalPort() + " -> " + destination.getPort());
-				return;
+				Logger.normal(this, "DROPPED: " + getPortNumber() + " -> " + destination.getPort());
+				return null;
 			}
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert (address != null);
-		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
+		return address;
+	}
 
-		try {
-			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if (logMINOR)
-				Logger.minor(this, "Sent packet length " + blockToSend.length + " to " + address + ':' + port);
+	/** Account for a packet we have received. */
+	Peer receivedPacket(InetAddress address, int port, int length) {
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address, port, getHeadersLength(address) + length, 0, isLocal);
+		Peer peer = new Peer(address, port);
+		tracker.receivedPacketFrom(peer);
+		return peer;
+	}
+
+	/** Account for a packet we have sent. */
+	void sentPacket(Peer destination, InetAddress address, int port, int length) {
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, port, 0, getHeadersLength(address) + length, isLocal);
+		if (logMINOR)
+			Logger.minor(this, "Sent packet length " + length + " to " + address + ':' + port);
+	}
+
+	void sendFailed(Peer destination, InetAddress address, Exception e) {
+		if (address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: " + destination + ": " + e);
 		}
-		catch (IOException | UnsupportedAddressTypeException e) {
-			if (packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: " + destination + ": " + e);
-			}
-			else {
-				Logger.error(this, "Error while sending packet to " + destination + ": " + e, e);
-			}
+		else {
+			Logger.error(this, "Error while sending packet to " + destination + ": " + e, e);
 		}
 	}
 
@@ -478,18 +534,29 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	public void start() {
 		if (!_active)
 			return;
+		boolean thread = hasReceiveThread();
 		synchronized (this) {
-			_started = true;
+			_started = thread;
 			startTime = System.currentTimeMillis();
 		}
-		node.executor.execute(this, "UdpSocketHandler for port " + listenPort);
+		if (thread)
+			node.executor.execute(this, "UdpSocketHandler for port " + listenPort);
+		else
+			tracker.startReceive(startTime);
+	}
+
+	/** @return False if packets are handed to us, rather than received by our own thread. */
+	boolean hasReceiveThread() {
+		return true;
 	}
 
 	public void close() {
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
-			_sock.close();
+			if (_sock != null)
+				_sock.close();
+			onClose();
 
 			if (!_started)
 				return;
@@ -505,6 +572,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		tracker.storeData(node.bootID, node.runDir(), listenPort);
 	}
 
+	/** Called when closing, after the socket has been closed. */
+	void onClose() {
+	}
+
 	public int getDropProbability() {
 		return _dropProbability;
 	}
@@ -43,6 +43,7 @@ import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MedianMeanRunningAverage;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
 /**
@@ -134,7 +135,7 @@ public class BlockTransmitter {
 
 	static int runningBlockTransmits = 0;
 
-	class BlockSenderJob implements PrioRunnable {
+	class BlockSenderJob implements PrioRunnable, BlockingRunnable {
 
 		private boolean running = false;
 
@@ -50,14 +50,21 @@ public class PacketThrottle {
 
 	public static final long DEFAULT_DELAY = 200;
 
-	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
+	/*
+	 * Changes are synchronized, but the window size and round trip time are volatile so
+	 * that they can be read for every packet sent without locking.
+	 */
+
+	private volatile long _roundTripTime = 500;
+
+	private long _totalPackets, _droppedPackets;
 
 	/**
 	 * The size of the window, in packets. Window size must not drop below 1.0. Partly
 	 * this is because we need to be able to send one packet, so it is a logical lower
 	 * bound. But mostly it is because of the non-slow-start division by _windowSize!
 	 */
-	private float _windowSize = 2;
+	private volatile float _windowSize = 2;
 
 	private final int PACKET_SIZE;
 
@@ -79,10 +86,11 @@ public class PacketThrottle {
 		}
 		_droppedPackets += numPackets;
 		_totalPackets += numPackets;
-		_windowSize *= Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets);
-		if (_windowSize < 1.0F) {
-			_windowSize = 1.0F;
+		float windowSize = (float) (_windowSize * Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets));
+		if (windowSize < 1.0F) {
+			windowSize = 1.0F;
 		}
+		_windowSize = windowSize;
 		slowStart = false;
 		if (logMINOR) {
 			Logger.minor(this, "notifyOfPacketsLost(): " + this);
@@ -103,29 +111,32 @@ public class PacketThrottle {
 		// This is similar but not identical to RFC2861
 		// See [freenet-dev] Major weakness in our current link-level congestion control
 		int windowSize = (int) getWindowSize();
+		// Only write the window size once, as it is read without locking.
+		float newWindowSize = _windowSize;
 
 		if (slowStart) {
 			if (logMINOR)
 				Logger.minor(this, "Still in slow start");
-			_windowSize += _windowSize / SLOW_START_DIVISOR;
+			newWindowSize += newWindowSize / SLOW_START_DIVISOR;
 			// Avoid craziness if there is lag in detecting packet loss.
-			if (_windowSize > maxWindowSize)
+			if (newWindowSize > maxWindowSize)
 				slowStart = false;
 			// Window size must not drop below 1.0. Partly this is because we need to be
 			// able to send one packet, so it is a logical lower bound.
 			// But mostly it is because of the non-slow-start division by _windowSize!
-			if (_windowSize < 1.0F)
-				_windowSize = 1.0F;
+			if (newWindowSize < 1.0F)
+				newWindowSize = 1.0F;
 		}
 		else {
-			_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
+			newWindowSize += (PACKET_TRANSMIT_INCREMENT / newWindowSize);
 		}
 		// Ensure that we the window size does not grow dramatically larger than the
 		// largest window
 		// that has actually been in flight at one time.
-		if (_windowSize > maxWindowSize)
-			_windowSize = (float) maxWindowSize;
-		if (_windowSize > (windowSize + 1))
+		if (newWindowSize > maxWindowSize)
+			newWindowSize = (float) maxWindowSize;
+		_windowSize = newWindowSize;
+		if (newWindowSize > (windowSize + 1))
 			notifyAll();
 		if (logMINOR)
 			Logger.minor(this, "notifyOfPacketAcked(): " + this);
@@ -135,7 +146,7 @@ public class PacketThrottle {
 	 * Only used for diagnostics. We actually maintain a real window size. So we don't
 	 * need lots of sanity checking here.
 	 */
-	public synchronized long getDelay() {
+	public long getDelay() {
 		// return (long) (_roundTripTime / _simulatedWindowSize);
 		return Math.max(MIN_DELAY, (long) (_roundTripTime / _windowSize));
 	}
@@ -147,11 +158,11 @@ public class PacketThrottle {
 				+ super.toString();
 	}
 
-	public synchronized long getRoundTripTime() {
+	public long getRoundTripTime() {
 		return _roundTripTime;
 	}
 
-	public synchronized double getWindowSize() {
+	public double getWindowSize() {
 		return Math.max(1.0, _windowSize);
 	}
 
@@ -159,7 +170,7 @@ public class PacketThrottle {
 	 * returns the number of bytes-per-second in the transmition link (?). FIXME: Will not
 	 * return more than 1M/s due to MIN_DELAY in getDelay().
 	 */
-	public synchronized double getBandwidth() {
+	public double getBandwidth() {
 		// PACKET_SIZE=1024 [bytes?]
 		// 1000 ms/sec
 		return ((PACKET_SIZE * 1000.0 / getDelay()));
@@ -26,9 +26,11 @@ import freenet.keys.NodeCHK;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
 import freenet.nodelogger.Logger;
+import freenet.support.ParkedWaiters;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
 /**
@@ -36,7 +38,7 @@ import freenet.support.node.PrioRunnable;
  *
  * Handle an incoming insert request. This corresponds to RequestHandler.
  */
-public class CHKInsertHandler implements PrioRunnable, ByteCounter {
+public class CHKInsertHandler implements PrioRunnable, BlockingRunnable, ByteCounter {
 
 	private static volatile boolean logMINOR;
 
@@ -227,15 +229,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 		boolean receivedRejectedOverload = false;
 
 		while (true) {
-			synchronized (sender) {
-				try {
-					if (sender.getStatus() == CHKInsertSender.NOT_FINISHED)
-						sender.wait(5000);
-				}
-				catch (InterruptedException e) {
-					// Cool, probably this is because the receive failed...
-				}
-			}
+			// If interrupted, probably this is because the receive failed...
+			sender.waitForChange(5000);
 			if (receiveFailed()) {
 				// Nothing else we can do
 				finish(CHKInsertSender.RECEIVE_FAILED);
@@ -456,16 +451,19 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 			Logger.minor(this, "Waiting for receive");
 		long transferTimeout = realTimeFlag ? CHKInsertSender.TRANSFER_COMPLETION_ACK_TIMEOUT_REALTIME
 				: CHKInsertSender.TRANSFER_COMPLETION_ACK_TIMEOUT_BULK;
-		synchronized (this) {
-			while (receiveStarted && !receiveCompleted) {
-				try {
-					wait(SECONDS.toMillis(100));
-				}
-				catch (InterruptedException e) {
-					// Ignore
+		receiveWaiters.add();
+		try {
+			while (true) {
+				synchronized (this) {
+					if (!receiveStarted || receiveCompleted)
+						break;
 				}
+				receiveWaiters.park(this, SECONDS.toMillis(100));
 			}
 		}
+		finally {
+			receiveWaiters.remove();
+		}
 
 		CHKBlock block = verify();
 		// If we wanted to reduce latency at the cost of security (bug 3338), we'd commit
@@ -488,23 +486,12 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 			// If there are downstream senders, our final success report depends on there
 			// being no timeouts in the chain.
 			while (true) {
-				synchronized (sender) {
-					if (sender.completed()) {
-						break;
-					}
-					try {
-						int t = (int) Math.min(Integer.MAX_VALUE,
-								startedTime + transferTimeout - System.currentTimeMillis());
-						if (t > 0)
-							sender.wait(t);
-						else {
-							routingTookTooLong = true;
-							break;
-						}
-					}
-					catch (InterruptedException e) {
-						// Loop
-					}
+				long t = startedTime + transferTimeout - System.currentTimeMillis();
+				if (sender.waitForCompletion(t))
+					break;
+				if (t <= 0) {
+					routingTookTooLong = true;
+					break;
 				}
 			}
 			if (routingTookTooLong) {
@@ -522,18 +509,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 								+ this);
 
 				// Still waiting.
-				while (true) {
-					synchronized (sender) {
-						if (sender.completed()) {
-							break;
-						}
-						try {
-							sender.wait(SECONDS.toMillis(10));
-						}
-						catch (InterruptedException e) {
-							// Loop
-						}
-					}
+				while (!sender.waitForCompletion(SECONDS.toMillis(10))) {
+					// Loop
 				}
 				if (logMINOR)
 					Logger.minor(this, "Completed after telling downstream on " + this);
@@ -669,7 +646,10 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 
 	private boolean receiveCompleted;
 
-	public class DataReceiver implements PrioRunnable {
+	/** Waiting for receiveCompleted. Parked rather than waiting on our lock. */
+	private final ParkedWaiters receiveWaiters = new ParkedWaiters();
+
+	public class DataReceiver implements PrioRunnable, BlockingRunnable {
 
 		@Override
 		public void run() {
@@ -686,8 +666,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 						Logger.minor(this, "Received data for " + CHKInsertHandler.this);
 					synchronized (CHKInsertHandler.this) {
 						receiveCompleted = true;
-						CHKInsertHandler.this.notifyAll();
 					}
+					receiveWaiters.wakeAll();
 					node.nodeStats.successfulBlockReceive(realTimeFlag, false);
 				}
 
@@ -696,8 +676,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
 					synchronized (CHKInsertHandler.this) {
 						receiveCompleted = true;
 						receiveFailed = true;
-						CHKInsertHandler.this.notifyAll();
 					}
+					receiveWaiters.wakeAll();
 					// Cancel the sender
 					if (sender != null)
 						sender.onReceiveFailed(); // tell it to stop if it hasn't already
@@ -26,12 +26,15 @@ import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.nodelogger.Logger;
+import freenet.support.ParkedWaiters;
 import freenet.support.io.NativeThread;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
-public final class CHKInsertSender extends BaseSender implements PrioRunnable, AnyInsertSender, ByteCounter {
+public final class CHKInsertSender extends BaseSender
+		implements PrioRunnable, BlockingRunnable, AnyInsertSender, ByteCounter {
 
-	private class BackgroundTransfer implements PrioRunnable, SlowAsyncMessageFilterCallback {
+	private class BackgroundTransfer implements PrioRunnable, BlockingRunnable, SlowAsyncMessageFilterCallback {
 
 		private final long uid;
 
@@ -168,7 +171,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			synchronized (backgroundTransfers) {
 				// transferSucceeded = success; //FIXME Don't used
 				completedTransfer = true;
-				backgroundTransfers.notifyAll();
+				backgroundTransferWaiters.wakeAll();
 			}
 			if (!success) {
 				setTransferTimedOut();
@@ -252,7 +255,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			synchronized (backgroundTransfers) {
 				// Avoid "Unlocked handler but still routing to yet not reassigned".
 				if (!gotFatalTimeout) {
-					backgroundTransfers.notifyAll();
+					backgroundTransferWaiters.wakeAll();
 				}
 			}
 			if (timeout && gotFatalTimeout) {
@@ -442,6 +445,15 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 	 */
 	private List<BackgroundTransfer> backgroundTransfers;
 
+	/** Waiting for a background transfer to change. Woken with backgroundTransfers locked. */
+	private final ParkedWaiters backgroundTransferWaiters = new ParkedWaiters();
+
+	/**
+	 * Handlers waiting for our status or completion, which may be on virtual threads so
+	 * park rather than wait on our lock.
+	 */
+	private final ParkedWaiters waiters = new ParkedWaiters();
+
 	/** Have all transfers completed and all nodes reported completion status? */
 	private boolean allTransfersCompleted;
 
@@ -889,7 +901,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		BackgroundTransfer ac = new BackgroundTransfer(node, prb, tag);
 		synchronized (backgroundTransfers) {
 			backgroundTransfers.add(ac);
-			backgroundTransfers.notifyAll();
+			backgroundTransferWaiters.wakeAll();
 		}
 		ac.start();
 		return ac;
@@ -910,14 +922,14 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		if (hasForwardedRejectedOverload)
 			return;
 		hasForwardedRejectedOverload = true;
-		notifyAll();
+		notifyWaiters();
 	}
 
 	private void setTransferTimedOut() {
 		synchronized (this) {
 			if (!transferTimedOut) {
 				transferTimedOut = true;
-				notifyAll();
+				notifyWaiters();
 			}
 		}
 	}
@@ -955,7 +967,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 				status = code;
 			}
 
-			notifyAll();
+			notifyWaiters();
 			if (logMINOR)
 				Logger.minor(this, "Set status code: " + getStatusString() + " on " + uid);
 		}
@@ -988,7 +1000,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 				if (failedRecv)
 					status = RECEIVE_FAILED;
 				allTransfersCompleted = true;
-				notifyAll();
+				notifyWaiters();
 			}
 		}
 
@@ -1030,7 +1042,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			Logger.minor(this, "Receive failed on " + this);
 		synchronized (backgroundTransfers) {
 			receiveFailed = true;
-			backgroundTransfers.notifyAll();
+			backgroundTransferWaiters.wakeAll();
 			// Locking is safe as UIDTag always taken last.
 			for (BackgroundTransfer t : backgroundTransfers)
 				t.thisTag.handlingTimeout(t.pn);
@@ -1042,7 +1054,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		synchronized (this) {
 			status = RECEIVE_FAILED;
 			allTransfersCompleted = true;
-			notifyAll();
+			notifyWaiters();
 		}
 		// Do not call finish(), that can only be called on the main thread and it will
 		// block.
@@ -1099,7 +1111,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		finally {
 			synchronized (CHKInsertSender.this) {
 				allTransfersCompleted = true;
-				CHKInsertSender.this.notifyAll();
+				notifyWaiters();
 			}
 		}
 	}
@@ -1113,66 +1125,69 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		long start = System.currentTimeMillis();
 		// Generous deadline so we catch bugs more obviously
 		long deadline = start + transferCompletionTimeout * 3;
-		// MAYBE all done
-		while (true) {
-			if (System.currentTimeMillis() > deadline) {
-				// NORMAL priority because it is normally caused by a transfer taking too
-				// long downstream, and that doesn't usually indicate a bug.
-				Logger.normal(this,
-						"Timed out waiting for background transfers! Probably caused by async filter not getting a timeout notification! DEBUG ME!");
-				return false;
-			}
-			// If we want to be sure to exit as-soon-as the transfers are done, then we
-			// must hold the lock while we check.
-			synchronized (backgroundTransfers) {
-				if (receiveFailed)
+		backgroundTransferWaiters.add();
+		try {
+			// MAYBE all done
+			while (true) {
+				if (System.currentTimeMillis() > deadline) {
+					// NORMAL priority because it is normally caused by a transfer taking too
+					// long downstream, and that doesn't usually indicate a bug.
+					Logger.normal(this,
+							"Timed out waiting for background transfers! Probably caused by async filter not getting a timeout notification! DEBUG ME!");
 					return false;
-
-				boolean noneRouteable = true;
-				boolean completedTransfers = true;
-				boolean completedNotifications = true;
-				boolean someFailed = false;
-				for (BackgroundTransfer transfer : transfers) {
-					if (!transfer.pn.isRoutable()) {
-						if (logMINOR)
-							Logger.minor(this,
-									"Ignoring transfer to " + transfer.pn + " for " + this + " as not routable");
-						continue;
-					}
-					noneRouteable = false;
-					if (!transfer.completedTransfer) {
-						if (logMINOR)
-							Logger.minor(this, "Waiting for transfer completion to " + transfer.pn + " : " + transfer);
-						// must wait
-						completedTransfers = false;
-						break;
-					}
-					if (!transfer.receivedCompletionNotice) {
-						if (logMINOR)
-							Logger.minor(this, "Waiting for completion notice from " + transfer.pn + " : " + transfer);
-						// must wait
-						completedNotifications = false;
-						break;
-					}
-					if (!transfer.completionSucceeded)
-						someFailed = true;
 				}
-				if (noneRouteable)
-					return false;
-				if (completedTransfers && completedNotifications)
-					return !someFailed;
+				// If we want to be sure to exit as-soon-as the transfers are done, then we
+				// must hold the lock while we check.
+				synchronized (backgroundTransfers) {
+					if (receiveFailed)
+						return false;
+
+					boolean noneRouteable = true;
+					boolean completedTransfers = true;
+					boolean completedNotifications = true;
+					boolean someFailed = false;
+					for (BackgroundTransfer transfer : transfers) {
+						if (!transfer.pn.isRoutable()) {
+							if (logMINOR)
+								Logger.minor(this,
+										"Ignoring transfer to " + transfer.pn + " for " + this + " as not routable");
+							continue;
+						}
+						noneRouteable = false;
+						if (!transfer.completedTransfer) {
+							if (logMINOR)
+								Logger.minor(this,
+										"Waiting for transfer completion to " + transfer.pn + " : " + transfer);
+							// must wait
+							completedTransfers = false;
+							break;
+						}
+						if (!transfer.receivedCompletionNotice) {
+							if (logMINOR)
+								Logger.minor(this,
+										"Waiting for completion notice from " + transfer.pn + " : " + transfer);
+							// must wait
+							completedNotifications = false;
+							break;
+						}
+						if (!transfer.completionSucceeded)
+							someFailed = true;
+					}
+					if (noneRouteable)
+						return false;
+					if (completedTransfers && completedNotifications)
+						return !someFailed;
 
-				if (logMINOR)
-					Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="
-							+ completedNotifications);
-				try {
-					backgroundTransfers.wait(SECONDS.toMillis(100));
-				}
-				catch (InterruptedException e) {
-					// Ignore
+					if (logMINOR)
+						Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="
+								+ completedNotifications);
 				}
+				backgroundTransferWaiters.park(backgroundTransfers, SECONDS.toMillis(100));
 			}
 		}
+		finally {
+			backgroundTransferWaiters.remove();
+		}
 	}
 
 	public synchronized boolean completed() {
@@ -1180,15 +1195,70 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 	}
 
 	/** Block until status has been set to something other than NOT_FINISHED */
-	public synchronized void waitForStatus() {
-		while (status == NOT_FINISHED) {
-			try {
-				CHKInsertSender.this.wait(SECONDS.toMillis(100));
+	public void waitForStatus() {
+		waiters.add();
+		try {
+			while (true) {
+				synchronized (this) {
+					if (status != NOT_FINISHED)
+						return;
+				}
+				waiters.park(this, SECONDS.toMillis(100));
 			}
-			catch (InterruptedException e) {
-				// Ignore
+		}
+		finally {
+			waiters.remove();
+		}
+	}
+
+	/**
+	 * Unless the status has already been set, wait until something changes, e.g. the
+	 * status is set or we forward a RejectedOverload, or the timeout expires, or we are
+	 * interrupted. May return early for no reason, so the caller must check again.
+	 */
+	public void waitForChange(long timeout) {
+		waiters.add();
+		try {
+			synchronized (this) {
+				if (status != NOT_FINISHED)
+					return;
 			}
+			waiters.park(this, timeout);
 		}
+		finally {
+			waiters.remove();
+		}
+	}
+
+	/**
+	 * Block until all transfers have completed, the timeout expires or we are
+	 * interrupted.
+	 * @return completed()
+	 */
+	public boolean waitForCompletion(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		waiters.add();
+		try {
+			while (true) {
+				if (completed())
+					return true;
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0 || waiters.park(this, wait))
+					return completed();
+			}
+		}
+		finally {
+			waiters.remove();
+		}
+	}
+
+	/**
+	 * Wake anything waiting for our status to change, whether on our lock or parked.
+	 * Caller must hold the lock.
+	 */
+	private void notifyWaiters() {
+		notifyAll();
+		waiters.wakeAll();
 	}
 
 	public boolean anyTransfersFailed() {
@@ -1398,7 +1468,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 
 				synchronized (this) {
 					status = TIMED_OUT;
-					notifyAll();
+					notifyWaiters();
 				}
 
 				// Wait for the second timeout off-thread.
@@ -4,11 +4,14 @@
 package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -28,6 +31,7 @@ import freenet.support.ListUtils;
 import freenet.support.LogThresholdCallback;
 import freenet.nodelogger.Logger;
 import freenet.support.SerialExecutor;
+import freenet.support.TimingWheel;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 import freenet.support.node.PrioRunnable;
@@ -36,8 +40,8 @@ import freenet.support.node.PrioRunnable;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry
-// lock only on cheap internal operations.
+// LOCKING: Always take the shard lock first if you need both. Take the FailureTableEntry
+// lock only on cheap internal operations. Never take more than one shard lock at once.
 
 /**
  * Tracks recently DNFed keys, where they were routed to, what the location was at the
@@ -46,6 +50,10 @@ import freenet.support.node.PrioRunnable;
  * the request), and when it is found, offer it to those who've asked for it in the last
  * hour. LOCKING: Do not lock PeerNode before FailureTable/FailureTableEntry.
  *
+ * The table is split by key into shards, each with its own lock, so failures and found
+ * blocks for different keys don't contend. Entries and offers are expired by a timing
+ * wheel in each shard rather than by periodically scanning the whole table.
+ *
  * @author toad
  */
 public class FailureTable {
@@ -64,19 +72,14 @@ public class FailureTable {
 		});
 	}
 
-	/**
-	 * FailureTableEntry's by key. Note that we push an entry only when sentTime changes.
-	 */
-	private final LRUMap<Key, FailureTableEntry> entriesByKey;
-
-	/**
-	 * BlockOfferList by key. Synchronized on self, as it doesn't interact with the main
-	 * FT.
-	 */
-	private final LRUMap<Key, BlockOfferList> blockOfferListByKey;
+	/** Chosen by key hash. */
+	private final Shard[] shards;
 
 	private final Node node;
 
+	/** Number of shards. Must be a power of 2. */
+	static final int SHARDS = 16;
+
 	/** Maximum number of keys to track */
 	static final int MAX_ENTRIES = 20 * 1000;
 
@@ -107,17 +110,164 @@ public class FailureTable {
 	/** HMAC key for the offer authenticator */
 	final byte[] offerAuthenticatorKey;
 
-	/** Clean up old data every 10 minutes to save memory and improve privacy */
+	/**
+	 * Clean up old data every 10 minutes to save memory and improve privacy. Each entry
+	 * is checked this long after it was created or last checked.
+	 */
 	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
 
+	/** How often we expire entries and offers whose time has come. */
+	static final long EXPIRY_TICK = SECONDS.toMillis(10);
+
+	/** Each level of the expiry timing wheels has 2^6 ticks, about 10 minutes. */
+	private static final int EXPIRY_SLOT_BITS = 6;
+
+	/** Two levels cover 11 hours, more than MAX_LIFETIME. */
+	private static final int EXPIRY_LEVELS = 2;
+
 	FailureTable(Node node) {
-		entriesByKey = LRUMap.createSafeMap();
-		blockOfferListByKey = LRUMap.createSafeMap();
+		long now = System.currentTimeMillis();
+		shards = new Shard[SHARDS];
+		for (int i = 0; i < SHARDS; i++)
+			shards[i] = new Shard(now);
 		this.node = node;
 		offerAuthenticatorKey = new byte[32];
 		node.random.nextBytes(offerAuthenticatorKey);
 		offerExecutor = new SerialExecutor(NativeThread.HIGH_PRIORITY);
-		node.ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
+		node.ticker.queueTimedJob(new FailureTableCleaner(), EXPIRY_TICK);
+	}
+
+	/**
+	 * Part of the table. Everything in it is protected by its lock, which also counts how
+	 * often it had to wait.
+	 */
+	private final class Shard {
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * FailureTableEntry's by key. Note that we push an entry only when sentTime
+		 * changes.
+		 */
+		final LRUMap<Key, FailureTableEntry> entriesByKey = LRUMap.createSafeMap();
+
+		/** BlockOfferList by key. */
+		final LRUMap<Key, BlockOfferList> blockOfferListByKey = LRUMap.createSafeMap();
+
+		/**
+		 * FailureTableEntry's and BlockOfferList's to check for expiry. Weakly
+		 * referenced, so those dropped from the maps to keep them under their size
+		 * limits can be garbage collected before their check comes round.
+		 */
+		final TimingWheel<WeakReference<Object>> expiry;
+
+		private final LongAdder acquired = new LongAdder();
+
+		private final LongAdder contended = new LongAdder();
+
+		Shard(long now) {
+			expiry = new TimingWheel<WeakReference<Object>>(EXPIRY_TICK, EXPIRY_SLOT_BITS, EXPIRY_LEVELS, now);
+		}
+
+		void lock() {
+			if (!lock.tryLock()) {
+				contended.increment();
+				lock.lock();
+			}
+			acquired.increment();
+		}
+
+		void unlock() {
+			lock.unlock();
+		}
+
+		/** Get the entry for a key, creating it if necessary. Caller must hold the lock. */
+		FailureTableEntry getOrCreateEntry(Key key, long now) {
+			FailureTableEntry entry = entriesByKey.get(key);
+			if (entry == null) {
+				entry = new FailureTableEntry(key);
+				expiry.schedule(new WeakReference<Object>(entry), now + CLEANUP_PERIOD);
+			}
+			entriesByKey.push(key, entry);
+			return entry;
+		}
+
+		FailureTableEntry getEntry(Key key) {
+			lock();
+			try {
+				return entriesByKey.get(key);
+			}
+			finally {
+				unlock();
+			}
+		}
+
+		void removeEntry(Key key) {
+			lock();
+			try {
+				entriesByKey.removeKey(key);
+			}
+			finally {
+				unlock();
+			}
+		}
+
+		/** Caller must hold the lock. */
+		void trimEntries() {
+			while (entriesByKey.size() > MAX_ENTRIES / SHARDS) {
+				entriesByKey.popKey();
+			}
+		}
+
+		/**
+		 * Remove anything whose time has come. Anything else that was due is checked
+		 * again later.
+		 */
+		void expire(long now) {
+			lock();
+			try {
+				for (WeakReference<Object> ref : expiry.advance(now)) {
+					Object o = ref.get();
+					if (o == null)
+						continue; // Dropped already, and collected.
+					if (o instanceof FailureTableEntry) {
+						FailureTableEntry entry = (FailureTableEntry) o;
+						if (entriesByKey.get(entry.key) != entry)
+							continue; // Removed already.
+						if (entry.cleanup() && entry.isEmpty()) {
+							if (logMINOR)
+								Logger.minor(this, "Removing entry for " + entry.key);
+							entriesByKey.removeKey(entry.key);
+						}
+						else {
+							expiry.schedule(ref, now + CLEANUP_PERIOD);
+						}
+					}
+					else {
+						BlockOfferList bl = (BlockOfferList) o;
+						if (blockOfferListByKey.get(bl.entry.key) != bl)
+							continue;
+						long expires = bl.expires();
+						if (bl.isEmpty(now) || expires < now) {
+							if (logMINOR)
+								Logger.minor(this, "Removing block offer list " + bl);
+							blockOfferListByKey.removeKey(bl.entry.key);
+						}
+						else {
+							expiry.schedule(ref, expires + 1);
+						}
+					}
+				}
+			}
+			finally {
+				unlock();
+			}
+		}
+
+	}
+
+	private Shard shardFor(Key key) {
+		return shards[key.hashCode() & (SHARDS - 1)];
 	}
 
 	public void start() {
@@ -147,19 +297,20 @@ public class FailureTable {
 		if (!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables))
 			return;
 		long now = System.currentTimeMillis();
-		FailureTableEntry entry;
-		synchronized (this) {
-			entry = entriesByKey.get(key);
-			if (entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+		Shard shard = shardFor(key);
+		shard.lock();
+		try {
+			FailureTableEntry entry = shard.getOrCreateEntry(key, now);
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the
 			// cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 
-			trimEntries(now);
+			shard.trimEntries();
+		}
+		finally {
+			shard.unlock();
 		}
 	}
 
@@ -185,12 +336,10 @@ public class FailureTable {
 		if (!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables))
 			return;
 		long now = System.currentTimeMillis();
-		FailureTableEntry entry;
-		synchronized (this) {
-			entry = entriesByKey.get(key);
-			if (entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+		Shard shard = shardFor(key);
+		shard.lock();
+		try {
+			FailureTableEntry entry = shard.getOrCreateEntry(key, now);
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -202,31 +351,31 @@ public class FailureTable {
 			if (requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
 
-			trimEntries(now);
+			shard.trimEntries();
 		}
-	}
-
-	private synchronized void trimEntries(long now) {
-		while (entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
+		finally {
+			shard.unlock();
 		}
 	}
 
-	// LOCKING: Synchronized on FailureTable because we need to remove self in
-	// deleteOffer().
+	// LOCKING: Locked on the shard because we need to remove self in deleteOffer().
 	private final class BlockOfferList {
 
 		private BlockOffer[] offers;
 
 		final FailureTableEntry entry;
 
-		BlockOfferList(FailureTableEntry entry, BlockOffer offer) {
+		private final Shard shard;
+
+		BlockOfferList(FailureTableEntry entry, BlockOffer offer, Shard shard) {
 			this.entry = entry;
 			this.offers = new BlockOffer[] { offer };
+			this.shard = shard;
 		}
 
 		public long expires() {
-			synchronized (blockOfferListByKey) {
+			shard.lock();
+			try {
 				long last = 0;
 				for (BlockOffer offer : offers) {
 					if (offer.offeredTime > last)
@@ -234,22 +383,30 @@ public class FailureTable {
 				}
 				return last + OFFER_EXPIRY_TIME;
 			}
+			finally {
+				shard.unlock();
+			}
 		}
 
 		public boolean isEmpty(long now) {
-			synchronized (blockOfferListByKey) {
+			shard.lock();
+			try {
 				for (BlockOffer offer : offers) {
 					if (!offer.isExpired(now))
 						return false;
 				}
 				return true;
 			}
+			finally {
+				shard.unlock();
+			}
 		}
 
 		public void deleteOffer(BlockOffer offer) {
 			if (logMINOR)
 				Logger.minor(this, "Deleting " + offer + " from " + this);
-			synchronized (blockOfferListByKey) {
+			shard.lock();
+			try {
 				int idx = -1;
 				final int offerLength = offers.length;
 				for (int i = 0; i < offerLength; i++) {
@@ -266,16 +423,18 @@ public class FailureTable {
 				offers = newOffers;
 				if (offers.length > 1)
 					return;
-				blockOfferListByKey.removeKey(entry.key);
+				shard.blockOfferListByKey.removeKey(entry.key);
+			}
+			finally {
+				shard.unlock();
 			}
 			node.clientCore.dequeueOfferedKey(entry.key);
 		}
 
+		/** Caller must hold the shard lock. */
 		public void addOffer(BlockOffer offer) {
-			synchronized (blockOfferListByKey) {
-				offers = Arrays.copyOf(offers, offers.length + 1);
-				offers[offers.length - 1] = offer;
-			}
+			offers = Arrays.copyOf(offers, offers.length + 1);
+			offers[offers.length - 1] = offer;
 		}
 
 		@Override
@@ -339,17 +498,20 @@ public class FailureTable {
 		if (key == null)
 			throw new NullPointerException();
 		FailureTableEntry entry;
-		synchronized (blockOfferListByKey) {
-			blockOfferListByKey.removeKey(key);
-		}
-		synchronized (this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shardFor(key);
+		shard.lock();
+		try {
+			shard.blockOfferListByKey.removeKey(key);
+			entry = shard.entriesByKey.get(key);
 			if (entry == null) {
 				if (logMINOR)
 					Logger.minor(this, "Key not found in entriesByKey");
 				return; // Nobody cares
 			}
-			entriesByKey.removeKey(key);
+			shard.entriesByKey.removeKey(key);
+		}
+		finally {
+			shard.unlock();
 		}
 		if (logMINOR)
 			Logger.minor(this, "Offering key");
@@ -376,14 +538,10 @@ public class FailureTable {
 			return;
 		if (logMINOR)
 			Logger.minor(this, "Offered key " + key + " by peer " + peer);
-		FailureTableEntry entry;
-		synchronized (this) {
-			entry = entriesByKey.get(key);
-			if (entry == null) {
-				if (logMINOR)
-					Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		if (shardFor(key).getEntry(key) == null) {
+			if (logMINOR)
+				Logger.minor(this, "We didn't ask for the key");
+			return; // we haven't asked for it
 		}
 		offerExecutor.execute(new Runnable() {
 			@Override
@@ -413,15 +571,13 @@ public class FailureTable {
 		}
 
 		// Re-check after potentially long disk I/O.
-		FailureTableEntry entry;
+		Shard shard = shardFor(key);
 		long now = System.currentTimeMillis();
-		synchronized (this) {
-			entry = entriesByKey.get(key);
-			if (entry == null) {
-				if (logMINOR)
-					Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		FailureTableEntry entry = shard.getEntry(key);
+		if (entry == null) {
+			if (logMINOR)
+				Logger.minor(this, "We didn't ask for the key");
+			return; // we haven't asked for it
 		}
 
 		/*
@@ -461,35 +617,36 @@ public class FailureTable {
 			if (logMINOR)
 				Logger.minor(this, "Not propagating key: weAsked=" + weAsked + " heAsked=" + heAsked);
 			if (entry.isEmpty(now)) {
-				synchronized (this) {
-					entriesByKey.removeKey(key);
-				}
+				shard.removeEntry(key);
 			}
 			return;
 		}
 		if (entry.isEmpty(now)) {
-			synchronized (this) {
-				entriesByKey.removeKey(key);
-			}
+			shard.removeEntry(key);
 		}
 
 		// Valid offer.
 
 		// Add to offers list
 
-		synchronized (blockOfferListByKey) {
+		shard.lock();
+		try {
 			if (logMINOR)
 				Logger.minor(this, "Valid offer");
-			BlockOfferList bl = blockOfferListByKey.get(key);
+			BlockOfferList bl = shard.blockOfferListByKey.get(key);
 			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
 			if (bl == null) {
-				bl = new BlockOfferList(entry, offer);
+				bl = new BlockOfferList(entry, offer, shard);
+				shard.expiry.schedule(new WeakReference<Object>(bl), now + OFFER_EXPIRY_TIME + 1);
 			}
 			else {
 				bl.addOffer(offer);
 			}
-			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			shard.blockOfferListByKey.push(key, bl);
+			trimOffersList(shard, now);
+		}
+		finally {
+			shard.unlock();
 		}
 
 		// Accept the offer.
@@ -503,21 +660,24 @@ public class FailureTable {
 		node.clientCore.queueOfferedKey(key, false);
 	}
 
-	private void trimOffersList(long now) {
-		synchronized (blockOfferListByKey) {
-			while (true) {
-				if (blockOfferListByKey.isEmpty())
-					return;
-				BlockOfferList bl = blockOfferListByKey.peekValue();
-				if (bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-					if (logMINOR)
-						Logger.minor(this,
-								"Removing block offer list " + bl + " list size now " + blockOfferListByKey.size());
-					blockOfferListByKey.popKey();
-				}
-				else {
-					return;
-				}
+	/**
+	 * Drop the least recently offered keys if we have too many. The timing wheel removes
+	 * them when they expire, but drop them here too if they are in the way.
+	 */
+	private void trimOffersList(Shard shard, long now) {
+		LRUMap<Key, BlockOfferList> blockOfferListByKey = shard.blockOfferListByKey;
+		while (true) {
+			if (blockOfferListByKey.isEmpty())
+				return;
+			BlockOfferList bl = blockOfferListByKey.peekValue();
+			if (bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS / SHARDS) {
+				if (logMINOR)
+					Logger.minor(this,
+							"Removing block offer list " + bl + " list size now " + blockOfferListByKey.size());
+				blockOfferListByKey.popKey();
+			}
+			else {
+				return;
 			}
 		}
 	}
@@ -730,8 +890,13 @@ public class FailureTable {
 	 * @return True if there are any offers, false otherwise.
 	 */
 	public boolean hadAnyOffers(Key key) {
-		synchronized (blockOfferListByKey) {
-			return blockOfferListByKey.get(key) != null;
+		Shard shard = shardFor(key);
+		shard.lock();
+		try {
+			return shard.blockOfferListByKey.get(key) != null;
+		}
+		finally {
+			shard.unlock();
 		}
 	}
 
@@ -739,12 +904,18 @@ public class FailureTable {
 		if (!node.enableULPRDataPropagation)
 			return null;
 		BlockOfferList bl;
-		synchronized (blockOfferListByKey) {
-			bl = blockOfferListByKey.get(key);
+		Shard shard = shardFor(key);
+		shard.lock();
+		try {
+			bl = shard.blockOfferListByKey.get(key);
 			if (bl == null)
 				return null;
+			// Read the offers under the lock.
+			return new OfferList(bl);
+		}
+		finally {
+			shard.unlock();
 		}
-		return new OfferList(bl);
 	}
 
 	/** Called when a node disconnects */
@@ -757,9 +928,7 @@ public class FailureTable {
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
 		if (!node.enablePerNodeFailureTables)
 			return null;
-		synchronized (this) {
-			return entriesByKey.get(key);
-		}
+		return shardFor(key).getEntry(key);
 	}
 
 	public class FailureTableCleaner implements Runnable {
@@ -773,7 +942,7 @@ public class FailureTable {
 				Logger.error(this, "FailureTableCleaner caught " + t, t);
 			}
 			finally {
-				node.ticker.queueTimedJob(this, CLEANUP_PERIOD);
+				node.ticker.queueTimedJob(this, EXPIRY_TICK);
 			}
 		}
 
@@ -781,24 +950,8 @@ public class FailureTable {
 			if (logMINOR)
 				Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
-			FailureTableEntry[] entries;
-			synchronized (FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
-			}
-			for (FailureTableEntry entry : entries) {
-				if (entry.cleanup()) {
-					synchronized (FailureTable.this) {
-						synchronized (entry) {
-							if (entry.isEmpty()) {
-								if (logMINOR)
-									Logger.minor(this, "Removing entry for " + entry.key);
-								entriesByKey.removeKey(entry.key);
-							}
-						}
-					}
-				}
-			}
+			for (Shard shard : shards)
+				shard.expire(startTime);
 			long endTime = System.currentTimeMillis();
 			if (logMINOR)
 				Logger.minor(this, "Finished FailureTable cleanup took " + (endTime - startTime) + "ms");
@@ -807,12 +960,9 @@ public class FailureTable {
 	}
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
-		FailureTableEntry entry;
-		synchronized (this) {
-			entry = entriesByKey.get(key);
-			if (entry == null)
-				return false; // Nobody cares
-		}
+		FailureTableEntry entry = shardFor(key).getEntry(key);
+		if (entry == null)
+			return false; // Nobody cares
 		return entry.othersWant(apartFrom);
 	}
 
@@ -820,13 +970,46 @@ public class FailureTable {
 	 * @return The lowest HTL at which any peer has requested this key recently
 	 */
 	public short minOfferedHTL(Key key, short htl) {
-		FailureTableEntry entry;
-		synchronized (this) {
-			entry = entriesByKey.get(key);
-			if (entry == null)
-				return htl;
-		}
+		FailureTableEntry entry = shardFor(key).getEntry(key);
+		if (entry == null)
+			return htl;
 		return entry.minRequestorHTL(htl);
 	}
 
+	public int getShardCount() {
+		return SHARDS;
+	}
+
+	/** Number of keys tracked by the given shard. */
+	public int getShardEntries(int shard) {
+		return shards[shard].entriesByKey.size();
+	}
+
+	/** Number of keys with offers in the given shard. */
+	public int getShardOffers(int shard) {
+		return shards[shard].blockOfferListByKey.size();
+	}
+
+	/** Number of times the given shard's lock has been taken. */
+	public long getShardLockAcquisitions(int shard) {
+		return shards[shard].acquired.sum();
+	}
+
+	/** Number of times we had to wait for the given shard's lock. */
+	public long getShardLockContentions(int shard) {
+		return shards[shard].contended.sum();
+	}
+
+	/** Number of entries and offers waiting to be checked for expiry in the given shard. */
+	public int getShardScheduledExpiries(int shard) {
+		Shard s = shards[shard];
+		s.lock();
+		try {
+			return s.expiry.size();
+		}
+		finally {
+			s.unlock();
+		}
+	}
+
 }
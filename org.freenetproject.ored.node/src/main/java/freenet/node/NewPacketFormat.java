@@ -11,6 +11,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.HMAC;
@@ -30,7 +31,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
@@ -363,7 +364,7 @@ public class NewPacketFormat implements PacketFormat {
 		return fullyReceived;
 	}
 
-	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
+	NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		// Create the watchlist if the key has changed
 		if (keyContext.seqNumWatchList == null) {
@@ -561,27 +562,7 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
-		byte[] data = new byte[paddedLen];
-		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
-
-		// Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		byte[] data = encryptPacket(packet, paddedLen, sessionKey, pn.paddingGen());
 
 		try {
 			if (logMINOR) {
@@ -634,6 +615,35 @@ public class NewPacketFormat implements PacketFormat {
 		return true;
 	}
 
+	/**
+	 * Serialize and encrypt a packet, and prepend the HMAC.
+	 * @param paddedLen The length of the result, including the HMAC and any padding.
+	 */
+	static byte[] encryptPacket(NPFPacket packet, int paddedLen, SessionKey sessionKey, Random paddingGen) {
+		byte[] data = new byte[paddedLen];
+		packet.toBytes(data, HMAC_LENGTH, paddingGen);
+
+		BlockCipher ivCipher = sessionKey.ivCipher;
+
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
+
+		ivCipher.encipher(IV, IV);
+
+		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
+		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
+
+		// Add hash
+		byte[] text = new byte[paddedLen - HMAC_LENGTH];
+		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
+
+		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
+
+		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		return data;
+	}
+
 	NPFPacket createPacket(int maxPacketSize, PeerMessageQueue messageQueue, SessionKey sessionKey, boolean ackOnly)
 			throws BlockedTooLongException {
 
@@ -80,6 +80,7 @@ import freenet.io.comm.MessageFilter;
 import freenet.io.comm.Peer;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.io.comm.TrafficClass;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.io.xfer.PartiallyReceivedBlock;
@@ -329,6 +330,8 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 	private boolean storeSaltHashResizeOnStart;
 
+	private boolean storeSaltHashMmap;
+
 	private int storeSaltHashSlotFilterPersistenceTime;
 
 	/** Minimum total datastore size */
@@ -563,6 +566,9 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 	public final Executor executor;
 
+	/** If not null, the node's packets go through this rather than real sockets. */
+	final SimulatedNetwork simulatedNetwork;
+
 	public final PacketSender ps;
 
 	public final PrioritizedTicker ticker;
@@ -587,6 +593,8 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 	private int maxTimeForSingleCompressor;
 
+	private volatile boolean parallelCompressionTrials;
+
 	private boolean connectionSpeedDetection;
 
 	boolean inputLimitDefault;
@@ -937,10 +945,12 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 	 * @param lc logging config Handler
 	 * @param ns NodeStarter
 	 * @param executor Executor
+	 * @param simulatedNetwork If not null, send and receive packets through this, for
+	 * simulations, rather than through UDP sockets.
 	 * @throws NodeInitException If the node initialization fails.
 	 */
 	Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns,
-			Executor executor) throws NodeInitException {
+			Executor executor, SimulatedNetwork simulatedNetwork) throws NodeInitException {
 		this.shutdownHook = SemiOrderedShutdownHook.get();
 		// Easy stuff
 		String tmp = "Initializing Node using Freenet Build #" + Version.buildNumber() + " r" + Version.cvsRevision()
@@ -953,6 +963,7 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 		System.out.println(tmp);
 		this.collector = new IOStatisticCollector();
 		this.executor = executor;
+		this.simulatedNetwork = simulatedNetwork;
 		nodeStarter = ns;
 		if (logConfigHandler != lc) {
 			logConfigHandler = lc;
@@ -1614,6 +1625,7 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 		// FIXME: make compatible with alternate transports.
 		bucketSize = Math.max(bucketSize, 2048);
 		try {
+			// No lease: PacketSender schedules by getCount(), which can't see leased tokens.
 			this.outputThrottle = new TokenBucket(bucketSize, TimeUnit.SECONDS.toNanos(1) / obwLimit, obwLimit / 2);
 		}
 		catch (IllegalArgumentException ex) {
@@ -1724,6 +1736,23 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 		this.maxTimeForSingleCompressor = nodeConfig.getInt("maxTimeForSingleCompressor");
 
+		nodeConfig.register("parallelCompressionTrials", false, sortOrder++, true, false,
+				"Node.parallelCompressionTrials", "Node.parallelCompressionTrialsLong", new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return Node.this.parallelCompressionTrials;
+					}
+
+					@Override
+					public void set(Boolean parallelCompressionTrials) {
+						synchronized (Node.this) {
+							Node.this.parallelCompressionTrials = parallelCompressionTrials;
+						}
+					}
+				});
+
+		this.parallelCompressionTrials = nodeConfig.getBoolean("parallelCompressionTrials");
+
 		nodeConfig.register("connectionSpeedDetection", true, sortOrder++, true, true, "Node.connectionSpeedDetection",
 				"Node.connectionSpeedDetectionLong", new BooleanCallback() {
 					@Override
@@ -1758,6 +1787,27 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 		this.throttleLocalData = nodeConfig.getBoolean("throttleLocalTraffic");
 
+		nodeConfig.register("useVirtualThreads", false, sortOrder++, true, false, "Node.useVirtualThreads",
+				"Node.useVirtualThreadsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return Node.this.executor instanceof PooledExecutor
+								&& ((PooledExecutor) Node.this.executor).getUseVirtualThreads();
+					}
+
+					@Override
+					public void set(Boolean val) {
+						// Only affects jobs started from now on, so no need to restart.
+						if (Node.this.executor instanceof PooledExecutor)
+							((PooledExecutor) Node.this.executor).setUseVirtualThreads(val);
+					}
+
+				});
+
+		if (this.executor instanceof PooledExecutor)
+			((PooledExecutor) this.executor).setUseVirtualThreads(nodeConfig.getBoolean("useVirtualThreads"));
+
 		String s = """
 				Testnet mode DISABLED. You may have some level of anonymity. :)
 				Note that this version of Freenet is still a very early alpha, and may well have numerous bugs and design flaws.
@@ -2202,6 +2252,25 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 				});
 		this.storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMmap", false, sortOrder++, true, false, "Node.storeSaltHashMmap",
+				"Node.storeSaltHashMmapLong", new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						synchronized (Node.this) {
+							return Node.this.storeSaltHashMmap;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws NodeNeedRestartException {
+						synchronized (Node.this) {
+							Node.this.storeSaltHashMmap = val;
+						}
+						throw new NodeNeedRestartException("Need to restart to change storeSaltHashMmap");
+					}
+				});
+		this.storeSaltHashMmap = nodeConfig.getBoolean("storeSaltHashMmap");
+
 		this.storeDir = this.setupProgramDir(installConfig, "storeDir", this.userDir().file("datastore").getPath(),
 				"Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
@@ -2390,6 +2459,26 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 		this.cachingFreenetStorePeriod = nodeConfig.getLong("cachingFreenetStorePeriod");
 
+		nodeConfig.register("cachingFreenetStoreSpillLog", false, sortOrder++, true, false,
+				"Node.cachingFreenetStoreSpillLog", "Node.cachingFreenetStoreSpillLogLong", new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						synchronized (Node.this) {
+							return Node.this.cachingFreenetStoreSpillLog;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws NodeNeedRestartException {
+						synchronized (Node.this) {
+							Node.this.cachingFreenetStoreSpillLog = val;
+						}
+						throw new NodeNeedRestartException("Need to restart to change cachingFreenetStoreSpillLog");
+					}
+				});
+
+		this.cachingFreenetStoreSpillLog = nodeConfig.getBoolean("cachingFreenetStoreSpillLog");
+
 		if (this.cachingFreenetStoreMaxSize > 0 && this.cachingFreenetStorePeriod > 0) {
 			this.cachingFreenetStoreTracker = new CachingFreenetStoreTracker(this.cachingFreenetStoreMaxSize,
 					this.cachingFreenetStorePeriod, this.ticker);
@@ -3202,6 +3291,8 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 	private long cachingFreenetStorePeriod;
 
+	private boolean cachingFreenetStoreSpillLog;
+
 	private CachingFreenetStoreTracker cachingFreenetStoreTracker;
 
 	private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey)
@@ -3404,11 +3495,17 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 		System.out.println("Initializing " + type + " Data" + store + " (" + this.maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.construct(this.getStoreDir(), type + "-" + store, cb,
-				this.random, maxKeys, this.storeUseSlotFilters, this.shutdownHook, this.storePreallocate,
-				this.storeSaltHashResizeOnStart && !lateStart, lateStart ? this.ticker : null, clientCacheMasterKey);
+				this.random, maxKeys, this.storeUseSlotFilters, this.storeSaltHashMmap, this.shutdownHook,
+				this.storePreallocate, this.storeSaltHashResizeOnStart && !lateStart, lateStart ? this.ticker : null,
+				clientCacheMasterKey);
 		cb.setStore(fs);
 		if (this.cachingFreenetStoreMaxSize > 0) {
-			return new CachingFreenetStore<>(cb, fs, this.cachingFreenetStoreTracker);
+			// The log is not encrypted, so it shows which keys we have: the salted hash
+			// scheme can't be used, as reloading the log needs the plain routing keys.
+			// Never for the client cache, whose keys reveal what the user fetched.
+			File spillLog = (this.cachingFreenetStoreSpillLog && !"clientcache".equals(store))
+					? new File(this.getStoreDir(), type + "-" + store + ".spill") : null;
+			return new CachingFreenetStore<>(cb, fs, this.cachingFreenetStoreTracker, spillLog);
 		}
 		else {
 			return fs;
@@ -3866,6 +3963,18 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache,
 			boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
+		long startTime = System.nanoTime();
+		try {
+			return this.innerFetch(key, dontPromote, canReadClientCache, canWriteClientCache, canWriteDatastore,
+					forULPR, meta);
+		}
+		finally {
+			this.nodeStats.sskStoreFetchTime.recordSince(startTime);
+		}
+	}
+
+	private SSKBlock innerFetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache,
+			boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc = key.toNormalizedDouble();
 		double dist = Location.distance(this.lm.getLocation(), loc);
 		if (canReadClientCache) {
@@ -3963,6 +4072,18 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 
 	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache,
 			boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
+		long startTime = System.nanoTime();
+		try {
+			return this.innerFetch(key, dontPromote, canReadClientCache, canWriteClientCache, canWriteDatastore,
+					forULPR, meta);
+		}
+		finally {
+			this.nodeStats.chkStoreFetchTime.recordSince(startTime);
+		}
+	}
+
+	private CHKBlock innerFetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache,
+			boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc = key.toNormalizedDouble();
 		double dist = Location.distance(this.lm.getLocation(), loc);
 		if (canReadClientCache) {
@@ -4612,6 +4733,10 @@ public class Node implements TimeSkewDetectorCallback, KeyBlockStore, Persistent
 		return this.usm;
 	}
 
+	public FailureTable getFailureTable() {
+		return this.failureTable;
+	}
+
 	public LocationManager getLocationManager() {
 		return this.lm;
 	}
@@ -11,6 +11,7 @@ import freenet.bucket.PersistentTempBucketFactory;
 import freenet.bucket.TempBucketFactory;
 import freenet.client.ArchiveManager;
 import freenet.client.FECCodec;
+import freenet.client.FECExecutor;
 import freenet.client.FetchContext;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.InsertContext;
@@ -404,6 +405,23 @@ public class NodeClientCore implements Persistable, RecentlyFailedChecker, NodeC
 					}
 				}, true);
 
+		nodeConfig.register("RAMBucketPoolOffHeap", true, sortOrder++, true, false,
+				"NodeClientCore.ramBucketPoolOffHeap", "NodeClientCore.ramBucketPoolOffHeapLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return (tempBucketFactory == null ? true : tempBucketFactory.isOffHeap());
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						if (get().equals(val) || (tempBucketFactory == null))
+							return;
+						tempBucketFactory.setOffHeap(val);
+					}
+				});
+
 		nodeConfig.register("encryptTempBuckets", true, sortOrder++, true, false, "NodeClientCore.encryptTempBuckets",
 				"NodeClientCore.encryptTempBucketsLong", new BooleanCallback() {
 
@@ -426,6 +444,7 @@ public class NodeClientCore implements Persistable, RecentlyFailedChecker, NodeC
 		tempBucketFactory = new TempBucketFactory(node.executor, tempFilenameGenerator,
 				nodeConfig.getLong("maxRAMBucketSize"), nodeConfig.getLong("RAMBucketPoolSize"), node.fastWeakRandom,
 				nodeConfig.getBoolean("encryptTempBuckets"), minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketFactory.setOffHeap(nodeConfig.getBoolean("RAMBucketPoolOffHeap"));
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -534,6 +553,25 @@ public class NodeClientCore implements Persistable, RecentlyFailedChecker, NodeC
 					}
 
 				}, true);
+		// Stripes within a segment only need CPU, so unlike the job runner, use every core.
+		nodeConfig.register("fecThreads", Runtime.getRuntime().availableProcessors(), sortOrder++, true, false,
+				"NodeClientCore.fecThreads", "NodeClientCore.fecThreadsLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return FECExecutor.getDefault().getParallelism();
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException {
+						if (val < 1)
+							throw new InvalidConfigValueException(l10n("fecThreadsMustBe1Plus"));
+						if (val != FECExecutor.getDefault().getParallelism())
+							FECExecutor.setDefault(new FECExecutor(val));
+					}
+
+				}, false);
+		FECExecutor.setDefault(new FECExecutor(nodeConfig.getInt("fecThreads")));
 		memoryLimitedJobRunner = new MemoryLimitedJobRunner(nodeConfig.getLong("memoryLimitedJobMemoryLimit"),
 				nodeConfig.getInt("memoryLimitedJobThreadLimit"), node.executor,
 				PriorityClasses.NUMBER_OF_PRIORITY_CLASSES);
@@ -549,6 +587,7 @@ public class NodeClientCore implements Persistable, RecentlyFailedChecker, NodeC
 
 			public void realRun() {
 				memoryLimitedJobRunner.waitForShutdown();
+				FECExecutor.getDefault().shutdown();
 				System.out.println("FEC decoding threads finished.");
 			}
 
@@ -6,7 +6,9 @@ package freenet.node;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
 import java.util.zip.DeflaterOutputStream;
@@ -21,7 +23,9 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker.Status;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.NioUdpSocketHandler;
 import freenet.io.comm.Peer;
+import freenet.io.comm.SimulatedUdpSocketHandler;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
 import freenet.keys.InsertableClientSSK;
@@ -126,6 +130,8 @@ public class NodeCrypto {
 
 			UdpSocketHandler u = null;
 
+			boolean useNio = config.useNioSocket();
+
 			if (port > 65535) {
 				throw new NodeInitException(NodeInitException.EXIT_IMPOSSIBLE_USM_PORT,
 						"Impossible port number: " + port);
@@ -135,8 +141,7 @@ public class NodeCrypto {
 				for (int i = 0; i < 200000; i++) {
 					int portNo = 1024 + random.nextInt(65535 - 1024);
 					try {
-						u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo),
-								node.collector);
+						u = makeSocketHandler(useNio, portNo, bindto.getAddress(), startupTime);
 						port = u.getPortNumber();
 						break;
 					}
@@ -153,8 +158,7 @@ public class NodeCrypto {
 			}
 			else {
 				try {
-					u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port),
-							node.collector);
+					u = makeSocketHandler(useNio, port, bindto.getAddress(), startupTime);
 				}
 				catch (Exception e) {
 					Logger.error(this, "Caught " + e, e);
@@ -201,6 +205,16 @@ public class NodeCrypto {
 		}
 	}
 
+	private UdpSocketHandler makeSocketHandler(boolean useNio, int port, InetAddress bindto, long startupTime)
+			throws SocketException {
+		if (node.simulatedNetwork != null)
+			return new SimulatedUdpSocketHandler(node.simulatedNetwork, port, bindto, node, startupTime,
+					getTitle(port), node.collector);
+		if (useNio)
+			return new NioUdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+		return new UdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+	}
+
 	private String getTitle(int port) {
 		// FIXME l10n
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
@@ -313,7 +327,8 @@ public class NodeCrypto {
 
 	public void start() {
 		socket.calculateMaxPacketSize();
-		socket.setLowLevelFilter(new IncomingPacketFilterImpl(packetMangler, node, this));
+		socket.setLowLevelFilter(
+				new IncomingPacketFilterImpl(packetMangler, node, this, config.parallelPacketDecrypt()));
 		packetMangler.start();
 		socket.start();
 	}
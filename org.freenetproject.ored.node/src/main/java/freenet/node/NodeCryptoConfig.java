@@ -63,6 +63,12 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 
+	/** If true, use NioUdpSocketHandler rather than UdpSocketHandler. */
+	private boolean useNioSocket;
+
+	/** If true, decode packets from different peers on several threads. */
+	private boolean parallelPacketDecrypt;
+
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels)
 			throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
@@ -264,6 +270,52 @@ public class NodeCryptoConfig {
 				});
 
 		paddDataPackets = config.getBoolean("paddDataPackets");
+
+		config.register("useNioSocket", false, sortOrder++, true, false, "Node.useNioSocket",
+				"Node.useNioSocketLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized (NodeCryptoConfig.this) {
+							return useNioSocket;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized (NodeCryptoConfig.this) {
+							if (val == useNioSocket)
+								return;
+							useNioSocket = val;
+						}
+						throw new NodeNeedRestartException("Need to restart to change useNioSocket");
+					}
+				});
+
+		useNioSocket = config.getBoolean("useNioSocket");
+
+		config.register("parallelPacketDecrypt", false, sortOrder++, true, false, "Node.parallelPacketDecrypt",
+				"Node.parallelPacketDecryptLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized (NodeCryptoConfig.this) {
+							return parallelPacketDecrypt;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized (NodeCryptoConfig.this) {
+							if (val == parallelPacketDecrypt)
+								return;
+							parallelPacketDecrypt = val;
+						}
+						throw new NodeNeedRestartException("Need to restart to change parallelPacketDecrypt");
+					}
+				});
+
+		parallelPacketDecrypt = config.getBoolean("parallelPacketDecrypt");
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
 
 			@Override
@@ -356,6 +408,14 @@ public class NodeCryptoConfig {
 		return includeLocalAddressesInNoderefs;
 	}
 
+	public synchronized boolean useNioSocket() {
+		return useNioSocket;
+	}
+
+	public synchronized boolean parallelPacketDecrypt() {
+		return parallelPacketDecrypt;
+	}
+
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
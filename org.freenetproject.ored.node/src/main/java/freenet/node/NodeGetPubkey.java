@@ -6,6 +6,7 @@ package freenet.node;
 import java.io.IOException;
 
 import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DSAVerifier;
 import freenet.keys.BlockMetadata;
 import freenet.keys.GetPubkey;
 import freenet.nodelogger.Logger;
@@ -149,7 +150,8 @@ public class NodeGetPubkey implements GetPubkey {
 				throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
 			cachedPubKeys.push(w, key);
 			while (cachedPubKeys.size() > MAX_MEMORY_CACHED_PUBKEYS)
-				cachedPubKeys.popKey();
+				// Don't keep a verification table for a key we no longer cache.
+				DSAVerifier.forget(cachedPubKeys.popValue());
 		}
 		try {
 			if (canWriteClientCache && !(canWriteDatastore || writeLocalToDatastore)) {
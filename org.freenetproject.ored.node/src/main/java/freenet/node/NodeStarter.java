@@ -34,6 +34,7 @@ import freenet.crypt.DummyRandomSource;
 import freenet.crypt.JceLoader;
 import freenet.crypt.RandomSource;
 import freenet.crypt.Yarrow;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.node.ext.ExtVersion;
 import freenet.nodelogger.Logger;
 import freenet.support.Executor;
@@ -208,7 +209,7 @@ public final class NodeStarter implements WrapperListener {
 		SSL.init(sslConfig);
 
 		try {
-			this.node = new Node(cfg, null, null, logConfigHandler, this, executor);
+			this.node = new Node(cfg, null, null, logConfigHandler, this, executor, null);
 			this.node.start(false);
 			System.out.println("Node initialization completed.");
 		}
@@ -513,7 +514,8 @@ public final class NodeStarter implements WrapperListener {
 
 		PersistentConfig config = new PersistentConfig(configFS);
 
-		Node node = new Node(config, params.random, params.random, null, null, params.executor);
+		Node node = new Node(config, params.random, params.random, null, null, params.executor,
+				params.simulatedNetwork);
 
 		// All testing environments connect the nodes as they want, even if the old setup
 		// is restored, it is not desired.
@@ -656,6 +658,12 @@ public final class NodeStarter implements WrapperListener {
 
 		public boolean enablePlugins;
 
+		/**
+		 * If not null, the node sends and receives packets through this rather than UDP
+		 * sockets, so many nodes can run in one JVM. The ports must still be different.
+		 */
+		public SimulatedNetwork simulatedNetwork;
+
 	}
 
 	/**
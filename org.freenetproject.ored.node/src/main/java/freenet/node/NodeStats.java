@@ -7,7 +7,12 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 
+import freenet.bucket.SlabAllocator;
+import freenet.client.FECExecutor;
+import freenet.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.compress.DecompressorThreadManager;
 import freenet.config.*;
+import freenet.crypt.DSAVerifier;
 import freenet.crypt.RandomSource;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -15,8 +20,13 @@ import freenet.io.comm.Message;
 import freenet.io.xfer.BlockTransmitter.BlockTimeCallback;
 import freenet.io.xfer.BulkTransmitter;
 import freenet.l10n.NodeL10n;
+import freenet.keys.SSKVerifier;
 import freenet.node.math.DecayingKeyspaceAverage;
 import freenet.node.math.TimeDecayingRunningAverage;
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreKeyType;
+import freenet.node.stats.DataStoreStats;
+import freenet.node.stats.DataStoreType;
 import freenet.node.stats.StoreLocationStats;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.store.StoreCallback;
@@ -25,18 +35,23 @@ import freenet.support.Histogram2;
 import freenet.support.LogThresholdCallback;
 import freenet.nodelogger.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.TrivialRunningAverage;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.MetricsRegistry;
 import freenet.support.node.NodeInitException;
 import freenet.support.node.stats.StatsNotAvailableException;
 
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -320,6 +335,18 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	final TrivialRunningAverage localSSKFetchTimeAverageBulk;
 
+	/** Metrics for monitoring tools, served by MetricsToadlet. */
+	public final MetricsRegistry metrics = new MetricsRegistry();
+
+	/** Local request times, in milliseconds, by key type and outcome. */
+	private final Histogram chkRequestTimeSuccess, chkRequestTimeFailure, sskRequestTimeSuccess, sskRequestTimeFailure;
+
+	/** Time taken by Node.fetch() to look a key up in the stores and caches, in nanoseconds. */
+	public final Histogram chkStoreFetchTime, sskStoreFetchTime;
+
+	/** Time taken to handle an incoming packet, in nanoseconds. */
+	public final Histogram packetProcessTime;
+
 	final public Histogram2 chkSuccessRatesByLocation;
 
 	private long previous_input_stat;
@@ -854,9 +881,135 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			rejectStatsUpdateInterval = SECONDS.toMillis(10);
 			rejectStatsFuzz = -1.0;
 		}
+
+		long[] requestBounds = Histogram.exponentialBounds(50, 2.0, 14);
+		String requestHelp = "Time taken by local requests.";
+		chkRequestTimeSuccess = metrics.histogram("freenet_local_request_seconds", requestHelp,
+				MetricsRegistry.labels("key", "chk", "outcome", "success"), 1000, requestBounds);
+		chkRequestTimeFailure = metrics.histogram("freenet_local_request_seconds", requestHelp,
+				MetricsRegistry.labels("key", "chk", "outcome", "failure"), 1000, requestBounds);
+		sskRequestTimeSuccess = metrics.histogram("freenet_local_request_seconds", requestHelp,
+				MetricsRegistry.labels("key", "ssk", "outcome", "success"), 1000, requestBounds);
+		sskRequestTimeFailure = metrics.histogram("freenet_local_request_seconds", requestHelp,
+				MetricsRegistry.labels("key", "ssk", "outcome", "failure"), 1000, requestBounds);
+		long[] storeBounds = Histogram.exponentialBounds(MICROSECONDS.toNanos(10), 2.0, 16);
+		String storeHelp = "Time taken to look up a key in the datastore and caches.";
+		chkStoreFetchTime = metrics.histogram("freenet_store_fetch_seconds", storeHelp,
+				MetricsRegistry.labels("key", "chk"), SECONDS.toNanos(1), storeBounds);
+		sskStoreFetchTime = metrics.histogram("freenet_store_fetch_seconds", storeHelp,
+				MetricsRegistry.labels("key", "ssk"), SECONDS.toNanos(1), storeBounds);
+		packetProcessTime = metrics.histogram("freenet_packet_process_seconds",
+				"Time taken to decrypt and handle an incoming packet.", null, SECONDS.toNanos(1),
+				Histogram.exponentialBounds(MICROSECONDS.toNanos(5), 2.0, 16));
+		registerMetrics();
+
 		statsConfig.finishedInitialization();
 	}
 
+	/**
+	 * Register existing statistics with the metrics registry. They are only read when the
+	 * metrics are scraped, by which time everything they refer to has been created.
+	 */
+	private void registerMetrics() {
+		metrics.counter("freenet_bytes_total", "Bytes sent and received on the network.",
+				MetricsRegistry.labels("direction", "out"), () -> node.getTotalIO()[0]);
+		metrics.counter("freenet_bytes_total", "Bytes sent and received on the network.",
+				MetricsRegistry.labels("direction", "in"), () -> node.getTotalIO()[1]);
+		metrics.counter("freenet_payload_bytes_sent_total", "Payload bytes sent, excluding overhead.", null,
+				() -> node.getTotalPayloadSent());
+		metrics.gauge("freenet_uptime_seconds", "Time since the node started.",
+				() -> MILLISECONDS.toSeconds(node.getUptime()));
+		metrics.gauge("freenet_peers_connected", "Connected peers.", MetricsRegistry.labels("type", "darknet"),
+				() -> node.peers.countConnectedDarknetPeers());
+		metrics.gauge("freenet_peers_connected", "Connected peers.", MetricsRegistry.labels("type", "opennet"),
+				() -> node.peers.countConnectedOpennetPeers());
+		metrics.gauge("freenet_threads_active", "Running threads.", () -> getActiveThreadCount());
+		metrics.gauge("freenet_threads_limit", "Maximum number of threads.", () -> getThreadLimit());
+		metrics.gauge("freenet_bwlimit_delay_seconds", "Average delay due to the bandwidth limit.",
+				() -> getBwlimitDelayTime() / 1000.0);
+		metrics.gauge("freenet_ping_average_seconds", "Average round trip time to peers.",
+				() -> getNodeAveragePingTime() / 1000.0);
+		metrics.gauge("freenet_reject_instantly_ratio", "Proportion of incoming requests rejected instantly.",
+				() -> pRejectIncomingInstantly());
+		metrics.gauge("freenet_backed_off_ratio", "Proportion of peers which are backed off.",
+				() -> backedOffPercent.currentValue());
+		metrics.gauge("freenet_routing_miss_distance", "Average distance to the ideal peer when routing.",
+				MetricsRegistry.labels("source", "local"), () -> routingMissDistanceLocal.currentValue());
+		metrics.gauge("freenet_routing_miss_distance", "Average distance to the ideal peer when routing.",
+				MetricsRegistry.labels("source", "remote"), () -> routingMissDistanceRemote.currentValue());
+		metrics.gauge("freenet_network_size_estimate", "Estimated size of the network.",
+				MetricsRegistry.labels("network", "darknet"), () -> getDarknetSizeEstimate(-1));
+		metrics.gauge("freenet_network_size_estimate", "Estimated size of the network.",
+				MetricsRegistry.labels("network", "opennet"),
+				() -> (node.opennet == null) ? Double.NaN : getOpennetSizeEstimate(-1));
+		metrics.gauge("freenet_message_filters", "Outstanding message filters.", () -> node.usm.getFilterCount());
+		metrics.gauge("freenet_ram_bucket_pool_bytes", "Temporary data kept in RAM.",
+				() -> node.clientCore.tempBucketFactory.getRamUsed());
+
+		metrics.gauge("freenet_output_throttle_tokens", "Bytes available to send under the bandwidth limit.",
+				() -> node.outputThrottle.getCount());
+		metrics.counter("freenet_output_throttle_grabs_total", "Grabs from the output bandwidth limiter.", null,
+				() -> node.outputThrottle.getGrabs());
+		metrics.counter("freenet_output_throttle_contention_retries_total",
+				"Grabs retried because another thread got in first.", null,
+				() -> node.outputThrottle.getContentionRetries());
+		metrics.counter("freenet_output_throttle_blocking_wait_seconds_total", "Time spent waiting for bandwidth.",
+				null, () -> node.outputThrottle.getBlockingWaitNanos() / 1e9);
+
+		for (COMPRESSOR_TYPE type : COMPRESSOR_TYPE.values()) {
+			String labels = MetricsRegistry.labels("codec", type.name.toLowerCase());
+			metrics.counter("freenet_decompressions_total", "Streams decompressed.", labels,
+					() -> DecompressorThreadManager.getDecompressions(type));
+			metrics.counter("freenet_decompress_bytes_total", "Bytes read and written by decompressors.",
+					MetricsRegistry.labels("codec", type.name.toLowerCase(), "direction", "in"),
+					() -> DecompressorThreadManager.getDecompressedBytesIn(type));
+			metrics.counter("freenet_decompress_bytes_total", "Bytes read and written by decompressors.",
+					MetricsRegistry.labels("codec", type.name.toLowerCase(), "direction", "out"),
+					() -> DecompressorThreadManager.getDecompressedBytesOut(type));
+			metrics.gauge("freenet_decompress_rate_bytes_per_second",
+					"Decompressed bytes per second while decompressing.", labels,
+					() -> DecompressorThreadManager.getDecompressRate(type));
+		}
+
+		RunningAverage[][] requestAverages = new RunningAverage[][] {
+				{ localCHKFetchTimeAverageBulk, localCHKFetchTimeAverageRT },
+				{ localSSKFetchTimeAverageBulk, localSSKFetchTimeAverageRT } };
+		String[] keyTypes = new String[] { "chk", "ssk" };
+		for (int i = 0; i < keyTypes.length; i++) {
+			for (int j = 0; j < 2; j++) {
+				RunningAverage average = requestAverages[i][j];
+				metrics.gauge("freenet_local_request_average_seconds", "Average time taken by local requests.",
+						MetricsRegistry.labels("key", keyTypes[i], "realtime", Boolean.toString(j == 1)),
+						() -> average.currentValue() / 1000.0);
+			}
+		}
+
+		for (DataStoreKeyType key : DataStoreKeyType.values()) {
+			for (DataStoreType type : DataStoreType.values()) {
+				DataStoreInstanceType instance = new DataStoreInstanceType(key, type);
+				String labels = MetricsRegistry.labels("key", key.name().toLowerCase(), "store",
+						type.name().toLowerCase());
+				metrics.gauge("freenet_store_keys", "Keys in the store.", labels, () -> storeStats(instance).keys());
+				metrics.gauge("freenet_store_capacity_keys", "Maximum keys in the store.", labels,
+						() -> storeStats(instance).capacity());
+				metrics.gauge("freenet_store_data_bytes", "Data in the store.", labels,
+						() -> storeStats(instance).dataSize());
+				metrics.counter("freenet_store_hits_total", "Store reads which found the key.", labels,
+						() -> storeStats(instance).getSessionAccessStats().hits());
+				metrics.counter("freenet_store_misses_total", "Store reads which did not find the key.", labels,
+						() -> storeStats(instance).getSessionAccessStats().misses());
+				metrics.counter("freenet_store_false_positives_total", "Store reads misled by the bloom filter.",
+						labels, () -> storeStats(instance).getSessionAccessStats().falsePos());
+				metrics.counter("freenet_store_writes_total", "Store writes.", labels,
+						() -> storeStats(instance).getSessionAccessStats().writes());
+			}
+		}
+	}
+
+	private DataStoreStats storeStats(DataStoreInstanceType instance) {
+		return node.getDataStoreStats().get(instance);
+	}
+
 	protected String l10n(String key) {
 		return NodeL10n.getBase().getString("NodeStats." + key);
 	}
@@ -2374,7 +2527,26 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public int getActiveThreadCount() {
-		return rootThreadGroup.activeCount() - node.executor.getWaitingThreadsCount();
+		// Jobs on virtual threads still count towards the thread limit, it limits how
+		// many requests we are running as well as how many threads.
+		return rootThreadGroup.activeCount() - node.executor.getWaitingThreadsCount() + getVirtualThreadCount();
+	}
+
+	/** @return The number of jobs running on virtual threads, which are not in any group. */
+	public int getVirtualThreadCount() {
+		if (node.executor instanceof PooledExecutor)
+			return ((PooledExecutor) node.executor).getVirtualThreadCount();
+		return 0;
+	}
+
+	/**
+	 * @return The priority of the job the thread is running. Virtual threads ignore
+	 * setPriority(), so for them this is the priority the job asked for.
+	 */
+	public int getThreadPriority(Thread thread) {
+		if (node.executor instanceof PooledExecutor)
+			return ((PooledExecutor) node.executor).getPriority(thread);
+		return thread.getPriority();
 	}
 
 	public int[] getActiveThreadsByPriority() {
@@ -2394,15 +2566,22 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	 * the list is marked by a null entry in the array.
 	 */
 	public Thread[] getThreads() {
+		Thread[] virtualThreads = new Thread[0];
+		if (node.executor instanceof PooledExecutor)
+			virtualThreads = ((PooledExecutor) node.executor).getVirtualThreads();
 		int count = 0;
+		int found;
 		Thread[] threads;
 		while (true) {
 			count = Math.max(rootThreadGroup.activeCount(), count);
-			threads = new Thread[count * 2 + 50];
-			rootThreadGroup.enumerate(threads);
-			if (threads[threads.length - 1] == null)
+			threads = new Thread[count * 2 + 50 + virtualThreads.length];
+			found = rootThreadGroup.enumerate(threads);
+			if (found + virtualThreads.length < threads.length)
 				break;
+			count = found;
 		}
+		// Virtual threads aren't in the thread group, so add them at the end.
+		System.arraycopy(virtualThreads, 0, threads, found, virtualThreads.length);
 
 		return threads;
 	}
@@ -2443,7 +2622,39 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("messageFilters", node.usm.getFilterCount());
+		fs.put("messageFiltersScannedPerMessage", node.usm.getFiltersScannedPerMessage());
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
+		SlabAllocator slabAllocator = node.clientCore.tempBucketFactory.getSlabAllocator();
+		fs.put("RAMBucketPoolOffHeapReserved", slabAllocator.getReservedBytes());
+		fs.put("RAMBucketPoolOffHeapUsed", slabAllocator.getUsedBytes());
+		for (SlabAllocator.Stats stats : slabAllocator.getStats()) {
+			String prefix = "RAMBucketPoolOffHeap" + stats.chunkSize;
+			fs.put(prefix + "InUse", stats.chunksInUse);
+			fs.put(prefix + "Hits", stats.hits);
+			fs.put(prefix + "Misses", stats.misses);
+			fs.put(prefix + "Migrations", stats.migrations);
+			fs.put(prefix + "Slabs", stats.slabs);
+		}
+		fs.put("fecDecodes", FECExecutor.getDecodes());
+		fs.put("fecDecodeRate", FECExecutor.getDecodeRate());
+		fs.put("fecEncodes", FECExecutor.getEncodes());
+		fs.put("fecEncodeRate", FECExecutor.getEncodeRate());
+		for (COMPRESSOR_TYPE type : COMPRESSOR_TYPE.values()) {
+			String prefix = "decompress" + type.name;
+			fs.put(prefix + "Runs", DecompressorThreadManager.getDecompressions(type));
+			fs.put(prefix + "BytesIn", DecompressorThreadManager.getDecompressedBytesIn(type));
+			fs.put(prefix + "BytesOut", DecompressorThreadManager.getDecompressedBytesOut(type));
+			fs.put(prefix + "Rate", DecompressorThreadManager.getDecompressRate(type));
+		}
+		fs.put("sskVerifications", SSKVerifier.getVerifications());
+		fs.put("sskVerificationsCached", SSKVerifier.getCacheHits());
+		fs.put("dsaKeyTables", DSAVerifier.getKeyTableCount());
+		fs.put("dsaKeyTableHits", DSAVerifier.getKeyTableHits());
+		fs.put("outputThrottleGrabs", node.outputThrottle.getGrabs());
+		fs.put("outputThrottleContentionRetries", node.outputThrottle.getContentionRetries());
+		fs.put("outputThrottleBlockingWaits", node.outputThrottle.getBlockingWaits());
+		fs.put("outputThrottleBlockingWaitTime", NANOSECONDS.toMillis(node.outputThrottle.getBlockingWaitNanos()));
 
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
@@ -2700,6 +2911,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("maximumJavaMemory", maxJavaMem);
 		fs.put("availableCPUs", availableCpus);
 		fs.put("runningThreadCount", getActiveThreadCount());
+		fs.put("virtualThreadCount", getVirtualThreadCount());
 
 		fs.put("globalFetchPSuccess", globalFetchPSuccess.currentValue());
 		fs.put("globalFetchCount", globalFetchPSuccess.countReports());
@@ -3487,6 +3699,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportCHKOutcome(long rtt, boolean successful, double location, boolean isRealtime) {
+		(successful ? chkRequestTimeSuccess : chkRequestTimeFailure).record(rtt);
 		if (successful) {
 			(isRealtime ? successfulLocalCHKFetchTimeAverageRT : successfulLocalCHKFetchTimeAverageBulk).report(rtt);
 			chkSuccessRatesByLocation.report(location, 1.0);
@@ -3500,6 +3713,7 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public void reportSSKOutcome(long rtt, boolean successful, boolean isRealtime) {
+		(successful ? sskRequestTimeSuccess : sskRequestTimeFailure).record(rtt);
 		if (successful) {
 			(isRealtime ? successfulLocalSSKFetchTimeAverageRT : successfulLocalSSKFetchTimeAverageBulk).report(rtt);
 		}
@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+
+/**
+ * Finds the peer a packet came from by its address, without looking at every peer. Each
+ * peer is indexed under the IP:port of its detected and nominal addresses, and under just
+ * the IP, as {@link PeerNode#matchesPeerAndPort(Peer)} and
+ * {@link PeerNode#matchesIP(FreenetInetAddress, boolean)} match them. Nominal addresses
+ * whose hostname hasn't been looked up yet can't match a packet, so are indexed once
+ * they have been.
+ *
+ * Lookups don't lock. Changes are made by {@link PeerManager} holding its lock, when a
+ * peer is added or removed, and by the peer when its addresses change. Candidates are
+ * checked against the peer itself, so a lookup racing with a change can't return a peer
+ * which doesn't match.
+ */
+final class PeerAddressIndex {
+
+	private final Map<InetSocketAddress, PeerNode[]> byAddress = new ConcurrentHashMap<>();
+
+	private final Map<InetAddress, PeerNode[]> byIP = new ConcurrentHashMap<>();
+
+	/** The addresses each peer is indexed under, so they can be removed. */
+	private final Map<PeerNode, InetSocketAddress[]> indexed = new IdentityHashMap<>();
+
+	/**
+	 * Index a peer under the given addresses, replacing any it was indexed under before.
+	 * @param addresses See {@link PeerNode#getAddressesForIndex()}.
+	 */
+	void put(PeerNode pn, List<Peer> addresses) {
+		this.remove(pn);
+		List<InetSocketAddress> keys = new ArrayList<>(addresses.size());
+		for (Peer p : addresses) {
+			FreenetInetAddress addr = p.getFreenetAddress();
+			InetAddress ip = (addr == null) ? null : addr.getAddress(false);
+			if (ip == null) {
+				continue;
+			}
+			InetSocketAddress key = new InetSocketAddress(ip, p.getPort());
+			if (!keys.contains(key)) {
+				keys.add(key);
+			}
+		}
+		if (keys.isEmpty()) {
+			return;
+		}
+		InetSocketAddress[] array = keys.toArray(new InetSocketAddress[0]);
+		this.indexed.put(pn, array);
+		for (InetSocketAddress key : array) {
+			add(this.byAddress, key, pn);
+			add(this.byIP, key.getAddress(), pn);
+		}
+	}
+
+	void remove(PeerNode pn) {
+		InetSocketAddress[] keys = this.indexed.remove(pn);
+		if (keys == null) {
+			return;
+		}
+		for (InetSocketAddress key : keys) {
+			remove(this.byAddress, key, pn);
+			remove(this.byIP, key.getAddress(), pn);
+		}
+	}
+
+	void clear() {
+		this.indexed.clear();
+		this.byAddress.clear();
+		this.byIP.clear();
+	}
+
+	/**
+	 * Find the peer with the given address, or failing that the given IP address.
+	 * @param mangler If not null, only match peers using this mangler.
+	 * @return The peer, or null.
+	 */
+	PeerNode get(Peer peer, OutgoingPacketMangler mangler) {
+		InetAddress ip = peer.getAddress(false);
+		if (ip == null) {
+			return null;
+		}
+		PeerNode[] candidates = this.byAddress.get(new InetSocketAddress(ip, peer.getPort()));
+		if (candidates != null) {
+			for (PeerNode pn : candidates) {
+				if (!pn.isDisabled() && (mangler == null || pn.getOutgoingMangler() == mangler)
+						&& pn.matchesPeerAndPort(peer)) {
+					return pn;
+				}
+			}
+		}
+		// Try a match by IP address if we can't match exactly by IP:port.
+		candidates = this.byIP.get(ip);
+		if (candidates != null) {
+			FreenetInetAddress addr = peer.getFreenetAddress();
+			for (PeerNode pn : candidates) {
+				if (!pn.isDisabled() && (mangler == null || pn.getOutgoingMangler() == mangler)
+						&& pn.matchesIP(addr, false)) {
+					return pn;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static <K> void add(Map<K, PeerNode[]> map, K key, PeerNode pn) {
+		map.compute(key, (k, old) -> {
+			if (old == null) {
+				return new PeerNode[] { pn };
+			}
+			for (PeerNode p : old) {
+				if (p == pn) {
+					return old;
+				}
+			}
+			PeerNode[] peers = Arrays.copyOf(old, old.length + 1);
+			peers[old.length] = pn;
+			return peers;
+		});
+	}
+
+	private static <K> void remove(Map<K, PeerNode[]> map, K key, PeerNode pn) {
+		map.computeIfPresent(key, (k, old) -> {
+			PeerNode[] peers = new PeerNode[old.length];
+			int count = 0;
+			for (PeerNode p : old) {
+				if (p != pn) {
+					peers[count++] = p;
+				}
+			}
+			if (count == 0) {
+				return null;
+			}
+			return (count == old.length) ? old : Arrays.copyOf(peers, count);
+		});
+	}
+
+}
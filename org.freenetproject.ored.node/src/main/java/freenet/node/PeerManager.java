@@ -80,9 +80,21 @@ public class PeerManager {
 	/** All the peers we want to connect to */
 	private PeerNode[] myPeers;
 
+	/** Our peers by address, for {@link #getByPeer(Peer)}. Changed holding our lock. */
+	private final PeerAddressIndex addressIndex = new PeerAddressIndex();
+
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
 
+	/**
+	 * The locations of the connected peers and their peers, for {@link #closerPeer}. Null
+	 * if it must be rebuilt; also rebuilt when {@link #connectedPeers} changes.
+	 */
+	private RoutingIndex routingIndex;
+
+	/** Incremented whenever the routing index is out of date. */
+	private int routingIndexVersion;
+
 	private String darkFilename;
 
 	private String openFilename;
@@ -415,6 +427,7 @@ public class PeerManager {
 			}
 			this.myPeers = Arrays.copyOf(this.myPeers, this.myPeers.length + 1);
 			this.myPeers[this.myPeers.length - 1] = pn;
+			this.addressIndex.put(pn, pn.getAddressesForIndex());
 			Logger.normal(this, "Added " + pn);
 		}
 		if (pn.recordStatus()) {
@@ -502,6 +515,7 @@ public class PeerManager {
 					}
 				}
 				this.myPeers = newMyPeers;
+				this.addressIndex.remove(pn);
 
 				Logger.normal(this, "Removed " + pn);
 			}
@@ -522,6 +536,7 @@ public class PeerManager {
 			oldPeers = this.myPeers;
 			this.myPeers = new PeerNode[0];
 			this.connectedPeers = new PeerNode[0];
+			this.addressIndex.clear();
 		}
 		for (PeerNode oldPeer : oldPeers) {
 			oldPeer.onRemove();
@@ -644,26 +659,7 @@ public class PeerManager {
 	 * non-isRealConnection()'s since they can also be connected.
 	 */
 	public PeerNode getByPeer(Peer peer) {
-		PeerNode[] peerList = this.myPeers();
-		for (PeerNode pn : peerList) {
-			if (pn.isDisabled()) {
-				continue;
-			}
-			if (pn.matchesPeerAndPort(peer)) {
-				return pn;
-			}
-		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
-		for (PeerNode pn : peerList) {
-			if (pn.isDisabled()) {
-				continue;
-			}
-			if (pn.matchesIP(addr, false)) {
-				return pn;
-			}
-		}
-		return null;
+		return this.addressIndex.get(peer, null);
 	}
 
 	/**
@@ -674,26 +670,21 @@ public class PeerManager {
 	 * @return
 	 */
 	public PeerNode getByPeer(Peer peer, FNPPacketMangler mangler) {
-		PeerNode[] peerList = this.myPeers();
-		for (PeerNode pn : peerList) {
-			if (pn.isDisabled()) {
-				continue;
-			}
-			if (pn.matchesPeerAndPort(peer) && pn.getOutgoingMangler() == mangler) {
-				return pn;
-			}
-		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
-		for (PeerNode pn : peerList) {
-			if (pn.isDisabled()) {
-				continue;
-			}
-			if (pn.matchesIP(addr, false) && pn.getOutgoingMangler() == mangler) {
-				return pn;
+		return this.addressIndex.get(peer, mangler);
+	}
+
+	/**
+	 * Index the peer under its current addresses for {@link #getByPeer(Peer)}, e.g.
+	 * because it has handshaked from a new one or looked up its hostname. Does nothing if
+	 * the peer has been removed. LOCKING: Caller must not hold the peer's lock.
+	 */
+	void updateAddressIndex(PeerNode pn) {
+		synchronized (this) {
+			if (!this.havePeer(pn)) {
+				return;
 			}
+			this.addressIndex.put(pn, pn.getAddressesForIndex());
 		}
-		return null;
 	}
 
 	/**
@@ -1107,76 +1098,39 @@ public class PeerManager {
 			entry = this.node.failureTable.getTimedOutNodesList(key);
 		}
 
-		double[] selectionRates = new double[peers.length];
-		double totalSelectionRate = 0.0;
-		for (int i = 0; i < peers.length; i++) {
-			selectionRates[i] = peers[i].selectionRate();
-			totalSelectionRate += selectionRates[i];
-		}
+		RoutingIndex index = this.routingIndex(peers);
+		double totalSelectionRate = index.totalSelectionRate(now);
 		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
 
-		// Locations not to consider for routing: our own location, and locations already
-		// routed to
-		Set<Double> excludeLocations = new HashSet<>();
-		excludeLocations.add(myLoc);
-		excludeLocations.add(prevLoc);
-		for (PeerNode routedToNode : routedTo) {
-			excludeLocations.add(routedToNode.getLocation());
-		}
-
-		for (int i = 0; i < peers.length; i++) {
-			PeerNode p = peers[i];
-			if (routedTo.contains(p)) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
-				}
-				continue;
-			}
-			if (p == pn) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
-				}
-				continue;
-			}
-			if (!p.isRoutable()) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				}
-				continue;
-			}
-			if (p.isDisconnecting()) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping (disconnecting): " + p.getPeer());
-				}
-				continue;
-			}
-			if (newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping (no load stats): " + p.getPeer());
+		// We need to see every peer to count those waiting for RecentlyFailed. Otherwise
+		// we can stop as soon as nothing further away can change the answer.
+		boolean walkAll = entry != null && !ignoreTimeout;
+
+		// Go through our peers' locations and their peers' locations, nearest to the
+		// target first, so the first time we come to a peer is its closest location.
+		RoutingIndex.Walk walk = index.walk(target);
+		while (walk.next()) {
+			double walkDiff = walk.distance();
+			if (!walkAll && (walkDiff > maxDistance || ((!ignoreSelf) && walkDiff > maxDiff)
+					|| (addUnpickedLocsTo == null && closestNotBackedOff != null
+							&& walkDiff > closestNotBackedOffDistance))) {
+				break;
+			}
+			PeerNode p = peers[walk.owner()];
+			boolean viaFOAF = walk.isFOAF();
+			if (viaFOAF) {
+				// Locations not to consider for routing: our own location, and locations
+				// already routed to
+				if (!p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL)
+						|| isExcludedLocation(walk.location(), myLoc, prevLoc, routedTo)) {
+					continue;
 				}
-				continue;
 			}
-			if (minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				}
+			if (walk.markSeen()) {
 				continue;
 			}
-			if (enableFOAFMitigationHack) {
-				double selectionRate = selectionRates[i];
-				double selectionSamplesPercentage = selectionRate / totalSelectionRate;
-				if (PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
-					if (logMINOR) {
-						Logger.minor(this,
-								"Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
-					}
-					continue;
-				}
-			}
-			if (newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if (logMINOR) {
-					Logger.minor(this, "Skipping (mandatory backoff): " + p.getPeer());
-				}
+			if (!this.isRoutingCandidate(p, pn, routedTo, minVersion, realTime, now, newLoadManagement,
+					enableFOAFMitigationHack ? totalSelectionRate : 0.0)) {
 				continue;
 			}
 
@@ -1200,15 +1154,11 @@ public class PeerManager {
 			double realDiff = Location.distance(loc, target);
 			double diff = realDiff;
 
-			if (p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL)) {
-				double l = p.getClosestPeerLocation(target, excludeLocations);
-				if (!Double.isNaN(l)) {
-					double newDiff = Location.distance(l, target);
-					if (newDiff < diff) {
-						loc = l;
-						diff = newDiff;
-						direct = false;
-					}
+			if (viaFOAF) {
+				if (walkDiff < diff) {
+					loc = walk.location();
+					diff = walkDiff;
+					direct = false;
 				}
 				if (logMINOR) {
 					Logger.minor(this, "The peer " + p
@@ -1288,6 +1238,7 @@ public class PeerManager {
 				}
 			}
 		}
+		walk.release();
 
 		PeerNode best = closestNotBackedOff;
 		double bestDistance = closestNotBackedOffDistance;
@@ -1470,6 +1421,119 @@ public class PeerManager {
 		return best;
 	}
 
+	/**
+	 * @return True if we can route to the peer, going by everything except how far it is
+	 * from the target and whether it is backed off or has recently failed.
+	 * @param totalSelectionRate The total selection rate of our peers, or 0 if we don't
+	 * skip peers which have been chosen too often.
+	 */
+	private boolean isRoutingCandidate(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion,
+			boolean realTime, long now, boolean newLoadManagement, double totalSelectionRate) {
+		if (routedTo.contains(p)) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			}
+			return false;
+		}
+		if (p == pn) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			}
+			return false;
+		}
+		if (!p.isRoutable()) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			}
+			return false;
+		}
+		if (p.isDisconnecting()) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping (disconnecting): " + p.getPeer());
+			}
+			return false;
+		}
+		if (newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping (no load stats): " + p.getPeer());
+			}
+			return false;
+		}
+		if (minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			}
+			return false;
+		}
+		if (totalSelectionRate > 0.0) {
+			double selectionSamplesPercentage = p.selectionRate() / totalSelectionRate;
+			if (PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
+				if (logMINOR) {
+					Logger.minor(this,
+							"Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
+				}
+				return false;
+			}
+		}
+		if (newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if (logMINOR) {
+				Logger.minor(this, "Skipping (mandatory backoff): " + p.getPeer());
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if we shouldn't route to a peer's peer at the given location, because
+	 * it is us, the node the request came from, or a node we have already routed to.
+	 */
+	private static boolean isExcludedLocation(double loc, double myLoc, double prevLoc, Set<PeerNode> routedTo) {
+		// Compared exactly, as they are when the locations are in a set.
+		if (Double.compare(loc, myLoc) == 0 || Double.compare(loc, prevLoc) == 0) {
+			return true;
+		}
+		for (PeerNode routedToNode : routedTo) {
+			if (Double.compare(loc, routedToNode.getLocation()) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The routing index for the given connected peers, built if the one we have
+	 * is for different peers or out of date.
+	 */
+	private RoutingIndex routingIndex(PeerNode[] peers) {
+		RoutingIndex index;
+		int version;
+		synchronized (this) {
+			index = this.routingIndex;
+			version = this.routingIndexVersion;
+		}
+		if (index != null && index.peers == peers) {
+			return index;
+		}
+		index = RoutingIndex.build(peers);
+		synchronized (this) {
+			// Don't keep it if the locations changed while we were building it.
+			if (this.routingIndexVersion == version && this.connectedPeers == peers) {
+				this.routingIndex = index;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Called when a peer's location or its peers' locations change, so that routing uses
+	 * the new locations.
+	 */
+	synchronized void invalidateRoutingIndex() {
+		this.routingIndex = null;
+		this.routingIndexVersion++;
+	}
+
 	/**
 	 * @param peers
 	 * @return The minimum number of peers which are waiting for timeouts due to
@@ -2327,6 +2391,7 @@ public class PeerManager {
 			ArrayList<PeerNode> conn = new ArrayList<>();
 			for (PeerNode pn : this.myPeers) {
 				if (pn instanceof OpennetPeerNode) {
+					this.addressIndex.remove(pn);
 					continue;
 				}
 				keep.add(pn);
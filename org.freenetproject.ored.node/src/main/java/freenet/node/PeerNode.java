@@ -46,6 +46,7 @@ import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -200,7 +201,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	private long timeLastRekeyed;
 
 	/** How much data did we send with the current tracker ? */
-	private long totalBytesExchangedWithCurrentTracker = 0;
+	private final AtomicLong totalBytesExchangedWithCurrentTracker = new AtomicLong();
 
 	/** Are we rekeying ? */
 	private boolean isRekeying = false;
@@ -345,11 +346,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	/** Version of the node */
 	private String version;
 
-	/** Total bytes received since startup */
-	private long totalInputSinceStartup;
+	/** Total bytes received since startup. Updated for every packet, so not locked. */
+	private final LongAdder totalInputSinceStartup = new LongAdder();
 
-	/** Total bytes sent since startup */
-	private long totalOutputSinceStartup;
+	/** Total bytes sent since startup. Updated for every packet, so not locked. */
+	private final LongAdder totalOutputSinceStartup = new LongAdder();
 
 	/** Peer node public key; changing this means new noderef */
 	public final ECPublicKey peerECDSAPubKey;
@@ -1172,6 +1173,24 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			}
 			Logger.minor(this, "3: maybeUpdateHandshakeIPs got a result of: " + this.handshakeIPsToString());
 		}
+		this.updateAddressIndex();
+	}
+
+	/** Tell the PeerManager our addresses may have changed. Must not hold our lock. */
+	private void updateAddressIndex() {
+		// Null while the peers are being read at startup; they are indexed when added.
+		PeerManager peers = this.node.peers;
+		if (peers != null) {
+			peers.updateAddressIndex(this);
+		}
+	}
+
+	/** Tell the PeerManager our locations may have changed. Must not hold our lock. */
+	private void invalidateRoutingIndex() {
+		PeerManager peers = this.node.peers;
+		if (peers != null) {
+			peers.invalidateRoutingIndex();
+		}
 	}
 
 	/**
@@ -1405,7 +1424,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					&& this.isRekeying;
 			shouldRekey = (timeWhenRekeyingShouldOccur < now);
 			if ((!shouldRekey)
-					&& this.totalBytesExchangedWithCurrentTracker > FNPPacketMangler.AMOUNT_OF_BYTES_ALLOWED_BEFORE_WE_REKEY) {
+					&& this.totalBytesExchangedWithCurrentTracker.get() > FNPPacketMangler.AMOUNT_OF_BYTES_ALLOWED_BEFORE_WE_REKEY) {
 				shouldRekey = true;
 			}
 		}
@@ -2027,6 +2046,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		boolean anythingChanged = this.location.updateLocation(newLoc, newLocs);
 		this.node.peers.updatePMUserAlert();
 		if (anythingChanged) {
+			this.invalidateRoutingIndex();
 			this.writePeers();
 		}
 		this.setPeerNodeStatus(System.currentTimeMillis());
@@ -2098,20 +2118,21 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			Logger.error(this, "Impossible: No address for detected peer! " + p + " on " + this);
 			return;
 		}
+		boolean connected;
 		synchronized (this) {
 			Peer oldPeer = this.detectedPeer;
-			if (oldPeer == null || !oldPeer.equals(newPeer)) {
-				this.detectedPeer = newPeer;
-				this.updateShortToString();
-				// IP has changed, it is worth looking up the DNS address again.
-				this.lastAttemptedHandshakeIPUpdateTime = 0;
-				if (!this.isConnected()) {
-					return;
-				}
-			}
-			else {
+			if (oldPeer != null && oldPeer.equals(newPeer)) {
 				return;
 			}
+			this.detectedPeer = newPeer;
+			this.updateShortToString();
+			// IP has changed, it is worth looking up the DNS address again.
+			this.lastAttemptedHandshakeIPUpdateTime = 0;
+			connected = this.isConnected();
+		}
+		this.updateAddressIndex();
+		if (!connected) {
+			return;
 		}
 		this.getThrottle().maybeDisconnected();
 		this.sendIPAddressMessage();
@@ -2448,7 +2469,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			this.ctx = null;
 			this.isRekeying = false;
 			this.timeLastRekeyed = now - (unverified ? 0 : FNPPacketMangler.MAX_SESSION_KEY_REKEYING_DELAY / 2);
-			this.totalBytesExchangedWithCurrentTracker = 0;
+			this.totalBytesExchangedWithCurrentTracker.set(0);
 			// This has happened in the past, and caused problems, check for it.
 			if (this.currentTracker != null && this.previousTracker != null
 					&& Arrays.equals(this.currentTracker.outgoingKey, this.previousTracker.outgoingKey)
@@ -2786,6 +2807,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			Logger.minor(this, "Parsing: \n" + fs);
 		}
 		boolean changedAnything = this.innerProcessNewNoderef(fs, forARK, forDiffNodeRef, forFullNodeRef) || forARK;
+		if (changedAnything) {
+			this.updateAddressIndex();
+			this.invalidateRoutingIndex();
+		}
 		if (changedAnything && !this.isSeed()) {
 			this.writePeers();
 		}
@@ -4235,30 +4260,30 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return this.handshakeIPs == null || this.handshakeIPs.length == 0;
 	}
 
-	public synchronized void reportIncomingBytes(int length) {
-		this.totalInputSinceStartup += length;
-		this.totalBytesExchangedWithCurrentTracker += length;
+	public void reportIncomingBytes(int length) {
+		this.totalInputSinceStartup.add(length);
+		this.totalBytesExchangedWithCurrentTracker.addAndGet(length);
 	}
 
-	public synchronized void reportOutgoingBytes(int length) {
-		this.totalOutputSinceStartup += length;
-		this.totalBytesExchangedWithCurrentTracker += length;
+	public void reportOutgoingBytes(int length) {
+		this.totalOutputSinceStartup.add(length);
+		this.totalBytesExchangedWithCurrentTracker.addAndGet(length);
 	}
 
-	public synchronized long getTotalInputBytes() {
-		return this.bytesInAtStartup + this.totalInputSinceStartup;
+	public long getTotalInputBytes() {
+		return this.bytesInAtStartup + this.totalInputSinceStartup.sum();
 	}
 
-	public synchronized long getTotalOutputBytes() {
-		return this.bytesOutAtStartup + this.totalOutputSinceStartup;
+	public long getTotalOutputBytes() {
+		return this.bytesOutAtStartup + this.totalOutputSinceStartup.sum();
 	}
 
-	public synchronized long getTotalInputSinceStartup() {
-		return this.totalInputSinceStartup;
+	public long getTotalInputSinceStartup() {
+		return this.totalInputSinceStartup.sum();
 	}
 
-	public synchronized long getTotalOutputSinceStartup() {
-		return this.totalOutputSinceStartup;
+	public long getTotalOutputSinceStartup() {
+		return this.totalOutputSinceStartup.sum();
 	}
 
 	public boolean isSignatureVerificationSuccessfull() {
@@ -5245,6 +5270,25 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return false;
 	}
 
+	/**
+	 * The addresses packets from this peer may come from, as matched by
+	 * {@link #matchesPeerAndPort(Peer)}, for {@link PeerAddressIndex}.
+	 */
+	synchronized List<Peer> getAddressesForIndex() {
+		List<Peer> addresses = new ArrayList<>();
+		if (this.detectedPeer != null) {
+			addresses.add(this.detectedPeer);
+		}
+		if (this.nominalPeer != null) {
+			for (Peer p : this.nominalPeer) {
+				if (p != null) {
+					addresses.add(p);
+				}
+			}
+		}
+		return addresses;
+	}
+
 	/**
 	 * Does this PeerNode match the given IP address?
 	 * @param strict If true, only match if the IP is actually in use. If false, also
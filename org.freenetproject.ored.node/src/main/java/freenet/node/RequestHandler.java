@@ -32,13 +32,14 @@ import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 import freenet.support.node.FSParseException;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
 /**
  * Handle an incoming request. Does not do the actual fetching; that is separated off into
  * RequestSender so we get transfer coalescing and both ends for free.
  */
-public class RequestHandler implements PrioRunnable, ByteCounter, RequestSenderListener {
+public class RequestHandler implements PrioRunnable, BlockingRunnable, ByteCounter, RequestSenderListener {
 
 	private static volatile boolean logMINOR;
 
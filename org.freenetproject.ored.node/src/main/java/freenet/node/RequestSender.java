@@ -29,12 +29,14 @@ import freenet.keys.*;
 import freenet.support.LogThresholdCallback;
 import freenet.nodelogger.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.ParkedWaiters;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MedianMeanRunningAverage;
 import freenet.support.node.FSParseException;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
 /**
@@ -47,7 +49,7 @@ import freenet.support.node.PrioRunnable;
  * destruction. Must put self onto node's list of transferring senders when starts
  * transferring, and remove from it when finishes transferring.
  */
-public final class RequestSender extends BaseSender implements PrioRunnable {
+public final class RequestSender extends BaseSender implements PrioRunnable, BlockingRunnable {
 
 	// Constants
 	static final long ACCEPTED_TIMEOUT = SECONDS.toMillis(10);
@@ -94,6 +96,12 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 
 	private final ArrayList<RequestSenderListener> listeners = new ArrayList<RequestSenderListener>();
 
+	/**
+	 * Handlers waiting for our status to change, which may be on virtual threads so park
+	 * rather than wait on our lock.
+	 */
+	private final ParkedWaiters waiters = new ParkedWaiters();
+
 	// Terminal status
 	// Always set finished AFTER setting the reason flag
 
@@ -943,7 +951,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 				// FIXME we are also plotting to get rid of transfer cancels so maybe not?
 				synchronized (this) {
 					transferringFrom = pn;
-					notifyAll();
+					waiters.wakeAll();
 				}
 				fireCHKTransferBegins();
 
@@ -1232,7 +1240,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 				failNow = true;
 			if ((!wasFork) && (this.prb == null || !this.prb.allReceivedAndNotAborted()))
 				this.prb = prb;
-			notifyAll();
+			waiters.wakeAll();
 		}
 		if (!wasFork)
 			// Don't fire transfer begins on a fork since we have not set headers or prb.
@@ -1671,7 +1679,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 			if (hasForwardedRejectedOverload)
 				return;
 			hasForwardedRejectedOverload = true;
-			notifyAll();
+			waiters.wakeAll();
 		}
 		fireReceivedRejectOverload();
 	}
@@ -1702,29 +1710,32 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 	 * @return Bitmask indicating present situation. Can be fed back to this function, if
 	 * nonzero.
 	 */
-	public synchronized short waitUntilStatusChange(short mask) {
+	public short waitUntilStatusChange(short mask) {
 		if (mask == WAIT_ALL)
 			throw new IllegalArgumentException("Cannot ignore all!");
-		while (true) {
-			long now = System.currentTimeMillis();
-			long deadline = now + (realTimeFlag ? MINUTES.toMillis(5) : MINUTES.toMillis(21));
+		waiters.add();
+		try {
 			while (true) {
-				short current = mask; // If any bits are set already, we ignore those
-										// states.
+				long now = System.currentTimeMillis();
+				long deadline = now + (realTimeFlag ? MINUTES.toMillis(5) : MINUTES.toMillis(21));
+				while (true) {
+					short current = mask; // If any bits are set already, we ignore those
+											// states.
 
-				if (hasForwardedRejectedOverload)
-					current |= WAIT_REJECTED_OVERLOAD;
+					synchronized (this) {
+						if (hasForwardedRejectedOverload)
+							current |= WAIT_REJECTED_OVERLOAD;
 
-				if (prb != null)
-					current |= WAIT_TRANSFERRING_DATA;
+						if (prb != null)
+							current |= WAIT_TRANSFERRING_DATA;
 
-				if (status != NOT_FINISHED || sentAbortDownstreamTransfers)
-					current |= WAIT_FINISHED;
+						if (status != NOT_FINISHED || sentAbortDownstreamTransfers)
+							current |= WAIT_FINISHED;
+					}
 
-				if (current != mask)
-					return current;
+					if (current != mask)
+						return current;
 
-				try {
 					if (now >= deadline) {
 						Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = "
 								+ current + " and there was no change.");
@@ -1734,7 +1745,8 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 					if (logMINOR)
 						Logger.minor(this, "Waiting for status change on " + this + " current is " + current
 								+ " status is " + status);
-					wait(deadline - now);
+					// Park outside the lock, so we don't pin a virtual thread.
+					waiters.park(this, deadline - now);
 					now = System.currentTimeMillis(); // Is used in the next iteration so
 														// needed even without the logging
 
@@ -1749,11 +1761,11 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 						// not called.
 					}
 				}
-				catch (InterruptedException e) {
-					// Ignore
-				}
 			}
 		}
+		finally {
+			waiters.remove();
+		}
 	}
 
 	private static MedianMeanRunningAverage avgTimeTaken = new MedianMeanRunningAverage();
@@ -1795,7 +1807,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 			status = code;
 			if (status == SUCCESS)
 				successFrom = next;
-			notifyAll();
+			waiters.wakeAll();
 		}
 
 		boolean shouldUnlock = doOpennet && next != null;
@@ -1840,7 +1852,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 
 		synchronized (this) {
 			opennetFinished = true;
-			notifyAll();
+			waiters.wakeAll();
 		}
 
 	}
@@ -2023,7 +2035,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 			synchronized (this) {
 				opennetTimedOut = true;
 				opennetFinished = true;
-				notifyAll();
+				waiters.wakeAll();
 			}
 			// We need to wait.
 			try {
@@ -2041,7 +2053,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		finally {
 			synchronized (this) {
 				opennetFinished = true;
-				notifyAll();
+				waiters.wakeAll();
 			}
 		}
 		return false;
@@ -2059,29 +2071,26 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 	private byte[] opennetNoderef;
 
 	public byte[] waitForOpennetNoderef() throws OpennetManager.WaitedTooLongForOpennetNoderefException {
-		synchronized (this) {
-			long startTime = System.currentTimeMillis();
+		long startTime = System.currentTimeMillis();
+		waiters.add();
+		try {
 			while (true) {
-				if (opennetFinished) {
-					if (opennetTimedOut)
-						throw new OpennetManager.WaitedTooLongForOpennetNoderefException();
-					if (logMINOR)
-						Logger.minor(this, "Grabbing opennet noderef on " + this, new Exception("debug"));
-					// Only one RequestHandler may take the noderef
-					byte[] ref = opennetNoderef;
-					opennetNoderef = null;
-					return ref;
-				}
-				try {
-					int waitTime = (int) Math.min(Integer.MAX_VALUE,
-							OPENNET_TIMEOUT + startTime - System.currentTimeMillis());
-					if (waitTime > 0) {
-						wait(waitTime);
-						continue;
+				synchronized (this) {
+					if (opennetFinished) {
+						if (opennetTimedOut)
+							throw new OpennetManager.WaitedTooLongForOpennetNoderefException();
+						if (logMINOR)
+							Logger.minor(this, "Grabbing opennet noderef on " + this, new Exception("debug"));
+						// Only one RequestHandler may take the noderef
+						byte[] ref = opennetNoderef;
+						opennetNoderef = null;
+						return ref;
 					}
 				}
-				catch (InterruptedException e) {
-					// Ignore
+				long waitTime = OPENNET_TIMEOUT + startTime - System.currentTimeMillis();
+				if (waitTime > 0) {
+					// Park outside the lock, so we don't pin a virtual thread.
+					waiters.park(this, waitTime);
 					continue;
 				}
 				if (logMINOR)
@@ -2089,6 +2098,9 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 				return null;
 			}
 		}
+		finally {
+			waiters.remove();
+		}
 	}
 
 	public synchronized PeerNode successFrom() {
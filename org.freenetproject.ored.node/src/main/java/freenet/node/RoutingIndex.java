@@ -0,0 +1,262 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The locations of our connected peers and of their peers (FOAF), sorted around the
+ * circle, so that {@link PeerManager#closerPeer} can look at the candidates nearest the
+ * target first and stop once it has its answer, rather than looking at every peer and
+ * every one of their peers on every request.
+ *
+ * Never changed once built. {@link PeerManager} builds a new one when the connected peers
+ * change or a peer's locations change. Backoff and the failure table change all the time,
+ * so they are still checked for each candidate as we come to it.
+ */
+final class RoutingIndex {
+
+	/** The peers the index was built from; owners are indexes into this. */
+	final PeerNode[] peers;
+
+	/** The number of peers, which {@link #peers} may not give us. */
+	private final int peerCount;
+
+	/** All the locations, sorted. */
+	private final double[] locations;
+
+	/** The peer each location belongs to. */
+	private final int[] owners;
+
+	/** Whether each location is one of the peer's peers rather than the peer itself. */
+	private final boolean[] foaf;
+
+	/**
+	 * The total of the peers' selection rates, for the FOAF mitigation, and when it was
+	 * worked out. Recalculated at most every {@link #SELECTION_RATE_REFRESH} ms.
+	 */
+	private volatile double totalSelectionRate;
+
+	private volatile long selectionRateTime = -1;
+
+	static final int SELECTION_RATE_REFRESH = 1000;
+
+	/** Maximum number of released walks to keep. */
+	private static final int MAX_POOLED_WALKS = 64;
+
+	/**
+	 * Walks which have been released, so that a lookup doesn't allocate anything. Not per
+	 * thread: requests are routed on a new virtual thread each, which would never reuse
+	 * one.
+	 */
+	private static final ArrayDeque<Walk> walkPool = new ArrayDeque<Walk>();
+
+	/**
+	 * @param peers The peers, or null when only the locations are of interest.
+	 * @param ownLocations Each peer's location, or an invalid location if it doesn't have
+	 * one.
+	 * @param peersLocations Each peer's peers' locations, or null if it hasn't told us.
+	 */
+	RoutingIndex(PeerNode[] peers, double[] ownLocations, double[][] peersLocations) {
+		this.peers = peers;
+		this.peerCount = ownLocations.length;
+		int count = 0;
+		for (int i = 0; i < ownLocations.length; i++) {
+			if (Location.isValid(ownLocations[i])) {
+				count++;
+			}
+			if (peersLocations[i] != null) {
+				count += peersLocations[i].length;
+			}
+		}
+		final double[] locs = new double[count];
+		int[] ownerOf = new int[count];
+		boolean[] isFOAF = new boolean[count];
+		Integer[] order = new Integer[count];
+		int n = 0;
+		for (int i = 0; i < ownLocations.length; i++) {
+			if (Location.isValid(ownLocations[i])) {
+				locs[n] = ownLocations[i];
+				ownerOf[n] = i;
+				order[n] = n;
+				n++;
+			}
+			if (peersLocations[i] != null) {
+				for (double l : peersLocations[i]) {
+					locs[n] = l;
+					ownerOf[n] = i;
+					isFOAF[n] = true;
+					order[n] = n;
+					n++;
+				}
+			}
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(locs[a], locs[b]));
+		this.locations = new double[count];
+		this.owners = new int[count];
+		this.foaf = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			int e = order[i];
+			this.locations[i] = locs[e];
+			this.owners[i] = ownerOf[e];
+			this.foaf[i] = isFOAF[e];
+		}
+	}
+
+	/** Index the current locations of the given peers. */
+	static RoutingIndex build(PeerNode[] peers) {
+		double[] own = new double[peers.length];
+		double[][] theirs = new double[peers.length][];
+		for (int i = 0; i < peers.length; i++) {
+			own[i] = peers[i].getLocation();
+			theirs[i] = peers[i].getPeersLocationArray();
+		}
+		return new RoutingIndex(peers, own, theirs);
+	}
+
+	/** The number of locations indexed. */
+	int size() {
+		return this.locations.length;
+	}
+
+	/**
+	 * @return The total of the peers' selection rates, as of no more than
+	 * {@link #SELECTION_RATE_REFRESH} ms ago.
+	 */
+	double totalSelectionRate(long now) {
+		if (now - this.selectionRateTime < SELECTION_RATE_REFRESH) {
+			return this.totalSelectionRate;
+		}
+		double total = 0.0;
+		for (PeerNode p : this.peers) {
+			total += p.selectionRate();
+		}
+		this.totalSelectionRate = total;
+		this.selectionRateTime = now;
+		return total;
+	}
+
+	/**
+	 * Start going through the locations, nearest to the target first. The caller should
+	 * {@link Walk#release()} the walk when it has finished with it, so it can be reused;
+	 * one which isn't released is simply garbage collected.
+	 */
+	Walk walk(double target) {
+		Walk walk;
+		synchronized (walkPool) {
+			walk = walkPool.pollFirst();
+		}
+		if (walk == null) {
+			walk = new Walk();
+		}
+		walk.start(this, target);
+		return walk;
+	}
+
+	/**
+	 * Goes through the locations outwards from the target in both directions, so in order
+	 * of distance from it. Also remembers which peers have been seen, for callers which
+	 * only want the nearest location of each peer.
+	 */
+	static final class Walk {
+
+		private RoutingIndex index;
+
+		private double target;
+
+		private int left;
+
+		private int right;
+
+		private int remaining;
+
+		private int current;
+
+		/** A peer has been seen on this walk if its entry equals {@link #stamp}. */
+		private int[] seen = new int[0];
+
+		private int stamp;
+
+		private void start(RoutingIndex index, double target) {
+			this.index = index;
+			this.target = target;
+			int count = index.locations.length;
+			this.remaining = count;
+			if (this.seen.length < index.peerCount) {
+				this.seen = new int[index.peerCount];
+			}
+			if (++this.stamp == 0) {
+				Arrays.fill(this.seen, 0);
+				this.stamp = 1;
+			}
+			if (count == 0) {
+				return;
+			}
+			int closest = PeerLocation.findClosestLocation(index.locations, target);
+			this.left = closest;
+			this.right = (closest == count - 1) ? 0 : closest + 1;
+		}
+
+		/** Move to the next nearest location. @return False if there are no more. */
+		boolean next() {
+			if (this.remaining == 0) {
+				return false;
+			}
+			double[] locs = this.index.locations;
+			int count = locs.length;
+			if (this.remaining == 1
+					|| Location.distance(this.target, locs[this.left]) <= Location.distance(this.target,
+							locs[this.right])) {
+				this.current = this.left;
+				this.left = (this.left == 0) ? count - 1 : this.left - 1;
+			}
+			else {
+				this.current = this.right;
+				this.right = (this.right == count - 1) ? 0 : this.right + 1;
+			}
+			this.remaining--;
+			return true;
+		}
+
+		double location() {
+			return this.index.locations[this.current];
+		}
+
+		double distance() {
+			return Location.distance(this.target, this.index.locations[this.current]);
+		}
+
+		/** The index of the peer the location belongs to. */
+		int owner() {
+			return this.index.owners[this.current];
+		}
+
+		boolean isFOAF() {
+			return this.index.foaf[this.current];
+		}
+
+		/** @return True if the owner of the current location has been seen before. */
+		boolean markSeen() {
+			int owner = this.index.owners[this.current];
+			if (this.seen[owner] == this.stamp) {
+				return true;
+			}
+			this.seen[owner] = this.stamp;
+			return false;
+		}
+
+		/** Return the walk to the pool. It must not be used afterwards. */
+		void release() {
+			this.index = null;
+			synchronized (walkPool) {
+				if (walkPool.size() < MAX_POOLED_WALKS) {
+					walkPool.addFirst(this);
+				}
+			}
+		}
+
+	}
+
+}
@@ -21,13 +21,14 @@ import freenet.nodelogger.Logger;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
 /**
  * Handles an incoming SSK insert. SSKs need their own insert/request classes, see
  * comments in SSKInsertSender.
  */
-public class SSKInsertHandler implements PrioRunnable, ByteCounter {
+public class SSKInsertHandler implements PrioRunnable, BlockingRunnable, ByteCounter {
 
 	private static boolean logMINOR;
 
@@ -290,15 +291,7 @@ public class SSKInsertHandler implements PrioRunnable, ByteCounter {
 		boolean receivedRejectedOverload = false;
 
 		while (true) {
-			synchronized (sender) {
-				try {
-					if (sender.getStatus() == SSKInsertSender.NOT_FINISHED)
-						sender.wait(5000);
-				}
-				catch (InterruptedException e) {
-					// Ignore
-				}
-			}
+			sender.waitForChange(5000);
 
 			if ((!receivedRejectedOverload) && sender.receivedRejectedOverload()) {
 				receivedRejectedOverload = true;
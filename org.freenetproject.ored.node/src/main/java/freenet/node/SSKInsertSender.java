@@ -20,8 +20,10 @@ import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKVerifyException;
 import freenet.nodelogger.Logger;
+import freenet.support.ParkedWaiters;
 import freenet.support.ShortBuffer;
 import freenet.support.io.NativeThread;
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 
 /**
@@ -30,7 +32,8 @@ import freenet.support.node.PrioRunnable;
  * don't need to wait for a long data-transfer timeout. - SSKs have pubkeys, which don't
  * always need to be sent.
  */
-public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInsertSender, ByteCounter {
+public class SSKInsertSender extends BaseSender
+		implements PrioRunnable, BlockingRunnable, AnyInsertSender, ByteCounter {
 
 	// Constants
 	static final long ACCEPTED_TIMEOUT = SECONDS.toMillis(10);
@@ -82,6 +85,12 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 
 	private int status = -1;
 
+	/**
+	 * Handlers waiting for our status to change, which may be on virtual threads so park
+	 * rather than wait on our lock.
+	 */
+	private final ParkedWaiters waiters = new ParkedWaiters();
+
 	/** Still running */
 	static final int NOT_FINISHED = -1;
 
@@ -556,7 +565,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 			synchronized (this) {
 				hasRecentlyCollided = true;
 				hasCollided = true;
-				notifyAll();
+				notifyWaiters();
 			}
 
 			// The node will now propagate the new data. There is no need to move to the
@@ -603,7 +612,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 		if (hasForwardedRejectedOverload)
 			return;
 		hasForwardedRejectedOverload = true;
-		notifyAll();
+		notifyWaiters();
 	}
 
 	private void finish(int code, PeerNode next) {
@@ -627,7 +636,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 
 			if (status != TIMED_OUT) {
 				status = code;
-				notifyAll();
+				notifyWaiters();
 			}
 		}
 
@@ -639,6 +648,35 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 		// Nothing to wait for, no downstream transfers, just exit.
 	}
 
+	/**
+	 * Unless the status has already been set, wait until something changes, e.g. the
+	 * status is set, we collide or we forward a RejectedOverload, or the timeout expires,
+	 * or we are interrupted. May return early for no reason, so the caller must check
+	 * again.
+	 */
+	public void waitForChange(long timeout) {
+		waiters.add();
+		try {
+			synchronized (this) {
+				if (status != NOT_FINISHED)
+					return;
+			}
+			waiters.park(this, timeout);
+		}
+		finally {
+			waiters.remove();
+		}
+	}
+
+	/**
+	 * Wake anything waiting for our status to change, whether on our lock or parked.
+	 * Caller must hold the lock.
+	 */
+	private void notifyWaiters() {
+		notifyAll();
+		waiters.wakeAll();
+	}
+
 	@Override
 	public synchronized int getStatus() {
 		return status;
@@ -109,7 +109,8 @@ public class DefaultThreadDiagnostics implements Runnable, ThreadDiagnostics {
 		// while we're measuring it.
 		synchronized (thread) {
 			name = thread.getName();
-			current = threadMxBean.getThreadCpuTime(thread.getId());
+			// Not supported for virtual threads, they get -1.
+			current = Math.max(0, threadMxBean.getThreadCpuTime(thread.getId()));
 			jobId = getJobId(thread);
 		}
 
@@ -195,7 +196,7 @@ public class DefaultThreadDiagnostics implements Runnable, ThreadDiagnostics {
 		List<NodeThreadInfo> threads = Arrays.stream(nodeStats.getThreads()).filter(Objects::nonNull)
 				.filter(thread -> thread.getThreadGroup() != null).filter(thread -> getJobId(thread) != 0)
 				.map(thread -> new NodeThreadInfo(thread.getId(), getJobId(thread), getCpuTimeDelta(thread),
-						getJobName(thread), thread.getPriority(), thread.getThreadGroup().getName(),
+						getJobName(thread), nodeStats.getThreadPriority(thread), thread.getThreadGroup().getName(),
 						thread.getState().toString()))
 				.collect(Collectors.toList());
 
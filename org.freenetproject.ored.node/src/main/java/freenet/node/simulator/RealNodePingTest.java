@@ -3,14 +3,19 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node.simulator;
 
+import java.io.File;
+import java.util.Random;
+
 import freenet.crypt.RandomSource;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.support.node.FSParseException;
 import freenet.node.Node;
 import freenet.support.node.NodeInitException;
 import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
 import freenet.node.PeerNode;
 import freenet.node.PeerTooOldException;
 import freenet.node.DarknetPeerNode;
@@ -23,10 +28,10 @@ import freenet.support.LoggerHook.InvalidThresholdException;
 /**
  * @author amphibian
  *
- * When the code is invoked via this class, it: - Creates two nodes. - Connects them to
- * each other - Sends pings from the first node to the second node. - Prints on the logger
- * when packets are sent, when they are received, (by both sides), and their sequence
- * numbers.
+ * When the code is invoked via this class, it: - Creates two nodes, which talk through a
+ * {@link SimulatedNetwork} rather than UDP sockets. - Connects them to each other - Sends
+ * pings from the first node to the second node. - Prints on the logger when packets are
+ * sent, when they are received, (by both sides), and their sequence numbers.
  */
 public class RealNodePingTest {
 
@@ -39,17 +44,18 @@ public class RealNodePingTest {
 	static final DarknetPeerNode.FRIEND_TRUST trust = DarknetPeerNode.FRIEND_TRUST.LOW;
 	static final DarknetPeerNode.FRIEND_VISIBILITY visibility = DarknetPeerNode.FRIEND_VISIBILITY.NO;
 
+	/** Latency of each node's simulated uplink, in ms. */
+	static final long LATENCY = 20;
+
 	public static void main(String[] args) throws FSParseException, PeerParseException, InterruptedException,
 			ReferenceSignatureVerificationException, NodeInitException, InvalidThresholdException, PeerTooOldException {
 		RandomSource random = NodeStarter.globalTestInit("pingtest", false, LogLevel.ERROR, "", true);
 		// Create 2 nodes
 		Executor executor = new PooledExecutor();
-		Node node1 = NodeStarter.createTestNode(DARKNET_PORT1, 0, "pingtest", true, Node.DEFAULT_MAX_HTL, 0, random,
-				executor, 1000, 65536, true, false, false, false, false, false, true, 0, false, false, true, false,
-				null);
-		Node node2 = NodeStarter.createTestNode(DARKNET_PORT2, 0, "pingtest", true, Node.DEFAULT_MAX_HTL, 0, random,
-				executor, 1000, 65536, true, false, false, false, false, false, true, 0, false, false, true, false,
-				null);
+		SimulatedNetwork network = SimulatedNetwork.realTime(executor, new Random(random.nextLong()));
+		network.setDefaultLink(LATENCY, 0.0, 0);
+		Node node1 = NodeStarter.createTestNode(testNodeParameters(DARKNET_PORT1, random, executor, network));
+		Node node2 = NodeStarter.createTestNode(testNodeParameters(DARKNET_PORT2, random, executor, network));
 		// Connect
 		node1.connect(node2, trust, visibility);
 		node2.connect(node1, trust, visibility);
@@ -85,4 +91,26 @@ public class RealNodePingTest {
 		}
 	}
 
+	/**
+	 * Parameters for a ping test node.
+	 * @param network The network the node talks through, or null to use UDP sockets.
+	 */
+	static TestNodeParameters testNodeParameters(int port, RandomSource random, Executor executor,
+			SimulatedNetwork network) {
+		TestNodeParameters params = new TestNodeParameters();
+		params.port = port;
+		params.baseDirectory = new File("pingtest");
+		params.disableProbabilisticHTLs = true;
+		params.maxHTL = Node.DEFAULT_MAX_HTL;
+		params.random = random;
+		params.executor = executor;
+		params.threadLimit = 1000;
+		params.storeSize = 65536;
+		params.ramStore = true;
+		params.enablePacketCoalescing = true;
+		params.longPingTimes = true;
+		params.simulatedNetwork = network;
+		return params;
+	}
+
 }
@@ -0,0 +1,76 @@
+package freenet.clients.http;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FProxyRangeTest extends TestCase {
+
+	private static List<long[]> resolve(String header, long size) throws HTTPRangeException {
+		return FProxyToadlet.resolveRanges(FProxyToadlet.parseRanges(header), size);
+	}
+
+	private static void assertRange(long first, long last, long[] range) {
+		assertEquals(first, range[0]);
+		assertEquals(last, range[1]);
+	}
+
+	public void testSingleRanges() throws HTTPRangeException {
+		assertRange(0, 99, resolve("bytes=0-99", 1000).get(0));
+		assertRange(500, 999, resolve("bytes=500-", 1000).get(0));
+		assertRange(900, 999, resolve("bytes=-100", 1000).get(0));
+		assertRange(0, 999, resolve("bytes=-5000", 1000).get(0));
+		assertRange(990, 999, resolve("bytes=990-2000", 1000).get(0));
+		assertRange(5, 5, resolve("bytes=5-5", 1000).get(0));
+	}
+
+	public void testMultipleRanges() throws HTTPRangeException {
+		List<long[]> ranges = resolve("bytes=500-599, 0-99,-10", 1000);
+		assertEquals(3, ranges.size());
+		assertRange(0, 99, ranges.get(0));
+		assertRange(500, 599, ranges.get(1));
+		assertRange(990, 999, ranges.get(2));
+		// Overlapping and adjacent ranges are merged.
+		ranges = resolve("bytes=0-99,50-149,150-199,300-", 1000);
+		assertEquals(2, ranges.size());
+		assertRange(0, 199, ranges.get(0));
+		assertRange(300, 999, ranges.get(1));
+	}
+
+	public void testUnsatisfiable() throws HTTPRangeException {
+		assertTrue(resolve("bytes=1000-", 1000).isEmpty());
+		List<long[]> ranges = resolve("bytes=2000-3000,10-19", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(10, 19, ranges.get(0));
+	}
+
+	public void testInvalid() {
+		String[] invalid = { "bytes=", "bytes=abc", "bytes=10-5", "items=0-10", "bytes=-0", "bytes=5" };
+		for (String header : invalid) {
+			try {
+				FProxyToadlet.parseRanges(header);
+				fail("Accepted " + header);
+			}
+			catch (HTTPRangeException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testConditions() {
+		String etag = "\"abc\"";
+		assertTrue(FProxyToadlet.etagMatches("\"abc\"", etag));
+		assertTrue(FProxyToadlet.etagMatches("\"x\", W/\"abc\"", etag));
+		assertTrue(FProxyToadlet.etagMatches("*", etag));
+		assertFalse(FProxyToadlet.etagMatches("\"x\"", etag));
+		assertFalse(FProxyToadlet.etagMatches(null, etag));
+
+		assertTrue(FProxyToadlet.ifRangeMatches(null, null));
+		assertTrue(FProxyToadlet.ifRangeMatches(etag, etag));
+		assertTrue(FProxyToadlet.ifRangeMatches("Wed, 21 Oct 2015 07:28:00 GMT", etag));
+		assertFalse(FProxyToadlet.ifRangeMatches("\"x\"", etag));
+		assertFalse(FProxyToadlet.ifRangeMatches("W/\"abc\"", etag));
+		assertFalse(FProxyToadlet.ifRangeMatches(etag, null));
+	}
+
+}
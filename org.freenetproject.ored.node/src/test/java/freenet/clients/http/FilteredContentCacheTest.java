@@ -0,0 +1,121 @@
+package freenet.clients.http;
+
+import java.net.MalformedURLException;
+
+import freenet.bucket.ArrayBucket;
+import freenet.bucket.Bucket;
+import freenet.client.FetchResult;
+import freenet.keys.FreenetURI;
+import junit.framework.TestCase;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static class TrackingBucket extends ArrayBucket {
+
+		boolean freed;
+
+		TrackingBucket(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+
+	}
+
+	private static FilteredContentCache.Key key(String name) throws MalformedURLException {
+		return new FilteredContentCache.Key(new FreenetURI("KSK@" + name), null, null, "http://127.0.0.1:8888");
+	}
+
+	public void testKey() throws MalformedURLException {
+		assertEquals(key("a"), key("a"));
+		assertEquals(key("a").hashCode(), key("a").hashCode());
+		assertFalse(key("a").equals(key("b")));
+		FreenetURI uri = new FreenetURI("KSK@a");
+		FilteredContentCache.Key k = new FilteredContentCache.Key(uri, null, null, null);
+		assertFalse(k.equals(new FilteredContentCache.Key(uri, "text/plain", null, null)));
+		assertFalse(k.equals(new FilteredContentCache.Key(uri, null, "UTF-8", null)));
+		assertFalse(k.equals(new FilteredContentCache.Key(uri, null, null, "http://127.0.0.1:8888")));
+	}
+
+	public void testHitAndMiss() throws MalformedURLException {
+		FilteredContentCache cache = new FilteredContentCache(4000);
+		assertNull(cache.get(key("a"), Long.MAX_VALUE));
+		TrackingBucket data = new TrackingBucket(100);
+		Bucket mine = cache.put(key("a"), "text/html; charset=UTF-8", data);
+		assertNotSame(data, mine);
+		assertEquals(100, mine.size());
+		mine.free();
+		assertFalse(data.freed);
+
+		FetchResult result = cache.get(key("a"), Long.MAX_VALUE);
+		assertNotNull(result);
+		assertEquals("text/html; charset=UTF-8", result.getMimeType());
+		assertEquals(100, result.size());
+		result.asBucket().free();
+		// Too big for the fetch.
+		assertNull(cache.get(key("a"), 99));
+		assertNull(cache.get(key("b"), Long.MAX_VALUE));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+		assertEquals(0.25, cache.getHitRate(), 0.0);
+		assertEquals(1, cache.getEntries());
+		assertEquals(100, cache.getSize());
+	}
+
+	public void testTooBig() throws MalformedURLException {
+		FilteredContentCache cache = new FilteredContentCache(4000);
+		TrackingBucket data = new TrackingBucket(4000 / FilteredContentCache.MAX_ENTRY_FRACTION + 1);
+		assertSame(data, cache.put(key("a"), "text/html", data));
+		assertEquals(0, cache.getEntries());
+		cache.setMaxSize(0);
+		data = new TrackingBucket(1);
+		assertSame(data, cache.put(key("a"), "text/html", data));
+	}
+
+	public void testEviction() throws MalformedURLException {
+		FilteredContentCache cache = new FilteredContentCache(4000);
+		TrackingBucket[] data = new TrackingBucket[5];
+		Bucket reading = null;
+		for (int i = 0; i < data.length; i++) {
+			data[i] = new TrackingBucket(1000);
+			Bucket b = cache.put(key("k" + i), "text/css", data[i]);
+			if (i == 0)
+				reading = b;
+			else
+				b.free();
+			if (i == 2) {
+				// Use the second one, so the first is evicted first.
+				cache.get(key("k1"), Long.MAX_VALUE).asBucket().free();
+			}
+		}
+		assertEquals(4, cache.getEntries());
+		assertEquals(4000, cache.getSize());
+		assertEquals(1, cache.getEvicted());
+		assertNull(cache.get(key("k0"), Long.MAX_VALUE));
+		// Still being read, so not freed yet.
+		assertFalse(data[0].freed);
+		reading.free();
+		assertTrue(data[0].freed);
+
+		cache.setMaxSize(2000);
+		assertEquals(2, cache.getEntries());
+		assertTrue(data[1].freed);
+		assertTrue(data[2].freed);
+		assertFalse(data[3].freed);
+		reading = cache.get(key("k3"), Long.MAX_VALUE).asBucket();
+
+		cache.clear();
+		assertEquals(0, cache.getEntries());
+		assertEquals(0, cache.getSize());
+		assertFalse(data[3].freed);
+		assertTrue(data[4].freed);
+		reading.free();
+		assertTrue(data[3].freed);
+	}
+
+}
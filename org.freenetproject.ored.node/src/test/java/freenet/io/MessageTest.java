@@ -1,11 +1,19 @@
 package freenet.io;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.support.ShortBuffer;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedList;
 
 /**
  * Tests Message abilities.
@@ -44,6 +52,150 @@ public class MessageTest extends TestCase {
 		}
 	};
 
+	private static final String STRING = "string";
+
+	private static final String SHORT_BUFFER = "shortBuffer";
+
+	private static final String LIST = "list";
+
+	private static final MessageType testObjects = new MessageType("testObjects", DMT.PRIORITY_LOW) {
+		{
+			addField(LONG, Long.class);
+			addField(STRING, String.class);
+			addField(SHORT_BUFFER, ShortBuffer.class);
+			addLinkedListField(LIST, Long.class);
+			addField(BOOLEAN, Boolean.class);
+		}
+	};
+
+	private static Message createTestMessage() {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, false);
+		msg.set(BYTE, (byte) -3);
+		msg.set(SHORT, (short) -456);
+		msg.set(INT, -78912);
+		msg.set(LONG, Long.MIN_VALUE + 1);
+		// Not the canonical NaN: should be written as if by DataOutputStream.writeDouble().
+		msg.set(DOUBLE, Double.longBitsToDouble(0x7ff0000000000123L));
+		msg.set(FLOAT, Float.intBitsToFloat(0x7f800042));
+		msg.set(DOUBLE_ARRAY, new double[] { Math.PI, Double.NaN, -0.0 });
+		msg.set(FLOAT_ARRAY, new float[] { 1.5f, Float.NEGATIVE_INFINITY });
+		return msg;
+	}
+
+	private static Message createTestObjectsMessage() {
+		Message msg = new Message(testObjects);
+		msg.set(LONG, 3456789123L);
+		msg.set(STRING, "testing \u00e9\u4e2d");
+		msg.set(SHORT_BUFFER, new ShortBuffer(new byte[] { 1, 2, 3, 4, 5 }));
+		LinkedList<Long> list = new LinkedList<Long>();
+		list.add(1L);
+		list.add(-2L);
+		msg.set(LIST, list);
+		msg.set(BOOLEAN, Boolean.TRUE);
+		return msg;
+	}
+
+	/** Encode the way Message did before it had a MessageLayout. */
+	private static void referenceEncodeFields(Message msg, DataOutputStream dos) throws IOException {
+		dos.writeInt(msg.getSpec().getName().hashCode());
+		for (String name : msg.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(msg.getObject(name), dos);
+	}
+
+	private static byte[] referenceEncode(Message msg, Message subMessage) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		referenceEncodeFields(msg, dos);
+		if (subMessage != null) {
+			ByteArrayOutputStream sub = new ByteArrayOutputStream();
+			referenceEncodeFields(subMessage, new DataOutputStream(sub));
+			dos.writeShort(sub.size());
+			dos.write(sub.toByteArray());
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * The compiled layout must write exactly what Serializer writes, whichever way we ask
+	 * for it.
+	 */
+	public void testEncodeMatchesSerializer() throws IOException {
+		Message msg = createTestMessage();
+		assertTrue(Arrays.equals(referenceEncode(msg, null), msg.encodeToPacket()));
+
+		Message objects = createTestObjectsMessage();
+		objects.addSubMessage(msg);
+		byte[] expected = referenceEncode(objects, msg);
+		assertTrue(Arrays.equals(expected, objects.encodeToPacket()));
+
+		byte[] buf = new byte[expected.length + 10];
+		assertEquals(expected.length, objects.encodeTo(buf, 7));
+		assertTrue(Arrays.equals(expected, Arrays.copyOfRange(buf, 7, 7 + expected.length)));
+
+		ByteBuffer bb = ByteBuffer.allocateDirect(expected.length);
+		assertEquals(expected.length, objects.encodeTo(bb));
+		assertEquals(0, bb.remaining());
+		bb.flip();
+		byte[] fromDirect = new byte[expected.length];
+		bb.get(fromDirect);
+		assertTrue(Arrays.equals(expected, fromDirect));
+	}
+
+	public void testEncodeOverflow() {
+		Message msg = createTestObjectsMessage();
+		try {
+			msg.encodeTo(new byte[msg.encodeToPacket().length - 1], 0);
+			fail();
+		}
+		catch (BufferOverflowException e) {
+			// Expected.
+		}
+	}
+
+	public void testDecode() {
+		Message objects = createTestObjectsMessage();
+		objects.addSubMessage(createTestMessage());
+		byte[] encoded = objects.encodeToPacket();
+
+		Message decoded = Message.decodeMessageFromPacket(ByteBuffer.wrap(encoded), null, 0);
+		assertNotNull(decoded);
+		assertEquals(testObjects, decoded.getSpec());
+		assertEquals(3456789123L, decoded.getLong(LONG));
+		assertEquals(objects.getString(STRING), decoded.getString(STRING));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4, 5 }, decoded.getShortBufferBytes(SHORT_BUFFER)));
+		assertEquals(objects.getObject(LIST), decoded.getObject(LIST));
+		assertTrue(decoded.getBoolean(BOOLEAN));
+		assertEquals(objects.toString(), decoded.toString());
+		// And back again.
+		assertTrue(Arrays.equals(encoded, decoded.encodeToPacket()));
+
+		Message sub = decoded.getSubMessage(test);
+		assertNotNull(sub);
+		assertEquals((short) -456, sub.getShort(SHORT));
+		assertEquals(Float.floatToIntBits(Float.intBitsToFloat(0x7f800042)), Float.floatToIntBits(sub.getFloat(FLOAT)));
+	}
+
+	public void testUnsetFields() {
+		Message msg = new Message(test);
+		assertFalse(msg.isSet(LONG));
+		assertFalse(msg.isSet("no such field"));
+		assertNull(msg.getObject(LONG));
+		msg.set(LONG, 5L);
+		assertTrue(msg.isSet(LONG));
+		assertEquals(Long.valueOf(5), msg.getObject(LONG));
+		try {
+			msg.set(LONG, 5);
+			fail();
+		}
+		catch (IncorrectTypeException e) {
+			// Expected: an int is not a long.
+		}
+		Message copy = msg.cloneAndDropSubMessages();
+		assertTrue(copy.isSet(LONG));
+		assertFalse(copy.isSet(INT));
+	}
+
 	/**
 	 * Test that different types can be set and retrieved to and from a Message.
 	 */
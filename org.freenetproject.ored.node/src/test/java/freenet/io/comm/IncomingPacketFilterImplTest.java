@@ -0,0 +1,101 @@
+package freenet.io.comm;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import freenet.io.comm.IncomingPacketFilter.DECODED;
+import freenet.node.PeerNode;
+import junit.framework.TestCase;
+
+/**
+ * Tests for decoding packets in parallel with {@link IncomingPacketFilterImpl}.
+ */
+public class IncomingPacketFilterImplTest extends TestCase {
+
+	private static final int PEERS = 8;
+
+	private static final int PACKETS = 200;
+
+	private final InetAddress localhost = InetAddress.getLoopbackAddress();
+
+	/** Packets decoded by each peer, in the order it decoded them. */
+	private final List<List<Integer>> decoded = new ArrayList<List<Integer>>();
+
+	private final PeerNode[] peers = new PeerNode[PEERS];
+
+	private final Random random = new Random(1234);
+
+	@Override
+	protected void setUp() {
+		for (int i = 0; i < PEERS; i++) {
+			final List<Integer> list = new ArrayList<Integer>();
+			decoded.add(list);
+			peers[i] = mock(PeerNode.class);
+			when(peers[i].handleReceivedPacket(any(byte[].class), anyInt(), anyInt(), anyLong(), any(Peer.class)))
+				.thenAnswer((invocation) -> {
+					byte[] buf = invocation.getArgument(0);
+					int offset = invocation.getArgument(1);
+					synchronized (list) {
+						list.add(buf[offset] & 0xFF);
+						list.notifyAll();
+					}
+					return true;
+				});
+		}
+	}
+
+	private IncomingPacketFilterImpl filter() {
+		return new IncomingPacketFilterImpl(null, null, null, true) {
+
+			@Override
+			PeerNode lookup(Peer peer) {
+				return peers[peer.getPort() - 1000];
+			}
+
+			@Override
+			void sampleTiming() {
+			}
+
+			@Override
+			void recordProcessTime(long startTime) {
+			}
+
+		};
+	}
+
+	/** Packets from each peer are decoded in the order they arrived, in parallel. */
+	public void testOrderPerPeer() throws InterruptedException {
+		IncomingPacketFilterImpl filter = filter();
+		int[] sent = new int[PEERS];
+		byte[] buf = new byte[100];
+		for (int i = 0; i < PACKETS; i++) {
+			int p = random.nextInt(PEERS);
+			buf[10] = (byte) sent[p]++;
+			// The receive buffer is reused, so the filter must copy it.
+			assertEquals(DECODED.QUEUED, filter.process(buf, 10, 50, new Peer(localhost, 1000 + p), 0));
+		}
+		for (int p = 0; p < PEERS; p++) {
+			List<Integer> list = decoded.get(p);
+			long deadline = System.currentTimeMillis() + 10000;
+			synchronized (list) {
+				while (list.size() < sent[p]) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						fail("Only " + list.size() + " of " + sent[p] + " packets decoded for peer " + p);
+					list.wait(wait);
+				}
+				for (int i = 0; i < sent[p]; i++)
+					assertEquals(i, (int) list.get(i));
+			}
+		}
+	}
+
+}
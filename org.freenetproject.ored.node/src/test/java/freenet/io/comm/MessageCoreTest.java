@@ -0,0 +1,148 @@
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.PooledExecutor;
+import junit.framework.TestCase;
+
+/**
+ * Tests dispatch of incoming messages to MessageFilters.
+ */
+public class MessageCoreTest extends TestCase {
+
+	private static final MessageType testA = new MessageType("MessageCoreTestA", DMT.PRIORITY_LOW) {
+		{
+			addField(DMT.UID, Long.class);
+		}
+	};
+
+	private static final MessageType testB = new MessageType("MessageCoreTestB", DMT.PRIORITY_LOW) {
+		{
+			addField(DMT.UID, Long.class);
+		}
+	};
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() {
+		this.core = new MessageCore(new PooledExecutor());
+	}
+
+	private static Message message(MessageType type, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		return m;
+	}
+
+	private static MessageFilter filter(MessageType type, Long uid, long timeout) {
+		MessageFilter f = MessageFilter.create().setType(type).setTimeout(timeout);
+		if (uid != null) {
+			f.setField(DMT.UID, uid.longValue());
+		}
+		return f;
+	}
+
+	/**
+	 * Only the filter with the matching uid gets the message.
+	 */
+	public void testMatchesByUID() throws DisconnectedException {
+		Callback cb1 = new Callback();
+		Callback cb2 = new Callback();
+		this.core.addAsyncFilter(filter(testA, 1L, 60000), cb1, null);
+		this.core.addAsyncFilter(filter(testA, 2L, 60000), cb2, null);
+		assertEquals(2, this.core.getFilterCount());
+
+		this.core.checkFilters(message(testA, 2), null);
+		assertTrue(cb1.matched.isEmpty());
+		assertEquals(1, cb2.matched.size());
+		assertEquals(1, this.core.getFilterCount());
+
+		// Wrong type, same uid: not matched, goes to the unclaimed FIFO.
+		this.core.checkFilters(message(testB, 1), null);
+		assertTrue(cb1.matched.isEmpty());
+		assertEquals(1, this.core.getUnclaimedFIFOSize());
+	}
+
+	/**
+	 * When several filters match, the one with the nearest timeout wins, whether it
+	 * constrains the uid or not.
+	 */
+	public void testNearestTimeoutWins() throws DisconnectedException {
+		Callback late = new Callback();
+		Callback early = new Callback();
+		Callback wildcard = new Callback();
+		this.core.addAsyncFilter(filter(testA, 5L, 120000), late, null);
+		this.core.addAsyncFilter(filter(testA, null, 60000), early, null);
+		this.core.addAsyncFilter(MessageFilter.create().setTimeout(180000), wildcard, null);
+
+		this.core.checkFilters(message(testA, 5), null);
+		assertEquals(1, early.matched.size());
+		assertTrue(late.matched.isEmpty());
+
+		this.core.checkFilters(message(testA, 5), null);
+		assertEquals(1, late.matched.size());
+
+		this.core.checkFilters(message(testA, 5), null);
+		assertEquals(1, wildcard.matched.size());
+		assertEquals(0, this.core.getFilterCount());
+	}
+
+	/**
+	 * A filter is found through any member of its or() chain.
+	 */
+	public void testOrChain() throws DisconnectedException {
+		Callback cb = new Callback();
+		MessageFilter f = filter(testA, 7L, 60000).or(filter(testB, 7L, 60000));
+		this.core.addAsyncFilter(f, cb, null);
+
+		this.core.checkFilters(message(testB, 7), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(testB, cb.matched.get(0).getSpec());
+		assertEquals(0, this.core.getFilterCount());
+	}
+
+	public void testRemoveTimedOutFilters() throws DisconnectedException {
+		Callback cb = new Callback();
+		this.core.addAsyncFilter(filter(testA, 9L, 60000), cb, null);
+		cb.shouldTimeout = true;
+		this.core.removeTimedOutFilters(Long.MAX_VALUE);
+		assertEquals(1, cb.timedOut);
+		assertEquals(0, this.core.getFilterCount());
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+
+		final List<Message> matched = new ArrayList<>();
+
+		int timedOut;
+
+		boolean shouldTimeout;
+
+		@Override
+		public void onMatched(Message m) {
+			this.matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return this.shouldTimeout;
+		}
+
+		@Override
+		public void onTimeout() {
+			this.timedOut++;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+		}
+
+	}
+
+}
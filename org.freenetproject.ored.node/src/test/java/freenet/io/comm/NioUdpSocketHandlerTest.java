@@ -0,0 +1,162 @@
+package freenet.io.comm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.Node;
+import freenet.node.ProgramDirectory;
+import freenet.support.io.FileUtil;
+import junit.framework.TestCase;
+
+/**
+ * Sends and receives packets over loopback with {@link NioUdpSocketHandler}.
+ */
+public class NioUdpSocketHandlerTest extends TestCase {
+
+	private final InetAddress localhost = InetAddress.getLoopbackAddress();
+
+	private File dir;
+
+	private Node node;
+
+	private DatagramSocket remote;
+
+	private NioUdpSocketHandler handler;
+
+	private Thread receiver;
+
+	private final AtomicInteger sent = new AtomicInteger();
+
+	/** Records the packets processed. Throws on packets starting with a zero byte. */
+	private static class RecordingFilter implements IncomingPacketFilter {
+
+		final List<String> processed = new ArrayList<String>();
+
+		int calls;
+
+		@Override
+		public synchronized DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+			calls++;
+			notifyAll();
+			if (buf[offset] == 0)
+				throw new IllegalStateException("Bad packet");
+			processed.add(new String(buf, offset, length));
+			return DECODED.DECODED;
+		}
+
+		@Override
+		public boolean isDisconnected(PeerContext context) {
+			return false;
+		}
+
+		synchronized void waitForCalls(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (calls < count) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					fail("Only " + calls + " of " + count + " packets processed");
+				wait(wait);
+			}
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File("nio-udp-socket-handler-test");
+		FileUtil.removeAll(dir);
+		ProgramDirectory runDir = new ProgramDirectory();
+		runDir.move(dir.getPath());
+		node = mock(Node.class);
+		when(node.runDir()).thenReturn(runDir);
+		when(node.getTrafficClass()).thenReturn(TrafficClass.getDefault());
+		remote = new DatagramSocket(0, localhost);
+		remote.setSoTimeout(10000);
+		int port;
+		try (DatagramSocket probe = new DatagramSocket(0, localhost)) {
+			port = probe.getLocalPort();
+		}
+		handler = new NioUdpSocketHandler(port, localhost, node, System.currentTimeMillis(), "test",
+				new IOStatisticCollector()) {
+
+			@Override
+			void sentPacket(Peer destination, InetAddress address, int port, int length) {
+				sent.incrementAndGet();
+				super.sentPacket(destination, address, port, length);
+			}
+
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		handler.close();
+		if (receiver != null)
+			receiver.join(10000);
+		remote.close();
+		FileUtil.removeAll(dir);
+	}
+
+	private void startReceiving(IncomingPacketFilter filter) {
+		handler.setLowLevelFilter(filter);
+		receiver = new Thread(handler, "NioUdpSocketHandler test");
+		receiver.start();
+	}
+
+	private void sendToHandler(byte[] data) throws Exception {
+		remote.send(new DatagramPacket(data, data.length, localhost, handler.getPortNumber()));
+	}
+
+	private byte[] receiveFromHandler() throws Exception {
+		byte[] buf = new byte[1500];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		remote.receive(packet);
+		return Arrays.copyOf(buf, packet.getLength());
+	}
+
+	public void testReceive() throws Exception {
+		RecordingFilter filter = new RecordingFilter();
+		// Queue the packets before we start receiving, so they are processed as one batch.
+		sendToHandler(new byte[] { 0 });
+		sendToHandler("one".getBytes());
+		sendToHandler("two".getBytes());
+		startReceiving(filter);
+		filter.waitForCalls(3);
+		synchronized (filter) {
+			assertEquals("[one, two]", filter.processed.toString());
+		}
+	}
+
+	public void testSend() throws Exception {
+		startReceiving(new RecordingFilter());
+		Peer peer = new Peer(localhost, remote.getLocalPort());
+		handler.sendPacket("hello".getBytes(), peer, true);
+		assertEquals("hello", new String(receiveFromHandler()));
+		assertEquals(1, sent.get());
+	}
+
+	public void testSendQueueFull() throws Exception {
+		startReceiving(new RecordingFilter());
+		Peer peer = new Peer(localhost, remote.getLocalPort());
+		// Packets are queued while the send buffer is full, and dropped beyond the limit.
+		handler.suspendSending();
+		for (int i = 0; i < NioUdpSocketHandler.MAX_QUEUED_SENDS + 10; i++)
+			handler.sendPacket(Integer.toString(i).getBytes(), peer, true);
+		assertEquals(0, sent.get());
+		handler.onWritable();
+		assertEquals(NioUdpSocketHandler.MAX_QUEUED_SENDS, sent.get());
+		// Sent in order.
+		assertEquals("0", new String(receiveFromHandler()));
+		assertEquals("1", new String(receiveFromHandler()));
+	}
+
+}
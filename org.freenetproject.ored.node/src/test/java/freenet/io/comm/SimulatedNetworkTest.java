@@ -0,0 +1,103 @@
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import freenet.support.VirtualTicker;
+import junit.framework.TestCase;
+
+public class SimulatedNetworkTest extends TestCase {
+
+	private VirtualTicker ticker;
+
+	private SimulatedNetwork network;
+
+	private final InetAddress localhost = InetAddress.getLoopbackAddress();
+
+	private static class Recorder implements SimulatedNetwork.Endpoint {
+
+		final List<Long> times = new ArrayList<Long>();
+
+		final List<Peer> senders = new ArrayList<Peer>();
+
+		@Override
+		public void deliver(byte[] data, Peer from, long now) {
+			times.add(now);
+			senders.add(from);
+		}
+
+	}
+
+	@Override
+	protected void setUp() {
+		ticker = new VirtualTicker(null, 0);
+		network = new SimulatedNetwork(ticker, ticker::currentTimeMillis, new Random(42));
+	}
+
+	public void testLatency() throws Exception {
+		Recorder a = new Recorder();
+		Recorder b = new Recorder();
+		network.attach(1000, a);
+		network.attach(1001, b);
+		network.setDefaultLink(50, 0.0, 0);
+		network.setLink(1001, 10, 0.0, 0);
+		assertTrue(network.send(1000, localhost, new byte[100], 1001));
+		assertTrue(network.send(1001, localhost, new byte[100], 1000));
+		ticker.advance(49);
+		assertEquals(1, a.times.size());
+		assertEquals(10L, (long) a.times.get(0));
+		assertEquals(1001, a.senders.get(0).getPort());
+		assertTrue(b.times.isEmpty());
+		ticker.advance(1);
+		assertEquals(50L, (long) b.times.get(0));
+		assertEquals(1000, b.senders.get(0).getPort());
+		assertEquals(2, network.getDelivered());
+	}
+
+	public void testBandwidth() throws Exception {
+		Recorder b = new Recorder();
+		network.attach(1000, new Recorder());
+		network.attach(1001, b);
+		// 1000 bytes per second, so a 72 byte packet plus headers takes 100ms.
+		network.setDefaultLink(0, 0.0, 1000);
+		for (int i = 0; i < 3; i++)
+			assertTrue(network.send(1000, localhost, new byte[72], 1001));
+		ticker.advance(1000);
+		assertEquals("[100, 200, 300]", b.times.toString());
+		// Fill the queue for more than a second.
+		int sent = 0;
+		while (network.send(1000, localhost, new byte[72], 1001))
+			sent++;
+		assertEquals(11, sent);
+		assertEquals(1, network.getDropped());
+	}
+
+	public void testLossAndDetach() throws Exception {
+		Recorder b = new Recorder();
+		network.attach(1000, new Recorder());
+		network.attach(1001, b);
+		network.setLink(1000, 5, 0.5, 0);
+		for (int i = 0; i < 1000; i++)
+			network.send(1000, localhost, new byte[10], 1001);
+		ticker.advance(5);
+		assertEquals(1000, b.times.size() + network.getLost());
+		assertTrue(network.getLost() > 400 && network.getLost() < 600);
+
+		long lost = network.getLost();
+		network.send(1000, localhost, new byte[10], 1001);
+		network.detach(1001, b);
+		ticker.advance(5);
+		// Either lost at random or because nobody was listening.
+		assertEquals(lost + 1, network.getLost());
+		try {
+			network.attach(1000, b);
+			fail();
+		}
+		catch (java.net.SocketException e) {
+			// Expected
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package freenet.node;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.io.comm.FreenetInetAddress;
+import freenet.io.comm.Peer;
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PeerAddressIndex}.
+ */
+public class PeerAddressIndexTest extends TestCase {
+
+	private final OutgoingPacketMangler mangler = mock(OutgoingPacketMangler.class);
+
+	private final PeerAddressIndex index = new PeerAddressIndex();
+
+	private static Peer peer(String ip, int port) throws UnknownHostException {
+		return new Peer(InetAddress.getByName(ip), port);
+	}
+
+	/**
+	 * A peer which matches packets as PeerNode does, from the given addresses.
+	 * @param addresses Changed to move the peer.
+	 */
+	private PeerNode peerNode(final List<Peer> addresses, OutgoingPacketMangler mangler) {
+		PeerNode pn = mock(PeerNode.class);
+		when(pn.getOutgoingMangler()).thenReturn(mangler);
+		when(pn.matchesPeerAndPort(any(Peer.class))).thenAnswer((invocation) -> {
+			Peer peer = invocation.getArgument(0);
+			for (Peer p : addresses) {
+				if (p.laxEquals(peer))
+					return true;
+			}
+			return false;
+		});
+		when(pn.matchesIP(any(FreenetInetAddress.class), anyBoolean())).thenAnswer((invocation) -> {
+			FreenetInetAddress addr = invocation.getArgument(0);
+			for (Peer p : addresses) {
+				if (p.getFreenetAddress().laxEquals(addr))
+					return true;
+			}
+			return false;
+		});
+		return pn;
+	}
+
+	private PeerNode peerNode(List<Peer> addresses) {
+		return this.peerNode(addresses, this.mangler);
+	}
+
+	public void testPutAndGet() throws UnknownHostException {
+		List<Peer> addresses = new ArrayList<Peer>(List.of(peer("10.0.0.1", 1000), peer("10.0.0.2", 2000)));
+		PeerNode pn = this.peerNode(addresses);
+		this.index.put(pn, addresses);
+		assertSame(pn, this.index.get(peer("10.0.0.1", 1000), null));
+		assertSame(pn, this.index.get(peer("10.0.0.2", 2000), this.mangler));
+		assertNull(this.index.get(peer("10.0.0.3", 1000), null));
+	}
+
+	public void testAddressChange() throws UnknownHostException {
+		List<Peer> addresses = new ArrayList<Peer>(List.of(peer("10.0.0.1", 1000)));
+		PeerNode pn = this.peerNode(addresses);
+		this.index.put(pn, addresses);
+		addresses.clear();
+		addresses.add(peer("10.0.0.2", 2000));
+		this.index.put(pn, addresses);
+		assertSame(pn, this.index.get(peer("10.0.0.2", 2000), null));
+		// Neither the old address nor the old IP is indexed any more.
+		assertNull(this.index.get(peer("10.0.0.1", 1000), null));
+		assertNull(this.index.get(peer("10.0.0.1", 1001), null));
+	}
+
+	public void testRemove() throws UnknownHostException {
+		List<Peer> addresses = List.of(peer("10.0.0.1", 1000));
+		PeerNode pn = this.peerNode(addresses);
+		PeerNode other = this.peerNode(List.of(peer("10.0.0.2", 1000)));
+		this.index.put(pn, addresses);
+		this.index.put(other, List.of(peer("10.0.0.2", 1000)));
+		this.index.remove(pn);
+		assertNull(this.index.get(peer("10.0.0.1", 1000), null));
+		assertSame(other, this.index.get(peer("10.0.0.2", 1000), null));
+		this.index.clear();
+		assertNull(this.index.get(peer("10.0.0.2", 1000), null));
+	}
+
+	public void testFallbackToIP() throws UnknownHostException {
+		List<Peer> addresses1 = List.of(peer("10.0.0.1", 1000));
+		List<Peer> addresses2 = List.of(peer("10.0.0.1", 2000));
+		PeerNode pn1 = this.peerNode(addresses1);
+		PeerNode pn2 = this.peerNode(addresses2);
+		this.index.put(pn1, addresses1);
+		this.index.put(pn2, addresses2);
+		// An exact match wins over a match on the IP alone.
+		assertSame(pn1, this.index.get(peer("10.0.0.1", 1000), null));
+		assertSame(pn2, this.index.get(peer("10.0.0.1", 2000), null));
+		// A new port on a known IP, e.g. after a NAT changed it.
+		PeerNode found = this.index.get(peer("10.0.0.1", 3000), null);
+		assertTrue(found == pn1 || found == pn2);
+		assertNull(this.index.get(peer("10.0.0.2", 1000), null));
+	}
+
+	public void testFilterByMangler() throws UnknownHostException {
+		OutgoingPacketMangler otherMangler = mock(OutgoingPacketMangler.class);
+		List<Peer> addresses = List.of(peer("10.0.0.1", 1000));
+		PeerNode pn1 = this.peerNode(addresses, this.mangler);
+		PeerNode pn2 = this.peerNode(addresses, otherMangler);
+		this.index.put(pn1, addresses);
+		this.index.put(pn2, addresses);
+		assertSame(pn1, this.index.get(peer("10.0.0.1", 1000), this.mangler));
+		assertSame(pn2, this.index.get(peer("10.0.0.1", 1000), otherMangler));
+		assertSame(pn2, this.index.get(peer("10.0.0.1", 3000), otherMangler));
+		assertNull(this.index.get(peer("10.0.0.1", 1000), mock(OutgoingPacketMangler.class)));
+	}
+
+	public void testDisabledPeerNotFound() throws UnknownHostException {
+		List<Peer> addresses = List.of(peer("10.0.0.1", 1000));
+		PeerNode pn = this.peerNode(addresses);
+		when(pn.isDisabled()).thenReturn(true);
+		this.index.put(pn, addresses);
+		assertNull(this.index.get(peer("10.0.0.1", 1000), null));
+	}
+
+}
@@ -0,0 +1,93 @@
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RoutingIndexTest extends TestCase {
+
+	private static RoutingIndex makeIndex(Random random, int peers, int degree) {
+		double[] own = new double[peers];
+		double[][] theirs = new double[peers][];
+		for (int i = 0; i < peers; i++) {
+			own[i] = random.nextDouble();
+			// Some peers don't tell us their peers.
+			if (i % 5 != 0) {
+				theirs[i] = new double[degree];
+				for (int j = 0; j < degree; j++)
+					theirs[i][j] = random.nextDouble();
+			}
+		}
+		return new RoutingIndex(null, own, theirs);
+	}
+
+	public void testWalkIsInOrderOfDistance() {
+		Random random = new Random(1234);
+		for (int peers : new int[] { 1, 2, 3, 40, 100 }) {
+			RoutingIndex index = makeIndex(random, peers, 10);
+			for (int i = 0; i < 50; i++) {
+				double target = random.nextDouble();
+				RoutingIndex.Walk walk = index.walk(target);
+				double[] seen = new double[index.size()];
+				int count = 0;
+				double last = 0.0;
+				while (walk.next()) {
+					double d = walk.distance();
+					assertTrue(d >= last);
+					last = d;
+					seen[count++] = walk.location();
+				}
+				assertEquals(index.size(), count);
+				walk.release();
+				// Every location exactly once.
+				double[] all = new double[count];
+				RoutingIndex.Walk again = index.walk(0.0);
+				for (int j = 0; again.next(); j++)
+					all[j] = again.location();
+				again.release();
+				Arrays.sort(seen);
+				Arrays.sort(all);
+				assertTrue(Arrays.equals(all, seen));
+			}
+		}
+	}
+
+	public void testNearestLocationOfEachPeer() {
+		Random random = new Random(5678);
+		double[] own = new double[20];
+		double[][] theirs = new double[20][];
+		for (int i = 0; i < own.length; i++) {
+			own[i] = random.nextDouble();
+			theirs[i] = new double[] { random.nextDouble(), random.nextDouble() };
+		}
+		RoutingIndex index = new RoutingIndex(null, own, theirs);
+		double target = 0.3;
+		RoutingIndex.Walk walk = index.walk(target);
+		int peersSeen = 0;
+		while (walk.next()) {
+			if (walk.markSeen())
+				continue;
+			peersSeen++;
+			int p = walk.owner();
+			double nearest = Math.min(Location.distance(own[p], target),
+					Math.min(Location.distance(theirs[p][0], target), Location.distance(theirs[p][1], target)));
+			assertEquals(nearest, walk.distance(), 0.0);
+			assertEquals(walk.location() != own[p], walk.isFOAF());
+		}
+		assertEquals(own.length, peersSeen);
+		walk.release();
+		// A new walk has seen nothing, even if it is the same one reused.
+		walk = index.walk(target);
+		assertTrue(walk.next());
+		assertFalse(walk.markSeen());
+		walk.release();
+	}
+
+	public void testInvalidLocationsAreNotIndexed() {
+		RoutingIndex index = new RoutingIndex(null, new double[] { -1.0, 0.5 }, new double[][] { { 0.1 }, null });
+		assertEquals(2, index.size());
+		assertFalse(new RoutingIndex(null, new double[0], new double[0][]).walk(0.5).next());
+	}
+
+}
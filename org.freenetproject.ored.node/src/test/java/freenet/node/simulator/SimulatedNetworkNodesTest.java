@@ -0,0 +1,79 @@
+package freenet.node.simulator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.io.comm.SimulatedNetwork;
+import freenet.node.Node;
+import freenet.node.NodeStarter;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.node.PeerNode;
+import freenet.support.Executor;
+import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+import freenet.support.io.FileUtil;
+import junit.framework.TestCase;
+
+/**
+ * Two real nodes connecting and talking through a {@link SimulatedNetwork}, with no
+ * sockets. NodeStarter can only be set up once per VM, so this is the only test here.
+ */
+public class SimulatedNetworkNodesTest extends TestCase {
+
+	private static final long CONNECT_TIMEOUT = 120000;
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.dir = Files.createTempDirectory("simulated-nodes").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(this.dir);
+	}
+
+	public void testNodesConnectAndPing() throws Exception {
+		DummyRandomSource random = new DummyRandomSource(1234);
+		NodeStarter.globalTestInit(this.dir, false, LogLevel.ERROR, "", true, random);
+		Executor executor = new PooledExecutor();
+		SimulatedNetwork network = SimulatedNetwork.realTime(executor, new Random(1234));
+		network.setDefaultLink(RealNodePingTest.LATENCY, 0.0, 0);
+		Node node1 = NodeStarter.createTestNode(this.params(5001, random, executor, network));
+		Node node2 = NodeStarter.createTestNode(this.params(5002, random, executor, network));
+		try {
+			node1.connect(node2, RealNodePingTest.trust, RealNodePingTest.visibility);
+			node2.connect(node1, RealNodePingTest.trust, RealNodePingTest.visibility);
+			node1.start(true);
+			node2.start(true);
+
+			PeerNode pn = node1.getPeerNodes()[0];
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			while (!pn.isConnected() || !node2.getPeerNodes()[0].isConnected()) {
+				assertTrue("Nodes did not connect", System.currentTimeMillis() < deadline);
+				Thread.sleep(100);
+			}
+			boolean pinged = false;
+			for (int i = 0; i < 5 && !pinged; i++)
+				pinged = pn.ping(i);
+			assertTrue(pinged);
+			// Everything went through the simulated network.
+			assertTrue(network.getDelivered() > 0);
+		}
+		finally {
+			node1.park();
+			node2.park();
+		}
+	}
+
+	private TestNodeParameters params(int port, DummyRandomSource random, Executor executor,
+			SimulatedNetwork network) {
+		TestNodeParameters params = RealNodePingTest.testNodeParameters(port, random, executor, network);
+		params.baseDirectory = this.dir;
+		return params;
+	}
+
+}
@@ -1,9 +1,16 @@
 package freenet.store.caching;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.BlockMetadata;
 import freenet.keys.KeyCollisionException;
@@ -12,6 +19,7 @@ import freenet.keys.StorableBlock;
 import freenet.store.FreenetStore;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StoreCallback;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.LRUMap;
 import freenet.storelogger.Logger;
@@ -22,6 +30,20 @@ import freenet.support.node.SemiOrderedShutdownHook;
 /**
  * CachingFreenetStore
  *
+ * Write-back cache in front of a FreenetStore. Every block in the write cache is dirty,
+ * so the tracker's size limit is the limit on dirty data. The cache is split into
+ * segments, each with its own lock, so a burst of puts doesn't hold up fetches for other
+ * keys. Blocks are written back in batches sorted by where they will go in the salted
+ * hash store, so the writes are roughly sequential.
+ *
+ * Optionally the cache is also appended to a spill log on disk, and the blocks in it are
+ * put back in the cache on startup, so recently written blocks are still in memory after
+ * a restart. Blocks which had already been written to the store go in a separate clean
+ * cache. They are never written back, so they are not flushed out after the tracker's
+ * period. The tracker counts them for all the stores which share it, and they are
+ * dropped, least recently reloaded first, when they and the dirty data would together
+ * exceed the tracker's limit.
+ *
  * @author Simon Vocella <voxsim@gmail.com>
  *
  */
@@ -29,31 +51,65 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 
 	private static volatile boolean logMINOR;
 
-	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+	/** Number of separately locked parts of the cache. Must be a power of 2. */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * Rewrite the spill log when it is more than this many times the size of the blocks
+	 * still in the cache.
+	 */
+	private static final int SPILL_LOG_SLACK = 2;
+
+	/** Don't rewrite the spill log until it is at least this many blocks long. */
+	private static final int SPILL_LOG_MIN_BLOCKS = 64;
+
+	private volatile boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
 
 	/***
 	 * True if close() has been called
 	 */
 	private AtomicBoolean closeCalled = new AtomicBoolean(false);
 
-	private final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	/** Chosen by routing key. Each one is locked on itself. */
+	private final LRUMap<ByteArrayWrapper, Block<T>>[] segments;
+
+	/**
+	 * Blocks reloaded from the spill log which are already in the underlying store.
+	 * Locked on itself.
+	 */
+	private final LRUMap<ByteArrayWrapper, Block<T>> cleanBlocks = LRUMap
+			.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+
+	private final AtomicInteger blockCount = new AtomicInteger();
+
+	/** Orders blocks across segments, so we can find the least recently pushed. */
+	private final AtomicLong nextSequence = new AtomicLong();
 
 	private final StoreCallback<T> callback;
 
 	private final boolean collisionPossible;
 
-	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
-
 	private final CachingFreenetStoreTracker tracker;
 
 	private final int sizeBlock;
 
+	/** The store at the bottom of the stack, if it tells us where blocks will go. */
+	private final SaltedHashFreenetStore<T> offsetStore;
+
+	/** Null if we are not keeping a spill log. */
+	private final SpillLog spillLog;
+
+	/** Set if we fail to write to the spill log, so we don't log an error for every put. */
+	private volatile boolean spillLogFailed;
+
 	static {
 		Logger.registerClass(CachingFreenetStore.class);
 	}
 
 	private final static class Block<T> {
 
+		ByteArrayWrapper key;
+
 		T block;
 
 		byte[] data;
@@ -64,18 +120,36 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 
 		boolean isOldBlock;
 
+		long sequence;
+
+		/** Only used while writing back. */
+		long offset;
+
 	}
 
 	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore,
 			CachingFreenetStoreTracker tracker) {
+		this(callback, backDatastore, tracker, null);
+	}
+
+	/**
+	 * @param spillLog If not null, log the cache to this file, and reload it on startup.
+	 */
+	@SuppressWarnings("unchecked")
+	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore,
+			CachingFreenetStoreTracker tracker, File spillLog) {
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.segments = (LRUMap<ByteArrayWrapper, Block<T>>[]) new LRUMap<?, ?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			this.segments[i] = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		this.tracker = tracker;
 		this.sizeBlock = callback.getTotalBlockSize();
+		this.offsetStore = findSaltedHashStore(backDatastore);
+		this.spillLog = spillLog == null ? null : new SpillLog(spillLog);
 
 		callback.setStore(this);
 		shutdownHook.addEarlyJob(new NativeThread("Close CachingFreenetStore", NativeThread.HIGH_PRIORITY, true) {
@@ -86,20 +160,31 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		});
 	}
 
+	@SuppressWarnings("unchecked")
+	private static <T extends StorableBlock> SaltedHashFreenetStore<T> findSaltedHashStore(FreenetStore<T> store) {
+		while (store != null) {
+			if (store instanceof SaltedHashFreenetStore)
+				return (SaltedHashFreenetStore<T>) store;
+			FreenetStore<T> underlying = store.getUnderlyingStore();
+			if (underlying == store)
+				return null;
+			store = underlying;
+		}
+		return null;
+	}
+
+	private LRUMap<ByteArrayWrapper, Block<T>> segmentFor(ByteArrayWrapper key) {
+		return segments[key.hashCode() & (SEGMENTS - 1)];
+	}
+
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
 			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 
-		Block<T> block = null;
-
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		}
-		finally {
-			configLock.readLock().unlock();
-		}
+		Block<T> block = segmentFor(key).get(key);
+		if (block == null)
+			block = cleanBlocks.get(key);
 
 		if (block != null) {
 			try {
@@ -118,17 +203,9 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block<T> block = null;
+		Block<T> block = segmentFor(key).get(key);
 
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		}
-		finally {
-			configLock.readLock().unlock();
-		}
-
-		return block != null || backDatastore.probablyInStore(routingKey);
+		return block != null || cleanBlocks.containsKey(key) || backDatastore.probablyInStore(routingKey);
 	}
 
 	@Override
@@ -138,6 +215,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
 
 		Block<T> storeBlock = new Block<T>();
+		storeBlock.key = key;
 		storeBlock.block = block;
 		storeBlock.data = data;
 		storeBlock.header = header;
@@ -145,41 +223,46 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		storeBlock.isOldBlock = isOldBlock;
 
 		boolean cacheIt = true;
+		boolean added = false;
 
 		// Case cache it
-		configLock.writeLock().lock();
-
-		try {
+		LRUMap<ByteArrayWrapper, Block<T>> segment = segmentFor(key);
+		synchronized (segment) {
+			// Any clean copy is in the underlying store too, so collisions are still checked.
+			if (cleanBlocks.removeKey(key))
+				tracker.removeClean(sizeBlock);
 			if (!shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
+				Block<T> previousBlock = segment.get(key);
 
 				if (!collisionPossible || overwrite) {
 					if (previousBlock == null) {
 						cacheIt = tracker.add(sizeBlock);
+						added = cacheIt;
 					}
 
 					if (cacheIt) {
-						blocksByRoutingKey.push(key, storeBlock);
+						push(segment, storeBlock, previousBlock == null);
 					}
 				}
 				else {
-					// Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
+					// Case cache it but is it in the segment? If so, throw a KCE
 					if (previousBlock != null) {
 						if (block.equals(previousBlock.block))
 							return;
 						throw new KeyCollisionException();
 					}
 
-					// Is probablyInStore()? If so, remove it from blocksByRoutingKey, and
+					// Is probablyInStore()? If so, remove it from the segment, and
 					// set a flag so we don't call put()
 					if (backDatastore.probablyInStore(routingKey)) {
 						cacheIt = false;
 					}
 					else {
 						cacheIt = tracker.add(sizeBlock);
+						added = cacheIt;
 
 						if (cacheIt) {
-							blocksByRoutingKey.push(key, storeBlock);
+							push(segment, storeBlock, true);
 						}
 					}
 				}
@@ -188,15 +271,44 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 				cacheIt = false;
 			}
 		}
-		finally {
-			configLock.writeLock().unlock();
-		}
 
 		// Case don't cache it
 		if (!cacheIt) {
 			backDatastore.put(block, data, header, overwrite, isOldBlock);
 			return;
 		}
+		if (added)
+			tracker.trimCleanBlocks();
+
+		if (spillLog != null && !spillLogFailed) {
+			try {
+				spillLog.append(routingKey, block.getFullKey(), header, data, overwrite, isOldBlock);
+			}
+			catch (IOException e) {
+				spillLogFailed = true;
+				Logger.error(this, "Unable to write to spill log " + spillLog + ", not logging any more blocks: " + e,
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Drop the least recently reloaded clean block, to make room.
+	 * @return False if there are none.
+	 */
+	boolean dropCleanBlock() {
+		if (cleanBlocks.popValue() == null)
+			return false;
+		tracker.removeClean(sizeBlock);
+		return true;
+	}
+
+	/** Caller must hold the segment's lock. */
+	private void push(LRUMap<ByteArrayWrapper, Block<T>> segment, Block<T> block, boolean isNew) {
+		block.sequence = nextSequence.getAndIncrement();
+		segment.push(block.key, block);
+		if (isNew)
+			blockCount.incrementAndGet();
 	}
 
 	/**
@@ -207,19 +319,63 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	 */
 	long pushLeastRecentlyBlock() {
 		Block<T> block = null;
-		ByteArrayWrapper key = null;
 
-		configLock.writeLock().lock();
-		try {
-			block = blocksByRoutingKey.peekValue();
-			if (block == null)
+		while (block == null) {
+			LRUMap<ByteArrayWrapper, Block<T>> oldest = null;
+			long oldestSequence = Long.MAX_VALUE;
+			for (LRUMap<ByteArrayWrapper, Block<T>> segment : segments) {
+				Block<T> b = segment.peekValue();
+				if (b != null && b.sequence < oldestSequence) {
+					oldest = segment;
+					oldestSequence = b.sequence;
+				}
+			}
+			if (oldest == null)
 				return -1;
-			key = blocksByRoutingKey.peekKey();
+			// May have been removed or replaced since, in which case try again.
+			block = oldest.peekValue();
+		}
+
+		write(block);
+		return removeIfUnchanged(block);
+	}
+
+	/**
+	 * Write up to about maxBlocks blocks to disk, sorted by where they will go in the
+	 * underlying store, taking the least recently pushed from each segment.
+	 * @return The number of bytes written to disk and removed from the cache, which may be
+	 * 0 if the blocks changed while we were writing them, or -1 if the cache is empty.
+	 */
+	long pushBlocks(int maxBlocks) {
+		int perSegment = Math.max(1, maxBlocks / SEGMENTS);
+		List<Block<T>> batch = new ArrayList<Block<T>>(perSegment * SEGMENTS);
+		for (LRUMap<ByteArrayWrapper, Block<T>> segment : segments) {
+			synchronized (segment) {
+				Enumeration<Block<T>> values = segment.values();
+				for (int i = 0; i < perSegment && values.hasMoreElements(); i++)
+					batch.add(values.nextElement());
+			}
+		}
+		if (batch.isEmpty())
+			return -1;
+
+		if (offsetStore != null) {
+			// Digesting the key is the expensive part, do it outside the lock.
+			for (Block<T> block : batch)
+				block.offset = offsetStore.getWriteOffsetHint(block.key.get());
+			batch.sort(Comparator.comparingLong((Block<T> block) -> block.offset));
 		}
-		finally {
-			configLock.writeLock().unlock();
+
+		long written = 0;
+		for (Block<T> block : batch) {
+			write(block);
+			written += removeIfUnchanged(block);
 		}
+		maybeRewriteSpillLog();
+		return written;
+	}
 
+	private void write(Block<T> block) {
 		try {
 			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
 		}
@@ -230,30 +386,170 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			if (logMINOR)
 				Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: " + e, e);
 		}
+	}
 
-		configLock.writeLock().lock();
-		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
+	/**
+	 * Remove a block we have just written, and record in the spill log that it has been
+	 * written.
+	 * @return The block size if we removed it, or 0 if it has changed since we wrote it.
+	 */
+	private long removeIfUnchanged(Block<T> block) {
+		boolean removed = false;
+		LRUMap<ByteArrayWrapper, Block<T>> segment = segmentFor(block.key);
+		synchronized (segment) {
+			Block<T> currentVersionOfBlock = segment.get(block.key);
 
 			/**
 			 * it might have changed if there was a put() with overwrite=true. If it has
 			 * changed, return 0 , i.e. don't remove it
 			 */
 			if (currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if (blocksByRoutingKey.removeKey(key))
-					return sizeBlock;
+				if (segment.removeKey(block.key)) {
+					blockCount.decrementAndGet();
+					removed = true;
+				}
 			}
 		}
-		finally {
-			configLock.writeLock().unlock();
+		if (!removed)
+			return 0;
+		if (spillLog != null && !spillLogFailed) {
+			// A put() for the same key between the removal and here would wrongly be
+			// marked clean. That only matters if we then crash, and the log may lose
+			// recent blocks on a crash anyway.
+			try {
+				spillLog.appendWritten(block.key.get());
+			}
+			catch (IOException e) {
+				spillLogFailed = true;
+				Logger.error(this, "Unable to write to spill log " + spillLog + ", not logging any more blocks: " + e,
+						e);
+			}
 		}
-		return 0;
+		return sizeBlock;
 	}
 
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		tracker.registerCachingFS(this);
-		return this.backDatastore.start(ticker, longStart);
+		boolean ret = this.backDatastore.start(ticker, longStart);
+		if (spillLog != null)
+			reloadSpillLog();
+		return ret;
+	}
+
+	/**
+	 * Put the blocks in the spill log back in the cache. Blocks which were not written to
+	 * the underlying store before we stopped go back in the write cache, with the flags
+	 * they were originally put with, so the underlying store still checks for collisions
+	 * when they are written back. Those which were, e.g. all of them after a clean
+	 * shutdown, go in the clean cache, to be read but not written again. Then compact the
+	 * log and start appending to it.
+	 */
+	private void reloadSpillLog() {
+		List<SpillLog.Record> records = spillLog.read();
+		// Only the last record for each key matters.
+		Map<ByteArrayWrapper, SpillLog.Record> latest = new LinkedHashMap<ByteArrayWrapper, SpillLog.Record>();
+		for (SpillLog.Record record : records) {
+			ByteArrayWrapper key = new ByteArrayWrapper(record.routingKey);
+			latest.remove(key);
+			latest.put(key, record);
+		}
+		int reloaded = 0;
+		for (Map.Entry<ByteArrayWrapper, SpillLog.Record> entry : latest.entrySet()) {
+			SpillLog.Record record = entry.getValue();
+			T block;
+			try {
+				block = callback.construct(record.data, record.header, record.routingKey, record.fullKey, true, true,
+						null, null);
+			}
+			catch (KeyVerifyException e) {
+				// E.g. an SSK whose pubkey we no longer have.
+				if (logMINOR)
+					Logger.minor(this, "Dropping block from spill log: " + e, e);
+				continue;
+			}
+			Block<T> storeBlock = new Block<T>();
+			storeBlock.key = entry.getKey();
+			storeBlock.block = block;
+			storeBlock.data = record.data;
+			storeBlock.header = record.header;
+			storeBlock.overwrite = record.overwrite;
+			storeBlock.isOldBlock = record.isOldBlock;
+			boolean cached;
+			LRUMap<ByteArrayWrapper, Block<T>> segment = segmentFor(storeBlock.key);
+			synchronized (segment) {
+				// A block put since we started is newer.
+				if (segment.containsKey(storeBlock.key))
+					continue;
+				if (record.clean) {
+					if (cleanBlocks.push(storeBlock.key, storeBlock) == null)
+						tracker.addClean(sizeBlock);
+					reloaded++;
+					continue;
+				}
+				cached = !shuttingDown && tracker.add(sizeBlock);
+				if (cached)
+					push(segment, storeBlock, true);
+			}
+			if (cached)
+				reloaded++;
+			else
+				write(storeBlock);
+		}
+		tracker.trimCleanBlocks();
+		Logger.normal(this, "Reloaded " + reloaded + " of " + latest.size() + " blocks (" + cleanBlocks.size()
+				+ " clean) from spill log " + spillLog);
+		rewriteSpillLog();
+	}
+
+	/** Compact the spill log if it is much bigger than what is in the cache. */
+	private void maybeRewriteSpillLog() {
+		if (spillLog == null || shuttingDown)
+			return;
+		long needed = (long) (blockCount.get() + cleanBlocks.size()) * sizeBlock;
+		if (spillLog.length() > SPILL_LOG_SLACK * needed + (long) SPILL_LOG_MIN_BLOCKS * sizeBlock)
+			rewriteSpillLog();
+	}
+
+	/**
+	 * Replace the spill log with what is in the cache now, the clean cache first, then the
+	 * write cache least recently pushed first. Holds the log's lock while taking the
+	 * snapshot, so a put can't append to the old log after we have copied the cache but
+	 * before we have replaced it.
+	 */
+	private void rewriteSpillLog() {
+		synchronized (spillLog) {
+			List<SpillLog.Record> records = new ArrayList<SpillLog.Record>(blockCount.get() + cleanBlocks.size());
+			synchronized (cleanBlocks) {
+				Enumeration<Block<T>> values = cleanBlocks.values();
+				while (values.hasMoreElements())
+					records.add(toRecord(values.nextElement(), true));
+			}
+			List<Block<T>> blocks = new ArrayList<Block<T>>(blockCount.get());
+			for (LRUMap<ByteArrayWrapper, Block<T>> segment : segments) {
+				synchronized (segment) {
+					Enumeration<Block<T>> values = segment.values();
+					while (values.hasMoreElements())
+						blocks.add(values.nextElement());
+				}
+			}
+			blocks.sort(Comparator.comparingLong((Block<T> block) -> block.sequence));
+			for (Block<T> block : blocks)
+				records.add(toRecord(block, false));
+			try {
+				spillLog.rewrite(records);
+				spillLogFailed = false;
+			}
+			catch (IOException e) {
+				spillLogFailed = true;
+				Logger.error(this, "Unable to rewrite spill log " + spillLog + ": " + e, e);
+			}
+		}
+	}
+
+	private SpillLog.Record toRecord(Block<T> block, boolean clean) {
+		return new SpillLog.Record(block.key.get(), block.block.getFullKey(), block.header, block.data,
+				block.overwrite, block.isOldBlock, clean);
 	}
 
 	@Override
@@ -264,29 +560,40 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		}
 	}
 
-	/** Close this store but not the underlying store. */
-	private void innerClose() {
-		configLock.writeLock().lock();
-		try {
-			shuttingDown = true;
-			tracker.unregisterCachingFS(this);
+	/**
+	 * Close this store but not the underlying store. Synchronized so that if it is called
+	 * again, e.g. by both the shutdown hook and close(), the second call waits until
+	 * everything has been written.
+	 */
+	private synchronized void innerClose() {
+		if (shuttingDown)
+			return;
+		// Save the cache for next time before we write it all back and empty it. Writing
+		// each block back is logged too, so next time they are reloaded clean.
+		if (spillLog != null)
+			rewriteSpillLog();
+		shuttingDown = true;
+		// Wait for any put()s that didn't see the flag.
+		for (LRUMap<ByteArrayWrapper, Block<T>> segment : segments) {
+			synchronized (segment) {
+				// Nothing.
+			}
 		}
-		finally {
-			configLock.writeLock().unlock();
+		tracker.unregisterCachingFS(this);
+		while (dropCleanBlock()) {
+			// Nothing.
 		}
+		if (spillLog != null)
+			spillLog.close();
 	}
 
-	/** Only for unit tests */
+	/** Only for unit tests. Ignores the clean cache. */
 	boolean isEmpty() {
-		boolean isEmpty;
-		configLock.readLock().lock();
-		try {
-			isEmpty = this.blocksByRoutingKey.isEmpty();
-		}
-		finally {
-			configLock.readLock().unlock();
+		for (LRUMap<ByteArrayWrapper, Block<T>> segment : segments) {
+			if (!segment.isEmpty())
+				return false;
 		}
-		return isEmpty;
+		return true;
 	}
 
 }
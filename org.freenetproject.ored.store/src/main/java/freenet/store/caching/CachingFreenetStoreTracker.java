@@ -19,10 +19,11 @@ public class CachingFreenetStoreTracker {
 	private static volatile boolean logMINOR;
 
 	/**
-	 * Number of keys that it's pushed to the *underlying* store in the add function.
+	 * Number of keys that are pushed to the *underlying* store at once from each caching
+	 * store. They are sorted by offset, so bigger batches mean more sequential writes.
 	 * FIXME make this configurable???
 	 */
-	private static int numberOfKeysToWrite = 20;
+	private static int numberOfKeysToWrite = 64;
 
 	/** Lower threshold, when it will start a write job, but still accept the data. */
 	private static double lowerThreshold = 0.9;
@@ -51,6 +52,12 @@ public class CachingFreenetStoreTracker {
 
 	private long size;
 
+	/**
+	 * Bytes of clean blocks, reloaded from spill logs, held by all the caching stores.
+	 * They count towards the limit, but are dropped rather than written to make room.
+	 */
+	private long cleanSize;
+
 	static {
 		Logger.registerClass(CachingFreenetStore.class);
 	}
@@ -79,7 +86,7 @@ public class CachingFreenetStoreTracker {
 	public void unregisterCachingFS(CachingFreenetStore<?> fs) {
 		long sizeBlock = 0;
 		while (true) {
-			sizeBlock = fs.pushLeastRecentlyBlock();
+			sizeBlock = fs.pushBlocks(numberOfKeysToWrite);
 			synchronized (this) {
 				if (sizeBlock == -1)
 					break;
@@ -178,27 +185,67 @@ public class CachingFreenetStoreTracker {
 				cachingStoresSnapshot = this.cachingStores.toArray(new CachingFreenetStore<?>[cachingStores.size()]);
 			}
 			for (CachingFreenetStore<?> cfs : cachingStoresSnapshot) {
-				int k = 0;
-				while (k < numberOfKeysToWrite) {
-					long sizeBlock = cfs.pushLeastRecentlyBlock();
-					if (sizeBlock == -1)
-						break;
-					synchronized (this) {
-						size -= sizeBlock;
-						assert (size >= 0); // Break immediately if in unit testing.
-						if (size < 0) {
-							Logger.error(this, "Cache broken: Size = " + size);
-							size = 0;
-						}
-						if (size == 0)
-							return;
+				long sizeBlock = cfs.pushBlocks(numberOfKeysToWrite);
+				if (sizeBlock == -1)
+					continue;
+				synchronized (this) {
+					size -= sizeBlock;
+					assert (size >= 0); // Break immediately if in unit testing.
+					if (size < 0) {
+						Logger.error(this, "Cache broken: Size = " + size);
+						size = 0;
 					}
-					k++;
+					if (size == 0)
+						return;
 				}
 			}
 		}
 	}
 
+	/** @return The limit on dirty data, in bytes. */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/** A caching store has taken a clean block. */
+	synchronized void addClean(long sizeBlock) {
+		cleanSize += sizeBlock;
+	}
+
+	/** A caching store has dropped a clean block. */
+	synchronized void removeClean(long sizeBlock) {
+		cleanSize -= sizeBlock;
+		assert (cleanSize >= 0);
+	}
+
+	private synchronized boolean overLimit() {
+		return size + cleanSize > maxSize;
+	}
+
+	/**
+	 * Drop clean blocks, from any of the caching stores, until they and the dirty data
+	 * together fit within the limit.
+	 */
+	void trimCleanBlocks() {
+		if (!overLimit())
+			return;
+		CachingFreenetStore<?>[] cachingStoresSnapshot;
+		synchronized (cachingStores) {
+			cachingStoresSnapshot = this.cachingStores.toArray(new CachingFreenetStore<?>[cachingStores.size()]);
+		}
+		for (CachingFreenetStore<?> cfs : cachingStoresSnapshot) {
+			while (overLimit()) {
+				if (!cfs.dropCleanBlock())
+					break;
+			}
+		}
+	}
+
+	/** @return The size of the clean blocks held by all the caching stores, in bytes. */
+	public synchronized long getSizeOfCleanBlocks() {
+		return cleanSize;
+	}
+
 	public long getSizeOfCache() {
 		long sizeReturned;
 		synchronized (this) {
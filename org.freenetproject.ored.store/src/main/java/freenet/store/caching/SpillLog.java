@@ -0,0 +1,299 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.caching;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import freenet.storelogger.Logger;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.io.FileUtil;
+
+/**
+ * Append-only log of the blocks in a CachingFreenetStore, so they can be put back in the
+ * cache after a restart. Each record has a checksum, and reading stops at the first bad
+ * record, so a log torn by a crash loses only its tail.
+ *
+ * Appends are buffered and only flushed when the log is rewritten or closed, so this is
+ * for warm starts, not for durability: after a crash we may lose the last few blocks
+ * written, just as we would without the log.
+ *
+ * When a block has been written to the underlying store, a short record saying so is
+ * appended, so that when the log is read the block is marked clean and is not written
+ * again.
+ *
+ * The log is not encrypted: it holds the plain routing keys, which are needed to put the
+ * blocks back, so it shows which keys the store has.
+ */
+final class SpillLog {
+
+	private static final long MAGIC = 0x2a9e5b83f1c74d06L;
+
+	private static final int VERSION = 1;
+
+	/** Bigger than any block, so a corrupt length doesn't make us allocate gigabytes. */
+	private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+	private static final int FLAG_OVERWRITE = 1;
+
+	private static final int FLAG_OLD_BLOCK = 2;
+
+	/** The block is already in the underlying store. */
+	private static final int FLAG_CLEAN = 4;
+
+	/**
+	 * Not a block: the last block logged with this routing key has been written to the
+	 * underlying store.
+	 */
+	private static final int FLAG_WRITTEN = 8;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final File file;
+
+	/** Null until opened. Protected by (this). */
+	private DataOutputStream out;
+
+	/** Protected by (this). */
+	private long length;
+
+	/** A block as it was logged. */
+	static final class Record {
+
+		final byte[] routingKey;
+
+		final byte[] fullKey;
+
+		final byte[] header;
+
+		final byte[] data;
+
+		final boolean overwrite;
+
+		final boolean isOldBlock;
+
+		/** True if the block is already in the underlying store. */
+		final boolean clean;
+
+		Record(byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean overwrite,
+				boolean isOldBlock) {
+			this(routingKey, fullKey, header, data, overwrite, isOldBlock, false);
+		}
+
+		Record(byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean overwrite, boolean isOldBlock,
+				boolean clean) {
+			this.routingKey = routingKey;
+			this.fullKey = fullKey;
+			this.header = header;
+			this.data = data;
+			this.overwrite = overwrite;
+			this.isOldBlock = isOldBlock;
+			this.clean = clean;
+		}
+
+		Record markClean() {
+			return new Record(routingKey, fullKey, header, data, overwrite, isOldBlock, true);
+		}
+
+	}
+
+	SpillLog(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read every good block in the log, oldest first, with blocks that were written to the
+	 * underlying store afterwards marked clean. Returns an empty list if there is no log,
+	 * or it isn't one of ours.
+	 */
+	synchronized List<Record> read() {
+		List<Record> records = new ArrayList<Record>();
+		// Index of the last block logged for each routing key.
+		Map<ByteArrayWrapper, Integer> lastIndex = new HashMap<ByteArrayWrapper, Integer>();
+		if (!file.exists())
+			return records;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (dis.readLong() != MAGIC || dis.readInt() != VERSION) {
+				Logger.error(this, "Not a spill log, ignoring: " + file);
+				return records;
+			}
+			while (true) {
+				int recordLength;
+				try {
+					recordLength = dis.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				if (recordLength <= 0 || recordLength > MAX_RECORD_LENGTH) {
+					Logger.error(this, "Bad record length " + recordLength + " in " + file + ", truncating");
+					break;
+				}
+				byte[] buf = new byte[recordLength];
+				dis.readFully(buf);
+				int checksum = dis.readInt();
+				CRC32 crc = new CRC32();
+				crc.update(buf);
+				if ((int) crc.getValue() != checksum) {
+					Logger.error(this, "Bad checksum in " + file + ", truncating");
+					break;
+				}
+				DataInputStream rec = new DataInputStream(new ByteArrayInputStream(buf));
+				int flags = rec.readUnsignedByte();
+				byte[] routingKey = readBytes(rec);
+				ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+				if ((flags & FLAG_WRITTEN) != 0) {
+					Integer index = lastIndex.get(key);
+					if (index != null)
+						records.set(index, records.get(index).markClean());
+				}
+				else {
+					lastIndex.put(key, records.size());
+					records.add(decode(flags, routingKey, rec));
+				}
+			}
+		}
+		catch (EOFException e) {
+			Logger.normal(this, "Spill log " + file + " ends in a partial record, probably crashed while writing");
+		}
+		catch (IOException e) {
+			Logger.error(this, "Unable to read spill log " + file + ": " + e, e);
+		}
+		return records;
+	}
+
+	/** Add a block to the end of the log. */
+	synchronized void append(byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean overwrite,
+			boolean isOldBlock) throws IOException {
+		if (out == null)
+			throw new IOException("Spill log not open");
+		length += write(out, new Record(routingKey, fullKey, header, data, overwrite, isOldBlock));
+	}
+
+	/**
+	 * Record that the last block appended with this routing key has been written to the
+	 * underlying store.
+	 */
+	synchronized void appendWritten(byte[] routingKey) throws IOException {
+		if (out == null)
+			throw new IOException("Spill log not open");
+		length += write(out, FLAG_WRITTEN, routingKey, EMPTY, EMPTY, EMPTY);
+	}
+
+	/**
+	 * Replace the log with the given records, and open it for appending. Writes to a
+	 * temporary file first, so if we crash we still have the old log.
+	 */
+	synchronized void rewrite(List<Record> records) throws IOException {
+		closeOutput();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		long written;
+		try {
+			dos.writeLong(MAGIC);
+			dos.writeInt(VERSION);
+			written = 12;
+			for (Record record : records)
+				written += write(dos, record);
+			dos.flush();
+		}
+		finally {
+			dos.close();
+		}
+		if (!FileUtil.renameTo(tmp, file))
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		length = written;
+	}
+
+	/** Bytes in the log, including anything still buffered. */
+	synchronized long length() {
+		return length;
+	}
+
+	synchronized void close() {
+		closeOutput();
+	}
+
+	private void closeOutput() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			Logger.error(this, "Unable to close spill log " + file + ": " + e, e);
+		}
+		out = null;
+	}
+
+	/** @return The number of bytes written. */
+	private static int write(DataOutputStream dos, Record record) throws IOException {
+		int flags = (record.overwrite ? FLAG_OVERWRITE : 0) | (record.isOldBlock ? FLAG_OLD_BLOCK : 0)
+				| (record.clean ? FLAG_CLEAN : 0);
+		return write(dos, flags, record.routingKey, record.fullKey, record.header, record.data);
+	}
+
+	private static int write(DataOutputStream dos, int flags, byte[] routingKey, byte[] fullKey, byte[] header,
+			byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(
+				header.length + data.length + routingKey.length + fullKey.length + 32);
+		DataOutputStream rec = new DataOutputStream(baos);
+		rec.writeByte(flags);
+		writeBytes(rec, routingKey);
+		writeBytes(rec, fullKey);
+		writeBytes(rec, header);
+		writeBytes(rec, data);
+		byte[] buf = baos.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(buf);
+		dos.writeInt(buf.length);
+		dos.write(buf);
+		dos.writeInt((int) crc.getValue());
+		return buf.length + 8;
+	}
+
+	private static void writeBytes(DataOutputStream dos, byte[] buf) throws IOException {
+		dos.writeInt(buf.length);
+		dos.write(buf);
+	}
+
+	/** Decode the rest of a block record, after the flags and routing key. */
+	private static Record decode(int flags, byte[] routingKey, DataInputStream dis) throws IOException {
+		byte[] fullKey = readBytes(dis);
+		byte[] header = readBytes(dis);
+		byte[] data = readBytes(dis);
+		return new Record(routingKey, fullKey, header, data, (flags & FLAG_OVERWRITE) != 0,
+				(flags & FLAG_OLD_BLOCK) != 0, (flags & FLAG_CLEAN) != 0);
+	}
+
+	private static byte[] readBytes(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length < 0 || length > MAX_RECORD_LENGTH)
+			throw new IOException("Bad field length " + length);
+		byte[] buf = new byte[length];
+		dis.readFully(buf);
+		return buf;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ":" + file;
+	}
+
+}
@@ -18,20 +18,34 @@ import freenet.support.Logger.LogLevel;
  *
  * Handle locking/unlocking of individual offsets.
  *
+ * Offsets are spread over a fixed number of stripes, each with its own lock and map of
+ * locked offsets, so threads locking different slots rarely touch the same lock, and
+ * never wait for each other.
+ *
  * @author sdiz
  */
 public class LockManager {
 
 	private static boolean logDEBUG;
 
-	private volatile boolean shutdown;
+	/** Must be a power of two. */
+	private static final int STRIPES = 64;
 
-	private Lock entryLock = new ReentrantLock();
+	private volatile boolean shutdown;
 
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe stripe(long offset) {
+		// Adjacent offsets go to different stripes, as the cleaner locks ranges.
+		long h = offset * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 58) & (STRIPES - 1)];
 	}
 
 	/**
@@ -44,26 +58,27 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
+		Stripe stripe = stripe(offset);
 		Condition condition;
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
 				do {
 					if (shutdown)
 						return null;
 
-					Condition lockCond = lockMap.get(offset);
+					Condition lockCond = stripe.lockMap.get(offset);
 					if (lockCond != null)
 						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
 					else
 						break;
 				}
 				while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				condition = stripe.lock.newCondition();
+				stripe.lockMap.put(offset, condition);
 			}
 			finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		}
 		catch (InterruptedException e) {
@@ -83,14 +98,15 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripe(offset);
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
+			Condition cond = stripe.lockMap.remove(offset);
 			assert cond == condition;
 			cond.signal();
 		}
 		finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
@@ -99,16 +115,26 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (!stripe.lockMap.isEmpty()) {
+					Condition cond = stripe.lockMap.values().iterator().next();
+					cond.awaitUninterruptibly();
+				}
+			}
+			finally {
+				stripe.lock.unlock();
 			}
 		}
-		finally {
-			entryLock.unlock();
-		}
+	}
+
+	private static final class Stripe {
+
+		final Lock lock = new ReentrantLock();
+
+		final Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+
 	}
 
 }
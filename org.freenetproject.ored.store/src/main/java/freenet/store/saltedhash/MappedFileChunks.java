@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A file memory-mapped in fixed-size chunks, so it can be accessed beyond the 2GB limit
+ * of a single mapping, and grown by mapping more chunks rather than remapping the whole
+ * file.
+ *
+ * There is no way to unmap a file, so the mapping never shrinks. The caller must not
+ * truncate the file below {@link #mappedLength()} while it is open: touching a page
+ * beyond the end of the file would crash the JVM.
+ *
+ * Reads and writes use absolute positions and don't change any buffer state, so they are
+ * thread-safe as long as callers don't access the same bytes concurrently. Ints are
+ * little-endian, like Fields.intToBytes().
+ */
+final class MappedFileChunks {
+
+	/** 64MB chunks. */
+	static final int DEFAULT_CHUNK_SHIFT = 26;
+
+	private final FileChannel channel;
+
+	private final int chunkShift;
+
+	private final int chunkSize;
+
+	/** Replaced, never modified, when we map more of the file. */
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+	/** Protected by (this). */
+	private long mappedLength;
+
+	/**
+	 * @param channel The file to map. Must be open for reading and writing.
+	 * @param chunkShift log2 of the chunk size. Must be at least 2 so ints don't straddle
+	 * chunks.
+	 */
+	MappedFileChunks(FileChannel channel, int chunkShift) {
+		if (chunkShift < 2 || chunkShift > 30)
+			throw new IllegalArgumentException("Bad chunk shift " + chunkShift);
+		this.channel = channel;
+		this.chunkShift = chunkShift;
+		this.chunkSize = 1 << chunkShift;
+	}
+
+	/**
+	 * Map the file up to at least the given length, extending the file if it is shorter.
+	 * Does nothing if that much is already mapped.
+	 */
+	synchronized void map(long length) throws IOException {
+		if (length <= mappedLength)
+			return;
+		MappedByteBuffer[] old = chunks;
+		int count = (int) ((length + chunkSize - 1) >>> chunkShift);
+		MappedByteBuffer[] mapped = Arrays.copyOf(old, count);
+		int first = old.length;
+		// The old last chunk may be partial. Replace it, the old mapping stays valid until
+		// it is garbage collected, and both see the same pages.
+		if (first > 0 && old[first - 1].capacity() < chunkSize)
+			first--;
+		for (int i = first; i < count; i++) {
+			long start = ((long) i) << chunkShift;
+			long size = Math.min(chunkSize, length - start);
+			MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			chunk.order(ByteOrder.LITTLE_ENDIAN);
+			mapped[i] = chunk;
+		}
+		chunks = mapped;
+		mappedLength = length;
+	}
+
+	synchronized long mappedLength() {
+		return mappedLength;
+	}
+
+	int getInt(long pos) {
+		return chunks[(int) (pos >>> chunkShift)].getInt((int) (pos & (chunkSize - 1)));
+	}
+
+	void putInt(long pos, int value) {
+		chunks[(int) (pos >>> chunkShift)].putInt((int) (pos & (chunkSize - 1)), value);
+	}
+
+	/**
+	 * Read dst.remaining() bytes starting at pos, or up to the end of the mapping if that
+	 * comes first. Advances dst's position.
+	 * @return The number of bytes read.
+	 */
+	int read(long pos, ByteBuffer dst) {
+		MappedByteBuffer[] chunks = this.chunks;
+		int read = 0;
+		while (dst.hasRemaining()) {
+			int index = (int) (pos >>> chunkShift);
+			if (index >= chunks.length)
+				break;
+			MappedByteBuffer chunk = chunks[index];
+			int offset = (int) (pos & (chunkSize - 1));
+			int length = Math.min(dst.remaining(), chunk.capacity() - offset);
+			if (length <= 0)
+				break;
+			dst.put(dst.position(), chunk, offset, length);
+			dst.position(dst.position() + length);
+			pos += length;
+			read += length;
+		}
+		return read;
+	}
+
+	/**
+	 * Read exactly dst.remaining() bytes starting at pos.
+	 * @throws EOFException If that goes past the end of the mapping.
+	 */
+	void readFully(long pos, ByteBuffer dst) throws EOFException {
+		int wanted = dst.remaining();
+		if (read(pos, dst) != wanted)
+			throw new EOFException();
+	}
+
+	/**
+	 * Write all of src starting at pos. Advances src's position.
+	 * @throws EOFException If that goes past the end of the mapping. Part of the data may
+	 * have been written.
+	 */
+	void write(long pos, ByteBuffer src) throws EOFException {
+		MappedByteBuffer[] chunks = this.chunks;
+		while (src.hasRemaining()) {
+			int index = (int) (pos >>> chunkShift);
+			if (index >= chunks.length)
+				throw new EOFException();
+			MappedByteBuffer chunk = chunks[index];
+			int offset = (int) (pos & (chunkSize - 1));
+			int length = Math.min(src.remaining(), chunk.capacity() - offset);
+			if (length <= 0)
+				throw new EOFException();
+			chunk.put(offset, src, src.position(), length);
+			src.position(src.position() + length);
+			pos += length;
+		}
+	}
+
+	/** Write any changes back to disk. */
+	void force() {
+		for (MappedByteBuffer chunk : chunks)
+			chunk.force();
+	}
+
+}
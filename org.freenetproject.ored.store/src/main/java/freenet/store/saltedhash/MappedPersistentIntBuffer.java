@@ -0,0 +1,173 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import freenet.storelogger.Logger;
+import freenet.support.Ticker;
+
+/**
+ * A PersistentIntBuffer which is memory-mapped rather than kept on the heap, for very
+ * large stores. The file format is the same as ResizablePersistentIntBuffer's, so a store
+ * can be switched between the two.
+ *
+ * Every put goes straight to the page cache, and the operating system writes it back
+ * when it likes, so there is no periodic rewrite of the whole file, and the persistence
+ * time is ignored: we never lose more than a power cut would lose anyway. Growing maps
+ * more chunks; shrinking only takes effect on disk the next time the file is opened,
+ * since we can't unmap the tail.
+ */
+public class MappedPersistentIntBuffer implements PersistentIntBuffer {
+
+	private final File filename;
+
+	private final RandomAccessFile raf;
+
+	private final MappedFileChunks chunks;
+
+	private final boolean isNew;
+
+	private volatile int size;
+
+	private volatile boolean closed;
+
+	/**
+	 * Open the file, creating if necessary, and map it.
+	 * @param f The filename.
+	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
+	 */
+	public MappedPersistentIntBuffer(File f, int size) throws IOException {
+		this(f, size, MappedFileChunks.DEFAULT_CHUNK_SHIFT);
+	}
+
+	MappedPersistentIntBuffer(File f, int size, int chunkShift) throws IOException {
+		this.filename = f;
+		isNew = !f.exists();
+		this.raf = new RandomAccessFile(f, "rw");
+		this.size = size;
+		long expectedLength = ((long) size) * 4;
+		// Safe to truncate, nothing is mapped yet.
+		if (raf.length() > expectedLength)
+			raf.setLength(expectedLength);
+		chunks = new MappedFileChunks(raf.getChannel(), chunkShift);
+		try {
+			chunks.map(expectedLength);
+		}
+		catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isNew() {
+		return isNew;
+	}
+
+	@Override
+	public void fill(int value) {
+		for (int i = 0; i < size; i++)
+			chunks.putInt(((long) i) * 4, value);
+	}
+
+	@Override
+	public void start(Ticker ticker) {
+		// Nothing to schedule.
+	}
+
+	@Override
+	public int get(int offset) {
+		if (closed)
+			throw new IllegalStateException("Already shut down");
+		return chunks.getInt(((long) offset) * 4);
+	}
+
+	@Override
+	public void put(int offset, int value) {
+		put(offset, value, false);
+	}
+
+	@Override
+	public void put(int offset, int value, boolean noWrite) {
+		if (closed)
+			throw new IllegalStateException("Already shut down");
+		chunks.putInt(((long) offset) * 4, value);
+	}
+
+	/**
+	 * Caller must ensure there are no concurrent gets or puts beyond the new size, as
+	 * SaltedHashFreenetStore does with its configLock.
+	 */
+	@Override
+	public synchronized void resize(int size) {
+		if (this.size == size)
+			return;
+		Logger.normal(this, "Resizing cache from " + this.size + " slots to " + size);
+		try {
+			chunks.map(((long) size) * 4);
+			this.size = size;
+		}
+		catch (IOException e) {
+			Logger.error(this, "Failed to map more of " + filename + " during resize: " + e, e);
+		}
+	}
+
+	@Override
+	public void forceWrite() {
+		Logger.normal(this, "Force write slot cache: " + this);
+		if (closed)
+			return;
+		chunks.force();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		if (closed)
+			return;
+		Logger.normal(this, "Writing slot cache on shutdown: " + this);
+		chunks.force();
+		close();
+	}
+
+	@Override
+	public synchronized void abort() {
+		if (closed)
+			return;
+		close();
+	}
+
+	private void close() {
+		closed = true;
+		try {
+			raf.close();
+		}
+		catch (IOException e) {
+			Logger.error(this, "Close failed during shutdown: " + e + " on " + filename, e);
+		}
+	}
+
+	// Testing only! Hence no lock.
+	@Override
+	public void replaceAllEntries(int key, int value) {
+		for (int i = 0; i < size; i++) {
+			long pos = ((long) i) * 4;
+			if (chunks.getInt(pos) == key)
+				chunks.putInt(pos, value);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return filename.getPath();
+	}
+
+}
@@ -0,0 +1,55 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+
+import freenet.support.Ticker;
+
+/**
+ * A large resizable block of int's, persisted to disk. Used for the slot filter.
+ *
+ * @see ResizablePersistentIntBuffer
+ * @see MappedPersistentIntBuffer
+ */
+public interface PersistentIntBuffer {
+
+	/** True if the file did not exist when we opened it. */
+	boolean isNew();
+
+	/**
+	 * Should be called during startup to fill in an appropriate default value e.g. if the
+	 * store is completely new.
+	 */
+	void fill(int value);
+
+	void start(Ticker ticker);
+
+	int get(int offset);
+
+	void put(int offset, int value) throws IOException;
+
+	/**
+	 * @param noWrite If true, the caller will call forceWrite() soon, so there is no need
+	 * to write this value to disk immediately.
+	 */
+	void put(int offset, int value, boolean noWrite) throws IOException;
+
+	void resize(int size);
+
+	/** Write the whole buffer to disk now. */
+	void forceWrite();
+
+	/** Write to disk and close. */
+	void shutdown();
+
+	/** Close without writing to disk. */
+	void abort();
+
+	/** Testing only! Replace every entry equal to key with value. */
+	void replaceAllEntries(int key, int value);
+
+	int size();
+
+}
@@ -20,11 +20,12 @@ import freenet.support.Ticker;
  * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately it
  * is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there is
  * no way to unmap, and it is likely there will never be, so resizing would be very messy
- * and expensive.
+ * and expensive. See MappedPersistentIntBuffer for a version which does memory map, in
+ * chunks so that growing only needs to map more of them.
  *
  * @author toad
  */
-public class ResizablePersistentIntBuffer {
+public class ResizablePersistentIntBuffer implements PersistentIntBuffer {
 
 	private final File filename;
 
@@ -108,6 +109,7 @@ public class ResizablePersistentIntBuffer {
 	 * Should be called during startup to fill in an appropriate default value e.g. if the
 	 * store is completely new.
 	 */
+	@Override
 	public void fill(int value) {
 		for (int i = 0; i < buffer.length; i++)
 			buffer[i] = value;
@@ -126,6 +128,7 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	@Override
 	public void start(Ticker ticker) {
 		synchronized (this) {
 			this.ticker = ticker;
@@ -138,6 +141,7 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	@Override
 	public int get(int offset) {
 		lock.readLock().lock();
 		if (closed)
@@ -150,10 +154,12 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	@Override
 	public void put(int offset, int value) throws IOException {
 		put(offset, value, false);
 	}
 
+	@Override
 	public void put(int offset, int value, boolean noWrite) throws IOException {
 		lock.readLock().lock(); // Only resize needs write lock because it creates a new
 								// buffer.
@@ -226,6 +232,7 @@ public class ResizablePersistentIntBuffer {
 
 	};
 
+	@Override
 	public void shutdown() {
 		lock.writeLock().lock();
 		try {
@@ -271,6 +278,7 @@ public class ResizablePersistentIntBuffer {
 
 	}
 
+	@Override
 	public void abort() {
 		lock.writeLock().lock();
 		try {
@@ -303,6 +311,7 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	@Override
 	public void resize(int size) {
 		lock.writeLock().lock();
 		try {
@@ -324,6 +333,7 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	@Override
 	public void forceWrite() {
 		Logger.normal(this, "Force write slot cache: " + this);
 		lock.readLock().lock();
@@ -362,6 +372,7 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
+	@Override
 	public boolean isNew() {
 		return isNew;
 	}
@@ -371,12 +382,14 @@ public class ResizablePersistentIntBuffer {
 	}
 
 	// Testing only! Hence no lock.
+	@Override
 	public void replaceAllEntries(int key, int value) {
 		for (int i = 0; i < buffer.length; i++)
 			if (buffer[i] == key)
 				buffer[i] = value;
 	}
 
+	@Override
 	public int size() {
 		return size;
 	}
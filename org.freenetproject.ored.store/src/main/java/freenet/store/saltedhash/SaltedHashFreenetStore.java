@@ -93,7 +93,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * correct store, 1 = stored in wrong store. bit 0...23 - The first 3 bytes of the
 	 * salted key.
 	 */
-	private final ResizablePersistentIntBuffer slotFilter;
+	private final PersistentIntBuffer slotFilter;
+
+	/**
+	 * If true, the slot filter and the entry metadata are memory-mapped rather than kept
+	 * on the heap and read with system calls.
+	 */
+	private final boolean useMmap;
 
 	/**
 	 * If true, don't create a slot filter, don't keep it up to date, don't do anything
@@ -177,17 +183,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			StoreCallback<T> callback, Random random, long maxKeys, boolean useSlotFilter,
 			SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec,
 			byte[] masterKey) throws IOException {
-		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook,
-				preallocate, resizeOnStart, masterKey);
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, false, shutdownHook, preallocate,
+				resizeOnStart, exec, masterKey);
 	}
 
-	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-			boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart,
+	/**
+	 * @param useMmap If true, memory-map the slot filter and the entry metadata. This
+	 * keeps a very large slot filter off the heap, and avoids rewriting it periodically.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name,
+			StoreCallback<T> callback, Random random, long maxKeys, boolean useSlotFilter, boolean useMmap,
+			SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec,
 			byte[] masterKey) throws IOException {
+		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter, useMmap,
+				shutdownHook, preallocate, resizeOnStart, masterKey);
+	}
+
+	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
+			boolean enableSlotFilters, boolean useMmap, SemiOrderedShutdownHook shutdownHook, boolean preallocate,
+			boolean resizeOnStart, byte[] masterKey) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
 		this.baseDir = baseDir;
+		this.useMmap = useMmap;
 		this.name = name;
 
 		this.callback = callback;
@@ -235,7 +254,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		int size = (int) Math.max(storeSize, prevStoreSize);
 		slotFilterDisabled = !enableSlotFilters;
 		if (!slotFilterDisabled) {
-			slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size);
+			if (useMmap)
+				slotFilter = new MappedPersistentIntBuffer(slotFilterFile, size);
+			else
+				slotFilter = new ResizablePersistentIntBuffer(slotFilterFile, size);
 			System.err.println("Slot filter (" + slotFilterFile + ") for " + name + " is loaded (new="
 					+ slotFilter.isNew() + ").");
 			if (newStore && slotFilter.isNew())
@@ -641,6 +663,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private FileChannel metaFC;
 
+	/** The metadata file, if useMmap. */
+	private MappedFileChunks metaChunks;
+
 	// header+data file
 	private File hdFile;
 
@@ -938,6 +963,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new Error("Could not aquire lock for file " + baseDir.toPath().resolve(name + ".metadata"), ex);
 		}
 
+		if (useMmap) {
+			metaChunks = new MappedFileChunks(metaFC, MappedFileChunks.DEFAULT_CHUNK_SHIFT);
+			metaChunks.map(metaRAF.length());
+		}
+
 		hdRAF = new RandomAccessFile(hdFile, "rw");
 		hdFC = hdRAF.getChannel();
 		try {
@@ -978,14 +1008,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset " + offset, new Exception("error"));
-				throw new EOFException();
-			}
+		if (readMetadata(mbf, Entry.METADATA_LENGTH * offset) != Entry.METADATA_LENGTH) {
+			Logger.error(this, "Failed to access offset " + offset, new Exception("error"));
+			throw new EOFException();
 		}
-		while (mbf.hasRemaining());
 		mbf.flip();
 
 		Entry entry = new Entry(mbf, null);
@@ -1119,12 +1145,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		}
-		while (bf.hasRemaining());
+		writeMetadata(bf, Entry.METADATA_LENGTH * offset);
 
 		bf = entry.toHDBuffer();
 		if (bf != null) {
@@ -1140,9 +1161,44 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		entry.curOffset = offset;
 	}
 
+	/**
+	 * Read metadata from disk, starting at pos, until buf is full or we reach the end of
+	 * the file.
+	 * @return The number of bytes read.
+	 */
+	private int readMetadata(ByteBuffer buf, long pos) throws IOException {
+		if (metaChunks != null)
+			return metaChunks.read(pos, buf);
+		int read = 0;
+		while (buf.hasRemaining()) {
+			int status = metaFC.read(buf, pos + read);
+			if (status == -1)
+				break;
+			read += status;
+		}
+		return read;
+	}
+
+	/** Write all of buf to the metadata file, starting at pos. */
+	private void writeMetadata(ByteBuffer buf, long pos) throws IOException {
+		if (metaChunks != null) {
+			metaChunks.write(pos, buf);
+			return;
+		}
+		int written = 0;
+		while (buf.hasRemaining()) {
+			int status = metaFC.write(buf, pos + written);
+			if (status == -1)
+				throw new EOFException();
+			written += status;
+		}
+	}
+
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
 		try {
+			if (metaChunks != null)
+				metaChunks.force();
 			metaFC.force(true);
 			metaFC.close();
 		}
@@ -1199,7 +1255,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
+			if (metaChunks == null)
+				metaRAF.setLength(newMetaLen);
+			else if (newMetaLen > oldMetaLen)
+				metaChunks.map(newMetaLen);
+			// else we can't truncate a mapped file, leave it for now.
 			hdRAF.setLength(newHdLen);
 		}
 		catch (IOException e) {
@@ -1302,10 +1362,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
+					// A mapped slot filter is written as we go, like a persistence time of -1.
 					if (((flags & FLAG_DIRTY) != 0) &&
 					// FIXME figure out a way to do this consistently!
 					// Not critical as a few blocks wrong is something we can handle.
-							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
+							!useMmap && ResizablePersistentIntBuffer.getPersistenceTime() != -1)
 						flags |= FLAG_REBUILD_BLOOM;
 
 					try {
@@ -1818,11 +1879,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
 				boolean dirty = false;
 				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
-					}
+					readMetadata(buf, startFileOffset);
 				}
 				catch (IOException ioe) {
 					if (shutdown)
@@ -1893,9 +1950,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
-							}
+							writeMetadata(buf, startFileOffset);
 						}
 						catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -2203,6 +2258,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return getOffsetFromDigestedKey(cipherManager.getDigestedKey(plainKey), storeSize);
 	}
 
+	/**
+	 * Get the slot a block with the given routing key will probably be written to. This
+	 * is only a hint, e.g. for ordering writes so they are close together on disk: the
+	 * block may go in another slot, and the store may be resized before it is written.
+	 * The digested key is cached, so this doesn't cost much when the block is written
+	 * soon after.
+	 */
+	public long getWriteOffsetHint(byte[] routingKey) {
+		return getOffsetFromPlainKey(routingKey, storeSize)[0];
+	}
+
 	public void close() {
 		close(false);
 	}
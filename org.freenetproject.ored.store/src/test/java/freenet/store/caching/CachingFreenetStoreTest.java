@@ -15,6 +15,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.bucket.ArrayBucketFactory;
 import freenet.bucket.Bucket;
@@ -646,6 +647,131 @@ public class CachingFreenetStoreTest {
 		}
 	}
 
+	/*
+	 * With a spill log, blocks which were in the cache when it was closed are put back in
+	 * the cache when it is reopened, as well as having been written to the store. They
+	 * are not written to the store again, don't count as dirty data, and are still in the
+	 * cache after the dirty data has been written back.
+	 */
+	@Test
+	public void testSpillLogWarmStart()
+			throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		File f = getStorePath("testSpillLogWarmStart");
+		File spillLog = new File(f, "spill");
+		List<ClientCHKBlock> chkBlocks = new ArrayList<ClientCHKBlock>();
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize,
+				cachingFreenetStorePeriod, ticker);
+
+		try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f,
+				"testCachingFreenetStoreSpillLog", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true,
+				true, ticker, null)) {
+			try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore,
+					tracker, spillLog)) {
+				cachingStore.start(null, true);
+				for (int i = 0; i < 5; i++) {
+					ClientCHKBlock block = encodeBlockCHK("test" + i);
+					store.put(block.getBlock(), false);
+					chkBlocks.add(block);
+				}
+			}
+		}
+		assertTrue(spillLog.exists());
+
+		store = new CHKStore();
+		final AtomicInteger puts = new AtomicInteger();
+		final AtomicInteger fetches = new AtomicInteger();
+		try (SaltedHashFreenetStore<CHKBlock> saltStore2 = SaltedHashFreenetStore.construct(f,
+				"testCachingFreenetStoreSpillLog", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true,
+				true, ticker, null)) {
+			ProxyFreenetStore<CHKBlock> counting = new ProxyFreenetStore<CHKBlock>(saltStore2) {
+				@Override
+				public void put(CHKBlock block, byte[] data, byte[] header, boolean overwrite, boolean oldBlock)
+						throws IOException, KeyCollisionException {
+					puts.incrementAndGet();
+					super.put(block, data, header, overwrite, oldBlock);
+				}
+
+				@Override
+				public CHKBlock fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+						boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks,
+						BlockMetadata meta) throws IOException {
+					fetches.incrementAndGet();
+					return super.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache,
+							ignoreOldBlocks, meta);
+				}
+			};
+			try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, counting,
+					tracker, spillLog)) {
+				cachingStore.start(null, true);
+				assertEquals(0, tracker.getSizeOfCache());
+				// Write back some new dirty data.
+				store.put(encodeBlockCHK("new").getBlock(), false);
+				assertEquals(store.getTotalBlockSize(), tracker.getSizeOfCache());
+				tracker.pushAllCachingStores();
+				assertEquals(1, puts.get());
+				for (int i = 0; i < 5; i++) {
+					ClientCHK key = chkBlocks.get(i).getClientKey();
+					CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+					assertEquals("test" + i, decodeBlockCHK(verify, key));
+				}
+				assertEquals(0, fetches.get());
+			}
+			assertEquals(1, puts.get());
+		}
+		assertEquals(0, tracker.getSizeOfCache());
+	}
+
+	/* Stores sharing a tracker keep no more clean blocks between them than its limit */
+	@Test
+	public void testSpillLogCleanBlocksShareLimit()
+			throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File[] dirs = { getStorePath("testSpillLogCleanBlocksShareLimit1"),
+				getStorePath("testSpillLogCleanBlocksShareLimit2") };
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize,
+				cachingFreenetStorePeriod, ticker);
+		for (int s = 0; s < dirs.length; s++) {
+			CHKStore store = new CHKStore();
+			try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(dirs[s],
+					"testCachingFreenetStoreSpillLog", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(),
+					true, true, ticker, null)) {
+				try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store,
+						saltStore, tracker, new File(dirs[s], "spill"))) {
+					cachingStore.start(null, true);
+					for (int i = 0; i < 5; i++)
+						store.put(encodeBlockCHK("test" + s + "-" + i).getBlock(), false);
+				}
+			}
+		}
+
+		// Room for 4 of the 10 blocks.
+		long blockSize = new CHKStore().getTotalBlockSize();
+		tracker = new CachingFreenetStoreTracker(4 * blockSize, cachingFreenetStorePeriod, ticker);
+		CHKStore store1 = new CHKStore();
+		CHKStore store2 = new CHKStore();
+		try (SaltedHashFreenetStore<CHKBlock> saltStore1 = SaltedHashFreenetStore.construct(dirs[0],
+				"testCachingFreenetStoreSpillLog", store1, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true,
+				true, ticker, null);
+				SaltedHashFreenetStore<CHKBlock> saltStore2 = SaltedHashFreenetStore.construct(dirs[1],
+						"testCachingFreenetStoreSpillLog", store2, weakPRNG, 10, false, SemiOrderedShutdownHook.get(),
+						true, true, ticker, null)) {
+			try (CachingFreenetStore<CHKBlock> cachingStore1 = new CachingFreenetStore<CHKBlock>(store1, saltStore1,
+					tracker, new File(dirs[0], "spill"));
+					CachingFreenetStore<CHKBlock> cachingStore2 = new CachingFreenetStore<CHKBlock>(store2,
+							saltStore2, tracker, new File(dirs[1], "spill"))) {
+				cachingStore1.start(null, true);
+				assertEquals(4 * blockSize, tracker.getSizeOfCleanBlocks());
+				cachingStore2.start(null, true);
+				assertEquals(4 * blockSize, tracker.getSizeOfCleanBlocks());
+				// Dirty data makes room by dropping clean blocks, whichever store they are in.
+				store2.put(encodeBlockCHK("new").getBlock(), false);
+				assertEquals(blockSize, tracker.getSizeOfCache());
+				assertEquals(3 * blockSize, tracker.getSizeOfCleanBlocks());
+			}
+		}
+		assertEquals(0, tracker.getSizeOfCleanBlocks());
+	}
+
 	/* Test whether stuff gets written to disk after the caching period expires */
 	@Test
 	public void testTimeExpireCHK()
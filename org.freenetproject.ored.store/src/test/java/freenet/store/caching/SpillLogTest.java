@@ -0,0 +1,136 @@
+package freenet.store.caching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import freenet.support.io.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillLogTest {
+
+	private static final File TEMP_DIR = new File("tmp-SpillLogTest");
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		FileUtil.removeAll(TEMP_DIR);
+		if (!TEMP_DIR.mkdir())
+			throw new IllegalStateException("Could not create temporary directory for spill log tests");
+		file = new File(TEMP_DIR, "spill");
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.removeAll(TEMP_DIR);
+	}
+
+	private static SpillLog.Record record(int i) {
+		return new SpillLog.Record(new byte[] { (byte) i, 1 }, new byte[] { (byte) i, 2 }, new byte[] { (byte) i, 3 },
+				new byte[100 + i], (i & 1) != 0, (i & 2) != 0);
+	}
+
+	private static void append(SpillLog log, SpillLog.Record r) throws IOException {
+		log.append(r.routingKey, r.fullKey, r.header, r.data, r.overwrite, r.isOldBlock);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		SpillLog log = new SpillLog(file);
+		assertTrue(log.read().isEmpty());
+		log.rewrite(Collections.singletonList(record(0)));
+		append(log, record(1));
+		append(log, record(2));
+		log.close();
+		assertEquals(log.length(), file.length());
+
+		List<SpillLog.Record> records = new SpillLog(file).read();
+		assertEquals(3, records.size());
+		for (int i = 0; i < 3; i++) {
+			SpillLog.Record expected = record(i);
+			SpillLog.Record actual = records.get(i);
+			assertArrayEquals(expected.routingKey, actual.routingKey);
+			assertArrayEquals(expected.fullKey, actual.fullKey);
+			assertArrayEquals(expected.header, actual.header);
+			assertArrayEquals(expected.data, actual.data);
+			assertEquals(expected.overwrite, actual.overwrite);
+			assertEquals(expected.isOldBlock, actual.isOldBlock);
+		}
+	}
+
+	@Test
+	public void testWrittenMarksClean() throws IOException {
+		SpillLog log = new SpillLog(file);
+		log.rewrite(Collections.singletonList(record(0).markClean()));
+		append(log, record(1));
+		append(log, record(2));
+		log.appendWritten(record(1).routingKey);
+		// A later block with the same key is still dirty.
+		append(log, record(2));
+		log.appendWritten(record(2).routingKey);
+		append(log, record(2));
+		// For a block we don't have.
+		log.appendWritten(record(3).routingKey);
+		log.close();
+
+		List<SpillLog.Record> records = new SpillLog(file).read();
+		assertEquals(5, records.size());
+		assertTrue(records.get(0).clean);
+		assertTrue(records.get(1).clean);
+		assertFalse(records.get(2).clean);
+		assertTrue(records.get(3).clean);
+		assertFalse(records.get(4).clean);
+		assertArrayEquals(record(1).data, records.get(1).data);
+	}
+
+	@Test
+	public void testTornTail() throws IOException {
+		SpillLog log = new SpillLog(file);
+		log.rewrite(Collections.singletonList(record(0)));
+		append(log, record(1));
+		append(log, record(2));
+		log.close();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 5);
+		}
+		assertEquals(2, new SpillLog(file).read().size());
+	}
+
+	@Test
+	public void testCorruptRecord() throws IOException {
+		SpillLog log = new SpillLog(file);
+		log.rewrite(Collections.singletonList(record(0)));
+		append(log, record(1));
+		log.close();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// Flip a byte in the data of the last record.
+			raf.seek(raf.length() - 10);
+			int b = raf.read();
+			raf.seek(raf.length() - 10);
+			raf.write(b ^ 0xff);
+		}
+		assertEquals(1, new SpillLog(file).read().size());
+	}
+
+	@Test
+	public void testRewriteReplaces() throws IOException {
+		SpillLog log = new SpillLog(file);
+		log.rewrite(Collections.singletonList(record(0)));
+		append(log, record(1));
+		log.rewrite(Collections.<SpillLog.Record>emptyList());
+		log.close();
+		assertTrue(new SpillLog(file).read().isEmpty());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+}
@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.io.FileUtil;
+
+public class MappedPersistentIntBufferTest {
+
+	/** 16 byte chunks, so most tests cross chunk boundaries. */
+	private static final int CHUNK_SHIFT = 4;
+
+	private static final File TEMP_DIR = new File("tmp-MappedPersistentIntBufferTest");
+
+	@Before
+	public void setUp() {
+		FileUtil.removeAll(TEMP_DIR);
+		if (!TEMP_DIR.mkdir()) {
+			throw new IllegalStateException("Could not create temporary directory");
+		}
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.removeAll(TEMP_DIR);
+	}
+
+	@Test
+	public void testPutGetAndReopen() throws IOException {
+		File f = new File(TEMP_DIR, "slotfilter");
+		MappedPersistentIntBuffer buf = new MappedPersistentIntBuffer(f, 100, CHUNK_SHIFT);
+		assertTrue(buf.isNew());
+		buf.fill(1 << 31);
+		for (int i = 0; i < 100; i += 3) {
+			buf.put(i, i * 12345);
+		}
+		buf.shutdown();
+		assertEquals(400, f.length());
+
+		buf = new MappedPersistentIntBuffer(f, 100, CHUNK_SHIFT);
+		assertFalse(buf.isNew());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i % 3 == 0 ? i * 12345 : 1 << 31, buf.get(i));
+		}
+		buf.shutdown();
+	}
+
+	@Test
+	public void testResize() throws IOException {
+		File f = new File(TEMP_DIR, "slotfilter");
+		MappedPersistentIntBuffer buf = new MappedPersistentIntBuffer(f, 10, CHUNK_SHIFT);
+		for (int i = 0; i < 10; i++) {
+			buf.put(i, i);
+		}
+		buf.resize(37);
+		assertEquals(37, buf.size());
+		for (int i = 10; i < 37; i++) {
+			assertEquals(0, buf.get(i));
+			buf.put(i, i);
+		}
+		for (int i = 0; i < 37; i++) {
+			assertEquals(i, buf.get(i));
+		}
+		// Shrinking can't truncate the mapped file, that happens on the next open.
+		buf.resize(20);
+		assertEquals(20, buf.size());
+		buf.shutdown();
+
+		buf = new MappedPersistentIntBuffer(f, 20, CHUNK_SHIFT);
+		assertEquals(80, f.length());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i, buf.get(i));
+		}
+		buf.shutdown();
+	}
+
+	@Test
+	public void testSameFormatAsResizablePersistentIntBuffer() throws IOException {
+		int persistenceTime = ResizablePersistentIntBuffer.getPersistenceTime();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		try {
+			File f = new File(TEMP_DIR, "slotfilter");
+			ResizablePersistentIntBuffer heap = new ResizablePersistentIntBuffer(f, 50);
+			for (int i = 0; i < 50; i++) {
+				heap.put(i, i * 0x01020304);
+			}
+			heap.shutdown();
+
+			MappedPersistentIntBuffer mapped = new MappedPersistentIntBuffer(f, 50, CHUNK_SHIFT);
+			for (int i = 0; i < 50; i++) {
+				assertEquals(i * 0x01020304, mapped.get(i));
+				mapped.put(i, -i);
+			}
+			mapped.shutdown();
+
+			heap = new ResizablePersistentIntBuffer(f, 50);
+			for (int i = 0; i < 50; i++) {
+				assertEquals(-i, heap.get(i));
+			}
+			heap.shutdown();
+		}
+		finally {
+			ResizablePersistentIntBuffer.setPersistenceTime(persistenceTime);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testGetAfterShutdown() throws IOException {
+		MappedPersistentIntBuffer buf = new MappedPersistentIntBuffer(new File(TEMP_DIR, "slotfilter"), 10,
+				CHUNK_SHIFT);
+		buf.shutdown();
+		buf.get(0);
+	}
+
+}
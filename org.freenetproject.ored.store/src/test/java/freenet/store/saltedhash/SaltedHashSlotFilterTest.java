@@ -210,6 +210,36 @@ public class SaltedHashSlotFilterTest {
 		}
 	}
 
+	@Test
+	public void testCHKPresentWithClose_mmap()
+			throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		// Persistence time is ignored when mapped.
+		ResizablePersistentIntBuffer.setPersistenceTime(600 * 1000);
+		File f = getStorePath("testCHKPresentWithClose_mmap");
+
+		CHKStore store = new CHKStore();
+		try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f,
+				"testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, true, SemiOrderedShutdownHook.get(),
+				true, true, ticker, null)) {
+			saltStore.start(null, true);
+
+			int falsePositives = populateStore(store, saltStore, TEST_COUNT);
+
+			assertTrue(falsePositives <= ACCEPTABLE_FALSE_POSITIVES);
+		}
+
+		// Switching back to the heap slot filter must keep working, the file format is the
+		// same.
+		store = new CHKStore();
+		try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f,
+				"testCachingFreenetStoreCHK", store, weakPRNG, STORE_SIZE, true, SemiOrderedShutdownHook.get(), true,
+				true, ticker, null)) {
+			saltStore.start(null, true);
+
+			checkStore(store, saltStore, TEST_COUNT, true);
+		}
+	}
+
 	@Test
 	public void testCHKPresentWithAbort()
 			throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -25,7 +26,7 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.support.node.SemiOrderedShutdownHook;
@@ -46,6 +47,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 	private boolean closedFinished = false;
 
+	private final Object closeSync = new Object();
+
 	protected int INTERVAL = Calendar.MINUTE;
 
 	protected int INTERVAL_MULTIPLIER = 5;
@@ -110,27 +113,37 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	/* Whether to redirect stderr */
 	protected boolean redirectStdErr = false;
 
+	/**
+	 * No longer used to limit the backlog, which is only limited in bytes; kept for
+	 * callers which still pass a line count.
+	 */
 	protected final int MAX_LIST_SIZE;
 
 	protected long MAX_LIST_BYTES = 10 * (1 << 20);
 
-	protected long LIST_WRITE_THRESHOLD;
+	/** Wake up the writer thread once this many bytes are waiting. */
+	protected volatile long LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to block So run
-	 * the actual write on another thread
+	 * the actual write on another thread.
 	 *
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff
-	 * when the queue gets too big.
-	 *
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory
-	 * allocations, but it means we have to take two locks. Seriously consider reverting
-	 * 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Lines are formatted into a per-thread buffer and encoded straight into a ring
+	 * allocated up front, which the writer thread copies to the log files, so neither
+	 * side takes a lock or allocates per line. When logging faster than the disk can
+	 * take, lines which don't fit are dropped and counted, and the writer thread reports
+	 * how many it lost; the threads logging never wait.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
+	private volatile LogRingBuffer ring;
+
+	/** Set once the writer thread has started, after which the ring can't be replaced. */
+	private volatile Thread writerThread;
+
+	private static final ThreadLocal<StringBuilder> lineBuffers = ThreadLocal
+			.withInitial(() -> new StringBuilder(512));
 
-	protected long listBytes = 0;
+	/** Don't keep huge buffers around after logging a big stack trace. */
+	private static final int MAX_KEPT_LINE_BUFFER = 64 * 1024;
 
 	long maxOldLogfilesDiskUsage;
 
@@ -157,11 +170,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 	}
 
-	public void setMaxListBytes(long len) {
-		synchronized (list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+	/**
+	 * Set how many bytes of log lines may be waiting to be written. The ring is allocated
+	 * at this size if the writer thread has not been started yet; after that, it can
+	 * only be reduced below the size the ring was allocated at.
+	 */
+	public synchronized void setMaxListBytes(long len) {
+		MAX_LIST_BYTES = len;
+		LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
+		LogRingBuffer r = ring;
+		if (writerThread == null && r.pending() == 0)
+			r = ring = new LogRingBuffer(ringSize(len));
+		r.setLimit(len);
+	}
+
+	private static int ringSize(long len) {
+		return (int) Math.min(Math.max(len, 64), 1 << 30);
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -253,10 +277,15 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by
-									// setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by
+											// setMaxBacklogNotBusy().
+
+	class WriterThread extends Thread implements LogRingBuffer.Sink {
 
-	class WriterThread extends Thread {
+		/** Dropped lines we have already written a warning about. */
+		private long reportedDroppedLines;
+
+		private long reportedDroppedBytes;
 
 		WriterThread() {
 			super("Log File Writer Thread");
@@ -266,7 +295,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -316,10 +344,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				nextHour = gc.getTimeInMillis();
 			}
 			long timeWaitingForSync = -1;
-			long flush;
-			synchronized (this) {
-				flush = flushTime;
-			}
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -338,68 +362,30 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if (timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while (o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if (thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread
-									// might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if (listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes
-										// threshold is exceeded, or the time threshold
-										// is.
-										assert ((listBytes == 0) == (list.peek() == null));
-										if (listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if (closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if (maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									}
-									else {
-										// Do NOT use list.poll(timeout) because it uses a
-										// separate lock.
-										o = list.poll();
-									}
-								}
-							}
-							catch (InterruptedException e) {
-								// Ignored.
-							}
-							if (o == null) {
-								if (timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if (thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we
-																// are no longer waiting.
-									break;
-								}
-							}
-							else
-								break;
-						}
-						if (o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+					// Read before draining, so everything logged before close() is written.
+					boolean died = closed;
+					LogRingBuffer r = ring;
+					long flush = flushTime;
+					long pending = r.pending();
+					if (pending == 0) {
+						timeWaitingForSync = -1;
+					}
+					else if (timeWaitingForSync == -1) {
+						timeWaitingForSync = thisTime;
+					}
+					boolean timeoutFlush = timeWaitingForSync != -1 && thisTime >= timeWaitingForSync + flush;
+					// Don't write at all until the lower bytes threshold is exceeded, or the
+					// time threshold is, or we are closing.
+					if (died || timeoutFlush || pending >= LIST_WRITE_THRESHOLD || droppedSinceReport(r)) {
+						reportDropped(r);
+						r.drainTo(this);
+						if (died && r.pending() != 0) {
+							// Another thread is half way through a line.
+							Thread.yield();
+							r.drainTo(this);
 						}
+						if (r.pending() == 0)
+							timeWaitingForSync = -1;
 					}
 					if (timeoutFlush || died) {
 						// Flush to disk
@@ -422,17 +408,19 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: " + e);
 							}
 						}
-						synchronized (list) {
+						synchronized (closeSync) {
 							closedFinished = true;
-							list.notifyAll();
+							closeSync.notifyAll();
 						}
 						return;
 					}
-					if (o == null)
-						continue;
-					myWrite(logStream, o);
-					if (altLogStream != null)
-						myWrite(altLogStream, o);
+					// Wait no more than 500ms since the CloserThread might be waiting for
+					// closedFinished. Threads logging wake us up early if the backlog grows
+					// past LIST_WRITE_THRESHOLD.
+					long wait = 500;
+					if (timeWaitingForSync != -1)
+						wait = Math.max(1, Math.min(wait, timeWaitingForSync + flush - thisTime));
+					LockSupport.parkNanos(this, MILLISECONDS.toNanos(wait));
 				}
 				catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
@@ -448,6 +436,30 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		@Override
+		public void write(byte[] buf, int offset, int length) {
+			myWrite(logStream, buf, offset, length);
+			if (altLogStream != null)
+				myWrite(altLogStream, buf, offset, length);
+		}
+
+		private boolean droppedSinceReport(LogRingBuffer r) {
+			return r.getDroppedLines() != reportedDroppedLines;
+		}
+
+		private void reportDropped(LogRingBuffer r) throws UnsupportedEncodingException {
+			long lines = r.getDroppedLines();
+			if (lines == reportedDroppedLines)
+				return;
+			long bytes = r.getDroppedBytes();
+			String err = "GRRR: ERROR: Logging too fast, dropped " + (lines - reportedDroppedLines) + " entries ("
+					+ (bytes - reportedDroppedBytes) + " bytes), " + r.pending() + " bytes in memory\n";
+			reportedDroppedLines = lines;
+			reportedDroppedBytes = bytes;
+			byte[] buf = err.getBytes(ENCODING);
+			write(buf, 0, buf.length);
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 			// Switch logs
 			try {
@@ -496,12 +508,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		 * @param b the bytes to write, null to flush
 		 */
 		protected void myWrite(OutputStream os, byte[] b) {
+			myWrite(os, b, 0, b == null ? 0 : b.length);
+		}
+
+		protected void myWrite(OutputStream os, byte[] b, int offset, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, offset, length);
 					else
 						os.flush();
 				}
@@ -573,7 +589,24 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** DateFormat isn't thread-safe, so each thread formats with its own copy of df. */
+	private final ThreadLocal<DateFormat> dateFormats = ThreadLocal.withInitial(() -> (DateFormat) df.clone());
+
+	/** The date last formatted, so lines logged in the same millisecond share it. */
+	private volatile FormattedDate lastDate = new FormattedDate(-1, "");
+
+	private static final class FormattedDate {
+
+		final long time;
+
+		final String text;
+
+		FormattedDate(long time, String text) {
+			this.time = time;
+			this.text = text;
+		}
+
+	}
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist it will be
@@ -802,6 +835,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		wt.setDaemon(true);
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
+		synchronized (this) {
+			writerThread = wt;
+		}
 		wt.start();
 	}
 
@@ -836,7 +872,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		ring = new LogRingBuffer(ringSize(MAX_LIST_BYTES));
 
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -910,130 +946,113 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 
-		StringBuilder sb = new StringBuilder(e == null ? 512 : 1024);
+		StringBuilder sb = lineBuffers.get();
+		if (sb.length() != 0) {
+			// Logging while formatting a line, e.g. from a toString().
+			sb = new StringBuilder(512);
+		}
 		int sctr = 0;
 
-		for (int f : fmt) {
-			switch (f) {
-			case 0:
-				sb.append(str[sctr++]);
-				break;
-			case DATE:
-				long now = System.currentTimeMillis();
-				synchronized (this) {
-					myDate.setTime(now);
-					sb.append(df.format(myDate));
+		try {
+			for (int f : fmt) {
+				switch (f) {
+				case 0:
+					sb.append(str[sctr++]);
+					break;
+				case DATE:
+					long now = System.currentTimeMillis();
+					FormattedDate date = lastDate;
+					if (date.time != now) {
+						date = new FormattedDate(now, dateFormats.get().format(new Date(now)));
+						lastDate = date;
+					}
+					sb.append(date.text);
+					break;
+				case CLASS:
+					sb.append(c == null ? "<none>" : c.getName());
+					break;
+				case HASHCODE:
+					sb.append(o == null ? "<none>" : Integer.toHexString(o.hashCode()));
+					break;
+				case THREAD:
+					sb.append(Thread.currentThread().getName());
+					break;
+				case PRIORITY:
+					sb.append(priority.name());
+					break;
+				case MESSAGE:
+					sb.append(msg);
+					break;
+				case UNAME:
+					sb.append(uname);
+					break;
 				}
-				break;
-			case CLASS:
-				sb.append(c == null ? "<none>" : c.getName());
-				break;
-			case HASHCODE:
-				sb.append(o == null ? "<none>" : Integer.toHexString(o.hashCode()));
-				break;
-			case THREAD:
-				sb.append(Thread.currentThread().getName());
-				break;
-			case PRIORITY:
-				sb.append(priority.name());
-				break;
-			case MESSAGE:
-				sb.append(msg);
-				break;
-			case UNAME:
-				sb.append(uname);
-				break;
 			}
-		}
-		sb.append('\n');
+			sb.append('\n');
 
-		// Write stacktrace if available
-		for (int j = 0; j < 20 && e != null; j++) {
-			sb.append(e.toString());
+			// Write stacktrace if available
+			for (int j = 0; j < 20 && e != null; j++) {
+				sb.append(e.toString());
 
-			StackTraceElement[] trace = e.getStackTrace();
+				StackTraceElement[] trace = e.getStackTrace();
 
-			if (trace == null)
-				sb.append("(null)\n");
-			else if (trace.length == 0)
-				sb.append("(no stack trace)\n");
-			else {
-				sb.append('\n');
-				for (StackTraceElement elt : trace) {
-					sb.append("\tat ");
-					sb.append(elt.toString());
+				if (trace == null)
+					sb.append("(null)\n");
+				else if (trace.length == 0)
+					sb.append("(no stack trace)\n");
+				else {
 					sb.append('\n');
+					for (StackTraceElement elt : trace) {
+						sb.append("\tat ");
+						sb.append(elt.toString());
+						sb.append('\n');
+					}
 				}
-			}
 
-			Throwable cause = e.getCause();
-			if (cause != e)
-				e = cause;
-			else
-				break;
-		}
+				Throwable cause = e.getCause();
+				if (cause != e)
+					e = cause;
+				else
+					break;
+			}
 
-		try {
-			logString(sb.toString().getBytes(ENCODING));
+			LogRingBuffer r = ring;
+			if (r.offer(sb))
+				wakeWriter(r);
 		}
-		catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
+		finally {
+			if (sb.capacity() > MAX_KEPT_LINE_BUFFER)
+				lineBuffers.remove();
+			else
+				sb.setLength(0);
 		}
 	}
 
-	/** Memory allocation overhead (estimated through experimentation with bsh) */
-	private static final int LINE_OVERHEAD = 60;
+	/** Wake up the writer thread if enough has been logged that it should write it out. */
+	private void wakeWriter(LogRingBuffer r) {
+		if (r.pending() >= LIST_WRITE_THRESHOLD)
+			LockSupport.unpark(writerThread);
+	}
 
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if (!list.offer(b)) {
-				byte[] ss = list.poll();
-				if (ss != null)
-					listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if (ss != null)
-					listBytes -= ss.length + LINE_OVERHEAD;
-				String err = "GRRR: ERROR: Logging too fast, chopped " + 2 + " entries, " + listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if (list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if (list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			}
-			else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F)) || (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err = "GRRR: ERROR: Logging too fast, chopped " + x + " entries, " + listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if (!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if (ss != null)
-						listBytes -= ss.length + LINE_OVERHEAD;
-					if (list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				}
-				else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
-		}
+		LogRingBuffer r = ring;
+		if (r.offer(b, 0, b.length))
+			wakeWriter(r);
 	}
 
+	/** @return The number of bytes logged but not yet written out. */
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return ring.pending();
+	}
+
+	/** @return The number of lines dropped because the backlog was full. */
+	public long getDroppedLines() {
+		return ring.getDroppedLines();
+	}
+
+	/** @return The number of bytes dropped because the backlog was full. */
+	public long getDroppedBytes() {
+		return ring.getDroppedBytes();
 	}
 
 	public static int numberOf(char c) {
@@ -1060,21 +1079,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		LockSupport.unpark(writerThread);
 	}
 
 	class CloserThread extends Thread {
 
 		@Override
 		public void run() {
-			synchronized (list) {
-				closed = true;
+			close();
+			synchronized (closeSync) {
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while (!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if (wait <= 0)
 						return;
 					try {
-						list.wait(wait);
+						closeSync.wait(wait);
 					}
 					catch (InterruptedException e) {
 						// Ok.
@@ -1216,8 +1236,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
+		LockSupport.unpark(writerThread);
 	}
 
 }
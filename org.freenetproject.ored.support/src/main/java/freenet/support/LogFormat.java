@@ -0,0 +1,71 @@
+package freenet.support;
+
+import java.util.Arrays;
+
+/**
+ * Formats messages for the parameterised logging methods in {@link Logger}, replacing
+ * each {} with the next argument.
+ */
+final class LogFormat {
+
+	private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+	private LogFormat() {
+	}
+
+	static String format(String format, Object... args) {
+		if (format == null)
+			return null;
+		StringBuilder sb = buffers.get();
+		if (sb.length() != 0) {
+			// An argument's toString() is logging.
+			sb = new StringBuilder(256);
+		}
+		try {
+			int argIndex = 0;
+			int start = 0;
+			while (true) {
+				int index = format.indexOf("{}", start);
+				if (index < 0 || argIndex == args.length)
+					break;
+				sb.append(format, start, index);
+				appendArg(sb, args[argIndex++]);
+				start = index + 2;
+			}
+			sb.append(format, start, format.length());
+			return sb.toString();
+		}
+		finally {
+			if (sb.capacity() > 4096)
+				buffers.remove();
+			else
+				sb.setLength(0);
+		}
+	}
+
+	static int countPlaceholders(String format) {
+		if (format == null)
+			return 0;
+		int count = 0;
+		int index = 0;
+		while ((index = format.indexOf("{}", index)) >= 0) {
+			count++;
+			index += 2;
+		}
+		return count;
+	}
+
+	private static void appendArg(StringBuilder sb, Object arg) {
+		if (arg instanceof Object[])
+			sb.append(Arrays.deepToString((Object[]) arg));
+		else if (arg instanceof byte[])
+			sb.append(HexUtil.bytesToHex((byte[]) arg));
+		else if (arg instanceof int[])
+			sb.append(Arrays.toString((int[]) arg));
+		else if (arg instanceof long[])
+			sb.append(Arrays.toString((long[]) arg));
+		else
+			sb.append(arg);
+	}
+
+}
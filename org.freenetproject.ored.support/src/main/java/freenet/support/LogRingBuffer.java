@@ -0,0 +1,222 @@
+package freenet.support;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size ring of log lines, written by any number of threads and read by one. Lines
+ * are encoded as UTF-8 straight into the ring, so logging a line does not allocate.
+ *
+ * Each record is a 4 byte length followed by the line, padded to a multiple of 4 bytes.
+ * A writer claims space by moving {@link #claimed} forward, copies the line in, and then
+ * publishes the length; until then the length is zero and the reader waits. The reader
+ * clears each record after passing it on, so a length is only ever non-zero once the
+ * record is complete. If there is not enough room the line is dropped and counted rather
+ * than making the writer wait for the disk.
+ */
+final class LogRingBuffer {
+
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private static final int HEADER = 4;
+
+	/** Receives the lines read from the ring, possibly in two pieces if they wrap. */
+	interface Sink {
+
+		void write(byte[] buf, int offset, int length);
+
+	}
+
+	private final byte[] ring;
+
+	private final int mask;
+
+	/** Total bytes claimed by writers, ever. */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/** Total bytes passed on and cleared by the reader, ever. */
+	private volatile long consumed;
+
+	/** How many bytes may be waiting at once, at most the capacity. */
+	private volatile long limit;
+
+	private final LongAdder droppedLines = new LongAdder();
+
+	private final LongAdder droppedBytes = new LongAdder();
+
+	/**
+	 * @param capacity The size of the ring in bytes; rounded up to a power of two.
+	 */
+	LogRingBuffer(int capacity) {
+		if (capacity < 64)
+			capacity = 64;
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		ring = new byte[size];
+		mask = size - 1;
+		limit = size;
+	}
+
+	int capacity() {
+		return ring.length;
+	}
+
+	/** Limit the bytes waiting in the ring, without reallocating it. */
+	void setLimit(long limit) {
+		this.limit = Math.max(0, Math.min(limit, ring.length));
+	}
+
+	/** @return The number of bytes written but not yet read, including record overhead. */
+	long pending() {
+		return claimed.get() - consumed;
+	}
+
+	long getDroppedLines() {
+		return droppedLines.sum();
+	}
+
+	long getDroppedBytes() {
+		return droppedBytes.sum();
+	}
+
+	/**
+	 * Add a line, encoded as UTF-8.
+	 * @return False if there was no room, in which case the line has been counted as
+	 * dropped.
+	 */
+	boolean offer(CharSequence line) {
+		int length = utf8Length(line);
+		long pos = claim(length);
+		if (pos < 0)
+			return false;
+		int offset = (int) (pos + HEADER) & mask;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < 0x80) {
+				ring[offset] = (byte) c;
+				offset = (offset + 1) & mask;
+			}
+			else if (c < 0x800) {
+				offset = put(offset, 0xC0 | (c >> 6));
+				offset = put(offset, 0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+					&& Character.isLowSurrogate(line.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, line.charAt(++i));
+				offset = put(offset, 0xF0 | (cp >> 18));
+				offset = put(offset, 0x80 | ((cp >> 12) & 0x3F));
+				offset = put(offset, 0x80 | ((cp >> 6) & 0x3F));
+				offset = put(offset, 0x80 | (cp & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) {
+				offset = put(offset, '?');
+			}
+			else {
+				offset = put(offset, 0xE0 | (c >> 12));
+				offset = put(offset, 0x80 | ((c >> 6) & 0x3F));
+				offset = put(offset, 0x80 | (c & 0x3F));
+			}
+		}
+		publish(pos, length);
+		return true;
+	}
+
+	/** Add bytes which are already encoded. */
+	boolean offer(byte[] buf, int off, int length) {
+		long pos = claim(length);
+		if (pos < 0)
+			return false;
+		int offset = (int) (pos + HEADER) & mask;
+		int first = Math.min(length, ring.length - offset);
+		System.arraycopy(buf, off, ring, offset, first);
+		System.arraycopy(buf, off + first, ring, 0, length - first);
+		publish(pos, length);
+		return true;
+	}
+
+	private int put(int offset, int b) {
+		ring[offset] = (byte) b;
+		return (offset + 1) & mask;
+	}
+
+	private static int recordSize(int length) {
+		return (HEADER + length + 3) & ~3;
+	}
+
+	/** @return Where the record starts, or -1 if it doesn't fit. */
+	private long claim(int length) {
+		if (length <= 0)
+			return -1;
+		int size = recordSize(length);
+		while (true) {
+			long pos = claimed.get();
+			if (pos + size - consumed > limit) {
+				droppedLines.increment();
+				droppedBytes.add(length);
+				return -1;
+			}
+			if (claimed.compareAndSet(pos, pos + size))
+				return pos;
+		}
+	}
+
+	private void publish(long pos, int length) {
+		INT.setRelease(ring, (int) pos & mask, length);
+	}
+
+	/**
+	 * Pass complete lines to the sink, in order, until the ring is empty or reaches a line
+	 * which is still being written. Must only be called by one thread at a time.
+	 * @return The number of bytes of lines passed on.
+	 */
+	long drainTo(Sink sink) {
+		long pos = consumed;
+		long total = 0;
+		while (true) {
+			int start = (int) pos & mask;
+			int length = (int) INT.getAcquire(ring, start);
+			if (length == 0)
+				break;
+			int offset = (start + HEADER) & mask;
+			int first = Math.min(length, ring.length - offset);
+			sink.write(ring, offset, first);
+			if (first < length)
+				sink.write(ring, 0, length - first);
+			int size = recordSize(length);
+			int clear = Math.min(size, ring.length - start);
+			Arrays.fill(ring, start, start + clear, (byte) 0);
+			Arrays.fill(ring, 0, size - clear, (byte) 0);
+			pos += size;
+			// Let writers reuse the space as we go.
+			consumed = pos;
+			total += length;
+		}
+		return total;
+	}
+
+	static int utf8Length(CharSequence s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c))
+				length++;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+}
@@ -276,9 +276,10 @@ public abstract class Logger {
 	public static final int INTERNAL = LogLevel.NONE.ordinal();
 
 	/**
-	 * Single global LoggerHook.
+	 * Single global LoggerHook. Only replaced while holding the class lock, but read
+	 * without it, so logging doesn't serialise every thread in the node.
 	 */
-	static Logger logger = new VoidLogger();
+	static volatile Logger logger = new VoidLogger();
 
 	/** Log to standard output. */
 	public synchronized static FileLoggerHook setupStdoutLogging(LogLevel level, String detail)
@@ -314,96 +315,194 @@ public abstract class Logger {
 
 	// These methods log messages at various priorities using the global logger.
 
-	public synchronized static void debug(Class<?> c, String s) {
+	public static void debug(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.DEBUG);
 	}
 
-	public synchronized static void debug(Class<?> c, String s, Throwable t) {
+	public static void debug(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.DEBUG);
 	}
 
-	public synchronized static void debug(Object o, String s) {
+	public static void debug(Object o, String s) {
 		logger.log(o, s, LogLevel.DEBUG);
 	}
 
-	public synchronized static void debug(Object o, String s, Throwable t) {
+	public static void debug(Object o, String s, Throwable t) {
 		logger.log(o, s, t, LogLevel.DEBUG);
 	}
 
-	public synchronized static void error(Class<?> c, String s) {
+	public static void error(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.ERROR);
 	}
 
-	public synchronized static void error(Class<?> c, String s, Throwable t) {
+	public static void error(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.ERROR);
 	}
 
-	public synchronized static void error(Object o, String s) {
+	public static void error(Object o, String s) {
 		logger.log(o, s, LogLevel.ERROR);
 	}
 
-	public synchronized static void error(Object o, String s, Throwable e) {
+	public static void error(Object o, String s, Throwable e) {
 		logger.log(o, s, e, LogLevel.ERROR);
 	}
 
-	public synchronized static void minor(Class<?> c, String s) {
+	public static void minor(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.MINOR);
 	}
 
-	public synchronized static void minor(Object o, String s) {
+	public static void minor(Object o, String s) {
 		logger.log(o, s, LogLevel.MINOR);
 	}
 
-	public synchronized static void minor(Object o, String s, Throwable t) {
+	public static void minor(Object o, String s, Throwable t) {
 		logger.log(o, s, t, LogLevel.MINOR);
 	}
 
-	public synchronized static void minor(Class<?> class1, String string, Throwable t) {
+	public static void minor(Class<?> class1, String string, Throwable t) {
 		logger.log(class1, string, t, LogLevel.MINOR);
 	}
 
-	public synchronized static void normal(Object o, String s) {
+	public static void normal(Object o, String s) {
 		logger.log(o, s, LogLevel.NORMAL);
 	}
 
-	public synchronized static void normal(Object o, String s, Throwable t) {
+	public static void normal(Object o, String s, Throwable t) {
 		logger.log(o, s, t, LogLevel.NORMAL);
 	}
 
-	public synchronized static void normal(Class<?> c, String s) {
+	public static void normal(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.NORMAL);
 	}
 
-	public synchronized static void normal(Class<?> c, String s, Throwable t) {
+	public static void normal(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.NORMAL);
 	}
 
-	public synchronized static void warning(Class<?> c, String s) {
+	public static void warning(Class<?> c, String s) {
 		logger.log(c, s, LogLevel.WARNING);
 	}
 
-	public synchronized static void warning(Class<?> c, String s, Throwable t) {
+	public static void warning(Class<?> c, String s, Throwable t) {
 		logger.log(c, s, t, LogLevel.WARNING);
 	}
 
-	public synchronized static void warning(Object o, String s) {
+	public static void warning(Object o, String s) {
 		logger.log(o, s, LogLevel.WARNING);
 	}
 
-	public synchronized static void warning(Object o, String s, Throwable e) {
+	public static void warning(Object o, String s, Throwable e) {
 		logger.log(o, s, e, LogLevel.WARNING);
 	}
 
-	public synchronized static void logStatic(Object o, String s, LogLevel prio) {
+	// Parameterised versions of the above. The message is only formatted if it will be
+	// logged, so there is no need to check logMINOR first to avoid building it. Each {} in
+	// the format is replaced by the next argument; a Throwable left over at the end is
+	// logged as the exception. The source may be an object or a class.
+
+	public static void debug(Object o, String format, Object arg) {
+		if (shouldLogSource(LogLevel.DEBUG, o))
+			logFormatted(o, LogLevel.DEBUG, format, arg);
+	}
+
+	public static void debug(Object o, String format, Object arg1, Object arg2) {
+		if (shouldLogSource(LogLevel.DEBUG, o))
+			logFormatted(o, LogLevel.DEBUG, format, arg1, arg2);
+	}
+
+	public static void debug(Object o, String format, Object... args) {
+		if (shouldLogSource(LogLevel.DEBUG, o))
+			logFormatted(o, LogLevel.DEBUG, format, args);
+	}
+
+	public static void minor(Object o, String format, Object arg) {
+		if (shouldLogSource(LogLevel.MINOR, o))
+			logFormatted(o, LogLevel.MINOR, format, arg);
+	}
+
+	public static void minor(Object o, String format, Object arg1, Object arg2) {
+		if (shouldLogSource(LogLevel.MINOR, o))
+			logFormatted(o, LogLevel.MINOR, format, arg1, arg2);
+	}
+
+	public static void minor(Object o, String format, Object... args) {
+		if (shouldLogSource(LogLevel.MINOR, o))
+			logFormatted(o, LogLevel.MINOR, format, args);
+	}
+
+	public static void normal(Object o, String format, Object arg) {
+		if (shouldLogSource(LogLevel.NORMAL, o))
+			logFormatted(o, LogLevel.NORMAL, format, arg);
+	}
+
+	public static void normal(Object o, String format, Object arg1, Object arg2) {
+		if (shouldLogSource(LogLevel.NORMAL, o))
+			logFormatted(o, LogLevel.NORMAL, format, arg1, arg2);
+	}
+
+	public static void normal(Object o, String format, Object... args) {
+		if (shouldLogSource(LogLevel.NORMAL, o))
+			logFormatted(o, LogLevel.NORMAL, format, args);
+	}
+
+	public static void warning(Object o, String format, Object arg) {
+		if (shouldLogSource(LogLevel.WARNING, o))
+			logFormatted(o, LogLevel.WARNING, format, arg);
+	}
+
+	public static void warning(Object o, String format, Object arg1, Object arg2) {
+		if (shouldLogSource(LogLevel.WARNING, o))
+			logFormatted(o, LogLevel.WARNING, format, arg1, arg2);
+	}
+
+	public static void warning(Object o, String format, Object... args) {
+		if (shouldLogSource(LogLevel.WARNING, o))
+			logFormatted(o, LogLevel.WARNING, format, args);
+	}
+
+	public static void error(Object o, String format, Object arg) {
+		if (shouldLogSource(LogLevel.ERROR, o))
+			logFormatted(o, LogLevel.ERROR, format, arg);
+	}
+
+	public static void error(Object o, String format, Object arg1, Object arg2) {
+		if (shouldLogSource(LogLevel.ERROR, o))
+			logFormatted(o, LogLevel.ERROR, format, arg1, arg2);
+	}
+
+	public static void error(Object o, String format, Object... args) {
+		if (shouldLogSource(LogLevel.ERROR, o))
+			logFormatted(o, LogLevel.ERROR, format, args);
+	}
+
+	private static boolean shouldLogSource(LogLevel priority, Object o) {
+		Class<?> c = (o instanceof Class) ? (Class<?>) o : (o == null ? null : o.getClass());
+		return logger.instanceShouldLog(priority, c);
+	}
+
+	private static void logFormatted(Object o, LogLevel priority, String format, Object... args) {
+		Throwable t = null;
+		String message = LogFormat.format(format, args);
+		if (args.length > 0 && args[args.length - 1] instanceof Throwable
+				&& LogFormat.countPlaceholders(format) < args.length)
+			t = (Throwable) args[args.length - 1];
+		Logger l = logger;
+		if (o instanceof Class)
+			l.log((Class<?>) o, message, t, priority);
+		else
+			l.log(o, message, t, priority);
+	}
+
+	public static void logStatic(Object o, String s, LogLevel prio) {
 		logger.log(o, s, prio);
 	}
 
-	public synchronized static void logStatic(Object o, String s, Throwable e, LogLevel prio) {
+	public static void logStatic(Object o, String s, Throwable e, LogLevel prio) {
 		logger.log(o, s, e, prio);
 	}
 
 	@Deprecated
-	public synchronized static void logStatic(Object o, String s, int prio) {
+	public static void logStatic(Object o, String s, int prio) {
 		logStatic(o, s, LogLevel.fromOrdinal(prio));
 	}
 
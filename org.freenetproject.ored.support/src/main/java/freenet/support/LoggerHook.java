@@ -6,7 +6,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class LoggerHook extends Logger {
 
-	protected LogLevel threshold;
+	protected volatile LogLevel threshold;
 
 	public static final class DetailedThreshold {
 
@@ -29,7 +29,8 @@ public abstract class LoggerHook extends Logger {
 		this.threshold = parseThreshold(thresh.toUpperCase());
 	}
 
-	public DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
+	/** Replaced, never modified, so it can be read without locking on every log call. */
+	public volatile DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
 
 	private CopyOnWriteArrayList<LogThresholdCallback> thresholdsCallbacks = new CopyOnWriteArrayList<LogThresholdCallback>();
 
@@ -148,17 +149,12 @@ public abstract class LoggerHook extends Logger {
 		}
 		DetailedThreshold[] newThresholds = new DetailedThreshold[stuff.size()];
 		stuff.toArray(newThresholds);
-		synchronized (this) {
-			detailedThresholds = newThresholds;
-		}
+		detailedThresholds = newThresholds;
 		notifyLogThresholdCallbacks();
 	}
 
 	public String getDetailedThresholds() {
-		DetailedThreshold[] thresh = null;
-		synchronized (this) {
-			thresh = detailedThresholds;
-		}
+		DetailedThreshold[] thresh = detailedThresholds;
 		if (thresh.length == 0)
 			return "";
 		StringBuilder sb = new StringBuilder();
@@ -186,12 +182,8 @@ public abstract class LoggerHook extends Logger {
 
 	@Override
 	public boolean instanceShouldLog(LogLevel priority, Class<?> c) {
-		DetailedThreshold[] thresholds;
-		LogLevel thresh;
-		synchronized (this) {
-			thresholds = detailedThresholds;
-			thresh = threshold;
-		}
+		DetailedThreshold[] thresholds = detailedThresholds;
+		LogLevel thresh = threshold;
 		if ((c != null) && (thresholds.length > 0)) {
 			String cname = c.getName();
 			for (DetailedThreshold dt : thresholds) {
@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.support.node.BlockingRunnable;
+
+/**
+ * Threads waiting for some state to change, parked with {@link LockSupport} rather than
+ * waiting on a monitor. Object.wait() pins a virtual thread to its carrier thread for as
+ * long as it waits, so code which may run in a {@link BlockingRunnable} should wait like
+ * this instead:
+ *
+ * <pre>
+ * waiters.add();
+ * try {
+ * 	while (true) {
+ * 		synchronized (lock) {
+ * 			if (done)
+ * 				break;
+ * 		}
+ * 		waiters.park(this, timeout);
+ * 	}
+ * }
+ * finally {
+ * 	waiters.remove();
+ * }
+ * </pre>
+ *
+ * Whoever changes the state calls {@link #wakeAll()}. A wakeAll() between checking the
+ * state and parking is not lost, because unparking a thread before it parks makes the
+ * park return immediately. Works for platform threads too.
+ */
+public final class ParkedWaiters {
+
+	private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+	/** Start waiting. Call before checking the state for the first time. */
+	public void add() {
+		threads.add(Thread.currentThread());
+	}
+
+	/** Stop waiting. */
+	public void remove() {
+		threads.remove(Thread.currentThread());
+	}
+
+	/**
+	 * Park until woken, interrupted or the timeout expires. May also return for no reason,
+	 * so the caller must check the state again. Must not be called while holding the lock
+	 * protecting the state, or whoever changes it will block until we return.
+	 * @param blocker The object we are waiting on, for thread dumps.
+	 * @param timeout Maximum time to park, in milliseconds. Doesn't park if not positive.
+	 * @return True if we were interrupted. Clears the interrupted status, as
+	 * Object.wait() does when it throws.
+	 */
+	public boolean park(Object blocker, long timeout) {
+		if (timeout > 0)
+			LockSupport.parkNanos(blocker, MILLISECONDS.toNanos(timeout));
+		return Thread.interrupted();
+	}
+
+	/** Wake everything waiting. */
+	public void wakeAll() {
+		for (Thread thread : threads)
+			LockSupport.unpark(thread);
+	}
+
+}
@@ -5,10 +5,15 @@ package freenet.support;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 
+import freenet.support.node.BlockingRunnable;
 import freenet.support.node.PrioRunnable;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
@@ -17,6 +22,16 @@ import freenet.support.io.NativeThread;
  * Pooled Executor implementation. Create a thread when we need one, let them die after 5
  * minutes of inactivity.
  *
+ * Optionally, jobs which implement {@link BlockingRunnable} are run on virtual threads
+ * instead, if the JVM supports them (Java 21+). These spend most of their life waiting for
+ * messages from other nodes, so a pooled thread each costs a lot of memory and OS threads
+ * for little work. The JDK does not let us choose which carrier threads a virtual thread
+ * runs on, so priorities are not enforced for virtual threads: they all share the JVM's
+ * carrier pool, and anything CPU-heavy they do should be handed back to execute() at its
+ * own priority. Jobs above {@link NativeThread#HIGH_PRIORITY} always get a real thread.
+ * Virtual threads are still counted by priority in {@link #runningThreads()}, and listed
+ * by {@link #getVirtualThreads()} since they are not in any thread group.
+ *
  * @author toad
  */
 public class PooledExecutor implements Executor {
@@ -38,6 +53,22 @@ public class PooledExecutor implements Executor {
 
 	private static boolean logMINOR;
 
+	/** Creates virtual threads, or null if the JVM doesn't support them. */
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+	/** Thread.isVirtual(), or null if the JVM doesn't have it. */
+	private static final Method IS_VIRTUAL = getIsVirtual();
+
+	private volatile boolean useVirtualThreads;
+
+	/** Virtual threads running a job at each priority level */
+	private final int[] virtualThreadsRunning = new int[runningThreads.length];
+
+	/** Virtual threads currently running, and their jobs' priorities */
+	private final Map<Thread, Integer> virtualThreads = new ConcurrentHashMap<Thread, Integer>();
+
+	private final AtomicLong virtualThreadCounter = new AtomicLong();
+
 	// Ticker thread that runs at maximum priority.
 	private Ticker ticker;
 
@@ -61,6 +92,64 @@ public class PooledExecutor implements Executor {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	private static ThreadFactory createVirtualThreadFactory() {
+		// Thread.ofVirtual().factory(), by reflection because we still build for Java 17.
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			// Older JVM, or a preview feature that isn't enabled.
+			return null;
+		}
+	}
+
+	private static Method getIsVirtual() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/** @return True if this JVM can run jobs on virtual threads. */
+	public static boolean virtualThreadsAvailable() {
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+
+	/** @return True if the thread is a virtual thread. */
+	public static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		}
+		catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Run {@link BlockingRunnable} jobs on virtual threads from now on. Ignored if the JVM
+	 * doesn't support them. Jobs already running are not affected.
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		if (useVirtualThreads && !virtualThreadsAvailable())
+			Logger.normal(this, "Virtual threads are not available in this JVM, using pooled threads");
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	/** @return True if we have been asked to use virtual threads, whether or not we can. */
+	public boolean getUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	/** @return True if blocking jobs are being run on virtual threads. */
+	public boolean usingVirtualThreads() {
+		return useVirtualThreads && virtualThreadsAvailable();
+	}
+
 	@Override
 	public void execute(Runnable job) {
 		execute(job, "<noname>");
@@ -82,6 +171,12 @@ public class PooledExecutor implements Executor {
 		if (prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
 			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
 
+		if (useVirtualThreads && VIRTUAL_THREAD_FACTORY != null && runnable instanceof BlockingRunnable
+				&& prio <= NativeThread.PriorityLevel.HIGH_PRIORITY.value) {
+			executeVirtual(runnable, jobName, prio);
+			return;
+		}
+
 		Job job = new Job(runnable, jobName);
 		while (true) {
 			MyThread t = null;
@@ -152,14 +247,82 @@ public class PooledExecutor implements Executor {
 		}
 	}
 
+	/** Start a new virtual thread for the job. Virtual threads are never reused. */
+	private void executeVirtual(final Runnable runnable, String jobName, final int prio) {
+		Thread thread = VIRTUAL_THREAD_FACTORY.newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					runnable.run();
+				}
+				catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + runnable, t);
+				}
+				finally {
+					virtualThreads.remove(Thread.currentThread());
+					synchronized (PooledExecutor.this) {
+						virtualThreadsRunning[prio - 1]--;
+					}
+				}
+			}
+
+		});
+		// Will be coalesced with the pooled threads running the same jobs by thread
+		// count listings.
+		thread.setName(jobName + "(virtual " + virtualThreadCounter.getAndIncrement() + ")");
+		virtualThreads.put(thread, prio);
+		synchronized (this) {
+			jobCount++;
+			virtualThreadsRunning[prio - 1]++;
+		}
+		if (logMINOR)
+			Logger.minor(this, "Starting virtual thread for " + jobName + " at prio " + prio);
+		// Counted before starting, so the job can't finish before it has been counted.
+		try {
+			thread.start();
+		}
+		catch (Throwable t) {
+			virtualThreads.remove(thread);
+			synchronized (this) {
+				jobCount--;
+				virtualThreadsRunning[prio - 1]--;
+			}
+			throw t;
+		}
+	}
+
 	@Override
 	public synchronized int[] runningThreads() {
 		int[] result = new int[runningThreads.length];
 		for (int i = 0; i < result.length; i++)
-			result[i] = runningThreads[i] - waitingThreads[i].size();
+			result[i] = runningThreads[i] - waitingThreads[i].size() + virtualThreadsRunning[i];
 		return result;
 	}
 
+	/** @return The number of jobs currently running on virtual threads. */
+	public int getVirtualThreadCount() {
+		return virtualThreads.size();
+	}
+
+	/**
+	 * @return The virtual threads currently running jobs. These are not in any thread
+	 * group, so won't be found by enumerating threads.
+	 */
+	public Thread[] getVirtualThreads() {
+		return virtualThreads.keySet().toArray(new Thread[0]);
+	}
+
+	/**
+	 * @return The priority of the job the thread is running, if it is one of our virtual
+	 * threads, since virtual threads ignore setPriority(). Otherwise the thread's own
+	 * priority.
+	 */
+	public int getPriority(Thread thread) {
+		Integer prio = virtualThreads.get(thread);
+		return prio != null ? prio : thread.getPriority();
+	}
+
 	@Override
 	public synchronized int[] waitingThreads() {
 		int[] result = new int[waitingThreads.length];
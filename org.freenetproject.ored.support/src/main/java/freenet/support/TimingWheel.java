@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: schedules items to expire at a given time, with O(1) cost to
+ * schedule and amortized O(1) cost per item to expire, however many items there are.
+ * Times are rounded up to a whole number of ticks, so items are never returned early, but
+ * may be returned up to one tick late.
+ *
+ * Each level has the same number of slots, and each slot on a level covers as many ticks
+ * as the whole of the level below. Items go on the lowest level that covers their
+ * deadline, and move down a level when the wheel reaches their slot. Items due later
+ * than the whole wheel covers go in the last slot and are rescheduled when they reach
+ * the bottom.
+ *
+ * There is no way to cancel an item: the caller should check whether an expired item is
+ * still relevant, and reschedule it if necessary. Not thread-safe, the caller must lock.
+ */
+public class TimingWheel<T> {
+
+	private final long tickLength;
+
+	private final int slotBits;
+
+	private final int slotMask;
+
+	/** [level][slot]. Null until something is put in the slot. */
+	private final List<Timer<T>>[][] slots;
+
+	/** Everything up to and including this tick has been expired. */
+	private long currentTick;
+
+	/** Scheduled for a tick that has already passed, returned by the next advance(). */
+	private List<T> due = new ArrayList<T>();
+
+	private int size;
+
+	private static final class Timer<T> {
+
+		final T item;
+
+		final long tick;
+
+		Timer(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+
+	}
+
+	/**
+	 * @param tickLength Length of a tick, in the same units as the times passed in.
+	 * @param slotBits log2 of the number of slots on each level.
+	 * @param levels Number of levels. The wheel covers tickLength * 2^(slotBits * levels).
+	 * @param now The current time.
+	 */
+	public TimingWheel(long tickLength, int slotBits, int levels, long now) {
+		if (tickLength <= 0 || slotBits <= 0 || levels <= 0 || slotBits * levels >= 62)
+			throw new IllegalArgumentException();
+		this.tickLength = tickLength;
+		this.slotBits = slotBits;
+		this.slotMask = (1 << slotBits) - 1;
+		this.slots = newSlots(levels, 1 << slotBits);
+		this.currentTick = now / tickLength;
+	}
+
+	/** Java can't create a generic array, so create a raw one. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> List<Timer<T>>[][] newSlots(int levels, int slotsPerLevel) {
+		return new List[levels][slotsPerLevel];
+	}
+
+	/** Expire the item at or shortly after the given time. */
+	public void schedule(T item, long deadline) {
+		long tick = deadline / tickLength;
+		if (tick * tickLength < deadline)
+			tick++;
+		add(new Timer<T>(item, tick));
+		size++;
+	}
+
+	private void add(Timer<T> timer) {
+		long delta = timer.tick - currentTick;
+		if (delta <= 0) {
+			due.add(timer.item);
+			return;
+		}
+		int levels = slots.length;
+		long tick = timer.tick;
+		int level = 0;
+		while (level < levels - 1 && delta >= (1L << (slotBits * (level + 1))))
+			level++;
+		if (delta >= (1L << (slotBits * levels)))
+			// Too far ahead. Put it in the furthest slot, it will be rescheduled from
+			// there.
+			tick = currentTick + (1L << (slotBits * levels)) - 1;
+		int slot = (int) (tick >>> (slotBits * level)) & slotMask;
+		List<Timer<T>> list = slots[level][slot];
+		if (list == null)
+			slots[level][slot] = list = new ArrayList<Timer<T>>();
+		list.add(timer);
+	}
+
+	/**
+	 * Move the wheel forward to the given time.
+	 * @return Everything whose deadline has passed, in no particular order.
+	 */
+	public List<T> advance(long now) {
+		long targetTick = now / tickLength;
+		while (currentTick < targetTick) {
+			long tick = ++currentTick;
+			// Move items down from any higher level slots we have just reached.
+			for (int level = slots.length - 1; level > 0; level--) {
+				if ((tick & ((1L << (slotBits * level)) - 1)) != 0)
+					continue;
+				int slot = (int) (tick >>> (slotBits * level)) & slotMask;
+				List<Timer<T>> list = slots[level][slot];
+				if (list == null)
+					continue;
+				slots[level][slot] = null;
+				for (Timer<T> timer : list)
+					add(timer);
+			}
+			int slot = (int) tick & slotMask;
+			List<Timer<T>> list = slots[0][slot];
+			if (list == null)
+				continue;
+			slots[0][slot] = null;
+			for (Timer<T> timer : list)
+				add(timer);
+		}
+		List<T> ret = due;
+		size -= ret.size();
+		due = new ArrayList<T>();
+		return ret;
+	}
+
+	/** Number of items scheduled and not yet returned by advance(). */
+	public int size() {
+		return size;
+	}
+
+}
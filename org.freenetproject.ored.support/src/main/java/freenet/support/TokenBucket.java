@@ -1,12 +1,22 @@
 package freenet.support;
 
-import freenet.support.Logger.LogLevel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Token bucket. Can be used for e.g. bandwidth limiting. Tokens are added once per tick.
+ *
+ * The bucket does not lock. Its whole state is the time at which it would be empty: the
+ * balance is the number of ticks between then and now, and no more than the maximum. A
+ * grab moves that time forward by one tick per token, with a single compare-and-set,
+ * so tokens are added according to System.nanoTime() as they are needed rather than by
+ * a separate refill. A blocking grab makes its reservation the same way and then sleeps
+ * until its tokens have been added, so waiting threads get their tokens in the order in
+ * which they asked for them. Changing the rate or the size briefly takes the state out
+ * of use, so that no grab sees the old state with the new parameters.
  */
 @Deprecated
 public class TokenBucket {
@@ -15,13 +25,48 @@ public class TokenBucket {
 	static {
 		LoggerHook.registerClass(TokenBucket.class);
 	}
-	protected long current;
 
-	protected long max;
+	/** Value of {@link #emptyAt} while the rate or size is being changed. */
+	private static final long CHANGING = Long.MIN_VALUE;
 
-	protected long timeLastTick;
+	/** Time, in nanoTime() terms, at which the balance was or will be zero. */
+	private final AtomicLong emptyAt;
 
-	protected long nanosPerTick;
+	private volatile Params params;
+
+	private final LongAdder grabs = new LongAdder();
+
+	private final LongAdder casRetries = new LongAdder();
+
+	private final LongAdder blockingWaits = new LongAdder();
+
+	private final LongAdder blockingWaitNanos = new LongAdder();
+
+	private static final class Params {
+
+		final long max;
+
+		final long nanosPerTick;
+
+		Params(long max, long nanosPerTick) {
+			if (nanosPerTick <= 0)
+				throw new IllegalArgumentException();
+			if (max <= 0)
+				throw new IllegalArgumentException();
+			this.max = max;
+			this.nanosPerTick = nanosPerTick;
+		}
+
+		/** The earliest emptyAt, i.e. a full bucket. */
+		long full(long now) {
+			return now - max * nanosPerTick;
+		}
+
+		long balance(long emptyAt, long now) {
+			return Math.floorDiv(now - Math.max(emptyAt, full(now)), nanosPerTick);
+		}
+
+	}
 
 	/**
 	 * Create a token bucket.
@@ -29,20 +74,35 @@ public class TokenBucket {
 	 * @param nanosPerTick The number of nanoseconds between ticks.
 	 */
 	public TokenBucket(long max, long nanosPerTick, long initialValue) {
-		this.max = max;
-		this.current = initialValue;
-		if (current > max) {
-			Logger.error(this, "initial value (" + current + ") > max (" + max + ") in " + this,
+		params = new Params(max, nanosPerTick);
+		if (initialValue > max) {
+			Logger.error(this, "initial value (" + initialValue + ") > max (" + max + ") in " + this,
 					new Exception("error"));
-			current = max;
+			initialValue = max;
 		}
-		this.nanosPerTick = nanosPerTick;
-		long now = System.currentTimeMillis();
-		this.timeLastTick = NANOSECONDS.convert(now, MILLISECONDS);
-		if (nanosPerTick <= 0)
-			throw new IllegalArgumentException();
-		if (max <= 0)
-			throw new IllegalArgumentException();
+		emptyAt = new AtomicLong(nanoTime() - initialValue * nanosPerTick);
+	}
+
+	/** The clock. Tests may override this. */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/** Read the state, waiting if the rate or size is being changed. */
+	private long state() {
+		while (true) {
+			long state = emptyAt.get();
+			if (state != CHANGING)
+				return state;
+			Thread.onSpinWait();
+		}
+	}
+
+	private boolean update(long oldState, long newState) {
+		if (emptyAt.compareAndSet(oldState, newState))
+			return true;
+		casRetries.increment();
+		return false;
 	}
 
 	/**
@@ -50,20 +110,25 @@ public class TokenBucket {
 	 * @param tokens The number of tokens to grab.
 	 * @return True if we could acquire the tokens.
 	 */
-	public synchronized boolean instantGrab(long tokens) {
+	public boolean instantGrab(long tokens) {
 		if (tokens < 0)
 			throw new IllegalArgumentException("Can't grab negative tokens: " + tokens);
-		if (logMINOR)
-			Logger.minor(this, "instant grab: " + tokens + " current=" + current + " max=" + max);
-		addTokens();
-		if (logMINOR)
-			Logger.minor(this, "instant grab: " + tokens + " current=" + current + " max=" + max);
-		if (current >= tokens) {
-			current -= tokens;
-			return true;
-		}
-		else {
-			return false;
+		grabs.increment();
+		while (true) {
+			long old = state();
+			Params p = params;
+			long now = nanoTime();
+			long updated = Math.max(old, p.full(now)) + tokens * p.nanosPerTick;
+			if (updated > now) {
+				if (logMINOR)
+					Logger.minor(this, "instant grab: " + tokens + " failed, current=" + p.balance(old, now));
+				return false;
+			}
+			if (update(old, updated)) {
+				if (logMINOR)
+					Logger.minor(this, "instant grab: " + tokens + " current=" + p.balance(updated, now));
+				return true;
+			}
 		}
 	}
 
@@ -72,22 +137,22 @@ public class TokenBucket {
 	 * @param tokens The number of tokens to grab.
 	 * @return The number of tokens grabbed.
 	 */
-	public synchronized long partialInstantGrab(long tokens) {
+	public long partialInstantGrab(long tokens) {
 		if (tokens < 0)
 			throw new IllegalArgumentException("Can't grab negative tokens: " + tokens);
-		if (logMINOR)
-			Logger.minor(this, "instant grab: " + tokens + " current=" + current + " max=" + max);
-		addTokens();
-		if (logMINOR)
-			Logger.minor(this, "instant grab: " + tokens + " current=" + current + " max=" + max);
-		if (current >= tokens) {
-			current -= tokens;
-			return tokens;
-		}
-		else {
-			tokens = current;
-			current = 0;
-			return tokens;
+		grabs.increment();
+		while (true) {
+			long old = state();
+			Params p = params;
+			long now = nanoTime();
+			long grabbed = Math.max(0, Math.min(tokens, p.balance(old, now)));
+			if (grabbed == 0)
+				return 0;
+			if (update(old, Math.max(old, p.full(now)) + grabbed * p.nanosPerTick)) {
+				if (logMINOR)
+					Logger.minor(this, "partial instant grab: " + grabbed + " of " + tokens);
+				return grabbed;
+			}
 		}
 	}
 
@@ -95,44 +160,61 @@ public class TokenBucket {
 	 * Remove tokens, without blocking, even if it causes the balance to go negative.
 	 * @param tokens The number of tokens to remove.
 	 */
-	public synchronized void forceGrab(long tokens) {
+	public void forceGrab(long tokens) {
 		if (tokens < 0)
 			throw new IllegalArgumentException("Can't grab negative tokens: " + tokens);
 		if (logMINOR)
 			Logger.minor(this, "forceGrab(" + tokens + ")");
-		addTokens();
-		current -= tokens;
-		if (logMINOR)
-			Logger.minor(this, "Removed tokens, balance now " + current);
+		grabs.increment();
+		innerForceGrab(tokens);
 	}
 
-	public synchronized long count() {
-		return current;
+	/** @return The new emptyAt. */
+	private long innerForceGrab(long tokens) {
+		while (true) {
+			long old = state();
+			Params p = params;
+			long now = nanoTime();
+			long updated = Math.max(old, p.full(now)) + tokens * p.nanosPerTick;
+			if (update(old, updated)) {
+				if (logMINOR)
+					Logger.minor(this, "Removed tokens, balance now " + p.balance(updated, now));
+				return updated;
+			}
+		}
+	}
+
+	/**
+	 * Get the current number of available tokens. The same as getCount(), as tokens are
+	 * always up to date.
+	 */
+	public long count() {
+		return getCount();
 	}
 
 	/**
 	 * Get the current number of available tokens.
 	 */
-	public synchronized long getCount() {
-		addTokens();
-		return current;
+	public long getCount() {
+		long state = state();
+		return params.balance(state, nanoTime());
 	}
 
 	protected long offset() {
 		return 0;
 	}
 
-	public synchronized void blockingGrab(long tokens) {
+	public void blockingGrab(long tokens) {
 		if (tokens < 0)
 			throw new IllegalArgumentException("Can't grab negative tokens: " + tokens);
-		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		if (logMINOR)
 			Logger.minor(this, "Blocking grab: " + tokens);
+		long max = params.max;
 		if (tokens < max)
 			innerBlockingGrab(tokens);
 		else {
-			for (int i = 0; i < tokens; i += max) {
-				innerBlockingGrab(Math.min(tokens, max));
+			for (long i = 0; i < tokens; i += max) {
+				innerBlockingGrab(Math.min(tokens - i, max));
 			}
 		}
 	}
@@ -141,142 +223,137 @@ public class TokenBucket {
 	 * Grab a bunch of tokens. Block if necessary.
 	 * @param tokens The number of tokens to grab.
 	 */
-	public synchronized void innerBlockingGrab(long tokens) {
+	public void innerBlockingGrab(long tokens) {
 		if (tokens < 0)
 			throw new IllegalArgumentException("Can't grab negative tokens: " + tokens);
 		if (logMINOR)
 			Logger.minor(this, "Inner blocking grab: " + tokens);
-		addTokens();
-		if (logMINOR)
-			Logger.minor(this, "current=" + current);
-
-		current -= tokens;
-
-		if (current >= 0) {
+		grabs.increment();
+		long wakeAt = innerForceGrab(tokens);
+		long now = nanoTime();
+		if (wakeAt <= now) {
 			if (logMINOR)
-				Logger.minor(this, "Got tokens instantly, current=" + current);
+				Logger.minor(this, "Got tokens instantly");
 			return;
 		}
-		else {
-			if (logMINOR)
-				Logger.minor(this, "Blocking grab removed tokens, current=" + current
-						+ " - will have to wait because negative...");
-		}
-
-		long minDelayNS = nanosPerTick * (-current);
-		long minDelayMS = MILLISECONDS.convert(minDelayNS + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
-		long now = System.currentTimeMillis();
-		long wakeAt = now + minDelayMS;
-
 		if (logMINOR)
-			Logger.minor(this, "Waking in " + minDelayMS + " millis");
-
+			Logger.minor(this, "Blocking grab removed tokens, will have to wait "
+					+ MILLISECONDS.convert(wakeAt - now, NANOSECONDS) + "ms because negative...");
+		blockingWaits.increment();
+		long start = now;
 		while (true) {
-			now = System.currentTimeMillis();
-			int delay = (int) Math.min(Integer.MAX_VALUE, wakeAt - now);
+			long delay = wakeAt - now;
 			if (delay <= 0)
 				break;
-			if (logMINOR)
-				Logger.minor(this, "Waiting " + delay + "ms");
 			try {
-				wait(delay);
+				NANOSECONDS.sleep(delay);
 			}
 			catch (InterruptedException e) {
 				// Go around the loop again.
 			}
+			now = nanoTime();
 		}
+		blockingWaitNanos.add(now - start);
 		if (logMINOR)
-			Logger.minor(this, "Blocking grab finished: current=" + current);
+			Logger.minor(this, "Blocking grab finished: current=" + getCount());
 	}
 
-	public synchronized void recycle(long tokens) {
+	public void recycle(long tokens) {
 		if (tokens < 0)
 			throw new IllegalArgumentException("Can't recycle negative tokens: " + tokens);
-		current += tokens;
-		if (current > max)
-			current = max;
+		while (true) {
+			long old = state();
+			Params p = params;
+			if (update(old, Math.max(old - tokens * p.nanosPerTick, p.full(nanoTime()))))
+				return;
+		}
 	}
 
 	/**
 	 * Change the number of nanos per tick.
 	 * @param nanosPerTick The new number of nanos per tick.
 	 */
-	public synchronized void changeNanosPerTick(long nanosPerTick) {
-		if (nanosPerTick <= 0)
-			throw new IllegalArgumentException();
-		// Synchronize up first, using the old nanosPerTick.
-		addTokens();
-		this.nanosPerTick = nanosPerTick;
-		if (nanosPerTick < this.nanosPerTick)
-			notifyAll();
+	public void changeNanosPerTick(long nanosPerTick) {
+		change(nanosPerTick, 0, true);
 	}
 
-	public synchronized void changeBucketSize(long newMax) {
-		if (newMax <= 0)
-			throw new IllegalArgumentException();
-		max = newMax;
-		addTokens();
+	public void changeBucketSize(long newMax) {
+		change(0, newMax, true);
 	}
 
-	public synchronized void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
+	public void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
 		if (nanosPerTick <= 0)
 			throw new IllegalArgumentException();
 		if (newMax <= 0)
 			throw new IllegalArgumentException();
-		// Synchronize up first, using the old nanosPerTick.
-		addTokensNoClip();
-		if (nanosPerTick < this.nanosPerTick)
-			notifyAll();
-		this.nanosPerTick = nanosPerTick;
-		this.max = newMax;
-		if (current > max)
-			current = max;
+		change(nanosPerTick, newMax, false);
 	}
 
-	public synchronized void addTokens() {
-		addTokensNoClip();
-		if (current > max)
-			current = max;
+	/**
+	 * Change the rate and/or the size, keeping the balance.
+	 * @param nanosPerTick The new nanos per tick, or 0 to keep it.
+	 * @param newMax The new maximum, or 0 to keep it.
+	 * @param clipToOldMax If false, tokens added at the old rate count up to the new
+	 * maximum rather than the old one.
+	 */
+	private synchronized void change(long nanosPerTick, long newMax, boolean clipToOldMax) {
+		Params old = params;
+		Params p = new Params(newMax == 0 ? old.max : newMax,
+				nanosPerTick == 0 ? old.nanosPerTick : nanosPerTick);
+		long state;
+		while (true) {
+			state = state();
+			if (emptyAt.compareAndSet(state, CHANGING))
+				break;
+		}
+		long now = nanoTime();
+		long balance;
+		if (clipToOldMax)
+			balance = old.balance(state, now);
+		else
+			balance = Math.floorDiv(now - state, old.nanosPerTick);
+		balance = Math.min(balance, p.max);
+		params = p;
+		emptyAt.set(now - balance * p.nanosPerTick);
 		if (logMINOR)
-			Logger.minor(this, "addTokens: Clipped, current=" + current);
+			Logger.minor(this, "Changed to max=" + p.max + " nanosPerTick=" + p.nanosPerTick + " current=" + balance);
 	}
 
 	/**
-	 * Update the number of tokens according to elapsed time.
+	 * Clip the balance to the maximum. Not normally needed, as tokens are added when they
+	 * are used.
 	 */
-	public synchronized void addTokensNoClip() {
-		long add = tokensToAdd();
-		current += add;
-		timeLastTick += add * nanosPerTick;
-		if (logMINOR)
-			Logger.minor(this, "addTokensNoClip: Added " + add + " tokens, current=" + current);
-		// Deliberately do not clip to size at this point; caller must do this, but it is
-		// usually beneficial for the caller to do so.
+	public void addTokens() {
+		while (true) {
+			long old = state();
+			long full = params.full(nanoTime());
+			if (old >= full || update(old, full))
+				return;
+		}
 	}
 
-	synchronized long tokensToAdd() {
-		long nowNS = NANOSECONDS.convert(System.currentTimeMillis(), MILLISECONDS);
-		if (timeLastTick > nowNS) {
-			System.err.println("CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "
-					+ TimeUtil.formatTime(MILLISECONDS.convert(timeLastTick - nowNS, NANOSECONDS), 2, true));
-			System.err.println("FREENET WILL BREAK SEVERELY IF THIS KEEPS HAPPENING!");
-			Logger.error(this, "CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "
-					+ TimeUtil.formatTime(MILLISECONDS.convert(timeLastTick - nowNS, NANOSECONDS), 2, true));
-			timeLastTick = nowNS;
-			return 0;
-		}
-		long nextTick = timeLastTick + nanosPerTick;
-		if (nextTick > nowNS) {
-			return 0;
-		}
-		if (nextTick + nanosPerTick > nowNS) {
-			return 1;
-		}
-		return (nowNS - nextTick) / nanosPerTick;
+	public long getNanosPerTick() {
+		return params.nanosPerTick;
+	}
+
+	/** @return The number of grabs since startup. */
+	public long getGrabs() {
+		return grabs.sum();
+	}
+
+	/** @return The number of times a grab had to retry because another thread got in first. */
+	public long getContentionRetries() {
+		return casRetries.sum();
+	}
+
+	/** @return The number of blocking grabs which had to wait. */
+	public long getBlockingWaits() {
+		return blockingWaits.sum();
 	}
 
-	public synchronized long getNanosPerTick() {
-		return nanosPerTick;
+	/** @return The total time spent waiting in blocking grabs, in nanoseconds. */
+	public long getBlockingWaitNanos() {
+		return blockingWaitNanos.sum();
 	}
 
 }
@@ -0,0 +1,164 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * A Ticker with its own clock, which only moves when {@link #advance(long)} or
+ * {@link #advanceTo(long)} is called. Jobs are run in order of time, and of queueing for
+ * the same time, on the thread advancing the clock, so a simulation driven by it is
+ * deterministic and runs as fast as the jobs do rather than in real time.
+ *
+ * Only code which takes the time from {@link #currentTimeMillis()} rather than the system
+ * clock can be simulated like this.
+ */
+public class VirtualTicker implements Ticker {
+
+	private static final class Job implements Comparable<Job> {
+
+		final Runnable job;
+
+		final long time;
+
+		final long seq;
+
+		Job(Runnable job, long time, long seq) {
+			this.job = job;
+			this.time = time;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if (time != o.time)
+				return time < o.time ? -1 : 1;
+			return Long.compare(seq, o.seq);
+		}
+
+	}
+
+	private final Executor executor;
+
+	private final PriorityQueue<Job> jobs = new PriorityQueue<Job>();
+
+	/** How many of each job are queued, for noDupes and removeQueuedJob. */
+	private final HashMap<Runnable, Integer> queued = new HashMap<Runnable, Integer>();
+
+	private long now;
+
+	private long seq;
+
+	/**
+	 * @param executor Returned by {@link #getExecutor()}; jobs queued on the ticker are run
+	 * by the thread advancing the clock, not by this.
+	 * @param startTime The time to start the clock at.
+	 */
+	public VirtualTicker(Executor executor, long startTime) {
+		this.executor = executor;
+		this.now = startTime;
+	}
+
+	/** The current virtual time, in milliseconds. */
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, null, offset, true, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		synchronized (this) {
+			queueTimedJobAbsolute(job, name, now + Math.max(0, offset), runOnTickerAnyway, noDupes);
+		}
+	}
+
+	@Override
+	public synchronized void queueTimedJobAbsolute(Runnable job, String name, long time, boolean runOnTickerAnyway,
+			boolean noDupes) {
+		Integer count = queued.get(job);
+		if (noDupes && count != null)
+			return;
+		queued.put(job, count == null ? 1 : count + 1);
+		jobs.add(new Job(job, Math.max(time, now), seq++));
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** Remove all queued copies of a job. */
+	@Override
+	public synchronized void removeQueuedJob(Runnable job) {
+		if (queued.remove(job) != null)
+			jobs.removeIf(j -> j.job == job);
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public synchronized int queuedJobs() {
+		return jobs.size();
+	}
+
+	/** Move the clock forward, running every job which becomes due. */
+	public void advance(long millis) {
+		long target;
+		synchronized (this) {
+			target = now + millis;
+		}
+		advanceTo(target);
+	}
+
+	/**
+	 * Move the clock forward to the given time, running every job due by then, including
+	 * those the jobs queue. The clock is set to each job's time while it runs.
+	 */
+	public void advanceTo(long time) {
+		while (true) {
+			Job job;
+			synchronized (this) {
+				job = jobs.peek();
+				if (job == null || job.time > time) {
+					if (time > now)
+						now = time;
+					return;
+				}
+				jobs.poll();
+				Integer count = queued.get(job.job);
+				if (count == null || count <= 1)
+					queued.remove(job.job);
+				else
+					queued.put(job.job, count - 1);
+				now = job.time;
+			}
+			try {
+				job.job.run();
+			}
+			catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " running " + job.job, t);
+			}
+		}
+	}
+
+	/**
+	 * Move the clock to the time of the next job, and run it and any others due then.
+	 * @return False if there are no jobs queued.
+	 */
+	public boolean runNext() {
+		long time;
+		synchronized (this) {
+			Job job = jobs.peek();
+			if (job == null)
+				return false;
+			time = job.time;
+		}
+		advanceTo(time);
+		return true;
+	}
+
+}
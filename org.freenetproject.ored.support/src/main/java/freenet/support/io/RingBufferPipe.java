@@ -0,0 +1,272 @@
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pipe between two threads, for streaming data from one to the other, e.g. between
+ * decompressors.
+ *
+ * Replaces PipedInputStream/PipedOutputStream, which have a 1KiB buffer by default, hand
+ * over with wait/notify and a one second poll, and tie the pipe to the threads that last
+ * used it. Here the buffer is a large ring, so each side can copy big chunks while the
+ * other is busy; the writer blocks when it is full, which slows down whatever is producing
+ * the data. Either side may {@link #abort(Throwable)} the pipe, e.g. because a fetch was
+ * cancelled or a later stage failed, and the other side will get an IOException instead
+ * of blocking forever.
+ *
+ * Also counts how long each side has spent waiting for the other, so callers can tell how
+ * much of a stage's time was spent doing work.
+ */
+public class RingBufferPipe {
+
+	public static final int DEFAULT_SIZE = 256 * 1024;
+
+	private final byte[] buf;
+
+	/** Position of the next byte to read. */
+	private int readPos;
+
+	/** Bytes in the buffer. */
+	private int count;
+
+	private boolean writerClosed;
+
+	private boolean readerClosed;
+
+	private Throwable abortCause;
+
+	private long readWaitNanos;
+
+	private long writeWaitNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final InputStream in = new PipeInputStream();
+
+	private final OutputStream out = new PipeOutputStream();
+
+	public RingBufferPipe() {
+		this(DEFAULT_SIZE);
+	}
+
+	public RingBufferPipe(int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException();
+		buf = new byte[size];
+	}
+
+	/** The end to read from. Closing it makes further writes fail. */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/** The end to write to. Closing it makes the reader see end of file. */
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * Fail both ends of the pipe. Threads blocked reading or writing will throw an
+	 * IOException with the given cause, as will any later calls. Data in the buffer is
+	 * discarded.
+	 */
+	public void abort(Throwable cause) {
+		lock.lock();
+		try {
+			if (abortCause == null)
+				abortCause = (cause == null) ? new IOException("Aborted") : cause;
+			count = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return Total time the reader has spent waiting for data. */
+	public long getReadWaitNanos() {
+		lock.lock();
+		try {
+			return readWaitNanos;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return Total time the writer has spent waiting for space. */
+	public long getWriteWaitNanos() {
+		lock.lock();
+		try {
+			return writeWaitNanos;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/** Must be called with the lock held. */
+	private void checkAborted() throws IOException {
+		if (abortCause != null)
+			throw new IOException("Pipe aborted: " + abortCause, abortCause);
+	}
+
+	/** Must be called with the lock held. */
+	private void await(Condition condition, boolean reading) throws IOException {
+		long start = System.nanoTime();
+		try {
+			condition.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		finally {
+			long waited = System.nanoTime() - start;
+			if (reading)
+				readWaitNanos += waited;
+			else
+				writeWaitNanos += waited;
+		}
+	}
+
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		lock.lock();
+		try {
+			while (true) {
+				checkAborted();
+				if (readerClosed)
+					throw new IOException("Pipe closed");
+				if (count > 0)
+					break;
+				if (writerClosed)
+					return -1;
+				await(notEmpty, true);
+			}
+			int toRead = Math.min(len, count);
+			int first = Math.min(toRead, buf.length - readPos);
+			System.arraycopy(buf, readPos, b, off, first);
+			System.arraycopy(buf, 0, b, off + first, toRead - first);
+			readPos = (readPos + toRead) % buf.length;
+			count -= toRead;
+			notFull.signal();
+			return toRead;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			while (len > 0) {
+				checkAborted();
+				if (writerClosed)
+					throw new IOException("Pipe closed");
+				if (readerClosed)
+					throw new IOException("Pipe closed by reader");
+				if (count == buf.length) {
+					await(notFull, false);
+					continue;
+				}
+				int writePos = (readPos + count) % buf.length;
+				int toWrite = Math.min(len, buf.length - count);
+				int first = Math.min(toWrite, buf.length - writePos);
+				System.arraycopy(b, off, buf, writePos, first);
+				System.arraycopy(b, off + first, buf, 0, toWrite - first);
+				count += toWrite;
+				off += toWrite;
+				len -= toWrite;
+				notEmpty.signal();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		private final byte[] one = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int r = read(one, 0, 1);
+			return (r < 0) ? -1 : (one[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return RingBufferPipe.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			lock.lock();
+			try {
+				checkAborted();
+				return count;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				readerClosed = true;
+				count = 0;
+				notFull.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+	private class PipeOutputStream extends OutputStream {
+
+		private final byte[] one = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			one[0] = (byte) b;
+			write(one, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			RingBufferPipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				writerClosed = true;
+				notEmpty.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+}
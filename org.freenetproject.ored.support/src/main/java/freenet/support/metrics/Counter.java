@@ -0,0 +1,29 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count which only goes up. Does not lock, so can be used on hot paths.
+ */
+public final class Counter {
+
+	private final LongAdder count = new LongAdder();
+
+	public void increment() {
+		count.increment();
+	}
+
+	public void add(long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Counters can't go down: " + value);
+		count.add(value);
+	}
+
+	public long get() {
+		return count.sum();
+	}
+
+}
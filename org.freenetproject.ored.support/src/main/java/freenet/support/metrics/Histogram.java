@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values into fixed buckets, e.g. for latencies. Values are longs in whatever unit
+ * is convenient for the caller, e.g. nanoseconds; the scale given to the constructor
+ * converts them for output, e.g. to seconds. Recording does not lock, so can be used on
+ * hot paths.
+ */
+public final class Histogram {
+
+	/** Upper bounds of the buckets, inclusive, in increasing order. */
+	private final long[] bounds;
+
+	/** One more than the bounds, the last one is for bigger values. */
+	private final LongAdder[] counts;
+
+	private final LongAdder sum = new LongAdder();
+
+	final double scale;
+
+	/**
+	 * @param scale How many recorded units make one output unit, e.g. 1e9 for nanoseconds
+	 * shown as seconds.
+	 * @param bounds The upper bounds of the buckets, inclusive, in increasing order.
+	 */
+	public Histogram(double scale, long... bounds) {
+		if (bounds.length == 0)
+			throw new IllegalArgumentException("No buckets");
+		for (int i = 1; i < bounds.length; i++) {
+			if (bounds[i] <= bounds[i - 1])
+				throw new IllegalArgumentException("Bucket bounds must increase: " + Arrays.toString(bounds));
+		}
+		this.scale = scale;
+		this.bounds = bounds.clone();
+		counts = new LongAdder[bounds.length + 1];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = new LongAdder();
+	}
+
+	/**
+	 * Bounds which grow by a constant factor, for values spread over several orders of
+	 * magnitude.
+	 */
+	public static long[] exponentialBounds(long start, double factor, int count) {
+		if (start <= 0 || factor <= 1.0)
+			throw new IllegalArgumentException();
+		long[] bounds = new long[count];
+		double bound = start;
+		for (int i = 0; i < count; i++) {
+			bounds[i] = (i == 0) ? start : Math.max(bounds[i - 1] + 1, Math.round(bound));
+			bound *= factor;
+		}
+		return bounds;
+	}
+
+	public void record(long value) {
+		int index = Arrays.binarySearch(bounds, value);
+		if (index < 0)
+			index = -index - 1;
+		counts[index].increment();
+		sum.add(value);
+	}
+
+	/** Record the time since the given System.nanoTime(), for histograms in nanoseconds. */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/** @return A copy of the bucket bounds. */
+	public long[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * @return The number of values in each bucket, not cumulative. The last element is
+	 * for values above the last bound.
+	 */
+	public long[] getCounts() {
+		long[] ret = new long[counts.length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = counts[i].sum();
+		return ret;
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (LongAdder count : counts)
+			total += count.sum();
+		return total;
+	}
+
+	/** @return The sum of all values recorded, in the recorded unit. */
+	public long getSum() {
+		return sum.sum();
+	}
+
+}
@@ -0,0 +1,256 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+import freenet.support.Logger;
+
+/**
+ * A set of named metrics, which can be written out in the Prometheus text exposition
+ * format (version 0.0.4) for monitoring tools to scrape.
+ *
+ * Metrics with the same name form a family and share a type and help text; they are told
+ * apart by their labels, e.g. <code>key="chk"</code>. Counters, gauges and histograms
+ * owned by the registry are recorded without locking. Existing statistics can be
+ * registered as functions, which are only called when the metrics are written out, so
+ * they cost nothing in between.
+ */
+public class MetricsRegistry {
+
+	/** MIME type of {@link #write(StringBuilder)}'s output. */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private enum Type {
+
+		COUNTER, GAUGE, HISTOGRAM;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+
+	}
+
+	private static final class Sample {
+
+		final String labels;
+
+		/** A Counter, a Histogram or a DoubleSupplier. */
+		final Object source;
+
+		Sample(String labels, Object source) {
+			this.labels = labels;
+			this.source = source;
+		}
+
+	}
+
+	private static final class Family {
+
+		final Type type;
+
+		final String help;
+
+		final CopyOnWriteArrayList<Sample> samples = new CopyOnWriteArrayList<Sample>();
+
+		Family(Type type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+
+	}
+
+	/** Sorted by name, so the output is stable. */
+	private final Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * Create a counter.
+	 * @param name The name, conventionally ending in "_total".
+	 * @param labels Labels from {@link #labels(String...)}, or null.
+	 */
+	public Counter counter(String name, String help, String labels) {
+		Counter counter = new Counter();
+		add(name, help, Type.COUNTER, labels, counter);
+		return counter;
+	}
+
+	public Counter counter(String name, String help) {
+		return counter(name, help, null);
+	}
+
+	/** Register an existing count, which must never go down. */
+	public void counter(String name, String help, String labels, DoubleSupplier value) {
+		add(name, help, Type.COUNTER, labels, value);
+	}
+
+	/** Register a value which can go up or down. */
+	public void gauge(String name, String help, String labels, DoubleSupplier value) {
+		add(name, help, Type.GAUGE, labels, value);
+	}
+
+	public void gauge(String name, String help, DoubleSupplier value) {
+		gauge(name, help, null, value);
+	}
+
+	/**
+	 * Create a histogram.
+	 * @param name The name, conventionally ending in the output unit, e.g. "_seconds".
+	 * @param scale See {@link Histogram#Histogram(double, long...)}.
+	 * @param bounds The upper bounds of the buckets, in the recorded unit.
+	 */
+	public Histogram histogram(String name, String help, String labels, double scale, long... bounds) {
+		Histogram histogram = new Histogram(scale, bounds);
+		add(name, help, Type.HISTOGRAM, labels, histogram);
+		return histogram;
+	}
+
+	private void add(String name, String help, Type type, String labels, Object source) {
+		if (!isValidName(name))
+			throw new IllegalArgumentException("Invalid metric name: " + name);
+		if (labels != null && labels.isEmpty())
+			labels = null;
+		Family family = families.computeIfAbsent(name, (n) -> new Family(type, help));
+		if (family.type != type)
+			throw new IllegalArgumentException(name + " is already a " + family.type);
+		synchronized (family) {
+			for (Sample sample : family.samples) {
+				if (sample.labels == null ? labels == null : sample.labels.equals(labels))
+					throw new IllegalArgumentException("Already registered: " + name + "{" + labels + "}");
+			}
+			family.samples.add(new Sample(labels, source));
+		}
+	}
+
+	private static boolean isValidName(String name) {
+		if (name.isEmpty())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+					|| (i > 0 && c >= '0' && c <= '9');
+			if (!ok)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Format labels for registering a metric.
+	 * @param namesAndValues Alternating label names and values.
+	 */
+	public static String labels(String... namesAndValues) {
+		if (namesAndValues.length % 2 != 0)
+			throw new IllegalArgumentException("Names and values must be in pairs");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(namesAndValues[i]).append("=\"");
+			String value = namesAndValues[i + 1];
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"')
+					sb.append('\\').append(c);
+				else if (c == '\n')
+					sb.append("\\n");
+				else
+					sb.append(c);
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	/** Write all the metrics in the text exposition format. */
+	public void write(StringBuilder sb) {
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			sb.append("# HELP ").append(name).append(' ');
+			appendHelp(sb, family.help);
+			sb.append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (Sample sample : family.samples) {
+				if (sample.source instanceof Histogram)
+					writeHistogram(sb, name, sample.labels, (Histogram) sample.source);
+				else if (sample.source instanceof Counter)
+					writeSample(sb, name, sample.labels, null, ((Counter) sample.source).get());
+				else {
+					double value;
+					try {
+						value = ((DoubleSupplier) sample.source).getAsDouble();
+					}
+					catch (RuntimeException e) {
+						// Leave it out rather than failing the whole scrape.
+						Logger.error(this, "Unable to get " + name + "{" + sample.labels + "}: " + e, e);
+						continue;
+					}
+					writeSample(sb, name, sample.labels, null, value);
+				}
+			}
+		}
+	}
+
+	public String toText() {
+		StringBuilder sb = new StringBuilder(16384);
+		write(sb);
+		return sb.toString();
+	}
+
+	private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram histogram) {
+		long[] bounds = histogram.getBounds();
+		long[] counts = histogram.getCounts();
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			String le = (i < bounds.length) ? formatValue(bounds[i] / histogram.scale) : "+Inf";
+			writeSample(sb, name + "_bucket", labels, le, cumulative);
+		}
+		writeSample(sb, name + "_sum", labels, null, histogram.getSum() / histogram.scale);
+		writeSample(sb, name + "_count", labels, null, cumulative);
+	}
+
+	private static void writeSample(StringBuilder sb, String name, String labels, String le, double value) {
+		sb.append(name);
+		if (labels != null || le != null) {
+			sb.append('{');
+			if (labels != null)
+				sb.append(labels);
+			if (le != null) {
+				if (labels != null)
+					sb.append(',');
+				sb.append("le=\"").append(le).append('"');
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(formatValue(value)).append('\n');
+	}
+
+	static String formatValue(double value) {
+		if (Double.isNaN(value))
+			return "NaN";
+		if (Double.isInfinite(value))
+			return (value > 0) ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	private static void appendHelp(StringBuilder sb, String help) {
+		for (int i = 0; i < help.length(); i++) {
+			char c = help.charAt(i);
+			if (c == '\\')
+				sb.append("\\\\");
+			else if (c == '\n')
+				sb.append("\\n");
+			else
+				sb.append(c);
+		}
+	}
+
+}
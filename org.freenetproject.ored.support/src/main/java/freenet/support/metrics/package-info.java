@@ -0,0 +1,5 @@
+/**
+ * Counters, gauges and histograms which can be read by machines, in the Prometheus text
+ * format.
+ */
+package freenet.support.metrics;
@@ -0,0 +1,12 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.node;
+
+/**
+ * A Runnable which spends most of its time blocked, e.g. waiting for messages from
+ * another node, rather than using the CPU. The executor may run it on a virtual thread.
+ */
+public interface BlockingRunnable extends Runnable {
+
+}
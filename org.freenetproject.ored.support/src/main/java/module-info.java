@@ -4,6 +4,7 @@ module org.freenetproject.ored.support {
     exports freenet.support.client;
     exports freenet.support.io;
     exports freenet.support.math;
+    exports freenet.support.metrics;
     exports freenet.support.node;
     exports freenet.support.node.stats;
     exports freenet.support.fcp;
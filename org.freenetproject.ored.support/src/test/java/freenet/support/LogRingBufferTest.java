@@ -0,0 +1,109 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class LogRingBufferTest extends TestCase {
+
+	private static String drain(LogRingBuffer ring) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ring.drainTo(out::write);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public void testOrderAndWrap() {
+		LogRingBuffer ring = new LogRingBuffer(64);
+		assertEquals(64, ring.capacity());
+		StringBuilder expected = new StringBuilder();
+		StringBuilder actual = new StringBuilder();
+		// Enough lines to go round the ring several times, with odd lengths so records
+		// and lines wrap at different places.
+		for (int i = 0; i < 100; i++) {
+			String line = "line " + i + "\n";
+			assertTrue(ring.offer(line));
+			expected.append(line);
+			if (i % 3 == 2)
+				actual.append(drain(ring));
+		}
+		actual.append(drain(ring));
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(0, ring.pending());
+		assertEquals(0, ring.getDroppedLines());
+	}
+
+	public void testUTF8() {
+		LogRingBuffer ring = new LogRingBuffer(256);
+		String line = "aé€😀\ud800b\n";
+		assertEquals(1 + 2 + 3 + 4 + 1 + 1 + 1, LogRingBuffer.utf8Length(line));
+		assertTrue(ring.offer(line));
+		// The lone surrogate can't be encoded.
+		assertEquals("aé€😀?b\n", drain(ring));
+	}
+
+	public void testDropWhenFull() {
+		LogRingBuffer ring = new LogRingBuffer(64);
+		ring.setLimit(32);
+		// 4 byte header + 11 bytes, padded to 16.
+		assertTrue(ring.offer("0123456789\n"));
+		assertTrue(ring.offer("0123456789\n"));
+		assertFalse(ring.offer("0123456789\n"));
+		assertFalse(ring.offer("x\n"));
+		assertEquals(2, ring.getDroppedLines());
+		assertEquals(13, ring.getDroppedBytes());
+		assertEquals("0123456789\n0123456789\n", drain(ring));
+		assertTrue(ring.offer("x\n".getBytes(StandardCharsets.UTF_8), 0, 2));
+		assertEquals("x\n", drain(ring));
+		// Too big to ever fit.
+		assertFalse(ring.offer(new byte[100], 0, 100));
+	}
+
+	public void testConcurrentWriters() throws InterruptedException {
+		final LogRingBuffer ring = new LogRingBuffer(4096);
+		final int threads = 4;
+		final int lines = 5000;
+		Thread[] writers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			writers[i] = new Thread(() -> {
+				for (int j = 0; j < lines; j++) {
+					while (!ring.offer("t" + id + " " + j + "\n"))
+						Thread.yield();
+				}
+			});
+			writers[i].start();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		boolean running = true;
+		while (running) {
+			running = false;
+			for (Thread t : writers)
+				running |= t.isAlive();
+			ring.drainTo(out::write);
+		}
+		ring.drainTo(out::write);
+		String[] got = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertEquals(threads * lines, got.length);
+		Set<String> unique = new HashSet<String>();
+		int[] next = new int[threads];
+		for (String line : got) {
+			assertTrue(unique.add(line));
+			String[] parts = line.substring(1).split(" ");
+			int id = Integer.parseInt(parts[0]);
+			// Each thread's lines come out in the order it logged them.
+			assertEquals(next[id]++, Integer.parseInt(parts[1]));
+		}
+	}
+
+	public void testFormat() {
+		assertEquals("a 1 b 2", LogFormat.format("a {} b {}", 1, 2));
+		assertEquals("a 1 b {}", LogFormat.format("a {} b {}", 1));
+		assertEquals("a [x, y] null", LogFormat.format("a {} {}", new Object[] { "x", "y" }, null));
+		assertEquals("no args", LogFormat.format("no args"));
+		assertEquals(2, LogFormat.countPlaceholders("{}{}"));
+	}
+
+}
@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.io.NativeThread;
+import freenet.support.node.BlockingRunnable;
+import freenet.support.node.PrioRunnable;
+import junit.framework.TestCase;
+
+public class PooledExecutorTest extends TestCase {
+
+	private static class Job implements PrioRunnable {
+
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final CountDownLatch finished = new CountDownLatch(1);
+
+		private final int prio;
+
+		volatile Thread thread;
+
+		Job(int prio) {
+			this.prio = prio;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			started.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				// Ignore
+			}
+			finally {
+				finished.countDown();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+
+	}
+
+	private static class BlockingJob extends Job implements BlockingRunnable {
+
+		BlockingJob(int prio) {
+			super(prio);
+		}
+
+	}
+
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+	}
+
+	public void testPooledByDefault() throws InterruptedException {
+		PooledExecutor executor = new PooledExecutor();
+		BlockingJob job = new BlockingJob(NativeThread.HIGH_PRIORITY);
+		executor.execute(job, "test");
+		await(job.started);
+		assertTrue(job.thread instanceof PooledExecutor.MyThread);
+		assertEquals(0, executor.getVirtualThreadCount());
+		job.release.countDown();
+		await(job.finished);
+	}
+
+	public void testVirtualThreads() throws InterruptedException {
+		PooledExecutor executor = new PooledExecutor();
+		executor.setUseVirtualThreads(true);
+		assertTrue(executor.getUseVirtualThreads());
+		if (!PooledExecutor.virtualThreadsAvailable()) {
+			assertFalse(executor.usingVirtualThreads());
+			return;
+		}
+		assertTrue(executor.usingVirtualThreads());
+		int[] before = executor.runningThreads();
+		BlockingJob job = new BlockingJob(NativeThread.HIGH_PRIORITY);
+		executor.execute(job, "test");
+		await(job.started);
+		assertTrue(PooledExecutor.isVirtual(job.thread));
+		assertFalse(job.thread instanceof PooledExecutor.MyThread);
+		assertEquals(1, executor.getVirtualThreadCount());
+		assertTrue(Arrays.asList(executor.getVirtualThreads()).contains(job.thread));
+		assertEquals(NativeThread.HIGH_PRIORITY, executor.getPriority(job.thread));
+		assertEquals(before[NativeThread.HIGH_PRIORITY - 1] + 1,
+				executor.runningThreads()[NativeThread.HIGH_PRIORITY - 1]);
+		job.release.countDown();
+		await(job.finished);
+		job.thread.join(10000);
+		assertEquals(0, executor.getVirtualThreadCount());
+	}
+
+	/** Only blocking jobs, and not at the highest priorities, go on virtual threads. */
+	public void testVirtualThreadsOnlyForBlockingJobs() throws InterruptedException {
+		PooledExecutor executor = new PooledExecutor();
+		executor.setUseVirtualThreads(true);
+		Job job = new Job(NativeThread.NORM_PRIORITY);
+		BlockingJob maxPriorityJob = new BlockingJob(NativeThread.MAX_PRIORITY);
+		executor.execute(job, "test");
+		executor.execute(maxPriorityJob, "test");
+		await(job.started);
+		await(maxPriorityJob.started);
+		assertTrue(job.thread instanceof PooledExecutor.MyThread);
+		assertTrue(maxPriorityJob.thread instanceof PooledExecutor.MyThread);
+		assertFalse(PooledExecutor.isVirtual(job.thread));
+		assertEquals(0, executor.getVirtualThreadCount());
+		job.release.countDown();
+		maxPriorityJob.release.countDown();
+		await(job.finished);
+		await(maxPriorityJob.finished);
+	}
+
+}
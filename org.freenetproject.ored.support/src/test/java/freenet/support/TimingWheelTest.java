@@ -0,0 +1,74 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TimingWheel}.
+ */
+public class TimingWheelTest extends TestCase {
+
+	private static final long TICK = 10;
+
+	/**
+	 * Items come out no earlier than their deadline and no more than a tick after it,
+	 * including ones beyond the range of the wheel.
+	 */
+	public void testRandomDeadlines() {
+		Random r = new Random(1234);
+		long now = 12345;
+		// 4 slots and 2 levels, so the wheel only covers 160 time units.
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, 2, 2, now);
+		Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+		int next = 0;
+		for (int step = 0; step < 2000; step++) {
+			for (int i = r.nextInt(3); i > 0; i--) {
+				long deadline = now + r.nextInt(500) - 20;
+				deadlines.put(next, deadline);
+				wheel.schedule(next++, deadline);
+			}
+			now += r.nextInt(30);
+			List<Integer> expired = wheel.advance(now);
+			for (Integer item : expired) {
+				long deadline = deadlines.remove(item);
+				assertTrue(deadline <= now);
+				assertTrue(now - deadline < TICK + 50);
+			}
+			for (long deadline : deadlines.values())
+				assertTrue(deadline > now - TICK);
+			assertEquals(deadlines.size(), wheel.size());
+		}
+	}
+
+	public void testExactTicks() {
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 6, 2, 0);
+		wheel.schedule("a", 10);
+		wheel.schedule("b", 11);
+		wheel.schedule("c", 0);
+		assertEquals(3, wheel.size());
+		assertEquals(1, wheel.advance(5).size());
+		List<String> expired = wheel.advance(10);
+		assertEquals(1, expired.size());
+		assertEquals("a", expired.get(0));
+		assertTrue(wheel.advance(19).isEmpty());
+		expired = wheel.advance(20);
+		assertEquals(1, expired.size());
+		assertEquals("b", expired.get(0));
+		assertEquals(0, wheel.size());
+	}
+
+	public void testLongJump() {
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, 6, 2, 0);
+		for (int i = 0; i < 100; i++)
+			wheel.schedule(i, i * 1000L);
+		assertEquals(100, wheel.advance(1000L * 1000).size());
+	}
+
+}
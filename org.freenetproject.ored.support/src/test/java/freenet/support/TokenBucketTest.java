@@ -0,0 +1,118 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TokenBucket}.
+ */
+@SuppressWarnings("deprecation")
+public class TokenBucketTest extends TestCase {
+
+	/** Starts at zero. */
+	private static class ManualTokenBucket extends TokenBucket {
+
+		long now;
+
+		ManualTokenBucket(long max, long nanosPerTick, long initialValue) {
+			super(max, nanosPerTick, initialValue);
+		}
+
+		@Override
+		protected long nanoTime() {
+			return now;
+		}
+
+	}
+
+	public void testInstantGrab() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, 10, 50);
+		assertEquals(50, bucket.getCount());
+		assertTrue(bucket.instantGrab(30));
+		assertEquals(20, bucket.getCount());
+		assertFalse(bucket.instantGrab(21));
+		assertEquals(20, bucket.getCount());
+		bucket.now += 105;
+		assertEquals(30, bucket.getCount());
+		// Never more than the maximum.
+		bucket.now += 10000;
+		assertEquals(100, bucket.getCount());
+		assertFalse(bucket.instantGrab(101));
+		assertTrue(bucket.instantGrab(100));
+		assertEquals(0, bucket.getCount());
+	}
+
+	public void testPartialInstantGrab() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, 10, 50);
+		assertEquals(20, bucket.partialInstantGrab(20));
+		assertEquals(30, bucket.partialInstantGrab(40));
+		assertEquals(0, bucket.getCount());
+		assertEquals(0, bucket.partialInstantGrab(10));
+	}
+
+	public void testForceGrabAndRecycle() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, 10, 50);
+		bucket.forceGrab(80);
+		assertEquals(-30, bucket.getCount());
+		assertFalse(bucket.instantGrab(1));
+		bucket.now += 300;
+		assertEquals(0, bucket.getCount());
+		bucket.recycle(40);
+		assertEquals(40, bucket.getCount());
+		bucket.recycle(1000);
+		assertEquals(100, bucket.getCount());
+	}
+
+	public void testChangeRateKeepsBalance() {
+		ManualTokenBucket bucket = new ManualTokenBucket(100, 10, 50);
+		bucket.changeNanosPerTick(20);
+		assertEquals(50, bucket.getCount());
+		assertEquals(20, bucket.getNanosPerTick());
+		bucket.now += 200;
+		assertEquals(60, bucket.getCount());
+		bucket.changeBucketSize(40);
+		assertEquals(40, bucket.getCount());
+		// Tokens added at the old rate may count towards a bigger new maximum.
+		bucket.now += 20 * 100;
+		bucket.changeNanosAndBucketSize(10, 200);
+		assertEquals(140, bucket.getCount());
+	}
+
+	public void testBlockingGrab() {
+		// A real clock, at a million tokens per second.
+		TokenBucket bucket = new TokenBucket(1000, 1000, 0);
+		long start = System.nanoTime();
+		bucket.blockingGrab(5000);
+		long elapsed = System.nanoTime() - start;
+		assertTrue("Only waited " + elapsed + "ns", elapsed >= 4000 * 1000);
+		assertTrue(bucket.getBlockingWaits() > 0);
+		assertTrue(bucket.getCount() <= 1000);
+	}
+
+	public void testConcurrentGrabs() throws InterruptedException {
+		ManualTokenBucket bucket = new ManualTokenBucket(1000000, 10, 1000000);
+		final int threads = 8;
+		final int grabsPerThread = 10000;
+		final AtomicLong granted = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(() -> {
+				for (int j = 0; j < grabsPerThread; j++) {
+					if (bucket.instantGrab(10))
+						granted.addAndGet(10);
+				}
+			});
+			workers[i].start();
+		}
+		for (Thread t : workers)
+			t.join();
+		// The clock didn't move, so the total can't be more than the bucket held.
+		assertEquals(threads * grabsPerThread * 10, granted.get());
+		assertEquals(1000000 - granted.get(), bucket.getCount());
+	}
+
+}
@@ -0,0 +1,69 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class VirtualTickerTest extends TestCase {
+
+	private VirtualTicker ticker;
+
+	private List<String> ran;
+
+	@Override
+	protected void setUp() {
+		ticker = new VirtualTicker(null, 1000);
+		ran = new ArrayList<String>();
+	}
+
+	private Runnable job(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ran.add(name + "@" + ticker.currentTimeMillis());
+			}
+		};
+	}
+
+	public void testRunsInOrderOfTime() {
+		ticker.queueTimedJob(job("c"), 30);
+		ticker.queueTimedJob(job("a"), 10);
+		ticker.queueTimedJob(job("b"), 10);
+		ticker.queueTimedJobAbsolute(job("d"), "d", 1025, false, false);
+		ticker.advance(20);
+		assertEquals("[a@1010, b@1010]", ran.toString());
+		assertEquals(1020, ticker.currentTimeMillis());
+		ticker.advance(100);
+		assertEquals("[a@1010, b@1010, d@1025, c@1030]", ran.toString());
+		assertEquals(1120, ticker.currentTimeMillis());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testJobsQueuedByJobs() {
+		ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				ticker.queueTimedJob(job("later"), 5);
+				ticker.queueTimedJob(job("now"), 0);
+			}
+		}, 10);
+		assertTrue(ticker.runNext());
+		assertEquals("[now@1010]", ran.toString());
+		assertTrue(ticker.runNext());
+		assertEquals("[now@1010, later@1015]", ran.toString());
+		assertFalse(ticker.runNext());
+	}
+
+	public void testNoDupesAndRemove() {
+		Runnable r = job("r");
+		ticker.queueTimedJob(r, "r", 10, true, true);
+		ticker.queueTimedJob(r, "r", 20, true, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.removeQueuedJob(r);
+		assertEquals(0, ticker.queuedJobs());
+		ticker.advance(100);
+		assertTrue(ran.isEmpty());
+	}
+
+}
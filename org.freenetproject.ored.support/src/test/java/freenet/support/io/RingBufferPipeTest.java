@@ -0,0 +1,97 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RingBufferPipeTest extends TestCase {
+
+	public void testTransfer() throws Exception {
+		final RingBufferPipe pipe = new RingBufferPipe(1000);
+		final byte[] data = new byte[100000];
+		new Random(1).nextBytes(data);
+		Thread writer = new Thread(() -> {
+			try (OutputStream out = pipe.getOutputStream()) {
+				// Odd sizes, so writes wrap around the end of the buffer.
+				int offset = 0;
+				while (offset < data.length) {
+					int len = Math.min(data.length - offset, 777);
+					out.write(data, offset, len);
+					offset += len;
+				}
+			}
+			catch (IOException e) {
+				fail(e.toString());
+			}
+		});
+		writer.start();
+		ByteArrayOutputStream got = new ByteArrayOutputStream();
+		InputStream in = pipe.getInputStream();
+		byte[] buf = new byte[333];
+		int r;
+		while ((r = in.read(buf)) > 0)
+			got.write(buf, 0, r);
+		writer.join();
+		assertTrue(Arrays.equals(data, got.toByteArray()));
+		// The writer had to wait for the reader, the buffer being much smaller.
+		assertTrue(pipe.getWriteWaitNanos() > 0);
+	}
+
+	public void testSingleBytes() throws IOException {
+		RingBufferPipe pipe = new RingBufferPipe(4);
+		OutputStream out = pipe.getOutputStream();
+		out.write(200);
+		out.write(1);
+		out.close();
+		InputStream in = pipe.getInputStream();
+		assertEquals(2, in.available());
+		assertEquals(200, in.read());
+		assertEquals(1, in.read());
+		assertEquals(-1, in.read());
+	}
+
+	public void testAbortWakesBlockedWriter() throws Exception {
+		final RingBufferPipe pipe = new RingBufferPipe(16);
+		final IOException[] thrown = new IOException[1];
+		Thread writer = new Thread(() -> {
+			try {
+				pipe.getOutputStream().write(new byte[100]);
+			}
+			catch (IOException e) {
+				thrown[0] = e;
+			}
+		});
+		writer.start();
+		Thread.sleep(50);
+		IllegalStateException cause = new IllegalStateException();
+		pipe.abort(cause);
+		writer.join(10000);
+		assertNotNull(thrown[0]);
+		assertSame(cause, thrown[0].getCause());
+		try {
+			pipe.getInputStream().read();
+			fail();
+		}
+		catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testReaderClose() throws IOException {
+		RingBufferPipe pipe = new RingBufferPipe(16);
+		pipe.getInputStream().close();
+		try {
+			pipe.getOutputStream().write(new byte[1]);
+			fail();
+		}
+		catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
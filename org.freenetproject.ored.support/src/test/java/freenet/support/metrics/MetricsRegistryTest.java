@@ -0,0 +1,102 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link MetricsRegistry} and {@link Histogram}.
+ */
+public class MetricsRegistryTest extends TestCase {
+
+	public void testTextFormat() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter requests = registry.counter("test_requests_total", "Requests.", MetricsRegistry.labels("key", "chk"));
+		registry.gauge("test_peers", "Connected\npeers.", () -> 12);
+		registry.gauge("test_ratio", "A ratio.", MetricsRegistry.labels("name", "a\"b"), () -> 0.25);
+		requests.add(3);
+		requests.increment();
+		String expected = "# HELP test_peers Connected\\npeers.\n" + "# TYPE test_peers gauge\n" + "test_peers 12\n"
+				+ "# HELP test_ratio A ratio.\n" + "# TYPE test_ratio gauge\n" + "test_ratio{name=\"a\\\"b\"} 0.25\n"
+				+ "# HELP test_requests_total Requests.\n" + "# TYPE test_requests_total counter\n"
+				+ "test_requests_total{key=\"chk\"} 4\n";
+		assertEquals(expected, registry.toText());
+	}
+
+	public void testHistogram() {
+		MetricsRegistry registry = new MetricsRegistry();
+		Histogram histogram = registry.histogram("test_latency_seconds", "Latency.", null, 1000, 10, 100, 1000);
+		histogram.record(5);
+		histogram.record(10);
+		histogram.record(50);
+		histogram.record(5000);
+		assertTrue(Arrays.equals(new long[] { 2, 1, 0, 1 }, histogram.getCounts()));
+		assertEquals(4, histogram.getCount());
+		assertEquals(5065, histogram.getSum());
+		String expected = "# HELP test_latency_seconds Latency.\n" + "# TYPE test_latency_seconds histogram\n"
+				+ "test_latency_seconds_bucket{le=\"0.01\"} 2\n" + "test_latency_seconds_bucket{le=\"0.1\"} 3\n"
+				+ "test_latency_seconds_bucket{le=\"1\"} 3\n" + "test_latency_seconds_bucket{le=\"+Inf\"} 4\n"
+				+ "test_latency_seconds_sum 5.065\n" + "test_latency_seconds_count 4\n";
+		assertEquals(expected, registry.toText());
+	}
+
+	public void testExponentialBounds() {
+		assertTrue(Arrays.equals(new long[] { 1, 2, 4, 8 }, Histogram.exponentialBounds(1, 2.0, 4)));
+		// Never the same bound twice.
+		assertTrue(Arrays.equals(new long[] { 1, 2, 3, 4 }, Histogram.exponentialBounds(1, 1.1, 4)));
+	}
+
+	public void testDuplicates() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.gauge("test_value", "A value.", MetricsRegistry.labels("a", "1"), () -> 1);
+		registry.gauge("test_value", "A value.", MetricsRegistry.labels("a", "2"), () -> 2);
+		try {
+			registry.gauge("test_value", "A value.", MetricsRegistry.labels("a", "1"), () -> 1);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("test_value", "A value.");
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		try {
+			registry.counter("0bad name", "A value.");
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testFailingGaugeIsLeftOut() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.gauge("test_broken", "Broken.", () -> {
+			throw new IllegalStateException();
+		});
+		assertEquals("# HELP test_broken Broken.\n# TYPE test_broken gauge\n", registry.toText());
+	}
+
+	public void testConcurrentRecording() throws InterruptedException {
+		final Histogram histogram = new Histogram(1.0, 10, 20);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++)
+					histogram.record(j % 30);
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(40000, histogram.getCount());
+	}
+
+}